@@ -0,0 +1,155 @@
+package at.archistar.bft.client;
+
+import at.archistar.bft.helper.DigestHelper;
+
+/**
+ * tunables of a client's result handling. The defaults keep the original
+ * behaviour: an operation completes with 2f+1 (secret-shared, so not
+ * matched) replica answers and never times out. Matching answers (f+1 by
+ * default, as in PBFT) and timeouts are opt-in.
+ *
+ * @author andy
+ */
+public class ClientConfiguration {
+
+    /**
+     * amount of answers needed, 0 uses f+1 with matching and 2f+1 without
+     */
+    private int quorum = 0;
+
+    /**
+     * only count answers with the same payload. Disabled if every replica
+     * answers with its own (secret-shared) fragment, the answers are
+     * collected per replica then.
+     */
+    private boolean matchingResults = false;
+
+    /**
+     * time (in milliseconds) an operation may wait for its answers, 0 if it
+     * never times out
+     */
+    private long timeout = 0;
+
+    /**
+     * maximum amount of outstanding operations
+     */
+    private int maxPending = 65536;
+
+    /**
+     * time (in milliseconds) an operation with enough matching digest
+     * replies waits for the designated replica's full result before all
+     * replicas are asked for it
+     */
+    private long fullResultDelay = 50;
+
+    /**
+     * time (in milliseconds) a read-only operation waits for 2f+1 matching
+     * unordered answers before it falls back to the ordered path
+     */
+    private long readOnlyTimeout = 1000;
+
+    /**
+     * time (in milliseconds) an operation with 2f+1 matching speculative
+     * answers waits for the remaining ones before it sends a commit
+     * certificate
+     */
+    private long commitCertificateDelay = 20;
+
+    /**
+     * JCA digest algorithm of the result digests (must be the same as the
+     * replicas' one)
+     */
+    private String digestAlgorithm = DigestHelper.DEFAULT_ALGORITHM;
+
+    public int getQuorum() {
+        return this.quorum;
+    }
+
+    public void setQuorum(int quorum) {
+        if (quorum < 0) {
+            throw new IllegalArgumentException("quorum must not be negative");
+        }
+        this.quorum = quorum;
+    }
+
+    /**
+     * @return the amount of answers needed for the fault assumption
+     */
+    public int getQuorum(int f) {
+        if (this.quorum == 0) {
+            return this.matchingResults ? f + 1 : 2 * f + 1;
+        }
+        return Math.min(this.quorum, 3 * f + 1);
+    }
+
+    public boolean isMatchingResults() {
+        return this.matchingResults;
+    }
+
+    public void setMatchingResults(boolean matchingResults) {
+        this.matchingResults = matchingResults;
+    }
+
+    public long getTimeout() {
+        return this.timeout;
+    }
+
+    public void setTimeout(long timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout must not be negative");
+        }
+        this.timeout = timeout;
+    }
+
+    public int getMaxPending() {
+        return this.maxPending;
+    }
+
+    public void setMaxPending(int maxPending) {
+        if (maxPending < 1) {
+            throw new IllegalArgumentException("pending operation limit must be positive");
+        }
+        this.maxPending = maxPending;
+    }
+
+    public long getFullResultDelay() {
+        return this.fullResultDelay;
+    }
+
+    public void setFullResultDelay(long fullResultDelay) {
+        if (fullResultDelay < 0) {
+            throw new IllegalArgumentException("full result delay must not be negative");
+        }
+        this.fullResultDelay = fullResultDelay;
+    }
+
+    public long getReadOnlyTimeout() {
+        return this.readOnlyTimeout;
+    }
+
+    public void setReadOnlyTimeout(long readOnlyTimeout) {
+        if (readOnlyTimeout < 1) {
+            throw new IllegalArgumentException("read-only timeout must be positive");
+        }
+        this.readOnlyTimeout = readOnlyTimeout;
+    }
+
+    public long getCommitCertificateDelay() {
+        return this.commitCertificateDelay;
+    }
+
+    public void setCommitCertificateDelay(long commitCertificateDelay) {
+        if (commitCertificateDelay < 0) {
+            throw new IllegalArgumentException("commit certificate delay must not be negative");
+        }
+        this.commitCertificateDelay = commitCertificateDelay;
+    }
+
+    public String getDigestAlgorithm() {
+        return this.digestAlgorithm;
+    }
+
+    public void setDigestAlgorithm(String digestAlgorithm) {
+        this.digestAlgorithm = digestAlgorithm;
+    }
+}
@@ -1,23 +1,74 @@
 package at.archistar.bft.client;
 
-import java.util.HashMap;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import at.archistar.bft.exceptions.InconsistentResultsException;
+import at.archistar.bft.helper.DigestHelper;
+import at.archistar.bft.messages.CommitCertificate;
 import at.archistar.bft.messages.TransactionResult;
 
 /**
- * Helper class used to synchronously wait for client operation finish.
+ * the (future) result of a single client operation.
+ *
+ * Replica answers are collected without locking: every replica owns a slot
+ * (its first answer counts, retransmissions are ignored). The result
+ * completes as soon as a quorum of answers with the same payload arrived,
+ * it fails with an InconsistentResultsException once such a quorum is no
+ * longer possible. Without matching (secret-shared answers) any quorum of
+ * answers completes the result, the per-replica data is available through
+ * getDataForServer then.
+ *
+ * With digest replies the answers are compared by result digest, the result
+ * completes once a quorum of answers matches a full result. If the quorum is
+ * reached without a matching full result the replicas are asked to resend
+ * their full results (immediately if the designated replica answered with a
+ * different result, after a delay otherwise), a full result replaces the
+ * replica's digest-only answer if both match.
+ *
+ * Tentative answers (executed before their transaction commited) complete
+ * the result once 2f+1 of them match (or the quorum, if higher). They might
+ * still change: a replica's later answer replaces its tentative one, so
+ * only non-tentative answers are considered when deciding that a quorum is
+ * no longer possible.
+ *
+ * Speculative answers (speculative mode, executed upon the pre-prepare) only
+ * match if their view, sequence and history digest agree, they complete
+ * the result once all 3f+1 of them match. With 2f+1 matching speculative
+ * answers a commit certificate is sent (once all replicas answered or after
+ * a delay), 2f+1 local commits for the certified history complete the
+ * result with the certified payload then.
+ *
+ * Callers can either block (get) or register a ResultListener. A blocked
+ * caller times the result out once its deadline passed. Without one the
+ * deadline is only enforced by ResultManager.expire, which has to be called
+ * periodically then (it also drives the full result requests, commit
+ * certificates and read-only fallbacks).
  *
  * @author andy
  */
-public class ClientResult {
+public class ClientResult implements Future<byte[]> {
 
-    private final Lock lock = new ReentrantLock();
+    private static final Logger logger = LoggerFactory.getLogger(ClientResult.class);
 
-    private final Condition condition = lock.newCondition();
+    /**
+     * used by results that are not managed by a ResultManager
+     */
+    private static final DigestHelper DEFAULT_DIGESTS = new DigestHelper();
 
     /**
      * the configured faulty replica amount
@@ -34,20 +85,116 @@ public class ClientResult {
      */
     private final int clientSequence;
 
+    private final int quorum;
+
+    /**
+     * the amount of matching answers needed if some of them are tentative
+     */
+    private final int tentativeQuorum;
+
+    private final boolean matching;
+
+    /**
+     * System.nanoTime() after which the operation times out
+     */
+    private final long deadline;
+
+    private final DigestHelper digests;
+
+    /**
+     * (replica id) -> first received answer
+     */
+    private final AtomicReferenceArray<TransactionResult> answers;
+
+    private final AtomicReference<Completion> completion = new AtomicReference<>();
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private final Queue<ResultListener> listeners = new ConcurrentLinkedQueue<>();
+
     /**
-     * map with all retrieved results
+     * null if full results cannot be requested
      */
-    private final HashMap<Integer, TransactionResult> results = new HashMap<>();
+    private final DigestFallback fallback;
+
+    /**
+     * System.nanoTime() since which a matching full result is missing, 0 if
+     * none is missing (yet)
+     */
+    private final AtomicLong waitingSince = new AtomicLong(0);
+
+    private final AtomicBoolean fullResultRequested = new AtomicBoolean(false);
+
+    /**
+     * collects the unordered answers of a read-only command
+     */
+    private final boolean readOnly;
+
+    /**
+     * null if commit certificates cannot be sent
+     */
+    private final CommitCertifier certifier;
+
+    /**
+     * System.nanoTime() since which 2f+1 speculative answers matched, 0 if
+     * not (yet)
+     */
+    private final AtomicLong speculatingSince = new AtomicLong(0);
+
+    /**
+     * the speculative answer whose history was certified, null if no
+     * certificate was sent
+     */
+    private final AtomicReference<TransactionResult> certified = new AtomicReference<>();
+
+    /**
+     * the outcome of the operation
+     */
+    private static class Completion {
+
+        private final byte[] value;
+
+        private final Throwable failure;
+
+        Completion(byte[] value, Throwable failure) {
+            this.value = value;
+            this.failure = failure;
+        }
+    }
 
     /**
-     * note: always returns a locked ClientResult
+     * waits for 2f+1 answers (not matched), without timeout
      */
     public ClientResult(int f, int clientId, int clientSequence) {
+        this(f, clientId, clientSequence, 2 * f + 1, false, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param quorum the amount of (matching) answers needed
+     * @param deadline System.nanoTime() after which the operation times out
+     *        (Long.MAX_VALUE for never)
+     */
+    public ClientResult(int f, int clientId, int clientSequence, int quorum, boolean matching, long deadline) {
+        this(f, clientId, clientSequence, quorum, matching, deadline, DEFAULT_DIGESTS, null, false, null);
+    }
+
+    /**
+     * @param digests compares the result digests
+     */
+    ClientResult(int f, int clientId, int clientSequence, int quorum, boolean matching, long deadline, DigestHelper digests, DigestFallback fallback,
+            boolean readOnly, CommitCertifier certifier) {
         this.f = f;
         this.clientId = clientId;
         this.clientSequence = clientSequence;
-
-        lock.lock();
+        this.quorum = quorum;
+        this.tentativeQuorum = Math.min(Math.max(quorum, 2 * f + 1), 3 * f + 1);
+        this.matching = matching;
+        this.deadline = deadline;
+        this.digests = digests;
+        this.answers = new AtomicReferenceArray<>(3 * f + 1);
+        this.fallback = fallback;
+        this.readOnly = readOnly;
+        this.certifier = certifier;
     }
 
     /**
@@ -57,53 +204,393 @@ public class ClientResult {
      * @param clientSequence for which sequence (== operation)?
      * @param tx the result
      * @return true if enough results for output determination were received
-     * @throws InconsistentResultsException is thrown if there seems to be a
-     * faulty replica
+     * @throws InconsistentResultsException is thrown if the answer does not
+     * belong to this operation
      */
     public boolean addResult(int clientId, int clientSequence, TransactionResult tx) throws InconsistentResultsException {
 
-        lock.lock();
-        boolean result = false;
-        
-        try {
-            /* consistency checks */
-            if (this.clientId != clientId || this.clientSequence != clientSequence) {
-                throw new InconsistentResultsException();
+        /* consistency checks */
+        int replicaId = tx.getReplicaId();
+        if (this.clientId != clientId || this.clientSequence != clientSequence || replicaId < 0 || replicaId >= answers.length()) {
+            throw new InconsistentResultsException();
+        }
+
+        if (isDone() || !store(replicaId, tx)) {
+            /* the replica's first answer counts */
+            return isDone();
+        }
+
+        if (tx.isLocalCommit()) {
+            checkLocalCommits();
+            return isDone();
+        }
+
+        int answered = 0;
+        int commitedAnswered = 0;
+        int matches = 0;
+        int commitedMatches = 0;
+        int speculativeMatches = 0;
+        TransactionResult full = null;
+        for (int i = 0; i < answers.length(); i++) {
+            TransactionResult other = answers.get(i);
+            if (other == null || other.isLocalCommit()) {
+                continue;
+            }
+            answered++;
+            if (!other.isTentative()) {
+                commitedAnswered++;
             }
-            
-            results.put(tx.getReplicaId(), tx);
-            
-            /* NOTE: this condition is highly dependent upon the used secret-sharing mechanism */
-            if (results.size() >= (2 * f + 1)) {
-                condition.signal();
-                result = true;
+            if (!matching || other.verifyContent(tx, digests)) {
+                if (other.isSpeculative()) {
+                    if (tx.isSpeculative()) {
+                        speculativeMatches++;
+                    }
+                } else {
+                    matches++;
+                    if (!other.isTentative()) {
+                        commitedMatches++;
+                    }
+                }
+                if (!other.isDigestOnly()) {
+                    full = other;
+                }
             }
-        } finally {
-            lock.unlock();
         }
-        return result;
+
+        boolean enough = commitedMatches >= quorum || matches >= tentativeQuorum || speculativeMatches == answers.length();
+        if (enough && (!matching || full != null)) {
+            complete(new Completion(matching ? full.getPayload() : null, null));
+        } else if (enough) {
+            fullResultMissing(tx, answered);
+        } else if (matching && speculativeMatches >= 2 * f + 1) {
+            speculationIncomplete(tx, full != null, answered);
+        } else if (matching && getLargestMatchingGroup() + (answers.length() - commitedAnswered) < quorum) {
+            complete(new Completion(null, new InconsistentResultsException()));
+        }
+        return isDone();
     }
 
     /**
-     * note: expects ClientResult to be locked
+     * the replica's first answer counts, except that a matching full result
+     * replaces a digest-only answer and any answer replaces a tentative one
+     * (unless that would drop a matching full result)
      */
-    public void waitForEnoughAnswers() {
-        while (results.size() < (f + 1)) {
+    private boolean store(int replicaId, TransactionResult tx) {
+        if (answers.compareAndSet(replicaId, null, tx)) {
+            return true;
+        }
+        TransactionResult previous = answers.get(replicaId);
+        if (previous == null) {
+            return false;
+        }
+
+        boolean completes = previous.isDigestOnly() && !tx.isDigestOnly() && previous.verifyContent(tx, digests);
+        boolean dropsFull = !previous.isDigestOnly() && tx.isDigestOnly() && previous.verifyContent(tx, digests);
+        return (completes || (previous.isTentative() && !dropsFull)) && answers.compareAndSet(replicaId, previous, tx);
+    }
+
+    /**
+     * enough answers match tx, but none of them is a full result
+     */
+    private void fullResultMissing(TransactionResult tx, int answered) {
+        if (fallback == null) {
+            return;
+        }
+
+        TransactionResult designated = answers.get(TransactionResult.getDesignatedReplica(clientId, clientSequence, f));
+        if (answered == answers.length() || (designated != null && !designated.verifyContent(tx, digests))) {
+            /* no matching full result will arrive by itself */
+            fallback.request(this);
+        } else if (waitingSince.compareAndSet(0, System.nanoTime() | 1)) {
+            fallback.waitForFullResult(this);
+        }
+    }
+
+    /**
+     * 2f+1 (but not all) speculative answers match tx
+     */
+    private void speculationIncomplete(TransactionResult tx, boolean full, int answered) {
+        if (!full) {
+            /* the certified payload must be known */
+            fullResultMissing(tx, answered);
+        } else if (certifier != null && answered == answers.length()) {
+            /* no further speculative answer will arrive */
+            certifier.certify(this);
+        } else if (certifier != null && speculatingSince.compareAndSet(0, System.nanoTime() | 1)) {
+            certifier.waitForAnswers(this);
+        }
+    }
+
+    /**
+     * certifies the history of the 2f+1 matching speculative answers (only
+     * once)
+     *
+     * @return the certificate to send, null if there is nothing (more) to
+     *         certify
+     */
+    CommitCertificate createCommitCertificate() {
+        for (int i = 0; i < answers.length(); i++) {
+            TransactionResult candidate = answers.get(i);
+            if (candidate == null || !candidate.isSpeculative() || candidate.isLocalCommit() || candidate.isDigestOnly()) {
+                continue;
+            }
+
+            int[] replicas = new int[answers.length()];
+            int count = 0;
+            for (int j = 0; j < answers.length(); j++) {
+                TransactionResult other = answers.get(j);
+                if (other != null && other.isSpeculative() && !other.isLocalCommit() && other.verifyContent(candidate, digests)) {
+                    replicas[count++] = j;
+                }
+            }
+
+            if (count >= 2 * f + 1) {
+                if (isDone() || !certified.compareAndSet(null, candidate)) {
+                    return null;
+                }
+                return new CommitCertificate(clientId, clientSequence, candidate.getViewNr(), candidate.getSequence(), candidate.getHistory(),
+                        Arrays.copyOf(replicas, count));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * completes the result once 2f+1 replicas committed the certified
+     * history
+     */
+    private void checkLocalCommits() {
+        TransactionResult candidate = certified.get();
+        if (candidate == null) {
+            return;
+        }
+
+        int commits = 0;
+        for (int i = 0; i < answers.length(); i++) {
+            TransactionResult other = answers.get(i);
+            if (other != null && other.isLocalCommit() && other.sameSpeculation(candidate)) {
+                commits++;
+            }
+        }
+        if (commits >= 2 * f + 1) {
+            complete(new Completion(candidate.getPayload(), null));
+        }
+    }
+
+    long getSpeculatingSince() {
+        return this.speculatingSince.get();
+    }
+
+    /**
+     * @return true if the full result was not requested before
+     */
+    boolean markFullResultRequested() {
+        return fullResultRequested.compareAndSet(false, true);
+    }
+
+    long getWaitingSince() {
+        return this.waitingSince.get();
+    }
+
+    /**
+     * @return the highest amount of (non-tentative) answers that agree upon
+     *         a payload
+     */
+    private int getLargestMatchingGroup() {
+        int largest = 0;
+        for (int i = 0; i < answers.length(); i++) {
+            TransactionResult tx = answers.get(i);
+            if (tx == null || tx.isTentative() || tx.isLocalCommit()) {
+                continue;
+            }
+            int group = 0;
+            for (int j = 0; j < answers.length(); j++) {
+                TransactionResult other = answers.get(j);
+                if (other != null && !other.isTentative() && !other.isLocalCommit() && other.verifyContent(tx, digests)) {
+                    group++;
+                }
+            }
+            largest = Math.max(largest, group);
+        }
+        return largest;
+    }
+
+    private boolean complete(Completion outcome) {
+        if (!completion.compareAndSet(null, outcome)) {
+            return false;
+        }
+        done.countDown();
+        notifyListeners();
+        return true;
+    }
+
+    /**
+     * fails the operation with a TimeoutException (if it did not complete
+     * yet)
+     */
+    boolean timeOut() {
+        return fail(new TimeoutException("operation " + clientId + "/" + clientSequence + " timed out"));
+    }
+
+    /**
+     * waits until the operation completed, it times out if the deadline
+     * passes meanwhile
+     *
+     * @return false if the given time passed first
+     */
+    private boolean awaitDone(long nanos) throws InterruptedException {
+        if (deadline != Long.MAX_VALUE) {
+            long untilDeadline = deadline - System.nanoTime();
+            if (untilDeadline <= nanos) {
+                if (!done.await(untilDeadline, TimeUnit.NANOSECONDS)) {
+                    timeOut();
+                }
+                return true;
+            }
+        }
+        return done.await(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * fails the operation (if it did not complete yet)
+     */
+    boolean fail(Throwable cause) {
+        return complete(new Completion(null, cause));
+    }
+
+    /**
+     * completes the operation with a result that was agreed upon elsewhere
+     * (if it did not complete yet)
+     */
+    boolean succeed(byte[] value) {
+        return complete(new Completion(value, null));
+    }
+
+    /**
+     * @return the agreed upon payload, null if not (successfully) done
+     */
+    byte[] getValue() {
+        Completion outcome = completion.get();
+        return outcome == null ? null : outcome.value;
+    }
+
+    /**
+     * @return the reason the operation failed, null if not done or
+     *         successful
+     */
+    Throwable getFailure() {
+        Completion outcome = completion.get();
+        return outcome == null ? null : outcome.failure;
+    }
+
+    /**
+     * the listener is called once the result completed (immediately if it
+     * already did)
+     */
+    public void addListener(ResultListener listener) {
+        listeners.add(listener);
+        if (isDone()) {
+            notifyListeners();
+        }
+    }
+
+    private void notifyListeners() {
+        /* every listener is polled (and called) exactly once */
+        ResultListener listener;
+        while ((listener = listeners.poll()) != null) {
             try {
-                condition.await();
-                lock.unlock();
-            } catch (InterruptedException e) {
-                assert (false);
-                e.printStackTrace();
+                listener.completed(this);
+            } catch (RuntimeException e) {
+                logger.error("result listener failed", e);
             }
         }
     }
 
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(new Completion(null, new CancellationException()));
+    }
+
+    @Override
+    public boolean isCancelled() {
+        Completion outcome = completion.get();
+        return outcome != null && outcome.failure instanceof CancellationException;
+    }
+
+    @Override
+    public boolean isDone() {
+        return completion.get() != null;
+    }
+
+    /**
+     * @return the agreed upon payload (null without matching)
+     */
+    @Override
+    public byte[] get() throws InterruptedException, ExecutionException {
+        if (deadline == Long.MAX_VALUE) {
+            done.await();
+        } else {
+            awaitDone(Long.MAX_VALUE);
+        }
+        return report();
+    }
+
+    @Override
+    public byte[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!awaitDone(unit.toNanos(timeout))) {
+            throw new TimeoutException();
+        }
+        return report();
+    }
+
+    private byte[] report() throws ExecutionException {
+        Completion outcome = completion.get();
+        if (outcome.failure instanceof CancellationException) {
+            throw (CancellationException) outcome.failure;
+        } else if (outcome.failure != null) {
+            throw new ExecutionException(outcome.failure);
+        }
+        return outcome.value;
+    }
+
+    /**
+     * blocks until the operation completed (or failed)
+     */
+    public void waitForEnoughAnswers() {
+        try {
+            get();
+        } catch (ExecutionException | CancellationException e) {
+            /* failed, see get */
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getF() {
+        return this.f;
+    }
+
+    public int getClientId() {
+        return this.clientId;
+    }
+
+    public int getClientSequence() {
+        return this.clientSequence;
+    }
+
+    long getDeadline() {
+        return this.deadline;
+    }
+
+    boolean isReadOnly() {
+        return this.readOnly;
+    }
+
     public boolean containsDataForServer(int bftId) {
-        return this.results.containsKey(bftId);
+        return bftId >= 0 && bftId < answers.length() && this.answers.get(bftId) != null;
     }
 
     public byte[] getDataForServer(int bftId) {
-        return this.results.get(bftId).getPayload();
+        return this.answers.get(bftId).getPayload();
     }
 }
@@ -0,0 +1,17 @@
+package at.archistar.bft.client;
+
+import at.archistar.bft.messages.CommitCertificate;
+
+/**
+ * sends a CommitCertificate to all replicas, used in speculative mode if
+ * only 2f+1 speculative answers matched
+ *
+ * @author andy
+ */
+public interface CommitCertificateSender {
+
+    /**
+     * called by the thread that built the certificate, must not block
+     */
+    void sendCommitCertificate(CommitCertificate certificate);
+}
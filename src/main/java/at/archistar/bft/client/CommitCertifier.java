@@ -0,0 +1,63 @@
+package at.archistar.bft.client;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import at.archistar.bft.messages.CommitCertificate;
+
+/**
+ * sends commit certificates for operations with 2f+1 (but not 3f+1)
+ * matching speculative answers. The remaining replicas are given some time
+ * first, unless all of them answered already.
+ *
+ * @author andy
+ */
+class CommitCertifier {
+
+    private final CommitCertificateSender sender;
+
+    /**
+     * in nanoseconds
+     */
+    private final long delay;
+
+    /**
+     * operations waiting for their remaining answers, ordered by the time
+     * they started waiting
+     */
+    private final Queue<ClientResult> waiting = new ConcurrentLinkedQueue<>();
+
+    CommitCertifier(CommitCertificateSender sender, long delay) {
+        this.sender = sender;
+        this.delay = delay;
+    }
+
+    void waitForAnswers(ClientResult result) {
+        waiting.add(result);
+    }
+
+    void certify(ClientResult result) {
+        CommitCertificate certificate = result.createCommitCertificate();
+        if (certificate != null) {
+            sender.sendCommitCertificate(certificate);
+        }
+    }
+
+    /**
+     * certifies all operations that waited long enough
+     */
+    void expire(long now) {
+        Iterator<ClientResult> it = waiting.iterator();
+        while (it.hasNext()) {
+            ClientResult result = it.next();
+            if (!result.isDone()) {
+                if (now - result.getSpeculatingSince() < delay) {
+                    break;
+                }
+                certify(result);
+            }
+            it.remove();
+        }
+    }
+}
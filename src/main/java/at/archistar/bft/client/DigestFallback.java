@@ -0,0 +1,61 @@
+package at.archistar.bft.client;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * asks for full results of operations that have enough matching digest
+ * replies but no matching full result. The designated replica is given some
+ * time first (its full result is usually the last answer to arrive), unless
+ * it already answered with a different result.
+ *
+ * @author andy
+ */
+class DigestFallback {
+
+    private final FullResultRequester requester;
+
+    /**
+     * in nanoseconds
+     */
+    private final long delay;
+
+    /**
+     * operations waiting for their designated replica, ordered by the time
+     * they started waiting
+     */
+    private final Queue<ClientResult> waiting = new ConcurrentLinkedQueue<>();
+
+    DigestFallback(FullResultRequester requester, long delay) {
+        this.requester = requester;
+        this.delay = delay;
+    }
+
+    void waitForFullResult(ClientResult result) {
+        waiting.add(result);
+    }
+
+    void request(ClientResult result) {
+        if (result.markFullResultRequested()) {
+            requester.requestFullResult(result.getClientId(), result.getClientSequence());
+        }
+    }
+
+    /**
+     * requests the full results of all operations that waited long enough
+     */
+    void expire(long now) {
+        Iterator<ClientResult> it = waiting.iterator();
+        while (it.hasNext()) {
+            ClientResult result = it.next();
+            if (!result.isDone()) {
+                if (now - result.getWaitingSince() < delay) {
+                    break;
+                }
+                request(result);
+            }
+            it.remove();
+        }
+    }
+}
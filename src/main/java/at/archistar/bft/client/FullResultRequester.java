@@ -0,0 +1,15 @@
+package at.archistar.bft.client;
+
+/**
+ * sends a ResultRequest for an operation to all replicas, used if digest
+ * replies did not yield a matching full result
+ *
+ * @author andy
+ */
+public interface FullResultRequester {
+
+    /**
+     * called by the thread that detected the missing result, must not block
+     */
+    void requestFullResult(int clientId, int clientSequence);
+}
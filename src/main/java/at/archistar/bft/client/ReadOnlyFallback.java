@@ -0,0 +1,16 @@
+package at.archistar.bft.client;
+
+/**
+ * resends a read-only operation as ordinary (ordered) command, used if the
+ * replicas' unordered answers did not agree in time
+ *
+ * @author andy
+ */
+public interface ReadOnlyFallback {
+
+    /**
+     * the operation keeps its client sequence. Called by the thread that
+     * detected the disagreement (or timeout), must not block.
+     */
+    void resubmitOrdered(int clientId, int clientSequence);
+}
@@ -0,0 +1,14 @@
+package at.archistar.bft.client;
+
+/**
+ * notified once a client operation completed, failed or timed out
+ *
+ * @author andy
+ */
+public interface ResultListener {
+
+    /**
+     * called by the thread that completed the result, must not block
+     */
+    void completed(ClientResult result);
+}
@@ -1,27 +1,151 @@
 package at.archistar.bft.client;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import at.archistar.bft.exceptions.InconsistentResultsException;
+import at.archistar.bft.helper.DigestHelper;
 import at.archistar.bft.messages.TransactionResult;
 
 /**
  * this is a manager class that collects and manages all ClientResults that
  * were retrieved by the replicas
- * 
+ *
+ * Outstanding operations are kept within concurrent collections (no global
+ * lock), keyed by client id and client sequence. An operation is removed as
+ * soon as it completed, failed or timed out; timeouts (if configured) are
+ * detected whenever an operation is added or expire is called. The amount
+ * of outstanding operations is bounded. Waiting for a result also times it
+ * out. Results nobody waits upon (only listeners) time out within expire,
+ * which also drives the fallbacks below, so clients that do not block have
+ * to call it periodically.
+ *
+ * If a FullResultRequester is given, operations answered by digest replies
+ * request missing full results whenever an answer is added or expire is
+ * called.
+ *
+ * Read-only operations first collect the replicas' unordered answers
+ * (separately from the ordered ones), 2f+1 matching answers complete the
+ * operation. If they disagree or take too long the operation is resubmitted
+ * through its ReadOnlyFallback and completes with the ordered answers.
+ *
+ * If a CommitCertificateSender is given, operations with 2f+1 (but not
+ * 3f+1) matching speculative answers send their commit certificate once all
+ * replicas answered or expire is called after the configured delay.
+ *
  * @author andy
  */
 public class ResultManager {
 
-    private final Map<Integer, ClientResult> results;
+    /**
+     * orders outstanding operations by deadline
+     */
+    private static final Comparator<ClientResult> BY_DEADLINE = new Comparator<ClientResult>() {
+        @Override
+        public int compare(ClientResult a, ClientResult b) {
+            long difference = a.getDeadline() - b.getDeadline();
+            if (difference != 0) {
+                return difference < 0 ? -1 : 1;
+            }
+            if (a.getClientId() != b.getClientId()) {
+                return a.getClientId() < b.getClientId() ? -1 : 1;
+            }
+            if (a.getClientSequence() != b.getClientSequence()) {
+                return a.getClientSequence() < b.getClientSequence() ? -1 : 1;
+            }
+            return Boolean.compare(a.isReadOnly(), b.isReadOnly());
+        }
+    };
+
+    private final ClientConfiguration config;
+
+    private final DigestHelper digests;
+
+    /**
+     * (client id, client sequence) -> outstanding operation
+     */
+    private final ConcurrentMap<Long, ClientResult> results = new ConcurrentHashMap<>();
+
+    /**
+     * (client id, client sequence) -> unordered answers of an outstanding
+     * read-only operation
+     */
+    private final ConcurrentMap<Long, ClientResult> reads = new ConcurrentHashMap<>();
+
+    private final ConcurrentSkipListSet<ClientResult> deadlines = new ConcurrentSkipListSet<>(BY_DEADLINE);
+
+    private final AtomicInteger pending = new AtomicInteger(0);
+
+    /**
+     * null if full results cannot be requested
+     */
+    private final DigestFallback fallback;
 
-    private final Lock lock = new ReentrantLock();
+    /**
+     * null if commit certificates cannot be sent
+     */
+    private final CommitCertifier certifier;
+
+    /**
+     * removes completed operations
+     */
+    private final ResultListener eviction = new ResultListener() {
+        @Override
+        public void completed(ClientResult result) {
+            Long key = key(result.getClientId(), result.getClientSequence());
+            if (results.remove(key, result)) {
+                deadlines.remove(result);
+                pending.decrementAndGet();
+
+                ClientResult read = reads.remove(key);
+                if (read != null) {
+                    read.cancel(false);
+                }
+            }
+        }
+    };
 
     public ResultManager() {
-        this.results = new HashMap<>();
+        this(new ClientConfiguration());
+    }
+
+    public ResultManager(ClientConfiguration config) {
+        this(config, null);
+    }
+
+    /**
+     * @param requester used to request full results (digest replies), null
+     *        if not supported
+     */
+    public ResultManager(ClientConfiguration config, FullResultRequester requester) {
+        this(config, requester, null);
+    }
+
+    /**
+     * @param sender used to send commit certificates (speculative mode), null
+     *        if not supported
+     */
+    public ResultManager(ClientConfiguration config, FullResultRequester requester, CommitCertificateSender sender) {
+        this.config = config;
+        this.digests = new DigestHelper(config.getDigestAlgorithm());
+        if (requester != null) {
+            this.fallback = new DigestFallback(requester, TimeUnit.MILLISECONDS.toNanos(config.getFullResultDelay()));
+        } else {
+            this.fallback = null;
+        }
+        if (sender != null) {
+            this.certifier = new CommitCertifier(sender, TimeUnit.MILLISECONDS.toNanos(config.getCommitCertificateDelay()));
+        } else {
+            this.certifier = null;
+        }
+    }
+
+    private static Long key(int clientId, int clientSequence) {
+        return ((long) clientId << 32) | (clientSequence & 0xffffffffL);
     }
 
     /**
@@ -31,32 +155,122 @@ public class ResultManager {
      * @param clientId our client id
      * @param clientSequence our operations sequence id
      * @return a ClientResult object on which can be waited upon
+     * @throws IllegalStateException if too many operations are outstanding
      */
     public ClientResult addClientOperation(int f, int clientId, int clientSequence) {
+        return addClientOperation(f, clientId, clientSequence, config.getTimeout());
+    }
+
+    /**
+     * @param timeout time (in milliseconds) the operation may take, 0 if it
+     *        never times out
+     */
+    public ClientResult addClientOperation(int f, int clientId, int clientSequence, long timeout) {
+        expire();
+
+        if (pending.incrementAndGet() > config.getMaxPending()) {
+            pending.decrementAndGet();
+            throw new IllegalStateException("too many outstanding operations");
+        }
+
+        long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : Long.MAX_VALUE;
+        ClientResult result = new ClientResult(f, clientId, clientSequence, config.getQuorum(f), config.isMatchingResults(), deadline, digests, fallback, false, certifier);
+        if (results.putIfAbsent(key(clientId, clientSequence), result) != null) {
+            pending.decrementAndGet();
+            throw new IllegalArgumentException("operation " + clientId + "/" + clientSequence + " is already outstanding");
+        }
+        if (timeout > 0) {
+            deadlines.add(result);
+        }
+        result.addListener(eviction);
+        return result;
+    }
+
+    /**
+     * Add a new read-only operation, its command must be marked read-only
+     *
+     * @param fallback resubmits the operation as ordered command, null if
+     *        the operation should fail instead
+     * @return a ClientResult object on which can be waited upon
+     * @throws IllegalStateException if too many operations are outstanding
+     *         or results are not matched
+     */
+    public ClientResult addReadOnlyOperation(int f, final int clientId, final int clientSequence, final ReadOnlyFallback fallback) {
+        if (!config.isMatchingResults()) {
+            throw new IllegalStateException("read-only operations need matching results");
+        }
+
+        final ClientResult result = addClientOperation(f, clientId, clientSequence);
+
+        long timeout = config.getTimeout() > 0 ? Math.min(config.getReadOnlyTimeout(), config.getTimeout()) : config.getReadOnlyTimeout();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        final ClientResult read = new ClientResult(f, clientId, clientSequence, 2 * f + 1, true, deadline, digests, null, true, null);
+        read.addListener(new ResultListener() {
+            @Override
+            public void completed(ClientResult read) {
+                reads.remove(key(clientId, clientSequence), read);
+                deadlines.remove(read);
+
+                if (read.getFailure() == null) {
+                    result.succeed(read.getValue());
+                } else if (!result.isDone()) {
+                    if (fallback != null) {
+                        fallback.resubmitOrdered(clientId, clientSequence);
+                    } else {
+                        result.fail(read.getFailure());
+                    }
+                }
+            }
+        });
 
-        ClientResult result = new ClientResult(f, clientId, clientSequence);
-        lock.lock();
-        try {
-            this.results.put(clientSequence, result);
-        } finally {
-            lock.unlock();
+        reads.put(key(clientId, clientSequence), read);
+        deadlines.add(read);
+        if (result.isDone()) {
+            /* evicted meanwhile */
+            read.cancel(false);
         }
         return result;
     }
 
+    /**
+     * answers for operations that are no longer outstanding are ignored,
+     * read-only answers only count for the unordered path
+     */
     public void addClientResponse(int clientId, int clientSequence, TransactionResult tx) throws InconsistentResultsException {
+        ClientResult result = (tx.isReadOnly() ? this.reads : this.results).get(key(clientId, clientSequence));
+        if (result != null) {
+            result.addResult(clientId, clientSequence, tx);
+        }
+    }
 
-        lock.lock();
-        try {
-            ClientResult result = this.results.get(clientSequence);
-            
-            if (result != null) {
-                result.addResult(clientId, clientSequence, tx);
-            } else {
-                assert (false);
+    /**
+     * fails (and removes) all operations whose deadline passed, requests
+     * full results that are missing for too long and sends the commit
+     * certificates of operations that waited long enough
+     */
+    public void expire() {
+        long now = System.nanoTime();
+
+        if (fallback != null) {
+            fallback.expire(now);
+        }
+        if (certifier != null) {
+            certifier.expire(now);
+        }
+
+        /* the iteration is ordered by deadline */
+        for (ClientResult result : deadlines) {
+            if (result.getDeadline() - now > 0) {
+                break;
             }
-        } finally {
-            lock.unlock();
+            result.timeOut();
         }
     }
+
+    /**
+     * @return the amount of outstanding operations
+     */
+    public int getPendingCount() {
+        return this.pending.get();
+    }
 }
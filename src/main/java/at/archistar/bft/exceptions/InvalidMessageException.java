@@ -0,0 +1,19 @@
+package at.archistar.bft.exceptions;
+
+/**
+ * this exception is thrown if a received (binary) message cannot be decoded
+ *
+ * @author andy
+ */
+public class InvalidMessageException extends Exception {
+
+    private static final long serialVersionUID = 2968440717843412766L;
+
+    public InvalidMessageException(String message) {
+        super(message);
+    }
+
+    public InvalidMessageException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
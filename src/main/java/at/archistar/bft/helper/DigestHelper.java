@@ -3,48 +3,225 @@ package at.archistar.bft.helper;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import javax.xml.bind.annotation.adapters.HexBinaryAdapter;
+import java.util.Arrays;
+import java.util.List;
+
+import at.archistar.bft.messages.OperationId;
 
 /**
- * this is a simple singleton helper class for hash creation
- * 
+ * this is a simple helper class for hash creation
+ *
+ * Every thread uses its own MessageDigest instance (and scratch buffer), so
+ * hashing does neither contend nor allocate intermediate buffers. The used
+ * algorithm and the way client operation ids are derived are configured per
+ * instance (see BftEngineConfiguration and ClientConfiguration), but must be
+ * the same upon all replicas and clients.
+ *
  * @author andy
  */
 public class DigestHelper {
 
-    private static MessageDigest md = null;
+    /** how client operation ids are derived */
+    public enum OperationIdMode {
+        /** digest over client id and client sequence */
+        HASHED,
+        /**
+         * client id and client sequence are stored directly within the id.
+         * This is collision-free, but ids become predictable.
+         */
+        PACKED
+    }
+
+    /** used if no algorithm is configured */
+    public static final String DEFAULT_ALGORITHM = "SHA-256";
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final String algorithm;
+
+    private final OperationIdMode operationIdMode;
+
+    /**
+     * per-thread digest and scratch buffer
+     */
+    private final class State {
+
+        private final MessageDigest md = createDigest(algorithm);
+
+        private final byte[] scratch = new byte[OperationId.LENGTH];
+
+        private final ByteBuffer scratchBuffer = ByteBuffer.wrap(scratch);
+    }
+
+    private final ThreadLocal<State> state = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    /**
+     * @param algorithm a JCA digest algorithm, digests longer than an
+     *        operation id are truncated for operation ids
+     * @param operationIdMode how client operation ids are derived
+     */
+    public DigestHelper(String algorithm, OperationIdMode operationIdMode) {
+        createDigest(algorithm);
+        this.algorithm = algorithm;
+        this.operationIdMode = operationIdMode;
+    }
+
+    public DigestHelper(String algorithm) {
+        this(algorithm, OperationIdMode.HASHED);
+    }
+
+    public DigestHelper() {
+        this(DEFAULT_ALGORITHM);
+    }
+
+    private static MessageDigest createDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("unknown digest algorithm " + algorithm, e);
+        }
+    }
+
+    public String getAlgorithm() {
+        return this.algorithm;
+    }
+
+    public OperationIdMode getOperationIdMode() {
+        return this.operationIdMode;
+    }
+
+    /**
+     * @return upper-case hex representation (only meant for output)
+     */
+    public static String toHex(byte[] data) {
+        if (data == null) {
+            return "null";
+        }
 
-    private static synchronized void createMd() {
-        if (md == null) {
-            try {
-                md = MessageDigest.getInstance("SHA-256");
-            } catch (NoSuchAlgorithmException e) {
-                e.printStackTrace();
-                assert (false);
+        char[] out = new char[2 * data.length];
+        for (int i = 0; i < data.length; i++) {
+            out[2 * i] = HEX[(data[i] >>> 4) & 0xf];
+            out[2 * i + 1] = HEX[data[i] & 0xf];
+        }
+        return new String(out);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static OperationId toOperationId(byte[] digest) {
+        if (digest.length == OperationId.LENGTH) {
+            return OperationId.fromBytes(digest);
+        } else {
+            return OperationId.fromBytes(Arrays.copyOf(digest, OperationId.LENGTH));
+        }
+    }
+
+    /**
+     * @return the (binary) digest over a sequence's results
+     */
+    public byte[] createResultHash(int sequence, List<byte[]> data) {
+
+        State state = this.state.get();
+        MessageDigest md = state.md;
+
+        putInt(state.scratch, 0, sequence);
+        md.update(state.scratch, 0, 4);
+        for (byte[] d : data) {
+            if (d != null) {
+                md.update(d);
             }
         }
+
+        return md.digest();
     }
 
-    public static synchronized String createResultHash(int sequence, byte[] data) {
+    public byte[] createHash(byte[] data) {
+        return state.get().md.digest(data);
+    }
+
+    /**
+     * @return the digest of an inner hash tree node
+     */
+    public byte[] createNodeHash(byte[] left, byte[] right) {
 
-        createMd();
+        MessageDigest md = state.get().md;
 
-        md.update(ByteBuffer.allocate(4).putInt(sequence).array());
-        if (data != null) {
-            md.update(data);
+        md.update(left);
+        md.update(right);
+        return md.digest();
+    }
+
+    public OperationId getClientOperationId(int clientId, int clientSequence) {
+
+        if (operationIdMode == OperationIdMode.PACKED) {
+            return new OperationId(((long) clientId << 32) | (clientSequence & 0xffffffffL), 0, 0, 0);
         }
 
-        /* store the hash */
-        return (new HexBinaryAdapter()).marshal(md.digest());
+        State state = this.state.get();
+        MessageDigest md = state.md;
+
+        putInt(state.scratch, 0, clientId);
+        putInt(state.scratch, 4, clientSequence);
+        md.update(state.scratch, 0, 8);
+
+        return toOperationId(md.digest());
     }
 
-    public static synchronized String getClientOperationId(int clientId, int clientSequence) {
+    /**
+     * creates the digest of an ordered batch of client operations. A batch
+     * consisting of a single operation is identified by its operation id
+     */
+    public OperationId getBatchDigest(List<OperationId> clientOperationIds) {
 
-        createMd();
+        if (clientOperationIds.size() == 1) {
+            return clientOperationIds.get(0);
+        }
+
+        State state = this.state.get();
+        MessageDigest md = state.md;
 
-        md.update(ByteBuffer.allocate(4).putInt(clientId).array());
-        md.update(ByteBuffer.allocate(4).putInt(clientSequence).array());
+        for (OperationId id : clientOperationIds) {
+            state.scratchBuffer.clear();
+            id.writeTo(state.scratchBuffer);
+            md.update(state.scratch);
+        }
+
+        return toOperationId(md.digest());
+    }
+
+    /**
+     * creates the speculative history digest after a batch: chains the
+     * previous history digest with the batch's sequence and digest
+     *
+     * @param previous the history digest of the prior sequence, null if the
+     *        history starts with this sequence
+     */
+    public OperationId getHistoryDigest(OperationId previous, int sequence, OperationId batch) {
+
+        State state = this.state.get();
+        MessageDigest md = state.md;
+
+        if (previous != null) {
+            state.scratchBuffer.clear();
+            previous.writeTo(state.scratchBuffer);
+            md.update(state.scratch);
+        }
+        putInt(state.scratch, 0, sequence);
+        md.update(state.scratch, 0, 4);
+        state.scratchBuffer.clear();
+        batch.writeTo(state.scratchBuffer);
+        md.update(state.scratch);
 
-        return (new HexBinaryAdapter()).marshal(md.digest());
+        return toOperationId(md.digest());
     }
 }
@@ -0,0 +1,182 @@
+package at.archistar.bft.helper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * a fixed-size binary hash tree over leaf digests. Setting a leaf only
+ * invalidates the nodes upon its path to the root, those are recomputed on
+ * the next root access. Thus building a tree leaf by leaf costs about as
+ * many hashes as the tree has inner nodes.
+ *
+ * Two trees can be compared subtree by subtree, so only the differing
+ * leaves need to be repaired.
+ *
+ * Not thread-safe.
+ *
+ * @author andy
+ */
+public class MerkleTree {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final DigestHelper digests;
+
+    private final int leafCount;
+
+    private final int depth;
+
+    /**
+     * heap layout: node 1 is the root, node i has the children 2i and 2i+1,
+     * leaves are located at leafCount..2*leafCount-1. Null marks inner nodes
+     * that need to be recomputed (and leaves that were not set).
+     */
+    private final byte[][] nodes;
+
+    private int setLeaves = 0;
+
+    /**
+     * @param leafCount amount of leaves, must be a power of two
+     * @param digests hashes the inner nodes
+     */
+    public MerkleTree(int leafCount, DigestHelper digests) {
+        if (leafCount < 1 || Integer.bitCount(leafCount) != 1) {
+            throw new IllegalArgumentException("leaf count must be a power of two");
+        }
+        this.digests = digests;
+        this.leafCount = leafCount;
+        this.depth = Integer.numberOfTrailingZeros(leafCount);
+        this.nodes = new byte[2 * leafCount][];
+    }
+
+    public int getCapacity() {
+        return this.leafCount;
+    }
+
+    /**
+     * @return the amount of leaves that were set
+     */
+    public int getLeafCount() {
+        return this.setLeaves;
+    }
+
+    public int getDepth() {
+        return this.depth;
+    }
+
+    public void setLeaf(int index, byte[] digest) {
+        if (index < 0 || index >= leafCount) {
+            throw new IndexOutOfBoundsException("invalid leaf " + index);
+        }
+
+        int node = leafCount + index;
+        if (nodes[node] == null) {
+            setLeaves++;
+        }
+        nodes[node] = digest.clone();
+
+        /* invalidate the path to the root */
+        for (node >>>= 1; node >= 1 && nodes[node] != null; node >>>= 1) {
+            nodes[node] = null;
+        }
+    }
+
+    /**
+     * @return the leaf's digest, null if it was not set
+     */
+    public byte[] getLeaf(int index) {
+        byte[] leaf = nodes[leafCount + index];
+        return leaf == null ? null : leaf.clone();
+    }
+
+    public byte[] getRoot() {
+        return getNode(0, 0);
+    }
+
+    /**
+     * @param level 0 is the root, getDepth() are the leaves
+     * @param index the node's index within its level
+     * @return the digest of the node
+     */
+    public byte[] getNode(int level, int index) {
+        if (level < 0 || level > depth || index < 0 || index >= (1 << level)) {
+            throw new IndexOutOfBoundsException("invalid node " + level + "/" + index);
+        }
+        return compute((1 << level) + index).clone();
+    }
+
+    private byte[] compute(int node) {
+        if (node >= leafCount) {
+            return nodes[node] == null ? EMPTY : nodes[node];
+        }
+
+        if (nodes[node] == null) {
+            nodes[node] = digests.createNodeHash(compute(2 * node), compute(2 * node + 1));
+        }
+        return nodes[node];
+    }
+
+    /**
+     * @return the sibling hashes upon the path from the leaf to the root
+     *         (leaf level first)
+     */
+    public byte[][] getProof(int index) {
+        if (index < 0 || index >= leafCount) {
+            throw new IndexOutOfBoundsException("invalid leaf " + index);
+        }
+
+        byte[][] proof = new byte[depth][];
+        int node = leafCount + index;
+        for (int i = 0; i < depth; i++, node >>>= 1) {
+            proof[i] = compute(node ^ 1).clone();
+        }
+        return proof;
+    }
+
+    /**
+     * checks that the leaf is part of the tree with the given root
+     */
+    public static boolean verifyProof(byte[] root, int index, byte[] leaf, byte[][] proof, DigestHelper digests) {
+        if (index < 0 || proof.length > 30 || index >= (1 << proof.length)) {
+            return false;
+        }
+
+        byte[] current = leaf;
+        for (int i = 0; i < proof.length; i++, index >>>= 1) {
+            if ((index & 1) == 0) {
+                current = digests.createNodeHash(current, proof[i]);
+            } else {
+                current = digests.createNodeHash(proof[i], current);
+            }
+        }
+        return Arrays.equals(root, current);
+    }
+
+    /**
+     * @return the indices of all leaves that differ between both trees, only
+     *         differing subtrees are visited
+     */
+    public List<Integer> diff(MerkleTree other) {
+        if (other.leafCount != leafCount) {
+            throw new IllegalArgumentException("trees of different size");
+        }
+
+        List<Integer> result = new ArrayList<>();
+        diff(other, 1, result);
+        return result;
+    }
+
+    private void diff(MerkleTree other, int node, List<Integer> result) {
+        if (Arrays.equals(compute(node), other.compute(node))) {
+            return;
+        }
+
+        if (node >= leafCount) {
+            result.add(node - leafCount);
+        } else {
+            diff(other, 2 * node, result);
+            diff(other, 2 * node + 1, result);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package at.archistar.bft.helper;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * a bounded, lock-free multi-producer single-consumer ring buffer. Producers
+ * claim a slot through a CAS upon the tail counter and publish their element
+ * into it, the (single) consumer frees slots by advancing the head counter.
+ *
+ * Only one thread may call poll.
+ *
+ * @param <E> the element type
+ * @author andy
+ */
+public class MpscRingBuffer<E> {
+
+    private final AtomicReferenceArray<E> buffer;
+
+    private final int capacity;
+
+    private final int mask;
+
+    /**
+     * next slot to be claimed by a producer
+     */
+    private final AtomicLong tail = new AtomicLong(0);
+
+    /**
+     * next slot to be consumed, only written by the consumer
+     */
+    private volatile long head = 0;
+
+    /**
+     * @param capacity the buffer size, must be a power of two
+     */
+    public MpscRingBuffer(int capacity) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two");
+        }
+
+        this.buffer = new AtomicReferenceArray<>(capacity);
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * @return false if the buffer is full
+     */
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+
+        long slot;
+        do {
+            slot = tail.get();
+            if (slot - head >= capacity) {
+                return false;
+            }
+        } while (!tail.compareAndSet(slot, slot + 1));
+
+        buffer.lazySet((int) slot & mask, e);
+        return true;
+    }
+
+    /**
+     * consumer only
+     *
+     * @return the next element or null if there is no (published) element
+     */
+    public E poll() {
+        long current = head;
+        int index = (int) current & mask;
+
+        E e = buffer.get(index);
+        if (e != null) {
+            buffer.lazySet(index, null);
+            head = current + 1;
+        }
+        return e;
+    }
+
+    /**
+     * @return true if no element was claimed. Note that a claimed element
+     *         might not be published yet
+     */
+    public boolean isEmpty() {
+        return tail.get() == head;
+    }
+}
@@ -0,0 +1,67 @@
+package at.archistar.bft.helper;
+
+import java.util.Arrays;
+
+/**
+ * a set of replica ids, stored as a bit mask. Used to count votes: adding
+ * the same replica twice has no effect and the vote count is kept up to
+ * date, so neither adding nor counting allocates anything.
+ *
+ * Not thread-safe.
+ *
+ * @author andy
+ */
+public class VoteSet {
+
+    private long[] words;
+
+    private int count = 0;
+
+    /**
+     * @param replicaCount the expected amount of replicas (more are
+     *        supported, but need to grow the set)
+     */
+    public VoteSet(int replicaCount) {
+        this.words = new long[Math.max(1, (replicaCount + 63) >>> 6)];
+    }
+
+    /**
+     * @return true if the replica did not vote before
+     */
+    public boolean add(int replicaId) {
+        if (replicaId < 0) {
+            throw new IllegalArgumentException("invalid replica id " + replicaId);
+        }
+
+        int word = replicaId >>> 6;
+        if (word >= words.length) {
+            words = Arrays.copyOf(words, word + 1);
+        }
+
+        long bit = 1L << replicaId;
+        if ((words[word] & bit) != 0) {
+            return false;
+        }
+
+        words[word] |= bit;
+        count++;
+        return true;
+    }
+
+    public boolean contains(int replicaId) {
+        int word = replicaId >>> 6;
+        return replicaId >= 0 && word < words.length && (words[word] & (1L << replicaId)) != 0;
+    }
+
+    /**
+     * @return the amount of replicas within this set
+     */
+    public int size() {
+        return this.count;
+    }
+
+    public void clear() {
+        Arrays.fill(words, 0);
+        this.count = 0;
+    }
+}
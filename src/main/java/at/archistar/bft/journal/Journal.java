@@ -0,0 +1,436 @@
+package at.archistar.bft.journal;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.archistar.bft.exceptions.InvalidMessageException;
+import at.archistar.bft.messages.AbstractCommand;
+import at.archistar.bft.messages.ClientCommand;
+import at.archistar.bft.messages.IntraReplicaCommand;
+import at.archistar.bft.messages.MessageCodec;
+
+/**
+ * durable write-ahead log of a replica's protocol decisions, split into
+ * fixed-size memory-mapped segment files.
+ *
+ * Appending only copies the record into the mapped segment. Flushing is done
+ * by a single group-commit thread: it forces all segments written since its
+ * last flush at once, so a single fsync covers every record appended in the
+ * meantime. Actions that depend upon durability (i.e. sending a message that
+ * was just logged) are deferred through afterSync until their records were
+ * flushed. Without sync nothing is ever forced (records still survive a
+ * process crash through the page cache, but not a power loss).
+ *
+ * Segments whose records all belong to sequences up to a stable checkpoint
+ * are deleted by truncate. After a restart all remaining records can be read
+ * through replay.
+ *
+ * @author andy
+ */
+public class Journal {
+
+    private static final Logger logger = LoggerFactory.getLogger(Journal.class);
+
+    /**
+     * receives the journal's records during replay
+     */
+    public interface RecordHandler {
+
+        /**
+         * @param payload the record's payload, only valid during the call
+         */
+        void record(RecordType type, int sequence, int viewNr, ByteBuffer payload);
+    }
+
+    private static final FilenameFilter SEGMENTS = new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+            return name.startsWith("segment-") && name.endsWith(".log");
+        }
+    };
+
+    private final File directory;
+
+    private final int segmentSize;
+
+    private final boolean sync;
+
+    /**
+     * guards all segments, the append counters and the waiting actions
+     */
+    private final Object appendLock = new Object();
+
+    /**
+     * taken while running deferred actions, keeps them in order
+     */
+    private final Object releaseLock = new Object();
+
+    /**
+     * all segments, oldest first, the last one is written to
+     */
+    private final List<Segment> segments = new ArrayList<>();
+
+    /**
+     * segments written to since the last flush
+     */
+    private final Set<Segment> dirty = new LinkedHashSet<>();
+
+    private long appended = 0;
+
+    private long durable = 0;
+
+    /**
+     * actions waiting for the flush of their records
+     */
+    private final Queue<Deferred> waiting = new ArrayDeque<>();
+
+    private boolean running = true;
+
+    /**
+     * null if records are not forced
+     */
+    private final Thread flusher;
+
+    private Journal(File directory, int segmentSize, boolean sync) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+
+        if (sync) {
+            this.flusher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    flushLoop();
+                }
+            }, "bft-journal-" + directory.getName());
+            this.flusher.setDaemon(true);
+        } else {
+            this.flusher = null;
+        }
+    }
+
+    /**
+     * opens (or creates) the journal within the directory, new records are
+     * appended after the existing ones
+     *
+     * @param segmentSize size of a single segment file in bytes
+     * @param sync force records to disk before deferred actions are run
+     */
+    public static Journal open(File directory, int segmentSize, boolean sync) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create journal directory " + directory);
+        }
+
+        Journal journal = new Journal(directory, segmentSize, sync);
+
+        File[] files = directory.listFiles(SEGMENTS);
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            long number = Long.parseLong(name.substring("segment-".length(), name.length() - ".log".length()));
+            journal.segments.add(Segment.open(file, number));
+        }
+
+        if (journal.segments.isEmpty()) {
+            journal.segments.add(Segment.create(directory, 0, segmentSize));
+        }
+
+        if (journal.flusher != null) {
+            journal.flusher.start();
+        }
+        return journal;
+    }
+
+    public File getDirectory() {
+        return this.directory;
+    }
+
+    public boolean isSync() {
+        return this.sync;
+    }
+
+    /**
+     * appends a single record
+     */
+    public void append(RecordType type, int sequence, int viewNr, ByteBuffer payload) {
+        if (Segment.recordSize(payload.remaining()) > segmentSize) {
+            throw new IllegalArgumentException("record does not fit into a segment");
+        }
+
+        synchronized (appendLock) {
+            Segment current = segments.get(segments.size() - 1);
+            if (!current.append(type, sequence, viewNr, payload)) {
+                current = rollOver();
+                current.append(type, sequence, viewNr, payload);
+            }
+
+            appended++;
+            if (sync) {
+                dirty.add(current);
+                appendLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * note: expects appendLock to be held
+     */
+    private Segment rollOver() {
+        Segment last = segments.get(segments.size() - 1);
+        try {
+            Segment next = Segment.create(directory, last.getNumber() + 1, segmentSize);
+            segments.add(next);
+            return next;
+        } catch (IOException e) {
+            throw new IllegalStateException("could not create journal segment", e);
+        }
+    }
+
+    /**
+     * passes all records appended so far to the handler, oldest first.
+     * Records are appended in processing order, not in sequence order. The
+     * handler might append records itself, but truncate must not be called
+     * during the replay.
+     */
+    public void replay(RecordHandler handler) {
+        List<ByteBuffer> contents = new ArrayList<>();
+        synchronized (appendLock) {
+            for (Segment segment : segments) {
+                contents.add(segment.records());
+            }
+        }
+
+        /* the handler is called without holding the lock, it might send */
+        for (ByteBuffer records : contents) {
+            ByteBuffer record;
+            while ((record = Segment.nextRecord(records)) != null) {
+                RecordType type = RecordType.fromId(record.get());
+                int sequence = record.getInt();
+                int viewNr = record.getInt();
+                if (type == null) {
+                    logger.warn("skipping journal record of unknown type");
+                    continue;
+                }
+                handler.record(type, sequence, viewNr, record.slice());
+            }
+        }
+    }
+
+    /**
+     * logs a protocol message before it is sent
+     */
+    public void logMessage(IntraReplicaCommand cmd) {
+        append(RecordType.MESSAGE, cmd.getSequence(), cmd.getViewNr(), MessageCodec.encode(cmd));
+    }
+
+    /**
+     * logs the client operations of a commited sequence (as required for
+     * re-executing it), all of them must be fragment commands
+     */
+    public void logCommited(int sequence, int viewNr, List<ClientCommand> cmds) {
+        int size = 4;
+        for (ClientCommand cmd : cmds) {
+            size += 4 + MessageCodec.encodedSize(cmd);
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(size);
+        payload.putInt(cmds.size());
+        for (ClientCommand cmd : cmds) {
+            payload.putInt(MessageCodec.encodedSize(cmd));
+            MessageCodec.encode(cmd, payload);
+        }
+        payload.flip();
+
+        append(RecordType.COMMITED, sequence, viewNr, payload);
+    }
+
+    /**
+     * @return the client operations of a COMMITED record's payload, they
+     *         reference the payload (not copied)
+     */
+    public static List<ClientCommand> decodeCommited(ByteBuffer payload) throws InvalidMessageException {
+        ByteBuffer buffer = payload.duplicate();
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / 4) {
+            throw new InvalidMessageException("invalid operation count " + count);
+        }
+
+        List<ClientCommand> cmds = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int size = buffer.getInt();
+            if (size < 0 || size > buffer.remaining()) {
+                throw new InvalidMessageException("truncated commited record");
+            }
+            ByteBuffer encoded = buffer.slice();
+            encoded.limit(size);
+            buffer.position(buffer.position() + size);
+
+            AbstractCommand cmd = MessageCodec.decode(encoded);
+            if (!(cmd instanceof ClientCommand)) {
+                throw new InvalidMessageException("commited record contains " + cmd.getType());
+            }
+            cmds.add((ClientCommand) cmd);
+        }
+        return cmds;
+    }
+
+    public void logExecuted(int sequence, int viewNr, byte[] resultHash) {
+        append(RecordType.EXECUTED, sequence, viewNr, ByteBuffer.wrap(resultHash));
+    }
+
+    public void logCheckpoint(int sequence, int viewNr, byte[] stateDigest) {
+        append(RecordType.CHECKPOINT, sequence, viewNr, ByteBuffer.wrap(stateDigest));
+    }
+
+    /**
+     * runs the action as soon as all records appended so far are durable.
+     * Actions are run in the order they were passed in, either by the calling
+     * thread (if nothing needs to be flushed) or by the group-commit thread.
+     */
+    public void afterSync(Runnable action) {
+        synchronized (releaseLock) {
+            synchronized (appendLock) {
+                if (sync && (!waiting.isEmpty() || durable < appended)) {
+                    waiting.add(new Deferred(appended, action));
+                    appendLock.notifyAll();
+                    return;
+                }
+            }
+            action.run();
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            long target;
+            List<Segment> flush;
+
+            synchronized (appendLock) {
+                while (running && durable == appended) {
+                    try {
+                        appendLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+
+                if (!running && durable == appended) {
+                    return;
+                }
+
+                target = appended;
+                flush = new ArrayList<>(dirty);
+                dirty.clear();
+            }
+
+            /* a single fsync for everything appended in the meantime */
+            for (Segment segment : flush) {
+                segment.force();
+            }
+
+            release(target);
+        }
+    }
+
+    private void release(long target) {
+        synchronized (releaseLock) {
+            List<Runnable> actions = new ArrayList<>();
+            synchronized (appendLock) {
+                durable = target;
+                while (!waiting.isEmpty() && waiting.peek().position <= target) {
+                    actions.add(waiting.poll().action);
+                }
+            }
+
+            for (Runnable action : actions) {
+                try {
+                    action.run();
+                } catch (RuntimeException e) {
+                    logger.error("deferred journal action failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * deletes all (no longer written) segments that only contain records up
+     * to the stable checkpoint, oldest first
+     */
+    public void truncate(int stableSequence) {
+        synchronized (appendLock) {
+            Iterator<Segment> it = segments.iterator();
+            while (it.hasNext()) {
+                Segment segment = it.next();
+                if (!it.hasNext() || segment.getMaxSequence() > stableSequence) {
+                    break;
+                }
+
+                try {
+                    segment.delete();
+                } catch (IOException e) {
+                    logger.warn("could not delete journal segment", e);
+                }
+                dirty.remove(segment);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the amount of segment files
+     */
+    public int getSegmentCount() {
+        synchronized (appendLock) {
+            return segments.size();
+        }
+    }
+
+    /**
+     * flushes all records, runs all deferred actions and closes the segment
+     * files
+     */
+    public void close() throws IOException, InterruptedException {
+        if (flusher != null) {
+            synchronized (appendLock) {
+                running = false;
+                appendLock.notifyAll();
+            }
+            flusher.join();
+        }
+
+        synchronized (appendLock) {
+            for (Segment segment : segments) {
+                segment.close();
+            }
+        }
+    }
+
+    /**
+     * an action waiting for the flush of all records up to its position
+     */
+    private static class Deferred {
+
+        private final long position;
+
+        private final Runnable action;
+
+        Deferred(long position, Runnable action) {
+            this.position = position;
+            this.action = action;
+        }
+    }
+}
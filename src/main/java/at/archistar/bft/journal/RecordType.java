@@ -0,0 +1,48 @@
+package at.archistar.bft.journal;
+
+/**
+ * the type of a journal record, also used as type tag within the segment
+ * files
+ *
+ * @author andy
+ */
+public enum RecordType {
+
+    /** a protocol message (pre-prepare, prepare, commit) sent by this replica */
+    MESSAGE(1),
+    /** the client operations of a commited sequence, in execution order */
+    COMMITED(2),
+    /** the result hash of an executed sequence */
+    EXECUTED(3),
+    /** a checkpoint became stable */
+    CHECKPOINT(4);
+
+    private static final RecordType[] BY_ID;
+
+    static {
+        BY_ID = new RecordType[values().length + 1];
+        for (RecordType type : values()) {
+            BY_ID[type.id] = type;
+        }
+    }
+
+    private final byte id;
+
+    RecordType(int id) {
+        this.id = (byte) id;
+    }
+
+    public byte getId() {
+        return this.id;
+    }
+
+    /**
+     * @return the record type with the given type id, null if unknown
+     */
+    public static RecordType fromId(byte id) {
+        if (id <= 0 || id >= BY_ID.length) {
+            return null;
+        }
+        return BY_ID[id];
+    }
+}
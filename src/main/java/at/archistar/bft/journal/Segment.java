@@ -0,0 +1,190 @@
+package at.archistar.bft.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * a single memory-mapped journal file. Records are laid out as
+ *
+ *   length (int), crc32 (int), type (byte), sequence (int), view (int), payload
+ *
+ * with length covering everything after the crc. A zero length marks the end
+ * of the segment's records (mapped files are zero-filled), records with an
+ * invalid checksum are treated as end as well (torn write).
+ *
+ * Not thread-safe, guarded by the journal.
+ *
+ * @author andy
+ */
+class Segment {
+
+    /** length + crc */
+    static final int FRAME_SIZE = 8;
+
+    /** type + sequence + view */
+    static final int HEADER_SIZE = 9;
+
+    private final long number;
+
+    private final File file;
+
+    private final RandomAccessFile raf;
+
+    private final MappedByteBuffer buffer;
+
+    /**
+     * highest sequence of all records within this segment
+     */
+    private int maxSequence = Integer.MIN_VALUE;
+
+    private Segment(long number, File file, int size) throws IOException {
+        this.number = number;
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    static String fileName(long number) {
+        return String.format("segment-%010d.log", number);
+    }
+
+    static Segment create(File directory, long number, int size) throws IOException {
+        return new Segment(number, new File(directory, fileName(number)), size);
+    }
+
+    /**
+     * maps an existing segment and positions it after its last valid record
+     */
+    static Segment open(File file, long number) throws IOException {
+        Segment segment = new Segment(number, file, (int) file.length());
+        segment.scan();
+        return segment;
+    }
+
+    private void scan() {
+        ByteBuffer records = buffer.duplicate();
+        records.position(0);
+
+        int end = 0;
+        while (true) {
+            ByteBuffer record = nextRecord(records);
+            if (record == null) {
+                break;
+            }
+            maxSequence = Math.max(maxSequence, record.getInt(1));
+            end = records.position();
+        }
+        buffer.position(end);
+    }
+
+    /**
+     * @return the next valid record (type, sequence, view, payload) and
+     *         advances the position, null if there are no more records
+     */
+    static ByteBuffer nextRecord(ByteBuffer records) {
+        if (records.remaining() < FRAME_SIZE + HEADER_SIZE) {
+            return null;
+        }
+
+        int start = records.position();
+        int length = records.getInt(start);
+        if (length < HEADER_SIZE || length > records.remaining() - FRAME_SIZE) {
+            return null;
+        }
+
+        ByteBuffer record = records.duplicate();
+        record.position(start + FRAME_SIZE).limit(start + FRAME_SIZE + length);
+        record = record.slice();
+
+        if (checksum(record.duplicate()) != records.getInt(start + 4)) {
+            return null;
+        }
+
+        records.position(start + FRAME_SIZE + length);
+        return record;
+    }
+
+    private static int checksum(ByteBuffer data) {
+        CRC32 crc = new CRC32();
+        if (data.hasArray()) {
+            crc.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else {
+            byte[] copy = new byte[data.remaining()];
+            data.get(copy);
+            crc.update(copy, 0, copy.length);
+        }
+        return (int) crc.getValue();
+    }
+
+    static int recordSize(int payloadSize) {
+        return FRAME_SIZE + HEADER_SIZE + payloadSize;
+    }
+
+    /**
+     * @return false if the record does not fit into the segment
+     */
+    boolean append(RecordType type, int sequence, int viewNr, ByteBuffer payload) {
+        int length = HEADER_SIZE + payload.remaining();
+        if (buffer.remaining() < FRAME_SIZE + length) {
+            return false;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.put(type.getId());
+        record.putInt(sequence);
+        record.putInt(viewNr);
+        record.put(payload.duplicate());
+        record.flip();
+
+        /* the length is written last, a torn record ends the segment */
+        int start = buffer.position();
+        buffer.position(start + 4);
+        buffer.putInt(checksum(record.duplicate()));
+        buffer.put(record);
+        buffer.putInt(start, length);
+
+        maxSequence = Math.max(maxSequence, sequence);
+        return true;
+    }
+
+    /**
+     * @return all records of this segment (positioned at the first record)
+     */
+    ByteBuffer records() {
+        ByteBuffer records = buffer.duplicate();
+        records.flip();
+        return records;
+    }
+
+    long getNumber() {
+        return this.number;
+    }
+
+    int getMaxSequence() {
+        return this.maxSequence;
+    }
+
+    boolean isEmpty() {
+        return buffer.position() == 0;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    void close() throws IOException {
+        raf.close();
+    }
+
+    void delete() throws IOException {
+        close();
+        if (!file.delete()) {
+            throw new IOException("could not delete " + file);
+        }
+    }
+}
@@ -12,4 +12,11 @@ import java.io.Serializable;
 public abstract class AbstractCommand implements Serializable {
 
     private static final long serialVersionUID = -7606967793233370624L;
+
+    /**
+     * @return the message's type (used for dispatching and encoding)
+     */
+    public MessageType getType() {
+        return MessageType.UNKNOWN;
+    }
 }
@@ -1,10 +1,15 @@
 package at.archistar.bft.messages;
 
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Arrays;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
 /**
- * checkpoint message including all remote/local operations
+ * checkpoint message, it only carries the root digest of the hash tree over
+ * the operation results of the checkpoint's period, i.e. of the sequences
+ * within (s - PERIOD_TIME, s]. So its size does not depend upon the
+ * checkpoint period. Earlier results are not covered: a stable checkpoint
+ * only vouches for its own period, not for the replica's whole state.
  * 
  * @author andy
  */
@@ -12,40 +17,34 @@ public class CheckpointMessage extends IntraReplicaCommand {
 
     private final int lastExecutedSequence;
 
-    private final Map<Integer, String> executedCommands;
+    private final byte[] stateDigest;
 
     public CheckpointMessage(int sourceReplicaId, int sequenceId, int viewNr,
-            int lastExecutedSequence, Map<Integer, String> operations) {
+            int lastExecutedSequence, byte[] stateDigest) {
         super(sourceReplicaId, sequenceId, viewNr);
 
         this.lastExecutedSequence = lastExecutedSequence;
-        this.executedCommands = operations;
+        this.stateDigest = stateDigest.clone();
     }
 
-    private static final long serialVersionUID = 1125162800001556097L;
+    private static final long serialVersionUID = 1125162800001556098L;
+
+    @Override
+    public MessageType getType() {
+        return MessageType.CHECKPOINT;
+    }
 
     public Integer getLastExecutedSequence() {
         return this.lastExecutedSequence;
     }
 
-    public Map<Integer, String> getExecutedCommands() {
-        return this.executedCommands;
+    @SuppressFBWarnings("EI_EXPOSE_REP")
+    public byte[] getStateDigest() {
+        return this.stateDigest;
     }
 
     public boolean compatibleWith(CheckpointMessage other) {
-        if (this.lastExecutedSequence == other.getLastExecutedSequence()) {
-            if (other.getExecutedCommands().size() == this.executedCommands.size()) {
-                for (Entry<Integer, String> e : other.getExecutedCommands().entrySet()) {
-                    if (!e.getValue().equalsIgnoreCase(this.executedCommands.get(e.getKey()))) {
-                        return false;
-                    }
-                }
-            } else {
-                return false;
-            }
-            return true;
-        } else {
-            return false;
-        }
+        return this.lastExecutedSequence == other.getLastExecutedSequence()
+                && Arrays.equals(this.stateDigest, other.getStateDigest());
     }
 }
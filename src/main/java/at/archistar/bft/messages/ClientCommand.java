@@ -6,6 +6,9 @@ import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 /**
  * this is a command from the client to a replica
  *
+ * Read-only commands do not modify the replicated state, replicas may
+ * execute them without ordering (see ReadOnlyCallbacks).
+ *
  * @author andy
  */
 public abstract class ClientCommand extends AbstractCommand {
@@ -18,7 +21,14 @@ public abstract class ClientCommand extends AbstractCommand {
 
     protected byte[] payload = null;
 
-    String operationId = null;
+    private boolean readOnly = false;
+
+    private transient OperationId operationId = null;
+
+    /**
+     * the helper that derived operationId
+     */
+    private transient DigestHelper operationIdDigests = null;
 
     public ClientCommand(int clientId, int clientSequence) {
         super();
@@ -35,13 +45,25 @@ public abstract class ClientCommand extends AbstractCommand {
         return this.clientSequence;
     }
 
-    public String getClientOperationId() {
+    /**
+     * @param digests derives the id (as configured for the engine)
+     */
+    public synchronized OperationId getClientOperationId(DigestHelper digests) {
 
-        if (this.operationId != null) {
-            return this.operationId;
+        if (this.operationIdDigests != digests) {
+            this.operationId = digests.getClientOperationId(this.clientId, this.clientSequence);
+            this.operationIdDigests = digests;
         }
 
-        return this.operationId = DigestHelper.getClientOperationId(this.clientId, this.clientSequence);
+        return this.operationId;
+    }
+
+    public boolean isReadOnly() {
+        return this.readOnly;
+    }
+
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
     }
 
     @SuppressFBWarnings("EI_EXPOSE_REP")
@@ -10,6 +10,11 @@ public abstract class ClientFragmentCommand extends ClientCommand {
 
     private static final long serialVersionUID = -8569203487109177534L;
 
+    @Override
+    public MessageType getType() {
+        return MessageType.CLIENT_FRAGMENT;
+    }
+
     private final String fragmentId;
 
     public ClientFragmentCommand(int clientId, int clientSequence, String fragmentid) {
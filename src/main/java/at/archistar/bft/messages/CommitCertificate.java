@@ -0,0 +1,62 @@
+package at.archistar.bft.messages;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * sent by a client (speculative mode) that received 2f+1 but not 3f+1
+ * matching speculative results: names the replicas that answered with the
+ * same view, sequence and history digest. Replicas whose history matches
+ * answer with a local commit.
+ *
+ * note: results are not signed, the certificate only carries the replicas'
+ *       ids (MAC authenticators cannot be forwarded)
+ *
+ * @author andy
+ */
+public class CommitCertificate extends ClientCommand {
+
+    private static final long serialVersionUID = 2981472305185318227L;
+
+    private final int viewNr;
+
+    private final int sequence;
+
+    private final OperationId history;
+
+    private final int[] replicaIds;
+
+    public CommitCertificate(int clientId, int clientSequence, int viewNr, int sequence, OperationId history, int[] replicaIds) {
+        super(clientId, clientSequence);
+        this.viewNr = viewNr;
+        this.sequence = sequence;
+        this.history = history;
+        this.replicaIds = replicaIds.clone();
+    }
+
+    @Override
+    public MessageType getType() {
+        return MessageType.COMMIT_CERTIFICATE;
+    }
+
+    public int getViewNr() {
+        return this.viewNr;
+    }
+
+    public int getSequence() {
+        return this.sequence;
+    }
+
+    public OperationId getHistory() {
+        return this.history;
+    }
+
+    @SuppressFBWarnings("EI_EXPOSE_REP")
+    public int[] getReplicaIds() {
+        return this.replicaIds;
+    }
+
+    @Override
+    public String toString() {
+        return "commit certificate " + getClientId() + "/" + getClientSequence() + " at " + sequence + " (view " + viewNr + ")";
+    }
+}
@@ -9,6 +9,11 @@ public class CommitCommand extends IntraReplicaCommand {
 
     private static final long serialVersionUID = 5922218111327104543L;
 
+    @Override
+    public MessageType getType() {
+        return MessageType.COMMIT;
+    }
+
     public CommitCommand(int viewNr, int sequence, int replicaId) {
         super(replicaId, sequence, viewNr);
     }
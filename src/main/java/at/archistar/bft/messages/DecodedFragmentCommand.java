@@ -0,0 +1,65 @@
+package at.archistar.bft.messages;
+
+import java.nio.ByteBuffer;
+
+/**
+ * a client fragment command as decoded by MessageCodec. The payload is not
+ * copied but references the received buffer, it is only copied into an
+ * array if getPayload is called.
+ *
+ * @author andy
+ */
+public class DecodedFragmentCommand extends ClientFragmentCommand {
+
+    private static final long serialVersionUID = -2367180337785426932L;
+
+    /**
+     * null if there is no payload
+     */
+    private final transient ByteBuffer payloadBuffer;
+
+    public DecodedFragmentCommand(int clientId, int clientSequence, String fragmentId, ByteBuffer payload) {
+        super(clientId, clientSequence, fragmentId);
+        this.payloadBuffer = payload;
+    }
+
+    /**
+     * @return a read-only view of the payload (without copying it), null if
+     *         there is no payload
+     */
+    public ByteBuffer getPayloadBuffer() {
+        if (payloadBuffer != null) {
+            return payloadBuffer.asReadOnlyBuffer();
+        } else if (payload != null) {
+            return ByteBuffer.wrap(payload).asReadOnlyBuffer();
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * note: copies the payload (once)
+     */
+    @Override
+    public byte[] getPayload() {
+        if (payload == null && payloadBuffer != null) {
+            byte[] copy = new byte[payloadBuffer.remaining()];
+            payloadBuffer.duplicate().get(copy);
+            payload = copy;
+        }
+        return payload;
+    }
+
+    /**
+     * the payload buffer is not serializable, copy it before serialization
+     */
+    private Object writeReplace() {
+        getPayload();
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return getClientId() + "/" + getClientSequence() + "/" + getFragmentId() + (isReadOnly() ? " (read-only)" : "");
+    }
+}
@@ -1,5 +1,7 @@
 package at.archistar.bft.messages;
 
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
 /**
  * this is a command that was sent between replicas
  *
@@ -24,6 +26,11 @@ public class IntraReplicaCommand extends AbstractCommand {
      */
     private final int viewNr;
 
+    /**
+     * one MAC per replica (indexed by replica id), attached by the sender
+     */
+    private byte[][] authenticator = null;
+
     public IntraReplicaCommand(int sourceReplicaId, int sequenceId, int viewNr) {
         this.sourceReplicaId = sourceReplicaId;
         this.sequenceId = sequenceId;
@@ -41,4 +48,14 @@ public class IntraReplicaCommand extends AbstractCommand {
     public int getSourceReplicaId() {
         return this.sourceReplicaId;
     }
+
+    @SuppressFBWarnings("EI_EXPOSE_REP")
+    public byte[][] getAuthenticator() {
+        return this.authenticator;
+    }
+
+    @SuppressFBWarnings("EI_EXPOSE_REP2")
+    public void setAuthenticator(byte[][] authenticator) {
+        this.authenticator = authenticator;
+    }
 }
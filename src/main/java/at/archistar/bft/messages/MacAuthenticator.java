@@ -0,0 +1,142 @@
+package at.archistar.bft.messages;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * creates and verifies (PBFT-style) MAC authenticators: a message between
+ * replicas carries one MAC per replica, each computed with the key the
+ * sender shares with that replica. A replica only verifies its own entry.
+ *
+ * The MACs cover the message's binary encoding (without authenticator, see
+ * MessageCodec). Every thread uses its own Mac instances, so authenticators
+ * can be created and verified concurrently.
+ *
+ * @author andy
+ */
+public class MacAuthenticator {
+
+    /** used if no algorithm is configured */
+    public static final String DEFAULT_ALGORITHM = "HmacSHA256";
+
+    private final int replicaId;
+
+    private final SecretKeySpec[] keys;
+
+    private final String algorithm;
+
+    /**
+     * per-thread Mac instances (one per replica) and encoding buffer
+     */
+    private final ThreadLocal<State> state = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    private final class State {
+
+        private final Mac[] macs = new Mac[keys.length];
+
+        private ByteBuffer buffer = ByteBuffer.allocate(256);
+
+        Mac getMac(int replica) {
+            if (macs[replica] == null) {
+                macs[replica] = createMac(keys[replica]);
+            }
+            return macs[replica];
+        }
+
+        /**
+         * @return the length of the message's encoding within buffer
+         */
+        int encode(IntraReplicaCommand cmd) {
+            int size = MessageCodec.encodedBodySize(cmd);
+            if (buffer.capacity() < size) {
+                buffer = ByteBuffer.allocate(Math.max(size, 2 * buffer.capacity()));
+            }
+            buffer.clear();
+            MessageCodec.encodeBody(cmd, buffer);
+            return size;
+        }
+    }
+
+    /**
+     * @param replicaId this replica's id
+     * @param keys the keys this replica shares with every replica (indexed
+     *        by replica id, the own entry is ignored)
+     * @param algorithm the JCA MAC algorithm
+     */
+    public MacAuthenticator(int replicaId, byte[][] keys, String algorithm) {
+        this.replicaId = replicaId;
+        this.algorithm = algorithm;
+        this.keys = new SecretKeySpec[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            this.keys[i] = new SecretKeySpec(keys[i], algorithm);
+        }
+
+        /* fail early upon unknown algorithms or invalid keys */
+        createMac(this.keys[0]);
+    }
+
+    public MacAuthenticator(int replicaId, byte[][] keys) {
+        this(replicaId, keys, DEFAULT_ALGORITHM);
+    }
+
+    private Mac createMac(SecretKeySpec key) {
+        try {
+            Mac mac = Mac.getInstance(algorithm);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("cannot create MAC " + algorithm, e);
+        }
+    }
+
+    /**
+     * attaches an authenticator (one MAC per replica) to the message
+     */
+    public void authenticate(IntraReplicaCommand cmd) {
+        State s = state.get();
+        int length = s.encode(cmd);
+
+        byte[][] authenticator = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            if (i == replicaId) {
+                authenticator[i] = new byte[0];
+            } else {
+                Mac mac = s.getMac(i);
+                mac.update(s.buffer.array(), 0, length);
+                authenticator[i] = mac.doFinal();
+            }
+        }
+        cmd.setAuthenticator(authenticator);
+    }
+
+    /**
+     * @return true if the message's authenticator contains a valid MAC for
+     *         this replica
+     */
+    public boolean verify(IntraReplicaCommand cmd) {
+        int sender = cmd.getSourceReplicaId();
+        byte[][] authenticator = cmd.getAuthenticator();
+
+        if (sender < 0 || sender >= keys.length || sender == replicaId
+                || authenticator == null || authenticator.length <= replicaId
+                || authenticator[replicaId] == null) {
+            return false;
+        }
+
+        State s = state.get();
+        int length = s.encode(cmd);
+
+        Mac mac = s.getMac(sender);
+        mac.update(s.buffer.array(), 0, length);
+        return MessageDigest.isEqual(mac.doFinal(), authenticator[replicaId]);
+    }
+}
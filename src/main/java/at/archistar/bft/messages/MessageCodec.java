@@ -0,0 +1,620 @@
+package at.archistar.bft.messages;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import at.archistar.bft.exceptions.InvalidMessageException;
+
+/**
+ * compact binary wire format for all messages exchanged by the BFT engine,
+ * meant as replacement for java serialization within transports.
+ *
+ * Every message starts with the format version and the message's type tag
+ * (see MessageType) followed by the type-specific fields. Messages between
+ * replicas end with their MAC authenticator (entry count, -1 if there is no
+ * authenticator, followed by the entries). All integers are big endian, byte
+ * arrays are prefixed with their length (-1 for null), strings are UTF-8
+ * encoded byte arrays.
+ *
+ * The format has not been released yet, so it is still version 1. The
+ * version only changes for incompatible changes after a release, decoding
+ * rejects all other versions.
+ *
+ * Decoding does not copy client payloads: decoded client commands and
+ * transaction results reference the passed buffer, so it must not be reused
+ * while the decoded message is in use.
+ *
+ * Client commands are always decoded as DecodedFragmentCommand, plain client
+ * commands (without fragment id) cannot be encoded.
+ *
+ * @author andy
+ */
+public final class MessageCodec {
+
+    /** current version of the wire format */
+    public static final byte VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** version + type */
+    private static final int HEADER_SIZE = 2;
+
+    /** source replica + sequence + view */
+    private static final int INTRA_REPLICA_SIZE = 12;
+
+    /** transaction result flags */
+    private static final byte DIGEST_ONLY = 1;
+
+    private static final byte READ_ONLY = 2;
+
+    private static final byte TENTATIVE = 4;
+
+    private static final byte SPECULATIVE = 8;
+
+    private static final byte LOCAL_COMMIT = 16;
+
+    private MessageCodec() {
+    }
+
+    /**
+     * @return the amount of bytes needed to encode the message
+     */
+    public static int encodedSize(AbstractCommand cmd) {
+        int size = encodedBodySize(cmd);
+
+        if (cmd instanceof IntraReplicaCommand) {
+            size += 4;
+            byte[][] authenticator = ((IntraReplicaCommand) cmd).getAuthenticator();
+            if (authenticator != null) {
+                for (byte[] mac : authenticator) {
+                    size += arraySize(mac);
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the amount of bytes needed to encode the message (without
+     *         authenticator)
+     */
+    static int encodedBodySize(AbstractCommand cmd) {
+
+        switch (cmd.getType()) {
+            case PREPREPARE:
+                return HEADER_SIZE + INTRA_REPLICA_SIZE + 4
+                        + ((PreprepareCommand) cmd).getClientOperationIds().size() * (OperationId.LENGTH + 4);
+            case PREPARE:
+                return HEADER_SIZE + INTRA_REPLICA_SIZE + OperationId.LENGTH;
+            case COMMIT:
+                return HEADER_SIZE + INTRA_REPLICA_SIZE;
+            case CHECKPOINT:
+                return HEADER_SIZE + INTRA_REPLICA_SIZE + 4 + arraySize(((CheckpointMessage) cmd).getStateDigest());
+            case VIEW_CHANGE:
+                return HEADER_SIZE + INTRA_REPLICA_SIZE + certificatesSize(((ViewChangeMessage) cmd).getPrepared());
+            case NEW_VIEW:
+                NewViewMessage nv = (NewViewMessage) cmd;
+                return HEADER_SIZE + INTRA_REPLICA_SIZE + 4 + nv.getViewChangeSources().length * 4 + certificatesSize(nv.getProposals());
+            case STATE_REQUEST:
+                return HEADER_SIZE + INTRA_REPLICA_SIZE + 4;
+            case STATE_MANIFEST:
+                return HEADER_SIZE + INTRA_REPLICA_SIZE + 8 + arraySize(((StateManifestMessage) cmd).getRoot());
+            case STATE_CHUNK:
+                StateChunkMessage chunk = (StateChunkMessage) cmd;
+                int size = HEADER_SIZE + INTRA_REPLICA_SIZE + 8 + arraySize(chunk.getData());
+                for (byte[] sibling : chunk.getProof()) {
+                    size += arraySize(sibling);
+                }
+                return size;
+            case CLIENT_FRAGMENT:
+                ClientFragmentCommand c = (ClientFragmentCommand) cmd;
+                return HEADER_SIZE + 9 + arraySize(getFragmentBytes(c)) + payloadSize(c);
+            case TRANSACTION_RESULT:
+                TransactionResult r = (TransactionResult) cmd;
+                return HEADER_SIZE + 13 + (r.isReadOnly() ? 4 : 0) + (r.isSpeculative() ? 8 + OperationId.LENGTH : 0) + payloadSize(r);
+            case RESULT_REQUEST:
+                return HEADER_SIZE + 8;
+            case COMMIT_CERTIFICATE:
+                return HEADER_SIZE + 20 + OperationId.LENGTH + ((CommitCertificate) cmd).getReplicaIds().length * 4;
+            default:
+                throw new IllegalArgumentException("cannot encode " + cmd.getClass().getName());
+        }
+    }
+
+    /**
+     * encodes the message into a new (flipped) buffer
+     */
+    public static ByteBuffer encode(AbstractCommand cmd) {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedSize(cmd));
+        encode(cmd, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * encodes the message at the buffer's current position
+     *
+     * @throws java.nio.BufferOverflowException if the buffer is too small
+     */
+    public static void encode(AbstractCommand cmd, ByteBuffer buffer) {
+        encodeBody(cmd, buffer);
+
+        if (cmd instanceof IntraReplicaCommand) {
+            byte[][] authenticator = ((IntraReplicaCommand) cmd).getAuthenticator();
+            if (authenticator == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(authenticator.length);
+                for (byte[] mac : authenticator) {
+                    putArray(mac, buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * encodes the message without authenticator (this is the part covered
+     * by the authenticator)
+     */
+    static void encodeBody(AbstractCommand cmd, ByteBuffer buffer) {
+
+        MessageType type = cmd.getType();
+        if (type == MessageType.UNKNOWN) {
+            throw new IllegalArgumentException("cannot encode " + cmd.getClass().getName());
+        }
+
+        buffer.put(VERSION);
+        buffer.put(type.getId());
+
+        switch (type) {
+            case PREPREPARE:
+                PreprepareCommand pp = (PreprepareCommand) cmd;
+                putIntraReplica(pp, buffer);
+                List<OperationId> ids = pp.getClientOperationIds();
+                int[] priors = pp.getPriorSequences();
+                buffer.putInt(ids.size());
+                for (int i = 0; i < ids.size(); i++) {
+                    ids.get(i).writeTo(buffer);
+                    buffer.putInt(priors[i]);
+                }
+                break;
+            case PREPARE:
+                PrepareCommand p = (PrepareCommand) cmd;
+                putIntraReplica(p, buffer);
+                p.getClientOperationId().writeTo(buffer);
+                break;
+            case COMMIT:
+                putIntraReplica((IntraReplicaCommand) cmd, buffer);
+                break;
+            case CHECKPOINT:
+                CheckpointMessage cp = (CheckpointMessage) cmd;
+                putIntraReplica(cp, buffer);
+                buffer.putInt(cp.getLastExecutedSequence());
+                putArray(cp.getStateDigest(), buffer);
+                break;
+            case VIEW_CHANGE:
+                ViewChangeMessage vc = (ViewChangeMessage) cmd;
+                putIntraReplica(vc, buffer);
+                putCertificates(vc.getPrepared(), buffer);
+                break;
+            case NEW_VIEW:
+                NewViewMessage nv = (NewViewMessage) cmd;
+                putIntraReplica(nv, buffer);
+                buffer.putInt(nv.getViewChangeSources().length);
+                for (int source : nv.getViewChangeSources()) {
+                    buffer.putInt(source);
+                }
+                putCertificates(nv.getProposals(), buffer);
+                break;
+            case STATE_REQUEST:
+                StateRequestMessage sr = (StateRequestMessage) cmd;
+                putIntraReplica(sr, buffer);
+                buffer.putInt(sr.getChunk());
+                break;
+            case STATE_MANIFEST:
+                StateManifestMessage sm = (StateManifestMessage) cmd;
+                putIntraReplica(sm, buffer);
+                buffer.putLong(sm.getSnapshotSize());
+                putArray(sm.getRoot(), buffer);
+                break;
+            case STATE_CHUNK:
+                StateChunkMessage sc = (StateChunkMessage) cmd;
+                putIntraReplica(sc, buffer);
+                buffer.putInt(sc.getChunk());
+                putArray(sc.getData(), buffer);
+                buffer.putInt(sc.getProof().length);
+                for (byte[] sibling : sc.getProof()) {
+                    putArray(sibling, buffer);
+                }
+                break;
+            case CLIENT_FRAGMENT:
+                ClientFragmentCommand c = (ClientFragmentCommand) cmd;
+                buffer.putInt(c.getClientId());
+                buffer.putInt(c.getClientSequence());
+                buffer.put((byte) (c.isReadOnly() ? 1 : 0));
+                putArray(getFragmentBytes(c), buffer);
+                putPayload(c, buffer);
+                break;
+            case TRANSACTION_RESULT:
+                TransactionResult r = (TransactionResult) cmd;
+                buffer.putInt(r.getClientId());
+                buffer.putInt(r.getReplicaId());
+                buffer.putInt(r.getClientSequence());
+                buffer.put((byte) ((r.isDigestOnly() ? DIGEST_ONLY : 0) | (r.isReadOnly() ? READ_ONLY : 0) | (r.isTentative() ? TENTATIVE : 0)
+                        | (r.isSpeculative() ? SPECULATIVE : 0) | (r.isLocalCommit() ? LOCAL_COMMIT : 0)));
+                if (r.isReadOnly()) {
+                    buffer.putInt(r.getLastExecuted());
+                }
+                if (r.isSpeculative()) {
+                    buffer.putInt(r.getViewNr());
+                    buffer.putInt(r.getSequence());
+                    r.getHistory().writeTo(buffer);
+                }
+                putPayload(r, buffer);
+                break;
+            case RESULT_REQUEST:
+                ClientCommand request = (ClientCommand) cmd;
+                buffer.putInt(request.getClientId());
+                buffer.putInt(request.getClientSequence());
+                break;
+            case COMMIT_CERTIFICATE:
+                CommitCertificate cc = (CommitCertificate) cmd;
+                buffer.putInt(cc.getClientId());
+                buffer.putInt(cc.getClientSequence());
+                buffer.putInt(cc.getViewNr());
+                buffer.putInt(cc.getSequence());
+                cc.getHistory().writeTo(buffer);
+                buffer.putInt(cc.getReplicaIds().length);
+                for (int replica : cc.getReplicaIds()) {
+                    buffer.putInt(replica);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("cannot encode " + cmd.getClass().getName());
+        }
+    }
+
+    /**
+     * decodes a single message starting at the buffer's position, afterwards
+     * the position is located after the message
+     */
+    public static AbstractCommand decode(ByteBuffer buffer) throws InvalidMessageException {
+
+        try {
+            byte version = buffer.get();
+            if (version != VERSION) {
+                throw new InvalidMessageException("unsupported wire format version " + version);
+            }
+
+            byte typeId = buffer.get();
+            MessageType type = MessageType.fromId(typeId);
+            if (type == null) {
+                throw new InvalidMessageException("unknown message type " + typeId);
+            }
+
+            if (type == MessageType.CLIENT_FRAGMENT || type == MessageType.TRANSACTION_RESULT || type == MessageType.RESULT_REQUEST
+                    || type == MessageType.COMMIT_CERTIFICATE) {
+                return decodeClientMessage(type, buffer);
+            }
+
+            int source = buffer.getInt();
+            int sequence = buffer.getInt();
+            int viewNr = buffer.getInt();
+
+            IntraReplicaCommand cmd;
+            switch (type) {
+                case PREPREPARE:
+                    cmd = decodePreprepare(source, sequence, viewNr, buffer);
+                    break;
+                case PREPARE:
+                    cmd = new PrepareCommand(viewNr, sequence, source, getOperationId(buffer));
+                    break;
+                case COMMIT:
+                    cmd = new CommitCommand(viewNr, sequence, source);
+                    break;
+                case CHECKPOINT:
+                    cmd = decodeCheckpoint(source, sequence, viewNr, buffer);
+                    break;
+                case VIEW_CHANGE:
+                    cmd = new ViewChangeMessage(source, sequence, viewNr, getCertificates(buffer));
+                    break;
+                case NEW_VIEW:
+                    cmd = decodeNewView(source, sequence, viewNr, buffer);
+                    break;
+                case STATE_REQUEST:
+                    cmd = new StateRequestMessage(source, sequence, viewNr, buffer.getInt());
+                    break;
+                case STATE_MANIFEST:
+                    long snapshotSize = buffer.getLong();
+                    cmd = new StateManifestMessage(source, sequence, viewNr, snapshotSize, getRequiredArray(buffer));
+                    break;
+                case STATE_CHUNK:
+                    cmd = decodeStateChunk(source, sequence, viewNr, buffer);
+                    break;
+                default:
+                    throw new InvalidMessageException("cannot decode message type " + type);
+            }
+
+            int count = buffer.getInt();
+            if (count >= 0) {
+                if (count > buffer.remaining() / 4) {
+                    throw new InvalidMessageException("invalid authenticator size " + count);
+                }
+                byte[][] authenticator = new byte[count][];
+                for (int i = 0; i < count; i++) {
+                    authenticator[i] = getArray(buffer);
+                }
+                cmd.setAuthenticator(authenticator);
+            }
+            return cmd;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new InvalidMessageException("truncated or malformed message", e);
+        }
+    }
+
+    private static ClientCommand decodeClientMessage(MessageType type, ByteBuffer buffer) throws InvalidMessageException {
+        switch (type) {
+            case CLIENT_FRAGMENT:
+                int clientId = buffer.getInt();
+                int clientSequence = buffer.getInt();
+                boolean readOnly = buffer.get() != 0;
+                byte[] fragment = getArray(buffer);
+                String fragmentId = fragment == null ? null : new String(fragment, UTF8);
+                DecodedFragmentCommand cmd = new DecodedFragmentCommand(clientId, clientSequence, fragmentId, getSlice(buffer));
+                cmd.setReadOnly(readOnly);
+                return cmd;
+            case TRANSACTION_RESULT:
+                int rClientId = buffer.getInt();
+                int replicaId = buffer.getInt();
+                int rSequence = buffer.getInt();
+                byte flags = buffer.get();
+                int lastExecuted = (flags & READ_ONLY) != 0 ? buffer.getInt() : -1;
+                int viewNr = (flags & SPECULATIVE) != 0 ? buffer.getInt() : -1;
+                int sequence = (flags & SPECULATIVE) != 0 ? buffer.getInt() : -1;
+                OperationId history = (flags & SPECULATIVE) != 0 ? getOperationId(buffer) : null;
+                TransactionResult result = new TransactionResult(rClientId, replicaId, rSequence, getSlice(buffer), (flags & DIGEST_ONLY) != 0);
+                if (history != null) {
+                    result.setSpeculation(viewNr, sequence, history);
+                    result.setLocalCommit((flags & LOCAL_COMMIT) != 0);
+                }
+                if ((flags & READ_ONLY) != 0) {
+                    result.setReadOnly(true);
+                    result.setLastExecuted(lastExecuted);
+                }
+                result.setTentative((flags & TENTATIVE) != 0);
+                return result;
+            case RESULT_REQUEST:
+                int qClientId = buffer.getInt();
+                return new ResultRequest(qClientId, buffer.getInt());
+            case COMMIT_CERTIFICATE:
+                return decodeCommitCertificate(buffer);
+            default:
+                throw new InvalidMessageException("cannot decode message type " + type);
+        }
+    }
+
+    private static CommitCertificate decodeCommitCertificate(ByteBuffer buffer) throws InvalidMessageException {
+        int clientId = buffer.getInt();
+        int clientSequence = buffer.getInt();
+        int viewNr = buffer.getInt();
+        int sequence = buffer.getInt();
+        OperationId history = getOperationId(buffer);
+
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / 4) {
+            throw new InvalidMessageException("invalid replica count " + count);
+        }
+        int[] replicaIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            replicaIds[i] = buffer.getInt();
+        }
+        return new CommitCertificate(clientId, clientSequence, viewNr, sequence, history, replicaIds);
+    }
+
+    private static PreprepareCommand decodePreprepare(int source, int sequence, int viewNr, ByteBuffer buffer) throws InvalidMessageException {
+        int count = buffer.getInt();
+        if (count <= 0 || count > buffer.remaining() / (OperationId.LENGTH + 4)) {
+            throw new InvalidMessageException("invalid batch size " + count);
+        }
+
+        List<OperationId> ids = new ArrayList<>(count);
+        int[] priors = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids.add(getOperationId(buffer));
+            priors[i] = buffer.getInt();
+        }
+        return new PreprepareCommand(viewNr, sequence, source, ids, priors);
+    }
+
+    private static CheckpointMessage decodeCheckpoint(int source, int sequence, int viewNr, ByteBuffer buffer) throws InvalidMessageException {
+        int lastExecuted = buffer.getInt();
+        return new CheckpointMessage(source, sequence, viewNr, lastExecuted, getRequiredArray(buffer));
+    }
+
+    private static StateChunkMessage decodeStateChunk(int source, int sequence, int viewNr, ByteBuffer buffer) throws InvalidMessageException {
+        int chunk = buffer.getInt();
+        byte[] data = getRequiredArray(buffer);
+
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / 4) {
+            throw new InvalidMessageException("invalid proof size " + count);
+        }
+        byte[][] proof = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            proof[i] = getRequiredArray(buffer);
+        }
+        return new StateChunkMessage(source, sequence, viewNr, chunk, data, proof);
+    }
+
+    private static NewViewMessage decodeNewView(int source, int sequence, int viewNr, ByteBuffer buffer) throws InvalidMessageException {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / 4) {
+            throw new InvalidMessageException("invalid view-change count " + count);
+        }
+        int[] sources = new int[count];
+        for (int i = 0; i < count; i++) {
+            sources[i] = buffer.getInt();
+        }
+        return new NewViewMessage(source, sequence, viewNr, sources, getCertificates(buffer));
+    }
+
+    private static int certificatesSize(List<PreparedCertificate> certificates) {
+        int size = 4;
+        for (PreparedCertificate c : certificates) {
+            size += 16 + c.getClientOperationIds().size() * (OperationId.LENGTH + 4);
+            for (String fragmentId : c.getFragmentIds()) {
+                size += arraySize(fragmentId.getBytes(UTF8));
+            }
+        }
+        return size;
+    }
+
+    private static void putCertificates(List<PreparedCertificate> certificates, ByteBuffer buffer) {
+        buffer.putInt(certificates.size());
+        for (PreparedCertificate c : certificates) {
+            buffer.putInt(c.getViewNr());
+            buffer.putInt(c.getSequence());
+
+            List<OperationId> ids = c.getClientOperationIds();
+            int[] priors = c.getPriorSequences();
+            buffer.putInt(ids.size());
+            for (int i = 0; i < ids.size(); i++) {
+                ids.get(i).writeTo(buffer);
+                buffer.putInt(priors[i]);
+            }
+
+            buffer.putInt(c.getFragmentIds().size());
+            for (String fragmentId : c.getFragmentIds()) {
+                putArray(fragmentId.getBytes(UTF8), buffer);
+            }
+        }
+    }
+
+    private static List<PreparedCertificate> getCertificates(ByteBuffer buffer) throws InvalidMessageException {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / 16) {
+            throw new InvalidMessageException("invalid certificate count " + count);
+        }
+
+        List<PreparedCertificate> certificates = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int viewNr = buffer.getInt();
+            int sequence = buffer.getInt();
+
+            int size = buffer.getInt();
+            if (size < 0 || size > buffer.remaining() / (OperationId.LENGTH + 4)) {
+                throw new InvalidMessageException("invalid batch size " + size);
+            }
+            List<OperationId> ids = new ArrayList<>(size);
+            int[] priors = new int[size];
+            for (int j = 0; j < size; j++) {
+                ids.add(getOperationId(buffer));
+                priors[j] = buffer.getInt();
+            }
+
+            int fragments = buffer.getInt();
+            if (fragments < 0 || fragments > buffer.remaining() / 4) {
+                throw new InvalidMessageException("invalid fragment count " + fragments);
+            }
+            List<String> fragmentIds = new ArrayList<>(fragments);
+            for (int j = 0; j < fragments; j++) {
+                fragmentIds.add(new String(getRequiredArray(buffer), UTF8));
+            }
+
+            certificates.add(new PreparedCertificate(viewNr, sequence, ids, priors, fragmentIds));
+        }
+        return certificates;
+    }
+
+    private static void putIntraReplica(IntraReplicaCommand cmd, ByteBuffer buffer) {
+        buffer.putInt(cmd.getSourceReplicaId());
+        buffer.putInt(cmd.getSequence());
+        buffer.putInt(cmd.getViewNr());
+    }
+
+    private static OperationId getOperationId(ByteBuffer buffer) {
+        return new OperationId(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+    }
+
+    private static int arraySize(byte[] data) {
+        return 4 + (data == null ? 0 : data.length);
+    }
+
+    private static void putArray(byte[] data, ByteBuffer buffer) {
+        if (data == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(data.length);
+            buffer.put(data);
+        }
+    }
+
+    /**
+     * @return a copy of the length-prefixed array
+     */
+    private static byte[] getArray(ByteBuffer buffer) throws InvalidMessageException {
+        ByteBuffer slice = getSlice(buffer);
+        if (slice == null) {
+            return null;
+        }
+        byte[] data = new byte[slice.remaining()];
+        slice.get(data);
+        return data;
+    }
+
+    private static byte[] getRequiredArray(ByteBuffer buffer) throws InvalidMessageException {
+        byte[] data = getArray(buffer);
+        if (data == null) {
+            throw new InvalidMessageException("missing array");
+        }
+        return data;
+    }
+
+    /**
+     * @return a view upon the length-prefixed array (without copying it)
+     */
+    private static ByteBuffer getSlice(ByteBuffer buffer) throws InvalidMessageException {
+        int length = buffer.getInt();
+        if (length == -1) {
+            return null;
+        } else if (length < 0 || length > buffer.remaining()) {
+            throw new InvalidMessageException("invalid length " + length);
+        }
+
+        ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+
+    private static byte[] getFragmentBytes(ClientFragmentCommand cmd) {
+        return cmd.getFragmentId() == null ? null : cmd.getFragmentId().getBytes(UTF8);
+    }
+
+    private static int payloadSize(ClientCommand cmd) {
+        if (cmd instanceof DecodedFragmentCommand) {
+            ByteBuffer payload = ((DecodedFragmentCommand) cmd).getPayloadBuffer();
+            return 4 + (payload == null ? 0 : payload.remaining());
+        } else {
+            return arraySize(cmd.getPayload());
+        }
+    }
+
+    private static void putPayload(ClientCommand cmd, ByteBuffer buffer) {
+        if (cmd instanceof DecodedFragmentCommand) {
+            /* forward without copying the payload into an array */
+            ByteBuffer payload = ((DecodedFragmentCommand) cmd).getPayloadBuffer();
+            if (payload == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(payload.remaining());
+                buffer.put(payload);
+            }
+        } else {
+            putArray(cmd.getPayload(), buffer);
+        }
+    }
+}
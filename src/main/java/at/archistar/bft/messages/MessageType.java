@@ -0,0 +1,55 @@
+package at.archistar.bft.messages;
+
+/**
+ * the type of a message, also used as type tag within the binary wire format
+ * (see MessageCodec). Allows to dispatch messages without instanceof chains.
+ *
+ * @author andy
+ */
+public enum MessageType {
+
+    /** a message the BFT engine does not know */
+    UNKNOWN(0),
+    PREPREPARE(1),
+    PREPARE(2),
+    COMMIT(3),
+    CHECKPOINT(4),
+    VIEW_CHANGE(5),
+    CLIENT_FRAGMENT(6),
+    TRANSACTION_RESULT(7),
+    STATE_REQUEST(8),
+    STATE_MANIFEST(9),
+    STATE_CHUNK(10),
+    NEW_VIEW(11),
+    RESULT_REQUEST(12),
+    COMMIT_CERTIFICATE(13);
+
+    private static final MessageType[] BY_ID;
+
+    static {
+        BY_ID = new MessageType[values().length];
+        for (MessageType type : values()) {
+            BY_ID[type.id] = type;
+        }
+    }
+
+    private final byte id;
+
+    MessageType(int id) {
+        this.id = (byte) id;
+    }
+
+    public byte getId() {
+        return this.id;
+    }
+
+    /**
+     * @return the message type with the given type id, null if unknown
+     */
+    public static MessageType fromId(byte id) {
+        if (id <= 0 || id >= BY_ID.length) {
+            return null;
+        }
+        return BY_ID[id];
+    }
+}
@@ -0,0 +1,62 @@
+package at.archistar.bft.messages;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * sent by the primary of a new view (the message's view): names the 2f+1
+ * view-change messages the view is based upon and contains all batches
+ * that are re-proposed within the new view, starting after the selected
+ * stable checkpoint (the message's sequence). Gaps are filled with null
+ * requests.
+ *
+ * Authenticators cannot be forwarded, so backups recompute the proposals
+ * from the view-change messages they received themselves and only accept
+ * the new view if the result matches.
+ *
+ * @author andy
+ */
+public class NewViewMessage extends IntraReplicaCommand {
+
+    private static final long serialVersionUID = 6044017291367436862L;
+
+    private final int[] viewChangeSources;
+
+    private final List<PreparedCertificate> proposals;
+
+    @SuppressFBWarnings("EI_EXPOSE_REP2")
+    public NewViewMessage(int sourceReplicaId, int stableCheckpoint, int newViewNr, int[] viewChangeSources, List<PreparedCertificate> proposals) {
+        super(sourceReplicaId, stableCheckpoint, newViewNr);
+        this.viewChangeSources = viewChangeSources;
+        this.proposals = Collections.unmodifiableList(new ArrayList<>(proposals));
+    }
+
+    @Override
+    public MessageType getType() {
+        return MessageType.NEW_VIEW;
+    }
+
+    public int getStableCheckpoint() {
+        return getSequence();
+    }
+
+    /**
+     * @return the replicas whose view-change messages were used
+     */
+    @SuppressFBWarnings("EI_EXPOSE_REP")
+    public int[] getViewChangeSources() {
+        return this.viewChangeSources;
+    }
+
+    public List<PreparedCertificate> getProposals() {
+        return this.proposals;
+    }
+
+    @Override
+    public String toString() {
+        return getSourceReplicaId() + "/" + getSequence() + "/" + proposals.size() + ": new-view " + getViewNr();
+    }
+}
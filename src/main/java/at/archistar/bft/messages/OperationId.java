@@ -0,0 +1,91 @@
+package at.archistar.bft.messages;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+import at.archistar.bft.helper.DigestHelper;
+
+/**
+ * a fixed-width (256 bit) binary identifier of a client operation or of a
+ * batch of client operations. Replaces the former hex strings: comparison and
+ * hashing only touch four longs, hex is only created for (debug) output.
+ *
+ * @author andy
+ */
+public final class OperationId implements Serializable {
+
+    private static final long serialVersionUID = -3052387950327712837L;
+
+    /** length of an operation id in bytes */
+    public static final int LENGTH = 32;
+
+    private final long w0;
+
+    private final long w1;
+
+    private final long w2;
+
+    private final long w3;
+
+    public OperationId(long w0, long w1, long w2, long w3) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+    }
+
+    /**
+     * @param digest a 32 byte digest
+     */
+    public static OperationId fromBytes(byte[] digest) {
+        if (digest.length != LENGTH) {
+            throw new IllegalArgumentException("operation ids are " + LENGTH + " bytes long");
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(digest);
+        return new OperationId(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+    }
+
+    /**
+     * writes the operation id (32 bytes, big endian) into the buffer
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putLong(w0).putLong(w1).putLong(w2).putLong(w3);
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(LENGTH);
+        writeTo(buffer);
+        return buffer.array();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        } else if (o instanceof OperationId) {
+            OperationId other = (OperationId) o;
+            return w0 == other.w0 && w1 == other.w1 && w2 == other.w2 && w3 == other.w3;
+        } else {
+            return false;
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        /* packed ids are no digests, so all words are mixed (murmur3 fmix64) */
+        long h = w0 + 31 * (w1 + 31 * (w2 + 31 * w3));
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * @return the hex representation (only meant for output)
+     */
+    @Override
+    public String toString() {
+        return DigestHelper.toHex(toBytes());
+    }
+}
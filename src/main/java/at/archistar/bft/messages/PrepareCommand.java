@@ -11,21 +11,26 @@ public class PrepareCommand extends IntraReplicaCommand {
     /**
      * message digest, used to verify message
      */
-    private final String digest;
+    private final OperationId digest;
 
-    public PrepareCommand(int viewNr, int sequence, int replicaId, String digest) {
+    public PrepareCommand(int viewNr, int sequence, int replicaId, OperationId digest) {
         super(replicaId, sequence, viewNr);
         this.digest = digest;
     }
 
     private static final long serialVersionUID = 1L;
 
+    @Override
+    public MessageType getType() {
+        return MessageType.PREPARE;
+    }
+
     @Override
     public String toString() {
         return getSequence() + ": prepare";
     }
 
-    public String getClientOperationId() {
+    public OperationId getClientOperationId() {
         return this.digest;
     }
 }
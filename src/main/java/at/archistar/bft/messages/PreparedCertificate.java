@@ -0,0 +1,102 @@
+package at.archistar.bft.messages;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import at.archistar.bft.helper.DigestHelper;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * a batch that a replica prepared (pre-prepare plus 2f matching prepares)
+ * within some view, as reported during a view change. The new primary
+ * re-proposes it under the same sequence, so its ordering (and the prior
+ * sequences) survive the view change. An empty batch is a null request that
+ * fills a sequence gap.
+ *
+ * The fragment ids of the batched operations are included so the new
+ * primary can continue the per-fragment dependency chains.
+ *
+ * @author andy
+ */
+public class PreparedCertificate implements Serializable {
+
+    private static final long serialVersionUID = -3815180937260475367L;
+
+    private final int viewNr;
+
+    private final int sequence;
+
+    private final List<OperationId> clientOperationIds;
+
+    private final int[] priorSequences;
+
+    private final List<String> fragmentIds;
+
+    public PreparedCertificate(int viewNr, int sequence, List<OperationId> clientOperationIds, int[] priorSequences, List<String> fragmentIds) {
+        if (priorSequences.length != clientOperationIds.size()) {
+            throw new IllegalArgumentException("one prior sequence per operation expected");
+        }
+
+        this.viewNr = viewNr;
+        this.sequence = sequence;
+        this.clientOperationIds = Collections.unmodifiableList(new ArrayList<>(clientOperationIds));
+        this.priorSequences = priorSequences.clone();
+        this.fragmentIds = Collections.unmodifiableList(new ArrayList<>(fragmentIds));
+    }
+
+    /**
+     * @return a null request for the sequence
+     */
+    public static PreparedCertificate nullRequest(int viewNr, int sequence) {
+        return new PreparedCertificate(viewNr, sequence, Collections.<OperationId>emptyList(), new int[0], Collections.<String>emptyList());
+    }
+
+    public int getViewNr() {
+        return this.viewNr;
+    }
+
+    public int getSequence() {
+        return this.sequence;
+    }
+
+    public List<OperationId> getClientOperationIds() {
+        return this.clientOperationIds;
+    }
+
+    @SuppressFBWarnings("EI_EXPOSE_REP")
+    public int[] getPriorSequences() {
+        return this.priorSequences;
+    }
+
+    public List<String> getFragmentIds() {
+        return this.fragmentIds;
+    }
+
+    /**
+     * @param digests creates the digest (as configured for the engine)
+     * @return the batch digest (as used by prepare commands)
+     */
+    public OperationId getDigest(DigestHelper digests) {
+        return digests.getBatchDigest(this.clientOperationIds);
+    }
+
+    public boolean isNullRequest() {
+        return this.clientOperationIds.isEmpty();
+    }
+
+    /**
+     * @return true if both order the same batch under the same sequence
+     */
+    public boolean sameBatch(PreparedCertificate other) {
+        return sequence == other.sequence && clientOperationIds.equals(other.clientOperationIds)
+                && Arrays.equals(priorSequences, other.priorSequences);
+    }
+
+    @Override
+    public String toString() {
+        return sequence + "/" + clientOperationIds.size() + "@" + viewNr;
+    }
+}
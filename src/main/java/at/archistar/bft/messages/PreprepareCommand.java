@@ -1,8 +1,21 @@
 package at.archistar.bft.messages;
 
+import at.archistar.bft.helper.DigestHelper;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * This command is utilized by the primary (currently always replica 0) to
- * forward a generated sequence number to all replicas.
+ * forward a generated sequence number to all replicas. A single sequence
+ * number might order a whole batch of client operations, those will be
+ * executed in the order given by the batch.
+ *
+ * For every batched operation the prior sequence (the last sequence that
+ * touched the operation's fragment) is transmitted, an operation must not be
+ * prepared before its prior sequence was commited.
  *
  * @author andy
  */
@@ -10,9 +23,20 @@ public class PreprepareCommand extends IntraReplicaCommand {
 
     private static final long serialVersionUID = 5708527225627396654L;
 
-    private final int priorSequence;
+    @Override
+    public MessageType getType() {
+        return MessageType.PREPREPARE;
+    }
+
+    /**
+     * prior sequence of each batched operation (same order as the operations)
+     */
+    private final int[] priorSequences;
 
-    private final String clientOperationId;
+    /**
+     * the ordered client operations of this batch
+     */
+    private final List<OperationId> clientOperationIds;
 
     /**
      * TODO: this should be a hash over <REQUEST, o, s, c>
@@ -20,23 +44,62 @@ public class PreprepareCommand extends IntraReplicaCommand {
     @SuppressWarnings("unused")
     private int cmdIdentifier;
 
-    public PreprepareCommand(int viewNr, int sequence, int replicaId, String clientOperationId, int priorSequence) {
+    public PreprepareCommand(int viewNr, int sequence, int replicaId, OperationId clientOperationId, int priorSequence) {
+        this(viewNr, sequence, replicaId, Collections.singletonList(clientOperationId), priorSequence);
+    }
+
+    public PreprepareCommand(int viewNr, int sequence, int replicaId, List<OperationId> clientOperationIds, int priorSequence) {
+        this(viewNr, sequence, replicaId, clientOperationIds, filledArray(clientOperationIds.size(), priorSequence));
+    }
+
+    public PreprepareCommand(int viewNr, int sequence, int replicaId, List<OperationId> clientOperationIds, int[] priorSequences) {
         super(replicaId, sequence, viewNr);
 
-        this.priorSequence = priorSequence;
-        this.clientOperationId = clientOperationId;
+        if (priorSequences.length != clientOperationIds.size()) {
+            throw new IllegalArgumentException("one prior sequence per operation expected");
+        }
+
+        this.priorSequences = priorSequences.clone();
+        this.clientOperationIds = Collections.unmodifiableList(new ArrayList<>(clientOperationIds));
     }
 
     @Override
     public String toString() {
-        return getSequence() + "/" + clientOperationId + ": preprepare";
+        return getSequence() + "/" + clientOperationIds.size() + ": preprepare";
+    }
+
+    private static int[] filledArray(int length, int value) {
+        int[] result = new int[length];
+        Arrays.fill(result, value);
+        return result;
     }
 
+    /**
+     * @return the highest prior sequence of all batched operations
+     */
     public int getPriorSequence() {
-        return this.priorSequence;
+        int max = -2;
+        for (int prior : priorSequences) {
+            max = Math.max(max, prior);
+        }
+        return max;
+    }
+
+    @SuppressFBWarnings("EI_EXPOSE_REP")
+    public int[] getPriorSequences() {
+        return this.priorSequences;
+    }
+
+    /**
+     * @param digests creates the digest (as configured for the engine)
+     * @return the batch digest (which is also used by prepare commands), for
+     *         single-operation batches this is the client operation id itself
+     */
+    public OperationId getClientOperationId(DigestHelper digests) {
+        return digests.getBatchDigest(this.clientOperationIds);
     }
 
-    public String getClientOperationId() {
-        return this.clientOperationId;
+    public List<OperationId> getClientOperationIds() {
+        return this.clientOperationIds;
     }
 }
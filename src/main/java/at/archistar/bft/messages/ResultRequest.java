@@ -0,0 +1,26 @@
+package at.archistar.bft.messages;
+
+/**
+ * sent by a client if digest replies did not yield a result: asks the
+ * replicas to (re)send the full result of an already executed operation
+ *
+ * @author andy
+ */
+public class ResultRequest extends ClientCommand {
+
+    private static final long serialVersionUID = -4502913651947732310L;
+
+    public ResultRequest(int clientId, int clientSequence) {
+        super(clientId, clientSequence);
+    }
+
+    @Override
+    public MessageType getType() {
+        return MessageType.RESULT_REQUEST;
+    }
+
+    @Override
+    public String toString() {
+        return "result request " + getClientId() + "/" + getClientSequence();
+    }
+}
@@ -0,0 +1,48 @@
+package at.archistar.bft.messages;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * a single chunk of the snapshot taken at the checkpoint (the message's
+ * sequence), including the sibling hashes needed to verify it against the
+ * manifest's root
+ *
+ * @author andy
+ */
+public class StateChunkMessage extends IntraReplicaCommand {
+
+    private static final long serialVersionUID = 2250975536101093211L;
+
+    private final int chunk;
+
+    private final byte[] data;
+
+    private final byte[][] proof;
+
+    @SuppressFBWarnings("EI_EXPOSE_REP2")
+    public StateChunkMessage(int sourceReplicaId, int checkpoint, int viewNr, int chunk, byte[] data, byte[][] proof) {
+        super(sourceReplicaId, checkpoint, viewNr);
+        this.chunk = chunk;
+        this.data = data;
+        this.proof = proof;
+    }
+
+    @Override
+    public MessageType getType() {
+        return MessageType.STATE_CHUNK;
+    }
+
+    public int getChunk() {
+        return this.chunk;
+    }
+
+    @SuppressFBWarnings("EI_EXPOSE_REP")
+    public byte[] getData() {
+        return this.data;
+    }
+
+    @SuppressFBWarnings("EI_EXPOSE_REP")
+    public byte[][] getProof() {
+        return this.proof;
+    }
+}
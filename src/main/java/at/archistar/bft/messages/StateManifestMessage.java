@@ -0,0 +1,42 @@
+package at.archistar.bft.messages;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * describes the snapshot taken at the checkpoint (the message's sequence):
+ * its size and the root of the hash tree over all of its chunks
+ *
+ * @author andy
+ */
+public class StateManifestMessage extends IntraReplicaCommand {
+
+    private static final long serialVersionUID = 5733301968016419458L;
+
+    private final long snapshotSize;
+
+    private final byte[] root;
+
+    public StateManifestMessage(int sourceReplicaId, int checkpoint, int viewNr, long snapshotSize, byte[] root) {
+        super(sourceReplicaId, checkpoint, viewNr);
+        this.snapshotSize = snapshotSize;
+        this.root = root.clone();
+    }
+
+    @Override
+    public MessageType getType() {
+        return MessageType.STATE_MANIFEST;
+    }
+
+    /**
+     * @return the snapshot's size in bytes, -1 if the replica has no
+     *         snapshot for this checkpoint
+     */
+    public long getSnapshotSize() {
+        return this.snapshotSize;
+    }
+
+    @SuppressFBWarnings("EI_EXPOSE_REP")
+    public byte[] getRoot() {
+        return this.root;
+    }
+}
@@ -0,0 +1,31 @@
+package at.archistar.bft.messages;
+
+/**
+ * asks a replica for its snapshot manifest (chunk -1) or for a single chunk
+ * of the snapshot taken at the checkpoint (the message's sequence)
+ *
+ * @author andy
+ */
+public class StateRequestMessage extends IntraReplicaCommand {
+
+    private static final long serialVersionUID = 3180442710345781302L;
+
+    /** requests the manifest instead of a chunk */
+    public static final int MANIFEST = -1;
+
+    private final int chunk;
+
+    public StateRequestMessage(int sourceReplicaId, int checkpoint, int viewNr, int chunk) {
+        super(sourceReplicaId, checkpoint, viewNr);
+        this.chunk = chunk;
+    }
+
+    @Override
+    public MessageType getType() {
+        return MessageType.STATE_REQUEST;
+    }
+
+    public int getChunk() {
+        return this.chunk;
+    }
+}
@@ -1,22 +1,79 @@
 package at.archistar.bft.messages;
 
+import at.archistar.bft.helper.DigestHelper;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
-import javax.xml.bind.DatatypeConverter;
-
 /**
  * This is used by the replicas to signal back an operation's result to the
  * client.
  *
+ * With digest replies only the operation's designated replica sends the full
+ * result, all other replicas send a digest-only result (its payload is the
+ * digest of the full result). Results are compared by their result digest,
+ * which is created by the receiver's (configured) DigestHelper.
+ *
+ * Results of read-only commands that were executed without ordering are
+ * read-only themselves and carry the replica's last executed sequence.
+ * Results of transactions that were executed before they commited are
+ * tentative (see TentativeExecutionCallbacks).
+ *
+ * Speculative results (executed upon the pre-prepare) are tentative, too.
+ * They additionally carry the view, the sequence and the history digest the
+ * replica executed the operation at; two speculative results only match if
+ * those agree. A local commit answers a CommitCertificate, it has no
+ * payload and repeats the certified view, sequence and history digest.
+ *
  * @author andy
  */
 public class TransactionResult extends ClientCommand {
 
     private static final long serialVersionUID = 7045695496206304165L;
 
+    @Override
+    public MessageType getType() {
+        return MessageType.TRANSACTION_RESULT;
+    }
+
     private final int replicaId;
 
+    /**
+     * the payload is the digest of the result
+     */
+    private final boolean digestOnly;
+
+    private transient byte[] resultDigest = null;
+
+    /**
+     * the helper that created resultDigest
+     */
+    private transient DigestHelper resultDigests = null;
+
+    /**
+     * only set for read-only results
+     */
+    private int lastExecuted = -1;
+
+    private boolean tentative = false;
+
+    /**
+     * view, sequence and history digest of speculative results (history is
+     * null otherwise)
+     */
+    private int viewNr = -1;
+
+    private int sequence = -1;
+
+    private OperationId history = null;
+
+    private boolean localCommit = false;
+
+    /**
+     * set if decoded by MessageCodec: the payload is only copied on access
+     */
+    private final transient ByteBuffer payloadBuffer;
+
     public TransactionResult(int clientId, int replicaId, int sequenceId, byte[] payload) {
         super(clientId, sequenceId);
         if (payload != null) {
@@ -25,12 +82,73 @@ public class TransactionResult extends ClientCommand {
             this.payload = null;
         }
         this.replicaId = replicaId;
+        this.payloadBuffer = null;
+        this.digestOnly = false;
+    }
+
+    /**
+     * note: references (does not copy) the payload buffer
+     */
+    public TransactionResult(int clientId, int replicaId, int sequenceId, ByteBuffer payload) {
+        this(clientId, replicaId, sequenceId, payload, false);
+    }
+
+    /**
+     * note: references (does not copy) the payload buffer
+     */
+    public TransactionResult(int clientId, int replicaId, int sequenceId, ByteBuffer payload, boolean digestOnly) {
+        super(clientId, sequenceId);
+        this.replicaId = replicaId;
+        this.payloadBuffer = payload;
+        this.digestOnly = digestOnly;
     }
 
     public TransactionResult(ClientCommand clientCmd, int serverid, byte[] payload) {
         this(clientCmd.getClientId(), serverid, clientCmd.getClientSequence(), payload);
     }
 
+    /**
+     * @return a digest-only result for the given (full) result
+     */
+    public static TransactionResult digestOf(ClientCommand clientCmd, int serverid, byte[] payload, DigestHelper digests) {
+        byte[] digest = payload == null ? null : digests.createHash(payload);
+        return new TransactionResult(clientCmd.getClientId(), serverid, clientCmd.getClientSequence(), digest == null ? null : ByteBuffer.wrap(digest), true);
+    }
+
+    /**
+     * @param lastExecuted the replica's last executed sequence
+     * @return the result of a read-only command that was not ordered
+     */
+    public static TransactionResult readOnly(ClientCommand clientCmd, int serverid, byte[] payload, int lastExecuted) {
+        TransactionResult result = new TransactionResult(clientCmd, serverid, payload);
+        result.setReadOnly(true);
+        result.setLastExecuted(lastExecuted);
+        return result;
+    }
+
+    /**
+     * @return the answer to a commit certificate that matches the replica's
+     *         history
+     */
+    public static TransactionResult localCommit(CommitCertificate certificate, int serverid) {
+        TransactionResult result = new TransactionResult(certificate, serverid, new byte[0]);
+        result.setSpeculation(certificate.getViewNr(), certificate.getSequence(), certificate.getHistory());
+        result.setLocalCommit(true);
+        result.setTentative(false);
+        return result;
+    }
+
+    /**
+     * the replica that sends the full result if digest replies are used,
+     * rotates with the client sequence
+     *
+     * @param f faulty replica count
+     */
+    public static int getDesignatedReplica(int clientId, int clientSequence, int f) {
+        int replicas = 3 * f + 1;
+        return (int) ((((long) clientId + clientSequence) % replicas + replicas) % replicas);
+    }
+
     @Override
     public String toString() {
         return getClientId() + "/" + getClientSequence();
@@ -40,17 +158,133 @@ public class TransactionResult extends ClientCommand {
         return this.replicaId;
     }
 
+    /**
+     * @return the replica's last executed sequence when it executed the
+     *         read-only command
+     */
+    public int getLastExecuted() {
+        return this.lastExecuted;
+    }
+
+    void setLastExecuted(int lastExecuted) {
+        this.lastExecuted = lastExecuted;
+    }
+
+    /**
+     * @return true if the operation was executed before its transaction
+     *         commited (the replica might still roll it back)
+     */
+    public boolean isTentative() {
+        return this.tentative;
+    }
+
+    public void setTentative(boolean tentative) {
+        this.tentative = tentative;
+    }
+
+    /**
+     * @return true if the operation was executed speculatively (upon the
+     *         pre-prepare), its view, sequence and history are known then
+     */
+    public boolean isSpeculative() {
+        return this.history != null;
+    }
+
+    /**
+     * marks the result as speculative (and tentative)
+     */
+    public void setSpeculation(int viewNr, int sequence, OperationId history) {
+        this.viewNr = viewNr;
+        this.sequence = sequence;
+        this.history = history;
+        this.tentative = true;
+    }
+
+    public int getViewNr() {
+        return this.viewNr;
+    }
+
+    public int getSequence() {
+        return this.sequence;
+    }
+
+    /**
+     * @return the history digest after the operation's batch, null if not
+     *         speculative
+     */
+    public OperationId getHistory() {
+        return this.history;
+    }
+
+    public boolean isLocalCommit() {
+        return this.localCommit;
+    }
+
+    void setLocalCommit(boolean localCommit) {
+        this.localCommit = localCommit;
+    }
+
+    /**
+     * @return true if both results were executed at the same view, sequence
+     *         and history
+     */
+    public boolean sameSpeculation(TransactionResult tx) {
+        return viewNr == tx.viewNr && sequence == tx.sequence && history != null && history.equals(tx.history);
+    }
+
+    public boolean isDigestOnly() {
+        return this.digestOnly;
+    }
+
+    /**
+     * @return the digest of the (full) result, null if there is no result
+     */
+    @SuppressFBWarnings("EI_EXPOSE_REP")
+    public synchronized byte[] getResultDigest(DigestHelper digests) {
+        if (digestOnly) {
+            return getPayload();
+        }
+        if (resultDigests != digests && getPayload() != null) {
+            resultDigest = digests.createHash(getPayload());
+            resultDigests = digests;
+        }
+        return resultDigest;
+    }
+
     public String humanizeResult() {
-        return DatatypeConverter.printHexBinary(this.payload);
+        return DigestHelper.toHex(getPayload());
     }
 
     @Override
     @SuppressFBWarnings("EI_EXPOSE_REP")
     public byte[] getPayload() {
+        if (payload == null && payloadBuffer != null) {
+            byte[] copy = new byte[payloadBuffer.remaining()];
+            payloadBuffer.duplicate().get(copy);
+            payload = copy;
+        }
         return payload;
     }
 
-    public boolean verifyContent(TransactionResult tx) {
-        return Arrays.equals(this.payload, tx.getPayload());
+    /**
+     * the payload buffer is not serializable, copy it before serialization
+     */
+    private Object writeReplace() {
+        getPayload();
+        return this;
+    }
+
+    /**
+     * note: full results are compared by payload, everything else by result
+     *       digest. Speculative results must agree upon their history, too.
+     */
+    public boolean verifyContent(TransactionResult tx, DigestHelper digests) {
+        if (isSpeculative() && tx.isSpeculative() && !sameSpeculation(tx)) {
+            return false;
+        }
+        if (!digestOnly && !tx.digestOnly) {
+            return Arrays.equals(getPayload(), tx.getPayload());
+        }
+        return Arrays.equals(getResultDigest(digests), tx.getResultDigest(digests));
     }
 }
@@ -0,0 +1,42 @@
+package at.archistar.bft.messages;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * a replica moves to a new view (the message's view): it stops taking part
+ * in the current view and reports its last stable checkpoint (the message's
+ * sequence) together with all batches it prepared after that checkpoint
+ *
+ * @author andy
+ */
+public class ViewChangeMessage extends IntraReplicaCommand {
+
+    private static final long serialVersionUID = -1459834003851935337L;
+
+    private final List<PreparedCertificate> prepared;
+
+    public ViewChangeMessage(int sourceReplicaId, int stableCheckpoint, int newViewNr, List<PreparedCertificate> prepared) {
+        super(sourceReplicaId, stableCheckpoint, newViewNr);
+        this.prepared = Collections.unmodifiableList(new ArrayList<>(prepared));
+    }
+
+    @Override
+    public MessageType getType() {
+        return MessageType.VIEW_CHANGE;
+    }
+
+    public int getStableCheckpoint() {
+        return getSequence();
+    }
+
+    public List<PreparedCertificate> getPrepared() {
+        return this.prepared;
+    }
+
+    @Override
+    public String toString() {
+        return getSourceReplicaId() + "/" + getSequence() + "/" + prepared.size() + ": view-change to " + getViewNr();
+    }
+}
@@ -0,0 +1,42 @@
+package at.archistar.bft.server;
+
+import at.archistar.bft.messages.ClientCommand;
+
+/**
+ * servers whose command execution blocks (e.g. disk I/O) can additionally
+ * implement this interface: the BFT engine then does not wait for an
+ * execution but gets notified when it is done. The synchronous
+ * BftEngineCallbacks.executeClientCommand is not used in that case.
+ *
+ * Operations upon the same fragment are still started one after another,
+ * so the server does not need to care about ordering.
+ *
+ * @author andy
+ */
+public interface AsyncExecutionCallbacks {
+
+    /**
+     * notifies the BFT engine about a finished execution
+     */
+    interface ExecutionListener {
+
+        /**
+         * @param result the result of the client command
+         */
+        void completed(byte[] result);
+
+        /**
+         * @param cause why the client command could not be executed
+         */
+        void failed(Throwable cause);
+    }
+
+    /**
+     * a client command should be executed by the server, the listener must
+     * be called exactly once (from any thread)
+     *
+     * @param cmd the to be executed client command
+     * @param listener notified when the command was executed
+     */
+    void executeClientCommand(ClientCommand cmd, ExecutionListener listener);
+}
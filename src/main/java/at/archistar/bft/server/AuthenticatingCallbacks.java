@@ -0,0 +1,57 @@
+package at.archistar.bft.server;
+
+import at.archistar.bft.messages.AbstractCommand;
+import at.archistar.bft.messages.CheckpointMessage;
+import at.archistar.bft.messages.ClientCommand;
+import at.archistar.bft.messages.IntraReplicaCommand;
+import at.archistar.bft.messages.MacAuthenticator;
+import at.archistar.bft.messages.TransactionResult;
+
+/**
+ * attaches a MAC authenticator to every message sent to the other replicas,
+ * everything else is forwarded to the server's callbacks
+ *
+ * @author andy
+ */
+class AuthenticatingCallbacks implements BftEngineCallbacks {
+
+    private final BftEngineCallbacks callbacks;
+
+    private final MacAuthenticator authenticator;
+
+    AuthenticatingCallbacks(BftEngineCallbacks callbacks, MacAuthenticator authenticator) {
+        this.callbacks = callbacks;
+        this.authenticator = authenticator;
+    }
+
+    @Override
+    public void invalidMessageReceived(AbstractCommand msg) {
+        callbacks.invalidMessageReceived(msg);
+    }
+
+    @Override
+    public void replicasMightBeMalicous() {
+        callbacks.replicasMightBeMalicous();
+    }
+
+    @Override
+    public void sendToReplicas(IntraReplicaCommand cmd) {
+        authenticator.authenticate(cmd);
+        callbacks.sendToReplicas(cmd);
+    }
+
+    @Override
+    public byte[] executeClientCommand(ClientCommand cmd) {
+        return callbacks.executeClientCommand(cmd);
+    }
+
+    @Override
+    public void invalidCheckpointMessage(CheckpointMessage msg) {
+        callbacks.invalidCheckpointMessage(msg);
+    }
+
+    @Override
+    public void answerClient(TransactionResult transactionResult) {
+        callbacks.answerClient(transactionResult);
+    }
+}
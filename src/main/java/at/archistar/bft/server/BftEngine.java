@@ -3,18 +3,44 @@ package at.archistar.bft.server;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import at.archistar.bft.helper.DigestHelper;
+import at.archistar.bft.journal.Journal;
 import at.archistar.bft.messages.AbstractCommand;
-import at.archistar.bft.messages.AdvanceEraCommand;
 import at.archistar.bft.messages.CheckpointMessage;
 import at.archistar.bft.messages.ClientCommand;
+import at.archistar.bft.messages.CommitCertificate;
 import at.archistar.bft.messages.IntraReplicaCommand;
+import at.archistar.bft.messages.MacAuthenticator;
+import at.archistar.bft.messages.MessageType;
+import at.archistar.bft.messages.PreparedCertificate;
+import at.archistar.bft.messages.TransactionResult;
+import java.io.IOException;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * this class encapsulates a whole BFT engine (as would be seen within one
  * replica). The whole BFT system consists of multiple distributed BFt engines
- * 
+ *
+ * In single-writer mode the process* methods only queue the message, it is
+ * processed later on by the engine's own thread (see EventLoop).
+ *
+ * With a journal the engine recovers while it is created: the server's
+ * newest snapshot is restored (see RecoveryCallbacks) and only the journal's
+ * tail after it is replayed, afterwards the replica continues at the view
+ * and sequence it stopped at.
+ *
+ * View changes are run by the ViewChangeManager, messages of views that
+ * are not installed yet are held back until the view was installed.
+ *
+ * In speculative mode (see BftEngineConfiguration.AgreementMode) replicas
+ * execute upon the pre-prepare and answer with their history digest. A
+ * client that only got 2f+1 matching speculative answers sends a commit
+ * certificate, replicas whose history matches answer with a local commit.
+ *
  * @author andy
  */
 public class BftEngine {
@@ -29,16 +55,115 @@ public class BftEngine {
 
     private final Logger logger = LoggerFactory.getLogger(BftEngine.class);
     
-    private TransactionManager currentEra;
+    private volatile TransactionManager currentEra;
     
+    /**
+     * discarded after the next stable checkpoint
+     */
     private final Set<TransactionManager> oldEras = new HashSet<>();
 
-    public BftEngine(int replicaId, int viewNr, int f, BftEngineCallbacks callbacks) {
-        this.callbacks = callbacks;
+    /**
+     * the stable checkpoint up to which transactions were removed
+     */
+    private final AtomicInteger collectedUpTo = new AtomicInteger(-1);
+
+    /**
+     * only used in single-writer mode
+     */
+    private final EventLoop eventLoop;
+
+    private final ExecutionStage executor;
+
+    /**
+     * null if messages are not authenticated
+     */
+    private final VerificationStage verifier;
+
+    /**
+     * null if the journal is disabled
+     */
+    private final Journal journal;
+
+    /**
+     * null if the server does not support state transfer
+     */
+    private final StateTransfer stateTransfer;
+
+    /**
+     * null if the server does not keep local snapshots
+     */
+    private final RecoveryCallbacks recovery;
+
+    private final BftEngineConfiguration config;
+
+    private final ViewChangeManager viewChanges;
+
+    private final DigestHelper digests;
+
+    public BftEngine(int replicaId, int viewNr, int f, BftEngineCallbacks callbacks, BftEngineConfiguration config) {
         this.f = f;
         this.replicaId = replicaId;
-        this.checkpoints = new CheckpointManager(replicaId, callbacks, f);
-        this.currentEra = new TransactionManager(replicaId, viewNr,  f, callbacks, checkpoints);
+        this.config = config;
+        this.digests = new DigestHelper(config.getDigestAlgorithm(), config.getOperationIdMode());
+
+        BftEngineCallbacks replicaCallbacks = callbacks;
+        if (config.getJournalDirectory() != null) {
+            try {
+                this.journal = Journal.open(config.getJournalDirectory(), config.getJournalSegmentSize(), config.isJournalSync());
+            } catch (IOException e) {
+                throw new IllegalStateException("could not open journal", e);
+            }
+            replicaCallbacks = new JournalingCallbacks(replicaCallbacks, journal);
+        } else {
+            this.journal = null;
+        }
+
+        MacAuthenticator authenticator = null;
+        if (config.getMacKeys() != null) {
+            authenticator = new MacAuthenticator(replicaId, config.getMacKeys(), config.getMacAlgorithm());
+            this.callbacks = new AuthenticatingCallbacks(replicaCallbacks, authenticator);
+            this.verifier = new VerificationStage(this, authenticator, callbacks, config.getVerificationThreads(), replicaId);
+        } else {
+            this.callbacks = replicaCallbacks;
+            this.verifier = null;
+        }
+
+        if (callbacks instanceof StateTransferCallbacks) {
+            this.stateTransfer = new StateTransfer(this, replicaId, f, this.callbacks, (StateTransferCallbacks) callbacks, authenticator, digests, config);
+        } else {
+            this.stateTransfer = null;
+        }
+
+        if (callbacks instanceof RecoveryCallbacks) {
+            this.recovery = (RecoveryCallbacks) callbacks;
+        } else {
+            this.recovery = null;
+        }
+
+        this.checkpoints = new CheckpointManager(replicaId, this.callbacks, f, config.getWatermarkWindow(), journal, digests);
+        /* the execution stage must see the server's callbacks (might be asynchronous) */
+        if ((config.isTentativeExecution() || config.isSpeculative()) && !(callbacks instanceof TentativeExecutionCallbacks)) {
+            throw new IllegalArgumentException("tentative (and speculative) execution needs TentativeExecutionCallbacks");
+        }
+        ReplyCache replies = config.isDigestReplies() ? new ReplyCache(f, config.getReplyCacheSize()) : null;
+        this.executor = new ExecutionStage(replicaId, callbacks, checkpoints, config.getExecutionThreads(), replies, digests, journal != null ? recovery : null);
+        this.currentEra = new TransactionManager(replicaId, viewNr,  f, this.callbacks, checkpoints, executor, journal, digests, config);
+
+        if (journal != null) {
+            recover();
+        }
+        this.viewChanges = new ViewChangeManager(this, replicaId, f, this.callbacks, checkpoints, config, currentEra.getViewNr());
+
+        if (config.getProcessingMode() == BftEngineConfiguration.ProcessingMode.SINGLE_WRITER) {
+            this.eventLoop = new EventLoop(this, config.getQueueSize(), "bft-engine-" + replicaId);
+            this.eventLoop.start();
+        } else {
+            this.eventLoop = null;
+        }
+    }
+
+    public BftEngine(int replicaId, int viewNr, int f, BftEngineCallbacks callbacks) {
+        this(replicaId, viewNr, f, callbacks, new BftEngineConfiguration());
     }
 
     
@@ -47,46 +172,290 @@ public class BftEngine {
     }
 
     public void processClientCommand(ClientCommand cmd) {
+        if (eventLoop != null) {
+            eventLoop.enqueue(cmd);
+        } else {
+            handleClientCommand(cmd);
+        }
+    }
+
+    /**
+     * if authentication is enabled the message is verified first
+     */
+    public void processIntraReplicaCommand(IntraReplicaCommand cmd) {
+        if (verifier != null) {
+            verifier.submit(cmd);
+        } else {
+            processVerified(cmd);
+        }
+    }
+
+    /**
+     * called for all (successfully verified) replica messages
+     */
+    void processVerified(IntraReplicaCommand cmd) {
+        if (eventLoop != null) {
+            eventLoop.enqueue(cmd);
+        } else {
+            handleIntraReplicaCommand(cmd);
+        }
+    }
+
+    /**
+     * stops the engine thread (single-writer mode) and the execution workers
+     * after all queued messages and commited operations were processed, the
+     * journal is flushed and closed afterwards
+     */
+    public void shutdown() throws InterruptedException {
+        if (verifier != null) {
+            verifier.shutdown();
+        }
+        if (eventLoop != null) {
+            eventLoop.shutdown();
+        }
+        executor.shutdown();
+
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                logger.error("could not close journal", e);
+            }
+        }
+    }
+
+    /**
+     * called by the event loop thread
+     */
+    void process(AbstractCommand cmd) {
+        if (cmd instanceof ClientCommand) {
+            handleClientCommand((ClientCommand) cmd);
+        } else if (cmd instanceof IntraReplicaCommand) {
+            handleIntraReplicaCommand((IntraReplicaCommand) cmd);
+        } else {
+            callbacks.invalidMessageReceived(cmd);
+        }
+    }
+
+    private void handleClientCommand(ClientCommand cmd) {
+        if (cmd.getType() == MessageType.RESULT_REQUEST) {
+            /* already executed, not ordered again */
+            executor.resendResult(cmd);
+            return;
+        }
+        if (cmd.getType() == MessageType.COMMIT_CERTIFICATE) {
+            handleCommitCertificate((CommitCertificate) cmd);
+            return;
+        }
+        if (cmd.isReadOnly() && executor.executeReadOnly(cmd)) {
+            return;
+        }
+
         Transaction t = this.currentEra.getTransaction(cmd);
+        if (t == null) {
+            /* unknown message type, already reported */
+            return;
+        }
         handleMessage(t, cmd);
         t.unlock();
         this.currentEra.cleanupTransactions(t);
+        collectGarbage();
     }
 
-    public void processIntraReplicaCommand(IntraReplicaCommand cmd) {
-        if (!checkEraOfMessage((IntraReplicaCommand) cmd)) {
-            logger.warn("message from old era detected");
+    /**
+     * answers with a local commit if the certificate names 2f+1 distinct
+     * replicas and its history matches ours
+     */
+    private void handleCommitCertificate(CommitCertificate certificate) {
+        boolean[] named = new boolean[3 * f + 1];
+        int count = 0;
+        for (int id : certificate.getReplicaIds()) {
+            if (id >= 0 && id < named.length && !named[id]) {
+                named[id] = true;
+                count++;
+            }
+        }
+
+        if (count >= 2 * f + 1 && currentEra.hasHistory(certificate.getSequence(), certificate.getHistory())) {
+            callbacks.answerClient(TransactionResult.localCommit(certificate, replicaId));
         } else {
-            if (cmd instanceof CheckpointMessage) {
-                addCheckpointMessage((CheckpointMessage) cmd);
-            } else if (cmd instanceof AdvanceEraCommand) {
-                newEra(((AdvanceEraCommand) cmd).getNewEra());
+            logger.debug("server {}: ignoring {}", replicaId, certificate);
+        }
+    }
+
+    private void handleIntraReplicaCommand(IntraReplicaCommand cmd) {
+        MessageType type = cmd.getType();
+        if (cmd.getSourceReplicaId() < 0 || cmd.getSourceReplicaId() >= 3 * f + 1) {
+            callbacks.invalidMessageReceived(cmd);
+        } else if (type == MessageType.CHECKPOINT) {
+            /* checkpoints do not depend upon the view */
+            addCheckpointMessage((CheckpointMessage) cmd);
+        } else if (type == MessageType.STATE_REQUEST || type == MessageType.STATE_MANIFEST || type == MessageType.STATE_CHUNK) {
+            if (stateTransfer != null) {
+                stateTransfer.handle(cmd);
             } else {
-                /* this locks t */
-                Transaction t = this.currentEra.getTransaction(cmd);
-                handleMessage(t, cmd);
+                callbacks.invalidMessageReceived(cmd);
+            }
+        } else if (type == MessageType.VIEW_CHANGE || type == MessageType.NEW_VIEW) {
+            viewChanges.handle(cmd);
+            processReleased();
+        } else if (cmd.getViewNr() < this.currentEra.getViewNr()) {
+            logger.debug("dropping message of old view: {}", cmd);
+        } else if ((cmd.getViewNr() > this.currentEra.getViewNr() || viewChanges.isChanging()) && viewChanges.holdBack(cmd)) {
+            /* processed after the view was installed (or dropped) */
+            return;
+        } else if (!checkpoints.isInWindow(cmd.getSequence())) {
+            /* do not allocate anything for out-of-window sequences */
+            logger.debug("dropping message outside of sequence window: {}", cmd);
+        } else {
+            /* this locks t */
+            Transaction t = this.currentEra.getTransaction(cmd);
+            if (t == null) {
+                return;
+            }
+            handleMessage(t, cmd);
+            t.unlock();
+            this.currentEra.cleanupTransactions(t);
+            collectGarbage();
+        }
+    }
+
+    /**
+     * processes the held back messages of a just installed view
+     */
+    private void processReleased() {
+        for (IntraReplicaCommand cmd : viewChanges.takeReleased()) {
+            handleIntraReplicaCommand(cmd);
+        }
+    }
+
+    /**
+     * restores the server's snapshot and replays the journal after it. The
+     * time this takes depends upon the journal's tail (everything up to the
+     * last snapshot was truncated) and not upon the whole history.
+     */
+    private void recover() {
+        long start = System.nanoTime();
+
+        int snapshot = recovery != null ? recovery.restoreSnapshot() : -1;
+        if (snapshot >= 0) {
+            checkpoints.recovered(snapshot);
+        }
+
+        /* without snapshots the server's state cannot be rebuilt */
+        JournalReplay replay = new JournalReplay(replicaId, snapshot, recovery != null ? executor : null);
+        journal.replay(replay);
+        if (replay.isEmpty()) {
+            return;
+        }
+
+        try {
+            executor.awaitExecuted();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while replaying the journal", e);
+        }
+
+        if (replay.getViewNr() > currentEra.getViewNr()) {
+            currentEra = new TransactionManager(replicaId, replay.getViewNr(), f, callbacks, checkpoints, executor, journal, digests, config);
+        }
+
+        int stable = Math.max(snapshot, replay.getStableCheckpoint());
+        if (stable >= 0) {
+            checkpoints.recovered(stable);
+            currentEra.stateTransferred(stable);
+            collectedUpTo.set(stable);
+        }
+        currentEra.recovered(replay.getCommitedFragments(), replay.getLastSequence());
+
+        /* never contradict a vote that was sent before the restart */
+        for (IntraReplicaCommand vote : replay.getVotes(stable)) {
+            Transaction t = currentEra.getTransaction(vote);
+            if (t != null) {
                 t.unlock();
-                this.currentEra.cleanupTransactions(t);
             }
         }
+
+        logger.info("server {}: replayed {} sequences after snapshot {} in {}ms, continuing in view {} after sequence {}",
+                replicaId, replay.getReplayed(), snapshot, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                currentEra.getViewNr(), replay.getLastSequence());
     }
 
-    private boolean checkEraOfMessage(IntraReplicaCommand cmd) {
-        return cmd.getViewNr() >= this.currentEra.getViewNr();
+    /**
+     * frees everything up to the last stable checkpoint if it moved since
+     * the last collection. Checkpoints might also become stable within the
+     * execution stage, so this is checked after every message.
+     *
+     * Journal segments up to the checkpoint are deleted, if the server keeps
+     * snapshots only up to its last snapshot.
+     */
+    private void collectGarbage() {
+        int stable = checkpoints.getLowWaterMark();
+        int collected = collectedUpTo.get();
+
+        if (stable > collected && collectedUpTo.compareAndSet(collected, stable)) {
+            this.currentEra.collectGarbage(stable);
+
+            synchronized (oldEras) {
+                oldEras.clear();
+            }
+
+            if (journal != null) {
+                truncateJournal(stable);
+            }
+
+            if (stateTransfer != null && checkpoints.isLagging()) {
+                stateTransfer.start(stable, currentEra.getViewNr());
+            }
+        }
+    }
+
+    private void truncateJournal(int stable) {
+        if (recovery == null) {
+            journal.truncate(stable);
+        } else if (executor.getLastSnapshot() >= 0) {
+            /* only operations within a snapshot can be dropped */
+            journal.truncate(Math.min(stable, executor.getLastSnapshot()));
+        }
+    }
+
+    /**
+     * called after the server installed the checkpoint's state
+     */
+    void stateTransferred(int checkpoint) {
+        this.checkpoints.stateTransferred(checkpoint);
+        this.currentEra.stateTransferred(checkpoint);
+        this.currentEra.cleanupTransactions();
     }
 
     public boolean isPrimary() {
         return this.replicaId == (this.currentEra.getViewNr() % (3*f + 1));
     }
     
-    private void newEra(int newEra) {
-        /* backup old era */
-        this.oldEras.add(currentEra);
-        
-        /* create a new era */
-        currentEra = currentEra.createNewEra(newEra);
+    /**
+     * called by the ViewChangeManager once a new view was agreed upon: the
+     * next view's transactions are created and all re-proposed batches are
+     * advanced (this sends their prepares)
+     */
+    void installView(int viewNr, int stable, List<PreparedCertificate> proposals) {
+        synchronized (oldEras) {
+            this.oldEras.add(currentEra);
+        }
+
+        TransactionManager next = currentEra.createNewEra(viewNr, stable, proposals);
+        currentEra = next;
+
+        for (Transaction t : next.getProposed()) {
+            t.lock();
+            try {
+                handleMessage(t, null);
+            } finally {
+                t.unlock();
+            }
+            next.cleanupTransactions(t);
+        }
     }
-    
+
     /** mostly to allow for stubbing */
     TransactionManager getCurrentEra() {
         return this.currentEra;
@@ -94,6 +463,10 @@ public class BftEngine {
 
     private void addCheckpointMessage(CheckpointMessage msg) {
         this.checkpoints.addCheckpointMessage(msg);
+
+        /* a new stable checkpoint moves the sequence window */
+        this.currentEra.checkPendingBatch();
+        collectGarbage();
     }
 
     /**
@@ -105,21 +478,43 @@ public class BftEngine {
         this.currentEra.checkCollections();
     }
 
+    /**
+     * this should be called periodically by the server so that batched client
+     * operations are not held back longer than the configured batch timeout.
+     * Unanswered state transfer requests are retransmitted and stuck view
+     * changes are moved on to the next view, too.
+     */
+    public void checkPendingBatch() {
+        this.currentEra.checkPendingBatch();
+        if (stateTransfer != null) {
+            stateTransfer.retransmit();
+        }
+        viewChanges.checkTimeout();
+        processReleased();
+    }
+
+    /**
+     * suspects the current primary: starts a view change to the next view
+     */
     public void tryAdvanceEra() {
-        int viewNr = this.currentEra.getViewNr();
-        AdvanceEraCommand cmd = new AdvanceEraCommand(replicaId, -1, viewNr, viewNr + 1);
-        this.callbacks.sendToReplicas(cmd);
-        newEra(viewNr + 1);
+        viewChanges.start(viewChanges.getPendingView() + 1);
+        processReleased();
+    }
+
+    public int getViewNr() {
+        return this.currentEra.getViewNr();
     }
 
     private void handleMessage(Transaction t, AbstractCommand msg) {
 
         t.tryAdvanceToPreprepared(isPrimary());
-        t.tryAdvanceToPrepared(this.currentEra.getLastCommited());
+        if (t.tryAdvanceToPrepared(this.currentEra.getCommitedFragments())) {
+            this.currentEra.newPrepared(t);
+        } else {
+            this.currentEra.waitForPrior(t);
+        }
         if (t.tryAdvanceToCommited()) {
-            /* check if we should send a CHECKPOINT message */
-            checkpoints.addTransaction(t, t.getResult(), this.currentEra.getViewNr());
-            this.currentEra.newCommited(t.getSequenceNr());
+            this.currentEra.newCommited(t);
         }
         t.tryMarkDelete();
     }
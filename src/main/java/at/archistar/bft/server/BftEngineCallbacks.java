@@ -37,7 +37,8 @@ public interface BftEngineCallbacks {
     void sendToReplicas(IntraReplicaCommand cmd);
 
     /**
-     * a client command should be executed by the server
+     * a client command should be executed by the server (not used if the
+     * server implements AsyncExecutionCallbacks)
      * @param cmd the to be executed client command
      * @return the result of the client command
      */
@@ -0,0 +1,357 @@
+package at.archistar.bft.server;
+
+import java.io.File;
+
+import at.archistar.bft.helper.DigestHelper;
+import at.archistar.bft.messages.MacAuthenticator;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * tunables of a BFT engine. The defaults mirror the original (unbatched)
+ * behaviour so a default configuration can always be used.
+ *
+ * @author andy
+ */
+public class BftEngineConfiguration {
+
+    /**
+     * how incoming messages are processed
+     */
+    public enum ProcessingMode {
+        /** the calling (transport) threads process messages concurrently */
+        LOCKING,
+        /** messages are queued and processed by one dedicated engine thread */
+        SINGLE_WRITER
+    }
+
+    private ProcessingMode processingMode = ProcessingMode.LOCKING;
+
+    /**
+     * when client operations are executed
+     */
+    public enum AgreementMode {
+        /** after the transaction commited (or prepared, see tentativeExecution) */
+        PBFT,
+        /**
+         * upon the primary's pre-prepare, replies carry the history digest
+         * (the server has to implement TentativeExecutionCallbacks)
+         */
+        SPECULATIVE
+    }
+
+    private AgreementMode agreementMode = AgreementMode.PBFT;
+
+    /**
+     * size of the message queue in single-writer mode (power of two)
+     */
+    private int queueSize = 65536;
+
+    /**
+     * keys shared with every replica (indexed by replica id), null disables
+     * message authentication
+     */
+    private byte[][] macKeys = null;
+
+    private String macAlgorithm = MacAuthenticator.DEFAULT_ALGORITHM;
+
+    /**
+     * JCA digest algorithm of all batch, history, result and state digests
+     * (must be the same upon all replicas and clients)
+     */
+    private String digestAlgorithm = DigestHelper.DEFAULT_ALGORITHM;
+
+    /**
+     * how client operation ids are derived (must be the same upon all
+     * replicas)
+     */
+    private DigestHelper.OperationIdMode operationIdMode = DigestHelper.OperationIdMode.HASHED;
+
+    /**
+     * amount of threads verifying authenticators, 0 verifies within the
+     * calling thread
+     */
+    private int verificationThreads = 0;
+
+    /**
+     * amount of worker threads executing commited operations, 0 executes
+     * operations inline. Servers with blocking (synchronous) executions
+     * should use enough threads to cover their I/O latency.
+     */
+    private int executionThreads = 0;
+
+    /**
+     * maximum amount of client operations that the primary orders under a
+     * single sequence number (1 disables batching)
+     */
+    private int maxBatchSize = 1;
+
+    /**
+     * maximum time (in milliseconds) a client operation is held back by the
+     * primary while waiting for its batch to fill up
+     */
+    private long batchTimeout = 10;
+
+    /**
+     * size of the sequence window (L): only sequences within (h, h + L] are
+     * accepted, h being the last stable checkpoint. This bounds the amount
+     * of concurrently active transactions. It has to span at least one
+     * checkpoint period, otherwise the next checkpoint never fits into it.
+     */
+    private int watermarkWindow = 1024;
+
+    /**
+     * directory of the write-ahead log, null disables the journal
+     */
+    private File journalDirectory = null;
+
+    /**
+     * size of a single journal segment file (in bytes)
+     */
+    private int journalSegmentSize = 64 * 1024 * 1024;
+
+    /**
+     * force journal records to disk before dependent messages are sent
+     * (group commit), without sync a power loss might lose the journal's tail
+     */
+    private boolean journalSync = true;
+
+    /**
+     * size of a single snapshot chunk during state transfer (in bytes)
+     */
+    private int stateChunkSize = 64 * 1024;
+
+    /**
+     * maximum amount of outstanding chunk requests during state transfer
+     */
+    private int stateTransferWindow = 16;
+
+    /**
+     * time (in milliseconds) a new view may take to be installed before the
+     * replica moves on to the next one, doubled for every further attempt
+     */
+    private long viewChangeTimeout = 2000;
+
+    /**
+     * only the designated replica of an operation answers with the full
+     * result, all others answer with its digest (clients must compare
+     * results by digest, see TransactionResult)
+     */
+    private boolean digestReplies = false;
+
+    /**
+     * amount of full results kept for result requests if digest replies are
+     * used
+     */
+    private int replyCacheSize = 1024;
+
+    /**
+     * execute transactions as soon as they are prepared (instead of
+     * commited) and answer with tentative results, the server has to
+     * implement TentativeExecutionCallbacks
+     */
+    private boolean tentativeExecution = false;
+
+    public ProcessingMode getProcessingMode() {
+        return this.processingMode;
+    }
+
+    public void setProcessingMode(ProcessingMode processingMode) {
+        this.processingMode = processingMode;
+    }
+
+    public int getQueueSize() {
+        return this.queueSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        if (queueSize < 1 || Integer.bitCount(queueSize) != 1) {
+            throw new IllegalArgumentException("queue size must be a power of two");
+        }
+        this.queueSize = queueSize;
+    }
+
+    @SuppressFBWarnings("EI_EXPOSE_REP")
+    public byte[][] getMacKeys() {
+        return this.macKeys;
+    }
+
+    @SuppressFBWarnings("EI_EXPOSE_REP2")
+    public void setMacKeys(byte[][] macKeys) {
+        this.macKeys = macKeys;
+    }
+
+    public String getMacAlgorithm() {
+        return this.macAlgorithm;
+    }
+
+    public void setMacAlgorithm(String macAlgorithm) {
+        this.macAlgorithm = macAlgorithm;
+    }
+
+    public String getDigestAlgorithm() {
+        return this.digestAlgorithm;
+    }
+
+    public void setDigestAlgorithm(String digestAlgorithm) {
+        this.digestAlgorithm = digestAlgorithm;
+    }
+
+    public DigestHelper.OperationIdMode getOperationIdMode() {
+        return this.operationIdMode;
+    }
+
+    public void setOperationIdMode(DigestHelper.OperationIdMode operationIdMode) {
+        this.operationIdMode = operationIdMode;
+    }
+
+    public int getVerificationThreads() {
+        return this.verificationThreads;
+    }
+
+    public void setVerificationThreads(int verificationThreads) {
+        if (verificationThreads < 0) {
+            throw new IllegalArgumentException("thread count must not be negative");
+        }
+        this.verificationThreads = verificationThreads;
+    }
+
+    public int getExecutionThreads() {
+        return this.executionThreads;
+    }
+
+    public void setExecutionThreads(int executionThreads) {
+        if (executionThreads < 0) {
+            throw new IllegalArgumentException("thread count must not be negative");
+        }
+        this.executionThreads = executionThreads;
+    }
+
+    public int getMaxBatchSize() {
+        return this.maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("batch size must be positive");
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public long getBatchTimeout() {
+        return this.batchTimeout;
+    }
+
+    public void setBatchTimeout(long batchTimeout) {
+        this.batchTimeout = batchTimeout;
+    }
+
+    public int getWatermarkWindow() {
+        return this.watermarkWindow;
+    }
+
+    public void setWatermarkWindow(int watermarkWindow) {
+        if (watermarkWindow < CheckpointManager.PERIOD_TIME) {
+            throw new IllegalArgumentException("watermark window must span at least one checkpoint period (" + CheckpointManager.PERIOD_TIME + ")");
+        }
+        this.watermarkWindow = watermarkWindow;
+    }
+
+    public File getJournalDirectory() {
+        return this.journalDirectory;
+    }
+
+    public void setJournalDirectory(File journalDirectory) {
+        this.journalDirectory = journalDirectory;
+    }
+
+    public int getJournalSegmentSize() {
+        return this.journalSegmentSize;
+    }
+
+    public void setJournalSegmentSize(int journalSegmentSize) {
+        if (journalSegmentSize < 1024) {
+            throw new IllegalArgumentException("journal segments must be at least 1KiB");
+        }
+        this.journalSegmentSize = journalSegmentSize;
+    }
+
+    public boolean isJournalSync() {
+        return this.journalSync;
+    }
+
+    public void setJournalSync(boolean journalSync) {
+        this.journalSync = journalSync;
+    }
+
+    public int getStateChunkSize() {
+        return this.stateChunkSize;
+    }
+
+    public void setStateChunkSize(int stateChunkSize) {
+        if (stateChunkSize < 1) {
+            throw new IllegalArgumentException("chunk size must be positive");
+        }
+        this.stateChunkSize = stateChunkSize;
+    }
+
+    public int getStateTransferWindow() {
+        return this.stateTransferWindow;
+    }
+
+    public void setStateTransferWindow(int stateTransferWindow) {
+        if (stateTransferWindow < 1) {
+            throw new IllegalArgumentException("state transfer window must be positive");
+        }
+        this.stateTransferWindow = stateTransferWindow;
+    }
+
+    public long getViewChangeTimeout() {
+        return this.viewChangeTimeout;
+    }
+
+    public void setViewChangeTimeout(long viewChangeTimeout) {
+        if (viewChangeTimeout < 1) {
+            throw new IllegalArgumentException("view change timeout must be positive");
+        }
+        this.viewChangeTimeout = viewChangeTimeout;
+    }
+
+    public boolean isDigestReplies() {
+        return this.digestReplies;
+    }
+
+    public void setDigestReplies(boolean digestReplies) {
+        this.digestReplies = digestReplies;
+    }
+
+    public int getReplyCacheSize() {
+        return this.replyCacheSize;
+    }
+
+    public void setReplyCacheSize(int replyCacheSize) {
+        if (replyCacheSize < 1) {
+            throw new IllegalArgumentException("reply cache size must be positive");
+        }
+        this.replyCacheSize = replyCacheSize;
+    }
+
+    public boolean isTentativeExecution() {
+        return this.tentativeExecution;
+    }
+
+    public void setTentativeExecution(boolean tentativeExecution) {
+        this.tentativeExecution = tentativeExecution;
+    }
+
+    public AgreementMode getAgreementMode() {
+        return this.agreementMode;
+    }
+
+    public void setAgreementMode(AgreementMode agreementMode) {
+        this.agreementMode = agreementMode;
+    }
+
+    public boolean isSpeculative() {
+        return this.agreementMode == AgreementMode.SPECULATIVE;
+    }
+}
@@ -1,9 +1,11 @@
 package at.archistar.bft.server;
 
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
@@ -11,11 +13,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import at.archistar.bft.helper.DigestHelper;
+import at.archistar.bft.helper.MerkleTree;
+import at.archistar.bft.journal.Journal;
 import at.archistar.bft.messages.CheckpointMessage;
 
 /**
  * an instance of this class should handle all periodic checkpoint message
  * activity. It will get notified about every completed transaction
+ *
+ * The results of all sequences within (s - PERIOD_TIME, s] are collected
+ * within a hash tree (one leaf per sequence), the checkpoint for s is sent
+ * after all of them were executed (regardless of their execution order).
+ * The trees are not chained, so the checkpoint's digest does not cover
+ * sequences of earlier periods.
  * 
  * @author andy
  */
@@ -27,94 +37,295 @@ public class CheckpointManager {
 
     private final int f;
 
-    private int lowWaterMark = -1;
+    /**
+     * sequence of the last stable checkpoint (h)
+     */
+    private volatile int lowWaterMark = -1;
+
+    /**
+     * the highest checkpoint this replica sent
+     */
+    private int lastOwnCheckpoint = -1;
+
+    /**
+     * the checkpoint whose state was installed through state transfer,
+     * sequences up to it are not checkpointed anymore (none by default, tests
+     * use negative sequences)
+     */
+    private volatile int transferredUpTo = Integer.MIN_VALUE;
 
     /**
-     * this stores operation's results -- will be used for check-pointing
+     * size of the accepted sequence window (L)
      */
-    private SortedMap<Integer, String> collResults;
+    private final int window;
 
-    private final SortedMap<Integer, Set<CheckpointMessage>> unstableCheckpoints;
+    /**
+     * result trees of checkpoints that are still being executed, by the
+     * checkpoint's sequence
+     */
+    private final SortedMap<Integer, MerkleTree> openPeriods;
 
-    private static final int PERIOD_TIME = 128;
+    /**
+     * result trees of sent checkpoints, kept for state repair until a newer
+     * checkpoint became stable
+     */
+    private final SortedMap<Integer, MerkleTree> checkpointTrees;
+
+    /**
+     * checkpoint messages of sequences that are not stable yet: (sequence)
+     * -> (state digest) -> (source replica) -> message
+     */
+    private final SortedMap<Integer, Map<ByteBuffer, Map<Integer, CheckpointMessage>>> unstableCheckpoints;
+
+    static final int PERIOD_TIME = 128;
 
     private final BftEngineCallbacks callbacks;
 
-    public CheckpointManager(int serverId, BftEngineCallbacks callbacks, int f) {
+    /**
+     * null if nothing is journaled
+     */
+    private final Journal journal;
+
+    private final DigestHelper digests;
+
+    public CheckpointManager(int serverId, BftEngineCallbacks callbacks, int f, int window, Journal journal, DigestHelper digests) {
         this.serverId = serverId;
-        this.collResults = new TreeMap<>();
+        this.openPeriods = new TreeMap<>();
+        this.checkpointTrees = new TreeMap<>();
         this.unstableCheckpoints = new TreeMap<>();
         this.f = f;
         this.callbacks = callbacks;
+        this.window = window;
+        this.journal = journal;
+        this.digests = digests;
     }
 
-    public synchronized void addCheckpointMessage(CheckpointMessage msg) {
-        if (msg.getLastExecutedSequence() > lowWaterMark) {
-            addCheckpointMessageToLog(msg);
-        } else {
-            /* this was already committed, discard message */
-            // TODO: should we do some notification of cleanups now?
+    public CheckpointManager(int serverId, BftEngineCallbacks callbacks, int f, int window) {
+        this(serverId, callbacks, f, window, null, new DigestHelper());
+    }
+
+    public CheckpointManager(int serverId, BftEngineCallbacks callbacks, int f) {
+        this(serverId, callbacks, f, new BftEngineConfiguration().getWatermarkWindow());
+    }
+
+    public int getLowWaterMark() {
+        return this.lowWaterMark;
+    }
+
+    /**
+     * checks if a sequence lies within the current window (h, h + L]. Until
+     * the first checkpoint becomes stable there is no lower bound.
+     */
+    public boolean isInWindow(int sequence) {
+        int h = this.lowWaterMark;
+        return sequence - h <= window && (h < 0 || sequence > h);
+    }
+
+    /**
+     * @return true if the last stable checkpoint is more than a checkpoint
+     *         period ahead of this replica's own checkpoints
+     */
+    public synchronized boolean isLagging() {
+        return lowWaterMark - lastOwnCheckpoint > PERIOD_TIME;
+    }
+
+    /**
+     * @return the highest checkpoint this replica sent (i.e. executed all
+     *         of its sequences)
+     */
+    public synchronized int getLastOwnCheckpoint() {
+        return this.lastOwnCheckpoint;
+    }
+
+    public int getTransferredUpTo() {
+        return this.transferredUpTo;
+    }
+
+    /**
+     * the state of the checkpoint was installed, results up to it will not
+     * be reported anymore
+     */
+    public synchronized void stateTransferred(int checkpoint) {
+        if (checkpoint > transferredUpTo) {
+            transferredUpTo = checkpoint;
         }
+        lastOwnCheckpoint = Math.max(lastOwnCheckpoint, checkpoint);
+        openPeriods.headMap(checkpoint + 1).clear();
     }
 
+    /**
+     * the replica restarted, the checkpoint was stable before. Sequences up
+     * to it are neither accepted nor checkpointed anymore.
+     */
+    public synchronized void recovered(int stableCheckpoint) {
+        if (stableCheckpoint > lowWaterMark) {
+            lowWaterMark = stableCheckpoint;
+        }
+        stateTransferred(stableCheckpoint);
+
+        /* replayed periods might have been sent before the checkpoint was known */
+        unstableCheckpoints.headMap(stableCheckpoint + 1).clear();
+        checkpointTrees.headMap(stableCheckpoint).clear();
+    }
+
+    public synchronized void addCheckpointMessage(CheckpointMessage msg) {
+        addCheckpointMessageToLog(msg);
+    }
+
+    /**
+     * a checkpoint becomes stable once 2f+1 distinct replicas sent the same
+     * digest for it. Every replica is counted once per sequence, a replica
+     * that sends a different digest for the same sequence is reported.
+     *
+     * Lagging replicas have to learn about stable checkpoints beyond their
+     * window, but only the highest one of every replica is kept there. So a
+     * single replica cannot grow the log by sending far-future sequences.
+     */
     private void addCheckpointMessageToLog(CheckpointMessage msg) {
 
         int sequence = msg.getLastExecutedSequence();
-        Set<CheckpointMessage> currentMessages;
+        if (sequence <= lowWaterMark) {
+            /* this was already committed, discard message */
+            return;
+        }
+        if (sequence % PERIOD_TIME != 0) {
+            callbacks.invalidCheckpointMessage(msg);
+            return;
+        }
+        if ((long) sequence - lowWaterMark > window && !replaceAhead(msg.getSourceReplicaId(), sequence)) {
+            return;
+        }
 
-        if (unstableCheckpoints.containsKey(sequence)) {
-            currentMessages = unstableCheckpoints.get(sequence);
-        } else {
-            currentMessages = new HashSet<>();
+        Map<ByteBuffer, Map<Integer, CheckpointMessage>> byDigest = unstableCheckpoints.get(sequence);
+        if (byDigest == null) {
+            byDigest = new HashMap<>();
+            unstableCheckpoints.put(sequence, byDigest);
         }
 
         /* check if new checkpoint message fits the existing ones */
-        for (CheckpointMessage old : currentMessages) {
-            if (!old.compatibleWith(msg)) {
+        ByteBuffer digest = ByteBuffer.wrap(msg.getStateDigest());
+        for (Entry<ByteBuffer, Map<Integer, CheckpointMessage>> e : byDigest.entrySet()) {
+            if (!e.getKey().equals(digest)) {
                 callbacks.invalidCheckpointMessage(msg);
+                if (e.getValue().containsKey(msg.getSourceReplicaId())) {
+                    /* the replica already sent another digest */
+                    return;
+                }
             }
         }
 
-        currentMessages.add(msg);
-        unstableCheckpoints.put(sequence, currentMessages);
+        Map<Integer, CheckpointMessage> sources = byDigest.get(digest);
+        if (sources == null) {
+            sources = new HashMap<>();
+            byDigest.put(digest, sources);
+        }
+        sources.put(msg.getSourceReplicaId(), msg);
 
         if (unstableCheckpoints.size() >= 10) {
             logger.warn("server {}: unstableCheckpoint count: {}", serverId, unstableCheckpoints.size());
         }
 
-        /**
-         * TODO: what is the highest-unstable logic doing? It looks weird, can
-         * we remove it?
-         */
-        int highestUnstable = -1;
-        Iterator<Entry<Integer, Set<CheckpointMessage>>> it = unstableCheckpoints.entrySet().iterator();
+        if (sources.size() >= (2 * f + 1)) {
+            lowWaterMark = sequence;
+            unstableCheckpoints.headMap(sequence + 1).clear();
+            checkpointTrees.headMap(sequence).clear();
+
+            if (journal != null) {
+                journal.logCheckpoint(sequence, msg.getViewNr(), msg.getStateDigest());
+            }
+        }
+    }
+
+    /**
+     * drops the replica's checkpoint messages beyond the window that are
+     * older than the given sequence
+     *
+     * @return false if the replica already sent a newer (or the same)
+     *         checkpoint beyond the window
+     */
+    private boolean replaceAhead(int source, int sequence) {
+        Iterator<Entry<Integer, Map<ByteBuffer, Map<Integer, CheckpointMessage>>>> it = unstableCheckpoints.tailMap(lowWaterMark + window + 1).entrySet().iterator();
         while (it.hasNext()) {
-            Entry<Integer, Set<CheckpointMessage>> e = it.next();
-            if (e.getValue().size() >= (2 * f + 1)) {
-                /* check if this is the youngest checkpoint in there */
-                if (highestUnstable == -1 || highestUnstable <= e.getKey()) {
-                    lowWaterMark = e.getKey();
-                    it.remove();
-                } else {
-                    logger.warn("highest unstable {} < new checkpoint {}", highestUnstable, e.getKey());
+            Entry<Integer, Map<ByteBuffer, Map<Integer, CheckpointMessage>>> e = it.next();
+            Iterator<Map<Integer, CheckpointMessage>> byDigest = e.getValue().values().iterator();
+            while (byDigest.hasNext()) {
+                Map<Integer, CheckpointMessage> sources = byDigest.next();
+                if (!sources.containsKey(source)) {
+                    continue;
+                }
+                if (e.getKey() >= sequence) {
+                    return false;
                 }
-            } else {
-                highestUnstable = e.getKey();
+                sources.remove(source);
+                if (sources.isEmpty()) {
+                    byDigest.remove();
+                }
+            }
+            if (e.getValue().isEmpty()) {
+                it.remove();
             }
         }
+        return true;
+    }
+
+    public void addTransaction(Transaction t, List<byte[]> results, int viewNr) {
+        addResults(t.getSequenceNr(), results, viewNr, true);
     }
 
-    public synchronized void addTransaction(Transaction t, byte[] result, int viewNr) {
-        this.collResults.put(t.getSequenceNr(), DigestHelper.createResultHash(t.getSequenceNr(), result));
+    /**
+     * @param journaled log the result hash (not done for operations that
+     *        were replayed from the journal)
+     */
+    public synchronized void addResults(int sequence, List<byte[]> results, int viewNr, boolean journaled) {
+        if (sequence < 0) {
+            logger.debug("server {}: not checkpointing negative sequence {}", serverId, sequence);
+            return;
+        }
+        if (sequence <= transferredUpTo) {
+            return;
+        }
 
-        if (t.getSequenceNr() % PERIOD_TIME == 0) {
-            sendCheckpointMessage(viewNr, t.getSequenceNr());
+        int checkpoint = getCheckpointSequence(sequence);
+        MerkleTree tree = openPeriods.get(checkpoint);
+        if (tree == null) {
+            tree = new MerkleTree(PERIOD_TIME, digests);
+            openPeriods.put(checkpoint, tree);
+        }
+        byte[] resultHash = digests.createResultHash(sequence, results);
+        if (journaled && journal != null) {
+            journal.logExecuted(sequence, viewNr, resultHash);
         }
+        tree.setLeaf(PERIOD_TIME - 1 - (checkpoint - sequence), resultHash);
+
+        /* the first period only consists of sequence 0 */
+        if (tree.getLeafCount() == Math.min(PERIOD_TIME, checkpoint + 1)) {
+            openPeriods.remove(checkpoint);
+            sendCheckpointMessage(viewNr, checkpoint, tree);
+        }
+    }
+
+    /**
+     * @return the checkpoint covering the sequence (the next multiple of
+     *         PERIOD_TIME)
+     */
+    static int getCheckpointSequence(int sequence) {
+        return ((sequence + PERIOD_TIME - 1) / PERIOD_TIME) * PERIOD_TIME;
     }
 
-    private void sendCheckpointMessage(int viewNr, int sequence) {
-        CheckpointMessage msg = new CheckpointMessage(serverId, -10, viewNr, sequence, collResults);
-        collResults = new TreeMap<>();
+    /**
+     * @return the result tree of one of our checkpoints that has not been
+     *         superseded by a newer stable checkpoint, null otherwise
+     */
+    public synchronized MerkleTree getCheckpointTree(int sequence) {
+        return checkpointTrees.get(sequence);
+    }
+
+    private void sendCheckpointMessage(int viewNr, int sequence, MerkleTree tree) {
+        CheckpointMessage msg = new CheckpointMessage(serverId, -10, viewNr, sequence, tree.getRoot());
+        lastOwnCheckpoint = Math.max(lastOwnCheckpoint, sequence);
+        if (sequence >= lowWaterMark) {
+            checkpointTrees.put(sequence, tree);
+        }
 
         addCheckpointMessageToLog(msg);
 
@@ -0,0 +1,138 @@
+package at.archistar.bft.server;
+
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.archistar.bft.helper.MpscRingBuffer;
+import at.archistar.bft.messages.AbstractCommand;
+
+/**
+ * single-writer front-end of a BFT engine: all incoming messages are queued
+ * within a lock-free ring buffer and processed by one dedicated thread. This
+ * removes all lock hand-offs between transport threads, the engine's locks
+ * are never contended.
+ *
+ * Exceptions thrown while processing a message are logged, the loop goes
+ * on. An error stops the loop: queued messages are dropped and enqueue
+ * throws from then on, so producers do not wait for a dead thread.
+ *
+ * @author andy
+ */
+public class EventLoop implements Runnable {
+
+    private final Logger logger = LoggerFactory.getLogger(EventLoop.class);
+
+    /**
+     * how many messages are processed before the loop checks for shutdown
+     */
+    private static final int DRAIN_BATCH = 256;
+
+    private final BftEngine engine;
+
+    private final MpscRingBuffer<AbstractCommand> queue;
+
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    /**
+     * set by the loop thread before it parks
+     */
+    private volatile boolean sleeping = false;
+
+    /**
+     * the error that stopped the loop, null while it works
+     */
+    private volatile Error failure = null;
+
+    public EventLoop(BftEngine engine, int queueSize, String name) {
+        this.engine = engine;
+        this.queue = new MpscRingBuffer<>(queueSize);
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        this.thread.start();
+    }
+
+    /**
+     * queue a message, blocks (spinning) while the queue is full
+     *
+     * @throws IllegalStateException if the loop failed
+     */
+    public void enqueue(AbstractCommand cmd) {
+        checkFailure();
+        if (!running) {
+            logger.warn("event loop was stopped, dropping message {}", cmd);
+            return;
+        }
+
+        while (!queue.offer(cmd)) {
+            checkFailure();
+            /* back-pressure: the loop thread is behind */
+            LockSupport.unpark(thread);
+            Thread.yield();
+        }
+
+        if (sleeping) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void checkFailure() {
+        Error error = failure;
+        if (error != null) {
+            throw new IllegalStateException("event loop failed", error);
+        }
+    }
+
+    /**
+     * stops the loop after all queued messages were processed
+     */
+    public void shutdown() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(thread);
+        thread.join();
+    }
+
+    private int drain() {
+        int count = 0;
+        AbstractCommand cmd;
+
+        while (count < DRAIN_BATCH && (cmd = queue.poll()) != null) {
+            try {
+                engine.process(cmd);
+            } catch (RuntimeException e) {
+                logger.error("error while processing " + cmd, e);
+            } catch (Error e) {
+                logger.error("event loop failed while processing " + cmd + ", dropping all further messages", e);
+                failure = e;
+                running = false;
+                throw e;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public void run() {
+        while (running || !queue.isEmpty()) {
+            if (drain() == 0) {
+                if (!queue.isEmpty()) {
+                    /* a producer claimed a slot but did not publish yet */
+                    Thread.yield();
+                } else if (running) {
+                    sleeping = true;
+                    if (queue.isEmpty() && running) {
+                        LockSupport.park(this);
+                    }
+                    sleeping = false;
+                }
+            }
+        }
+    }
+}
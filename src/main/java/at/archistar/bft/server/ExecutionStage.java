@@ -0,0 +1,839 @@
+package at.archistar.bft.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.archistar.bft.helper.DigestHelper;
+import at.archistar.bft.messages.ClientCommand;
+import at.archistar.bft.messages.ClientFragmentCommand;
+import at.archistar.bft.messages.OperationId;
+import at.archistar.bft.messages.TransactionResult;
+
+/**
+ * executes commited transactions. Without worker threads (and synchronous
+ * callbacks) every operation is executed inline by the thread that commited
+ * the transaction.
+ *
+ * Otherwise operations upon the same fragment are started in the order they
+ * were handed in (which is sequence order as a transaction cannot commit
+ * before its prior sequences did), each one after its predecessor finished.
+ * Operations upon different fragments are executed in parallel. Clients are
+ * answered after each operation.
+ *
+ * The checkpoint manager is notified about finished transactions in the
+ * order they were handed in, even if their executions finish out of order.
+ * Transactions upon different fragments might be handed in out of sequence
+ * order, so the last executed sequence only advances over a gap-free prefix
+ * of the reported sequences.
+ *
+ * After a restart the journal's commited operations are replayed through
+ * the same stage, clients are not answered for those.
+ *
+ * With a reply cache (digest replies) only the operation's designated
+ * replica answers with the full result, all others answer with its digest.
+ * Full results are cached so they can be resent upon a client's request.
+ *
+ * Read-only commands are executed inline (if the server implements
+ * ReadOnlyCallbacks), without waiting for ordered operations. Tentative
+ * (and speculative) executions might still be rolled back, so reads are
+ * ordered while any of them did not commit (or if one started during the
+ * read).
+ *
+ * Tentatively executed transactions (prepared but not yet commited) answer
+ * their clients with tentative results. They are only reported to the
+ * checkpoint manager once they commit, or rolled back (in reverse order)
+ * through TentativeExecutionCallbacks if a view change aborts them.
+ * Speculative executions (upon the pre-prepare) are tentative executions
+ * whose results additionally carry the history digest.
+ *
+ * If the server keeps snapshots (RecoveryCallbacks) executions after the
+ * next checkpoint are held back until all sequences up to it were executed
+ * and the snapshot was taken, so every snapshot reflects exactly its
+ * checkpoint's state.
+ *
+ * @author andy
+ */
+public class ExecutionStage {
+
+    private final Logger logger = LoggerFactory.getLogger(ExecutionStage.class);
+
+    /**
+     * how many operations a worker executes for a single fragment before it
+     * lets other fragments have their turn
+     */
+    private static final int FAIRNESS_LIMIT = 64;
+
+    /**
+     * used for client operations without a fragment id
+     */
+    private static final String NO_FRAGMENT = "";
+
+    private final int replicaId;
+
+    private final BftEngineCallbacks callbacks;
+
+    /**
+     * null if the server executes synchronously
+     */
+    private final AsyncExecutionCallbacks asyncCallbacks;
+
+    private final CheckpointManager checkpoints;
+
+    /**
+     * null if operations are started inline
+     */
+    private final ExecutorService workers;
+
+    /**
+     * fragment id -> pending operations, only contains fragments with pending
+     * operations. Also guards all fragment queues and unfinished.
+     */
+    private final Map<String, FragmentQueue> queues = new HashMap<>();
+
+    /**
+     * all transactions that were not reported to the checkpoint manager yet
+     * (in hand-in order)
+     */
+    private final Queue<Execution> unfinished = new ArrayDeque<>();
+
+    /**
+     * null if every replica answers with the full result
+     */
+    private final ReplyCache replies;
+
+    private final DigestHelper digests;
+
+    /**
+     * null if read-only commands are ordered
+     */
+    private final ReadOnlyCallbacks readOnlyCallbacks;
+
+    /**
+     * null if the server does not support tentative execution
+     */
+    private final TentativeExecutionCallbacks tentativeCallbacks;
+
+    /**
+     * (sequence) -> tentative execution that did not commit yet, guarded by
+     * queues
+     */
+    private final NavigableMap<Integer, Execution> tentative = new TreeMap<>();
+
+    /**
+     * amount of started tentative executions, guarded by queues
+     */
+    private long tentativeStarts = 0;
+
+    /**
+     * the last sequence that was executed (including all prior sequences)
+     */
+    private volatile int lastExecuted = -1;
+
+    /**
+     * reported sequences after a gap behind lastExecuted, guarded by queues
+     */
+    private final NavigableSet<Integer> executedAhead = new TreeSet<>();
+
+    /**
+     * null if no snapshots are taken
+     */
+    private final RecoveryCallbacks snapshots;
+
+    /**
+     * the next checkpoint to snapshot, executions of later sequences are held
+     * back until it was snapshotted. Guarded by queues.
+     */
+    private int snapshotBarrier = 0;
+
+    /**
+     * true while the snapshot of snapshotBarrier is taken, guarded by queues
+     */
+    private boolean snapshotting = false;
+
+    /**
+     * executions after snapshotBarrier (in hand-in order), guarded by queues
+     */
+    private final List<Execution> heldBack = new ArrayList<>();
+
+    /**
+     * the last checkpoint that was snapshotted, -1 if none
+     */
+    private volatile int lastSnapshot = -1;
+
+    public ExecutionStage(int replicaId, BftEngineCallbacks callbacks, CheckpointManager checkpoints, int threads) {
+        this(replicaId, callbacks, checkpoints, threads, null, null, null);
+    }
+
+    /**
+     * @param digests hashes the digest-only replies (unused without replies)
+     * @param snapshots null if no snapshots are taken
+     */
+    ExecutionStage(int replicaId, BftEngineCallbacks callbacks, CheckpointManager checkpoints, int threads, ReplyCache replies,
+            DigestHelper digests, RecoveryCallbacks snapshots) {
+        this.replicaId = replicaId;
+        this.callbacks = callbacks;
+        this.checkpoints = checkpoints;
+        this.replies = replies;
+        this.digests = digests;
+        this.snapshots = snapshots;
+
+        if (callbacks instanceof AsyncExecutionCallbacks) {
+            this.asyncCallbacks = (AsyncExecutionCallbacks) callbacks;
+        } else {
+            this.asyncCallbacks = null;
+        }
+
+        if (callbacks instanceof ReadOnlyCallbacks) {
+            this.readOnlyCallbacks = (ReadOnlyCallbacks) callbacks;
+        } else {
+            this.readOnlyCallbacks = null;
+        }
+
+        if (callbacks instanceof TentativeExecutionCallbacks) {
+            this.tentativeCallbacks = (TentativeExecutionCallbacks) callbacks;
+        } else {
+            this.tentativeCallbacks = null;
+        }
+
+        if (threads > 0) {
+            final AtomicInteger count = new AtomicInteger(0);
+            final String prefix = "bft-execution-" + replicaId + "-";
+            this.workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, prefix + count.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        } else {
+            this.workers = null;
+        }
+    }
+
+    /**
+     * executes all operations of a just commited transaction
+     *
+     * note: expects t to be locked
+     */
+    public void execute(Transaction t, int viewNr) {
+        execute(new Execution(t.getSequenceNr(), t.getClientCommands(), viewNr, false, false, null));
+    }
+
+    /**
+     * executes the operations of a sequence that was commited before the
+     * last restart
+     */
+    public void replay(int sequence, List<ClientCommand> cmds, int viewNr) {
+        execute(new Execution(sequence, cmds, viewNr, true, false, null));
+    }
+
+    /**
+     * executes all operations of a just prepared transaction, the results
+     * are tentative until commit is called for its sequence
+     *
+     * note: expects t to be locked
+     * @throws IllegalStateException if the server cannot roll back
+     */
+    public void executeTentatively(Transaction t, int viewNr) {
+        if (tentativeCallbacks == null) {
+            throw new IllegalStateException("tentative execution needs TentativeExecutionCallbacks");
+        }
+        execute(new Execution(t.getSequenceNr(), t.getClientCommands(), viewNr, false, true, null));
+    }
+
+    /**
+     * executes all operations of a just pre-prepared transaction, the
+     * results are tentative (see executeTentatively) and carry the history
+     * digest
+     *
+     * note: expects t to be locked
+     * @throws IllegalStateException if the server cannot roll back
+     */
+    public void executeSpeculatively(Transaction t, int viewNr, OperationId history) {
+        if (tentativeCallbacks == null) {
+            throw new IllegalStateException("speculative execution needs TentativeExecutionCallbacks");
+        }
+        execute(new Execution(t.getSequenceNr(), t.getClientCommands(), viewNr, false, true, history));
+    }
+
+    /**
+     * @return the client commands if the sequence was executed tentatively
+     *         and neither commited nor rolled back since, null otherwise
+     */
+    public List<ClientCommand> getTentativeCommands(int sequence) {
+        synchronized (queues) {
+            Execution execution = tentative.get(sequence);
+            return execution == null ? null : execution.cmds;
+        }
+    }
+
+    /**
+     * @return all tentatively executed sequences (ascending)
+     */
+    public List<Integer> getTentative() {
+        synchronized (queues) {
+            return new ArrayList<>(tentative.keySet());
+        }
+    }
+
+    /**
+     * the tentatively executed sequence commited, its results are reported
+     * to the checkpoint manager
+     */
+    public void commit(int sequence) {
+        Execution execution;
+        synchronized (queues) {
+            execution = tentative.remove(sequence);
+            if (execution == null) {
+                throw new IllegalStateException("sequence " + sequence + " was not executed tentatively");
+            }
+            execution.commited = true;
+        }
+        reportFinished();
+    }
+
+    /**
+     * undoes the tentative execution of the sequence (after it finished), the
+     * server rolls back its operations in reverse order. Must be called for
+     * later sequences first.
+     */
+    public void rollback(int sequence) throws InterruptedException {
+        Execution execution;
+        synchronized (queues) {
+            execution = tentative.remove(sequence);
+            if (execution == null || heldBack.remove(execution)) {
+                /* not started yet */
+                return;
+            }
+            while (!execution.isFinished()) {
+                queues.wait();
+            }
+            unfinished.remove(execution);
+        }
+
+        for (int i = execution.cmds.size() - 1; i >= 0; i--) {
+            tentativeCallbacks.rollback(execution.cmds.get(i));
+        }
+        reportFinished();
+    }
+
+    /**
+     * forgets all tentative executions up to (and including) the sequence
+     * without rolling them back, their state was replaced through state
+     * transfer
+     */
+    public void dropTentative(int upTo) {
+        synchronized (queues) {
+            Map<Integer, Execution> dropped = tentative.headMap(upTo, true);
+            unfinished.removeAll(dropped.values());
+            heldBack.removeAll(dropped.values());
+            dropped.clear();
+        }
+        reportFinished();
+    }
+
+    private void execute(Execution execution) {
+        boolean held;
+        synchronized (queues) {
+            if (execution.tentative) {
+                tentative.put(execution.sequence, execution);
+                tentativeStarts++;
+            }
+            held = snapshots != null && execution.sequence > snapshotBarrier;
+            if (held) {
+                heldBack.add(execution);
+            } else {
+                unfinished.add(execution);
+            }
+        }
+
+        if (held) {
+            /* the barrier might have been passed through state transfer */
+            reportFinished();
+        } else {
+            start(execution);
+        }
+    }
+
+    private void start(Execution execution) {
+
+        List<ClientCommand> cmds = execution.cmds;
+
+        if (cmds.isEmpty()) {
+            execution.finish();
+        } else if (workers == null && asyncCallbacks == null) {
+            for (int i = 0; i < cmds.size(); i++) {
+                byte[] result;
+                try {
+                    result = callbacks.executeClientCommand(cmds.get(i));
+                } catch (RuntimeException e) {
+                    execution.failed(i, e);
+                    continue;
+                }
+                execution.completed(i, result);
+            }
+        } else {
+            for (int i = 0; i < cmds.size(); i++) {
+                submit(new Operation(execution, i));
+            }
+        }
+    }
+
+    /**
+     * executes a read-only command without ordering and answers the client
+     *
+     * @return false if the server does not support unordered reads, the
+     *         read might see uncommited state or failed (the command must be
+     *         ordered then)
+     */
+    public boolean executeReadOnly(ClientCommand cmd) {
+        if (readOnlyCallbacks == null) {
+            return false;
+        }
+
+        long starts;
+        synchronized (queues) {
+            if (!tentative.isEmpty()) {
+                return false;
+            }
+            starts = tentativeStarts;
+        }
+
+        int executed = lastExecuted;
+        byte[] result;
+        try {
+            result = readOnlyCallbacks.executeReadOnly(cmd);
+        } catch (RuntimeException e) {
+            logger.error("could not execute read-only command " + cmd + ", ordering it", e);
+            return false;
+        }
+
+        synchronized (queues) {
+            if (tentativeStarts != starts) {
+                return false;
+            }
+        }
+        callbacks.answerClient(TransactionResult.readOnly(cmd, replicaId, result, executed));
+        return true;
+    }
+
+    /**
+     * @return the last sequence that was executed (including all prior
+     *         sequences), -1 if none
+     */
+    public int getLastExecuted() {
+        return this.lastExecuted;
+    }
+
+    /**
+     * @return the last checkpoint that was snapshotted, -1 if none
+     */
+    public int getLastSnapshot() {
+        return this.lastSnapshot;
+    }
+
+    /**
+     * answers a client's result request with the full (cached) result, the
+     * request is ignored if the result is not known (anymore)
+     */
+    public void resendResult(ClientCommand request) {
+        if (replies != null && replies.contains(request.getClientId(), request.getClientSequence())) {
+            callbacks.answerClient(new TransactionResult(request, replicaId, replies.get(request.getClientId(), request.getClientSequence())));
+        }
+    }
+
+    private void answer(ClientCommand cmd, byte[] result, Execution execution) {
+        TransactionResult answer;
+        if (replies == null) {
+            answer = new TransactionResult(cmd, replicaId, result);
+        } else {
+            replies.put(cmd.getClientId(), cmd.getClientSequence(), result);
+            if (TransactionResult.getDesignatedReplica(cmd.getClientId(), cmd.getClientSequence(), replies.getF()) == replicaId) {
+                answer = new TransactionResult(cmd, replicaId, result);
+            } else {
+                answer = TransactionResult.digestOf(cmd, replicaId, result, digests);
+            }
+        }
+        if (execution.history != null) {
+            answer.setSpeculation(execution.viewNr, execution.sequence, execution.history);
+        } else {
+            answer.setTentative(execution.tentative);
+        }
+        callbacks.answerClient(answer);
+    }
+
+    /**
+     * waits until all handed in operations were executed (tentative ones
+     * might not be reported yet)
+     */
+    public void awaitExecuted() throws InterruptedException {
+        synchronized (queues) {
+            while (!queues.isEmpty() || isExecuting()) {
+                queues.wait();
+            }
+        }
+    }
+
+    /**
+     * note: expects queues to be locked
+     */
+    private boolean isExecuting() {
+        for (Execution execution : unfinished) {
+            if (!execution.isFinished()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * waits until all handed in operations were executed and stops the
+     * workers
+     */
+    public void shutdown() throws InterruptedException {
+        awaitExecuted();
+
+        if (workers != null) {
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static String getFragmentId(ClientCommand cmd) {
+        if (cmd instanceof ClientFragmentCommand) {
+            return ((ClientFragmentCommand) cmd).getFragmentId();
+        } else {
+            return NO_FRAGMENT;
+        }
+    }
+
+    private void submit(Operation op) {
+        String fragmentId = getFragmentId(op.getCommand());
+        FragmentQueue start = null;
+
+        synchronized (queues) {
+            FragmentQueue queue = queues.get(fragmentId);
+            if (queue == null) {
+                queue = new FragmentQueue(fragmentId);
+                queues.put(fragmentId, queue);
+                start = queue;
+            }
+            queue.operations.add(op);
+        }
+
+        if (start != null) {
+            dispatch(start);
+        }
+    }
+
+    private void dispatch(FragmentQueue queue) {
+        if (workers != null) {
+            workers.execute(queue);
+        } else {
+            queue.run();
+        }
+    }
+
+    /**
+     * reports all finished transactions at the head of unfinished to the
+     * checkpoint manager
+     */
+    private void reportFinished() {
+        int snapshot = -1;
+        List<Execution> released = Collections.emptyList();
+
+        synchronized (queues) {
+            Execution head;
+            while ((head = unfinished.peek()) != null && head.isFinished() && head.commited) {
+                unfinished.poll();
+                executedAhead.add(head.sequence);
+
+                /* check if we should send a CHECKPOINT message */
+                checkpoints.addResults(head.sequence, Arrays.asList(head.results), head.viewNr, !head.replayed);
+            }
+            advanceLastExecuted();
+
+            if (snapshots != null && !snapshotting && lastExecuted >= snapshotBarrier) {
+                if (lastExecuted == snapshotBarrier && lastExecuted > checkpoints.getTransferredUpTo()) {
+                    snapshotting = true;
+                    snapshot = snapshotBarrier;
+                } else {
+                    /* the state was installed up to a later checkpoint */
+                    released = passSnapshotBarrier();
+                }
+            }
+
+            /* wakes up rollbacks (waiting for a single execution), too */
+            queues.notifyAll();
+        }
+
+        if (snapshot >= 0) {
+            snapshots.takeSnapshot(snapshot);
+            lastSnapshot = snapshot;
+            synchronized (queues) {
+                snapshotting = false;
+                released = passSnapshotBarrier();
+            }
+        }
+
+        for (Execution execution : released) {
+            start(execution);
+        }
+    }
+
+    /**
+     * moves the barrier to the checkpoint after lastExecuted
+     *
+     * note: expects queues to be locked
+     *
+     * @return the held back executions that can be started now
+     */
+    private List<Execution> passSnapshotBarrier() {
+        snapshotBarrier = CheckpointManager.getCheckpointSequence(lastExecuted + 1);
+
+        List<Execution> released = new ArrayList<>();
+        Iterator<Execution> it = heldBack.iterator();
+        while (it.hasNext()) {
+            Execution execution = it.next();
+            if (execution.sequence <= lastExecuted) {
+                /* installed through state transfer */
+                it.remove();
+            } else if (execution.sequence <= snapshotBarrier) {
+                it.remove();
+                unfinished.add(execution);
+                released.add(execution);
+            }
+        }
+        return released;
+    }
+
+    /**
+     * moves lastExecuted over all reported sequences that directly follow
+     * it, sequences installed through state transfer count as executed
+     *
+     * note: expects queues to be locked
+     */
+    private void advanceLastExecuted() {
+        int executed = Math.max(lastExecuted, checkpoints.getTransferredUpTo());
+        executedAhead.headSet(executed, true).clear();
+        while (!executedAhead.isEmpty() && executedAhead.first() == executed + 1) {
+            executed = executedAhead.pollFirst();
+        }
+        lastExecuted = executed;
+    }
+
+    /**
+     * all operations of a single transaction
+     */
+    private class Execution {
+
+        private final int sequence;
+
+        private final List<ClientCommand> cmds;
+
+        private final byte[][] results;
+
+        private final AtomicInteger remaining;
+
+        private final int viewNr;
+
+        /**
+         * replayed from the journal after a restart
+         */
+        private final boolean replayed;
+
+        /**
+         * executed before the transaction commited
+         */
+        private final boolean tentative;
+
+        /**
+         * false while a tentative execution did not commit, guarded by
+         * queues
+         */
+        private boolean commited;
+
+        /**
+         * the history digest of a speculative execution, null otherwise
+         */
+        private final OperationId history;
+
+        private volatile boolean finished = false;
+
+        Execution(int sequence, List<ClientCommand> cmds, int viewNr, boolean replayed, boolean tentative, OperationId history) {
+            this.sequence = sequence;
+            this.cmds = cmds;
+            this.results = new byte[cmds.size()][];
+            this.remaining = new AtomicInteger(cmds.size());
+            this.viewNr = viewNr;
+            this.replayed = replayed;
+            this.tentative = tentative;
+            this.commited = !tentative;
+            this.history = history;
+        }
+
+        void completed(int index, byte[] result) {
+            results[index] = result;
+            if (!replayed) {
+                answer(cmds.get(index), result, this);
+            }
+            done();
+        }
+
+        void failed(int index, Throwable cause) {
+            logger.error("could not execute client command " + cmds.get(index), cause);
+            results[index] = new byte[0];
+            done();
+        }
+
+        private void done() {
+            if (remaining.decrementAndGet() == 0) {
+                finish();
+            }
+        }
+
+        void finish() {
+            this.finished = true;
+            reportFinished();
+        }
+
+        boolean isFinished() {
+            return this.finished;
+        }
+    }
+
+    /**
+     * a single operation of a transaction
+     */
+    private class Operation implements AsyncExecutionCallbacks.ExecutionListener {
+
+        private static final int STARTING = 0;
+
+        private static final int PENDING = 1;
+
+        private static final int DONE = 2;
+
+        private final Execution execution;
+
+        private final int index;
+
+        private final AtomicInteger state = new AtomicInteger(STARTING);
+
+        private FragmentQueue queue;
+
+        Operation(Execution execution, int index) {
+            this.execution = execution;
+            this.index = index;
+        }
+
+        ClientCommand getCommand() {
+            return execution.cmds.get(index);
+        }
+
+        /**
+         * @return true if the operation already finished, false if the
+         *         queue will be resumed upon completion
+         */
+        boolean start(FragmentQueue queue) {
+            this.queue = queue;
+
+            if (asyncCallbacks != null) {
+                try {
+                    asyncCallbacks.executeClientCommand(getCommand(), this);
+                } catch (RuntimeException e) {
+                    failed(e);
+                }
+            } else {
+                byte[] result;
+                try {
+                    result = callbacks.executeClientCommand(getCommand());
+                } catch (RuntimeException e) {
+                    failed(e);
+                    return true;
+                }
+                completed(result);
+            }
+
+            return !state.compareAndSet(STARTING, PENDING);
+        }
+
+        @Override
+        public void completed(byte[] result) {
+            execution.completed(index, result);
+            resume();
+        }
+
+        @Override
+        public void failed(Throwable cause) {
+            execution.failed(index, cause);
+            resume();
+        }
+
+        private void resume() {
+            if (!state.compareAndSet(STARTING, DONE)) {
+                /* finished asynchronously, start the next operation */
+                dispatch(queue);
+            }
+        }
+    }
+
+    /**
+     * pending operations of a single fragment, at most one of them is
+     * executing at any time
+     */
+    private class FragmentQueue implements Runnable {
+
+        private final String fragmentId;
+
+        private final Queue<Operation> operations = new ArrayDeque<>();
+
+        FragmentQueue(String fragmentId) {
+            this.fragmentId = fragmentId;
+        }
+
+        @Override
+        public void run() {
+            /* only workers need to be fair */
+            for (int i = 0; workers == null || i < FAIRNESS_LIMIT; i++) {
+                Operation op;
+
+                synchronized (queues) {
+                    op = operations.poll();
+                    if (op == null) {
+                        queues.remove(fragmentId);
+                        queues.notifyAll();
+                        return;
+                    }
+                }
+
+                if (!op.start(this)) {
+                    /* continues as soon as the operation completes */
+                    return;
+                }
+            }
+
+            /* give other fragments a chance */
+            dispatch(this);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package at.archistar.bft.server;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * keeps track of the highest commited sequence per fragment. Operations upon
+ * the same fragment are chained through their prior sequence (and commit in
+ * that order), so a prior sequence has commited iff the fragment's watermark
+ * reached it.
+ *
+ * @author andy
+ */
+public class FragmentWatermarks {
+
+    /**
+     * (fragment id) -> highest commited sequence
+     */
+    private final ConcurrentMap<String, Integer> commited = new ConcurrentHashMap<>();
+
+    /**
+     * all sequences up to this one count as commited (after state transfer)
+     */
+    private volatile int floor = -1;
+
+    /**
+     * @param fragmentId the fragment
+     * @param sequence a sequence upon this fragment, negative sequences are
+     *        used for "no prior sequence"
+     * @return true if the sequence was commited
+     */
+    public boolean isCommited(String fragmentId, int sequence) {
+        if (sequence < 0 || sequence <= floor) {
+            return true;
+        }
+
+        Integer watermark = commited.get(fragmentId);
+        return watermark != null && watermark >= sequence;
+    }
+
+    /**
+     * marks all sequences up to (and including) the checkpoint as commited
+     */
+    public void setFloor(int checkpoint) {
+        if (checkpoint > floor) {
+            floor = checkpoint;
+        }
+    }
+
+    /**
+     * @return (fragment id) -> highest commited sequence
+     */
+    public Map<String, Integer> getCommited() {
+        return Collections.unmodifiableMap(this.commited);
+    }
+
+    public void newCommited(String fragmentId, int sequence) {
+        Integer current = commited.putIfAbsent(fragmentId, sequence);
+        while (current != null && current < sequence) {
+            if (commited.replace(fragmentId, current, sequence)) {
+                return;
+            }
+            current = commited.get(fragmentId);
+        }
+    }
+}
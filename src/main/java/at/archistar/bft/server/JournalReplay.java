@@ -0,0 +1,194 @@
+package at.archistar.bft.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.archistar.bft.exceptions.InvalidMessageException;
+import at.archistar.bft.journal.Journal;
+import at.archistar.bft.journal.RecordType;
+import at.archistar.bft.messages.AbstractCommand;
+import at.archistar.bft.messages.ClientCommand;
+import at.archistar.bft.messages.ClientFragmentCommand;
+import at.archistar.bft.messages.IntraReplicaCommand;
+import at.archistar.bft.messages.MessageCodec;
+import at.archistar.bft.messages.MessageType;
+
+/**
+ * reads a replica's journal after a restart in a single pass.
+ *
+ * Commited operations after the restored snapshot are handed to the
+ * execution stage in journal order: a sequence's record is appended before
+ * any later sequence upon the same fragment can commit, so this keeps the
+ * original per-fragment order. Everything else (view, highest sequence,
+ * stable checkpoint, commited fragments and this replica's own votes for
+ * sequences that did not commit yet) is collected for the engine.
+ *
+ * @author andy
+ */
+class JournalReplay implements Journal.RecordHandler {
+
+    private final Logger logger = LoggerFactory.getLogger(JournalReplay.class);
+
+    private final int replicaId;
+
+    /**
+     * operations of sequences after this one are executed
+     */
+    private final int snapshot;
+
+    /**
+     * null if operations are not re-executed
+     */
+    private final ExecutionStage executor;
+
+    private int records = 0;
+
+    private int replayed = 0;
+
+    private int viewNr = -1;
+
+    private int lastSequence = -1;
+
+    private int stableCheckpoint = -1;
+
+    /**
+     * fragment id -> highest commited sequence
+     */
+    private final Map<String, Integer> commitedFragments = new HashMap<>();
+
+    /**
+     * sequence -> own votes (encoded) of sequences that did not commit yet
+     */
+    private final SortedMap<Integer, List<ByteBuffer>> votes = new TreeMap<>();
+
+    JournalReplay(int replicaId, int snapshot, ExecutionStage executor) {
+        this.replicaId = replicaId;
+        this.snapshot = snapshot;
+        this.executor = executor;
+    }
+
+    @Override
+    public void record(RecordType type, int sequence, int recordViewNr, ByteBuffer payload) {
+        records++;
+        viewNr = Math.max(viewNr, recordViewNr);
+
+        switch (type) {
+            case MESSAGE:
+                lastSequence = Math.max(lastSequence, sequence);
+                List<ByteBuffer> sent = votes.get(sequence);
+                if (sent == null) {
+                    sent = new ArrayList<>(2);
+                    votes.put(sequence, sent);
+                }
+                sent.add(payload);
+                break;
+            case COMMITED:
+                lastSequence = Math.max(lastSequence, sequence);
+                votes.remove(sequence);
+                replayCommited(sequence, recordViewNr, payload);
+                break;
+            case CHECKPOINT:
+                stableCheckpoint = Math.max(stableCheckpoint, sequence);
+                break;
+            default:
+                /* result hashes are recomputed by the execution */
+                break;
+        }
+    }
+
+    private void replayCommited(int sequence, int recordViewNr, ByteBuffer payload) {
+        if (sequence <= snapshot) {
+            return;
+        }
+
+        List<ClientCommand> cmds;
+        try {
+            cmds = Journal.decodeCommited(payload);
+        } catch (InvalidMessageException e) {
+            logger.error("server " + replicaId + ": cannot replay sequence " + sequence, e);
+            return;
+        }
+
+        for (ClientCommand cmd : cmds) {
+            if (cmd instanceof ClientFragmentCommand) {
+                String fragmentId = ((ClientFragmentCommand) cmd).getFragmentId();
+                Integer known = commitedFragments.get(fragmentId);
+                if (known == null || known < sequence) {
+                    commitedFragments.put(fragmentId, sequence);
+                }
+            }
+        }
+
+        if (executor != null) {
+            executor.replay(sequence, cmds, recordViewNr);
+            replayed++;
+        }
+    }
+
+    /**
+     * @return true if the journal did not contain any records
+     */
+    boolean isEmpty() {
+        return this.records == 0;
+    }
+
+    /**
+     * @return the amount of re-executed sequences
+     */
+    int getReplayed() {
+        return this.replayed;
+    }
+
+    int getViewNr() {
+        return this.viewNr;
+    }
+
+    /**
+     * @return the highest sequence this replica voted for
+     */
+    int getLastSequence() {
+        return this.lastSequence;
+    }
+
+    int getStableCheckpoint() {
+        return this.stableCheckpoint;
+    }
+
+    Map<String, Integer> getCommitedFragments() {
+        return this.commitedFragments;
+    }
+
+    /**
+     * @return this replica's prepares and commits of the last view for
+     *         sequences after the stable checkpoint that did not commit. The
+     *         primary's pre-prepares are not restored (the client operations
+     *         are not journaled before commit), only its sequence counter.
+     */
+    List<IntraReplicaCommand> getVotes(int stable) {
+        List<IntraReplicaCommand> result = new ArrayList<>();
+        for (List<ByteBuffer> sent : votes.tailMap(stable + 1).values()) {
+            for (ByteBuffer encoded : sent) {
+                AbstractCommand cmd;
+                try {
+                    cmd = MessageCodec.decode(encoded.duplicate());
+                } catch (InvalidMessageException e) {
+                    logger.warn("server {}: skipping undecodable journal message", replicaId);
+                    continue;
+                }
+                MessageType type = cmd.getType();
+                if ((type == MessageType.PREPARE || type == MessageType.COMMIT) && ((IntraReplicaCommand) cmd).getViewNr() == viewNr) {
+                    result.add((IntraReplicaCommand) cmd);
+                }
+            }
+        }
+        return result;
+    }
+}
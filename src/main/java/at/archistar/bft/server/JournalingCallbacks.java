@@ -0,0 +1,69 @@
+package at.archistar.bft.server;
+
+import at.archistar.bft.journal.Journal;
+import at.archistar.bft.messages.AbstractCommand;
+import at.archistar.bft.messages.CheckpointMessage;
+import at.archistar.bft.messages.ClientCommand;
+import at.archistar.bft.messages.IntraReplicaCommand;
+import at.archistar.bft.messages.MessageType;
+import at.archistar.bft.messages.TransactionResult;
+
+/**
+ * logs every pre-prepare, prepare and commit this replica sends and holds
+ * back all replica messages until the journal flushed them, so a restarted
+ * replica never contradicts its own (sent) votes. Everything else is
+ * forwarded to the server's callbacks.
+ *
+ * @author andy
+ */
+class JournalingCallbacks implements BftEngineCallbacks {
+
+    private final BftEngineCallbacks callbacks;
+
+    private final Journal journal;
+
+    JournalingCallbacks(BftEngineCallbacks callbacks, Journal journal) {
+        this.callbacks = callbacks;
+        this.journal = journal;
+    }
+
+    @Override
+    public void invalidMessageReceived(AbstractCommand msg) {
+        callbacks.invalidMessageReceived(msg);
+    }
+
+    @Override
+    public void replicasMightBeMalicous() {
+        callbacks.replicasMightBeMalicous();
+    }
+
+    @Override
+    public void sendToReplicas(final IntraReplicaCommand cmd) {
+        MessageType type = cmd.getType();
+        if (type == MessageType.PREPREPARE || type == MessageType.PREPARE || type == MessageType.COMMIT) {
+            journal.logMessage(cmd);
+        }
+
+        journal.afterSync(new Runnable() {
+            @Override
+            public void run() {
+                callbacks.sendToReplicas(cmd);
+            }
+        });
+    }
+
+    @Override
+    public byte[] executeClientCommand(ClientCommand cmd) {
+        return callbacks.executeClientCommand(cmd);
+    }
+
+    @Override
+    public void invalidCheckpointMessage(CheckpointMessage msg) {
+        callbacks.invalidCheckpointMessage(msg);
+    }
+
+    @Override
+    public void answerClient(TransactionResult transactionResult) {
+        callbacks.answerClient(transactionResult);
+    }
+}
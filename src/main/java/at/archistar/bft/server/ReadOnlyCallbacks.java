@@ -0,0 +1,28 @@
+package at.archistar.bft.server;
+
+import at.archistar.bft.messages.ClientCommand;
+
+/**
+ * servers that can execute read-only commands without ordering additionally
+ * implement this interface. Read-only commands are then executed as soon as
+ * they are received, against the server's current state, and answered with
+ * the replica's last executed sequence. The client accepts the result once
+ * 2f+1 replicas agree upon it and falls back to the ordered path otherwise.
+ *
+ * Without this interface read-only commands are ordered like every other
+ * command.
+ *
+ * @author andy
+ */
+public interface ReadOnlyCallbacks {
+
+    /**
+     * executes a read-only command, must not modify the state. Called by the
+     * thread that processes the client command, possibly while ordered
+     * operations are executed by other threads.
+     *
+     * @param cmd the read-only client command
+     * @return the result of the client command
+     */
+    byte[] executeReadOnly(ClientCommand cmd);
+}
@@ -0,0 +1,36 @@
+package at.archistar.bft.server;
+
+/**
+ * servers that keep local snapshots additionally implement this interface.
+ * A restarted replica (with a journal) then restores its newest snapshot
+ * and only re-executes the operations that were commited after it, so the
+ * restart time depends upon the journal's tail and not upon the history.
+ *
+ * A snapshot is requested whenever the replica executed all operations up
+ * to a checkpoint. Operations after the checkpoint are held back until the
+ * snapshot was taken, so it contains exactly the checkpoint's state and no
+ * operation is executed twice after a restart. The journal is truncated up
+ * to the last stable checkpoint that was snapshotted.
+ *
+ * @author andy
+ */
+public interface RecoveryCallbacks {
+
+    /**
+     * restores the newest snapshot that was taken, called once while the
+     * engine is created
+     *
+     * @return the snapshot's checkpoint, -1 if there's no snapshot (the
+     *         server starts with an empty state)
+     */
+    int restoreSnapshot();
+
+    /**
+     * all operations up to the checkpoint (and none after it) were executed:
+     * the server should persist a snapshot of its state before this
+     * returns. Later operations wait meanwhile.
+     *
+     * @param checkpoint a checkpoint, it might not be stable yet
+     */
+    void takeSnapshot(int checkpoint);
+}
@@ -0,0 +1,55 @@
+package at.archistar.bft.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * remembers the full results of the most recently executed operations, so
+ * they can be resent if a client did not get a usable full result (digest
+ * replies). The oldest results are dropped once the cache is full.
+ *
+ * @author andy
+ */
+class ReplyCache {
+
+    private final int f;
+
+    private final Map<Long, byte[]> results;
+
+    ReplyCache(int f, final int capacity) {
+        this.f = f;
+        this.results = new LinkedHashMap<Long, byte[]>() {
+
+            private static final long serialVersionUID = 2413309174212744930L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    private static Long key(int clientId, int clientSequence) {
+        return ((long) clientId << 32) | (clientSequence & 0xffffffffL);
+    }
+
+    int getF() {
+        return this.f;
+    }
+
+    synchronized void put(int clientId, int clientSequence, byte[] result) {
+        results.put(key(clientId, clientSequence), result);
+    }
+
+    /**
+     * @return true if the operation's result is cached (the result itself
+     *         might be null)
+     */
+    synchronized boolean contains(int clientId, int clientSequence) {
+        return results.containsKey(key(clientId, clientSequence));
+    }
+
+    synchronized byte[] get(int clientId, int clientSequence) {
+        return results.get(key(clientId, clientSequence));
+    }
+}
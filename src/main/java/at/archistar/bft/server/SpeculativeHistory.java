@@ -0,0 +1,114 @@
+package at.archistar.bft.server;
+
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import at.archistar.bft.messages.OperationId;
+
+/**
+ * the speculative mode's history (shared by all views): the history digest
+ * after every walked sequence and how far the sequences were walked. The
+ * history restarts after every checkpoint, so replicas that installed a
+ * checkpoint through state transfer continue with the same digests.
+ *
+ * Only one thread walks the sequences at a time, a walk requested in the
+ * meantime is done by that thread (see TransactionManager.speculate).
+ *
+ * @author andy
+ */
+class SpeculativeHistory {
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final AtomicBoolean requested = new AtomicBoolean(false);
+
+    /**
+     * (sequence) -> history digest after the sequence's batch, missing if
+     * not known (the sequence was executed without its batch being known)
+     */
+    private final ConcurrentNavigableMap<Integer, OperationId> histories = new ConcurrentSkipListMap<>();
+
+    /**
+     * every sequence up to this one was either executed or handed to the
+     * execution stage, guarded by lock
+     */
+    private int walkedUpTo = -1;
+
+    /**
+     * @return true if the caller has to walk (and call endWalk afterwards),
+     *         false if no walk is requested or another thread is walking
+     */
+    boolean tryStartWalk() {
+        if (!requested.get() || !lock.tryLock()) {
+            return false;
+        }
+        requested.set(false);
+        return true;
+    }
+
+    void requestWalk() {
+        requested.set(true);
+    }
+
+    void endWalk() {
+        lock.unlock();
+    }
+
+    /**
+     * blocks concurrent walks (used while speculative executions are rolled
+     * back)
+     */
+    void lock() {
+        lock.lock();
+    }
+
+    void unlock() {
+        lock.unlock();
+    }
+
+    /**
+     * note: expects lock to be held
+     */
+    int getWalkedUpTo() {
+        return this.walkedUpTo;
+    }
+
+    /**
+     * note: expects lock to be held
+     *
+     * @param history null if the sequence's history is not known
+     */
+    void walked(int sequence, OperationId history) {
+        if (history != null) {
+            histories.put(sequence, history);
+        }
+        this.walkedUpTo = sequence;
+    }
+
+    /**
+     * @return the history digest after the sequence, null if unknown
+     */
+    OperationId get(int sequence) {
+        return histories.get(sequence);
+    }
+
+    /**
+     * forgets everything from the sequence on, those sequences are walked
+     * again
+     *
+     * note: expects lock to be held
+     */
+    void truncate(int sequence) {
+        histories.tailMap(sequence, true).clear();
+        walkedUpTo = Math.min(walkedUpTo, sequence - 1);
+    }
+
+    /**
+     * forgets the history up to (and including) a stable checkpoint
+     */
+    void collectGarbage(int stableSequence) {
+        histories.headMap(stableSequence, true).clear();
+    }
+}
@@ -0,0 +1,395 @@
+package at.archistar.bft.server;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.archistar.bft.helper.DigestHelper;
+import at.archistar.bft.helper.MerkleTree;
+import at.archistar.bft.messages.IntraReplicaCommand;
+import at.archistar.bft.messages.MacAuthenticator;
+import at.archistar.bft.messages.StateChunkMessage;
+import at.archistar.bft.messages.StateManifestMessage;
+import at.archistar.bft.messages.StateRequestMessage;
+
+/**
+ * transfers the server's snapshot of a stable checkpoint to replicas that
+ * fell behind it.
+ *
+ * A lagging replica first asks all replicas for their manifest of the
+ * checkpoint's snapshot (its size and the root of a hash tree over all
+ * chunks). The manifest is accepted as soon as f+1 replicas agree upon it,
+ * so at least one correct replica vouches for it. Afterwards chunks are
+ * requested from all replicas that sent the accepted manifest (round-robin,
+ * with a bounded amount of outstanding requests). Every chunk carries its
+ * sibling hashes and is verified against the manifest's root before it is
+ * handed to the server, replicas sending invalid chunks are not asked again.
+ * The checkpoint's own digest only covers the results of its last period,
+ * so it is not used to verify the snapshot, the manifest's f+1 agreement is.
+ *
+ * Serving replicas build the hash tree of a checkpoint's snapshot upon the
+ * first request, only the chunk hashes are kept.
+ *
+ * @author andy
+ */
+public class StateTransfer {
+
+    private final Logger logger = LoggerFactory.getLogger(StateTransfer.class);
+
+    /**
+     * outstanding chunk requests are sent to another replica after this time
+     * (in milliseconds)
+     */
+    private static final long RETRANSMIT_TIMEOUT = 1000;
+
+    private final BftEngine engine;
+
+    private final int replicaId;
+
+    private final int f;
+
+    private final BftEngineCallbacks callbacks;
+
+    private final StateTransferCallbacks server;
+
+    /**
+     * null if messages are not authenticated
+     */
+    private final MacAuthenticator authenticator;
+
+    private final DigestHelper digests;
+
+    private final int chunkSize;
+
+    private final int window;
+
+    /* serving side: hash tree of the last requested snapshot */
+
+    private int servedCheckpoint = -1;
+
+    private long servedSize = -1;
+
+    private MerkleTree servedTree = null;
+
+    /* fetching side */
+
+    /**
+     * the checkpoint that is being fetched, -1 if idle
+     */
+    private int checkpoint = -1;
+
+    private int viewNr = 0;
+
+    /**
+     * (size/root) -> replicas that sent this manifest
+     */
+    private final Map<String, Set<Integer>> manifests = new HashMap<>();
+
+    /**
+     * accepted manifest, null until f+1 replicas agreed
+     */
+    private byte[] root = null;
+
+    private long snapshotSize = -1;
+
+    private int chunkCount = 0;
+
+    /**
+     * replicas that sent the accepted manifest (and no invalid chunk)
+     */
+    private final List<Integer> providers = new ArrayList<>();
+
+    private int nextProvider = 0;
+
+    private BitSet received = new BitSet();
+
+    /**
+     * chunk -> outstanding request
+     */
+    private final Map<Integer, Request> outstanding = new LinkedHashMap<>();
+
+    public StateTransfer(BftEngine engine, int replicaId, int f, BftEngineCallbacks callbacks,
+            StateTransferCallbacks server, MacAuthenticator authenticator, DigestHelper digests, BftEngineConfiguration config) {
+        this.engine = engine;
+        this.replicaId = replicaId;
+        this.f = f;
+        this.callbacks = callbacks;
+        this.server = server;
+        this.authenticator = authenticator;
+        this.digests = digests;
+        this.chunkSize = config.getStateChunkSize();
+        this.window = config.getStateTransferWindow();
+    }
+
+    public synchronized boolean isRunning() {
+        return this.checkpoint != -1;
+    }
+
+    /**
+     * starts fetching the snapshot of the (stable) checkpoint. A transfer of
+     * an older checkpoint is only abandoned if its manifest is not known yet.
+     */
+    public synchronized void start(int stableCheckpoint, int currentViewNr) {
+        if (stableCheckpoint <= checkpoint || (checkpoint != -1 && root != null)) {
+            return;
+        }
+
+        logger.info("server {}: fetching state of checkpoint {}", replicaId, stableCheckpoint);
+        reset();
+        this.checkpoint = stableCheckpoint;
+        this.viewNr = currentViewNr;
+        callbacks.sendToReplicas(new StateRequestMessage(replicaId, stableCheckpoint, currentViewNr, StateRequestMessage.MANIFEST));
+    }
+
+    private void reset() {
+        this.checkpoint = -1;
+        this.manifests.clear();
+        this.root = null;
+        this.snapshotSize = -1;
+        this.chunkCount = 0;
+        this.providers.clear();
+        this.nextProvider = 0;
+        this.received = new BitSet();
+        this.outstanding.clear();
+    }
+
+    /**
+     * handles a state transfer message, might install a snapshot
+     */
+    public void handle(IntraReplicaCommand cmd) {
+        if (cmd.getSourceReplicaId() == replicaId) {
+            return;
+        }
+
+        int installed = -1;
+        synchronized (this) {
+            switch (cmd.getType()) {
+                case STATE_REQUEST:
+                    serve((StateRequestMessage) cmd);
+                    break;
+                case STATE_MANIFEST:
+                    installed = handleManifest((StateManifestMessage) cmd);
+                    break;
+                case STATE_CHUNK:
+                    installed = handleChunk((StateChunkMessage) cmd);
+                    break;
+                default:
+                    callbacks.invalidMessageReceived(cmd);
+            }
+        }
+
+        if (installed != -1) {
+            engine.stateTransferred(installed);
+        }
+    }
+
+    /**
+     * sends outstanding chunk requests to other replicas if they were not
+     * answered in time
+     */
+    public synchronized void retransmit() {
+        if (root == null || providers.isEmpty()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        for (Entry<Integer, Request> e : outstanding.entrySet()) {
+            if (now - e.getValue().time >= RETRANSMIT_TIMEOUT) {
+                e.setValue(requestChunk(e.getKey()));
+            }
+        }
+    }
+
+    private void send(int replica, IntraReplicaCommand cmd) {
+        if (authenticator != null) {
+            authenticator.authenticate(cmd);
+        }
+        server.sendToReplica(replica, cmd);
+    }
+
+    private void serve(StateRequestMessage msg) {
+        int requested = msg.getSequence();
+
+        if (requested != servedCheckpoint) {
+            servedCheckpoint = requested;
+            servedSize = server.getSnapshotSize(requested);
+            servedTree = servedSize < 0 ? null : buildTree(requested, servedSize);
+        }
+
+        if (msg.getChunk() == StateRequestMessage.MANIFEST) {
+            byte[] manifestRoot = servedTree == null ? new byte[0] : servedTree.getRoot();
+            send(msg.getSourceReplicaId(), new StateManifestMessage(replicaId, requested, msg.getViewNr(), servedSize, manifestRoot));
+        } else if (servedTree != null && msg.getChunk() >= 0 && msg.getChunk() < getChunkCount(servedSize)) {
+            int chunk = msg.getChunk();
+            byte[] data = readChunk(requested, servedSize, chunk);
+            send(msg.getSourceReplicaId(), new StateChunkMessage(replicaId, requested, msg.getViewNr(), chunk, data, servedTree.getProof(chunk)));
+        } else {
+            logger.warn("server {}: cannot serve chunk {} of checkpoint {}", replicaId, msg.getChunk(), requested);
+        }
+    }
+
+    private int getChunkCount(long size) {
+        return (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    private byte[] readChunk(int snapshot, long size, int chunk) {
+        long offset = (long) chunk * chunkSize;
+        byte[] data = new byte[(int) Math.min(chunkSize, size - offset)];
+        server.readSnapshot(snapshot, offset, data);
+        return data;
+    }
+
+    /**
+     * streams through the whole snapshot, only the chunk hashes are kept
+     */
+    private MerkleTree buildTree(int snapshot, long size) {
+        int count = getChunkCount(size);
+        int capacity = 1;
+        while (capacity < count) {
+            capacity <<= 1;
+        }
+
+        MerkleTree tree = new MerkleTree(capacity, digests);
+        for (int i = 0; i < count; i++) {
+            tree.setLeaf(i, digests.createHash(readChunk(snapshot, size, i)));
+        }
+        tree.getRoot();
+        return tree;
+    }
+
+    /**
+     * @return the installed checkpoint, -1 if the transfer is not done
+     */
+    private int handleManifest(StateManifestMessage msg) {
+        if (msg.getSequence() != checkpoint || root != null) {
+            return -1;
+        }
+
+        String key = msg.getSnapshotSize() + "/" + DigestHelper.toHex(msg.getRoot());
+        Set<Integer> senders = manifests.get(key);
+        if (senders == null) {
+            senders = new HashSet<>();
+            manifests.put(key, senders);
+        }
+        senders.add(msg.getSourceReplicaId());
+
+        if (senders.size() < f + 1) {
+            return -1;
+        }
+
+        if (msg.getSnapshotSize() < 0) {
+            logger.warn("server {}: no snapshot available for checkpoint {}", replicaId, checkpoint);
+            reset();
+            return -1;
+        }
+
+        this.root = msg.getRoot().clone();
+        this.snapshotSize = msg.getSnapshotSize();
+        this.chunkCount = getChunkCount(snapshotSize);
+        this.providers.addAll(senders);
+
+        if (chunkCount == 0) {
+            return finish();
+        }
+
+        requestChunks();
+        return -1;
+    }
+
+    /**
+     * @return the installed checkpoint, -1 if the transfer is not done
+     */
+    private int handleChunk(StateChunkMessage msg) {
+        int chunk = msg.getChunk();
+        if (msg.getSequence() != checkpoint || root == null || chunk < 0 || chunk >= chunkCount || received.get(chunk)) {
+            return -1;
+        }
+
+        long offset = (long) chunk * chunkSize;
+        boolean valid = msg.getData().length == Math.min(chunkSize, snapshotSize - offset)
+                && MerkleTree.verifyProof(root, chunk, digests.createHash(msg.getData()), msg.getProof(), digests);
+
+        if (!valid) {
+            logger.warn("server {}: invalid chunk {} from replica {}", replicaId, chunk, msg.getSourceReplicaId());
+            callbacks.invalidMessageReceived(msg);
+            dropProvider(msg.getSourceReplicaId());
+            return -1;
+        }
+
+        server.writeSnapshot(checkpoint, offset, msg.getData());
+        received.set(chunk);
+        outstanding.remove(chunk);
+
+        if (received.cardinality() == chunkCount) {
+            return finish();
+        }
+
+        requestChunks();
+        return -1;
+    }
+
+    private void dropProvider(int replica) {
+        providers.remove(Integer.valueOf(replica));
+        if (providers.isEmpty()) {
+            logger.warn("server {}: no replica left to fetch checkpoint {} from", replicaId, checkpoint);
+            reset();
+            return;
+        }
+
+        /* ask the other replicas instead */
+        Iterator<Entry<Integer, Request>> it = outstanding.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry<Integer, Request> e = it.next();
+            if (e.getValue().replica == replica) {
+                e.setValue(requestChunk(e.getKey()));
+            }
+        }
+    }
+
+    private void requestChunks() {
+        for (int chunk = received.nextClearBit(0); chunk < chunkCount && outstanding.size() < window; chunk = received.nextClearBit(chunk + 1)) {
+            if (!outstanding.containsKey(chunk)) {
+                outstanding.put(chunk, requestChunk(chunk));
+            }
+        }
+    }
+
+    private Request requestChunk(int chunk) {
+        int replica = providers.get(nextProvider++ % providers.size());
+        send(replica, new StateRequestMessage(replicaId, checkpoint, viewNr, chunk));
+        return new Request(replica, System.currentTimeMillis());
+    }
+
+    private int finish() {
+        int installed = this.checkpoint;
+        logger.info("server {}: installing state of checkpoint {}", replicaId, installed);
+        server.installSnapshot(installed);
+        reset();
+        return installed;
+    }
+
+    /**
+     * an outstanding chunk request
+     */
+    private static class Request {
+
+        private final int replica;
+
+        private final long time;
+
+        Request(int replica, long time) {
+            this.replica = replica;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package at.archistar.bft.server;
+
+import at.archistar.bft.messages.IntraReplicaCommand;
+
+/**
+ * servers that support state transfer additionally implement this
+ * interface. A replica that fell behind the last stable checkpoint then
+ * fetches the server's snapshot taken at that checkpoint from the other
+ * replicas, chunk by chunk, instead of processing all missed operations.
+ *
+ * Snapshots are streamed, neither side has to hold a whole snapshot in
+ * memory. A server must keep the snapshot of (at least) its last stable
+ * checkpoint readable while it is transferred.
+ *
+ * Operations after the checkpoint might already have been executed while
+ * the snapshot is transferred. Each fragment's state within the snapshot
+ * should thus carry the sequence that last wrote it, the receiving server
+ * keeps its own fragment state if that is newer.
+ *
+ * @author andy
+ */
+public interface StateTransferCallbacks {
+
+    /**
+     * @param checkpoint a stable checkpoint
+     * @return the size of the snapshot (in bytes), -1 if there's no snapshot
+     *         for this checkpoint
+     */
+    long getSnapshotSize(int checkpoint);
+
+    /**
+     * reads a part of the snapshot
+     *
+     * @param checkpoint a stable checkpoint
+     * @param offset position within the snapshot
+     * @param chunk filled with the snapshot's content starting at offset
+     */
+    void readSnapshot(int checkpoint, long offset, byte[] chunk);
+
+    /**
+     * writes a received (and verified) part of another replica's snapshot,
+     * chunks arrive in arbitrary order
+     */
+    void writeSnapshot(int checkpoint, long offset, byte[] chunk);
+
+    /**
+     * all chunks were written, the server should switch to the snapshot.
+     * Operations up to the checkpoint will not be executed afterwards.
+     */
+    void installSnapshot(int checkpoint);
+
+    /**
+     * send a message to a single replica
+     *
+     * @param replicaId the receiving replica
+     * @param cmd the to be sent message
+     */
+    void sendToReplica(int replicaId, IntraReplicaCommand cmd);
+}
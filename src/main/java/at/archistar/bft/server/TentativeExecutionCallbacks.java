@@ -0,0 +1,26 @@
+package at.archistar.bft.server;
+
+import at.archistar.bft.messages.ClientCommand;
+
+/**
+ * servers that support tentative execution (see BftEngineConfiguration)
+ * additionally implement this interface. Transactions are then executed as
+ * soon as they are prepared, clients are answered with tentative results
+ * and accept them once 2f+1 replicas agree.
+ *
+ * In the rare case that a view change aborts a tentatively executed
+ * transaction (it was not commited and the new view ordered something else
+ * under its sequence) its operations are rolled back through this
+ * interface. Later sequences are always rolled back first.
+ *
+ * @author andy
+ */
+public interface TentativeExecutionCallbacks {
+
+    /**
+     * undoes a tentatively executed (and finished) client command
+     *
+     * @param cmd the client command to undo
+     */
+    void rollback(ClientCommand cmd);
+}
@@ -1,6 +1,12 @@
 package at.archistar.bft.server;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -8,22 +14,28 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import at.archistar.bft.exceptions.InconsistentResultsException;
+import at.archistar.bft.helper.DigestHelper;
+import at.archistar.bft.helper.VoteSet;
 import at.archistar.bft.messages.AbstractCommand;
 import at.archistar.bft.messages.ClientCommand;
 import at.archistar.bft.messages.ClientFragmentCommand;
+import at.archistar.bft.messages.OperationId;
 import at.archistar.bft.messages.CommitCommand;
 import at.archistar.bft.messages.PrepareCommand;
+import at.archistar.bft.messages.PreparedCertificate;
 import at.archistar.bft.messages.PreprepareCommand;
-import at.archistar.bft.messages.TransactionResult;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
-import java.util.Arrays;
-import java.util.Objects;
 
 /**
  * This is used to store transaction information for an operation. It contains a
  * simple state model (INCOMING -> PRECOMMITED, COMMITED, JOURNAL) that actually
  * mirrors the collection that the transaction is currently in.
  *
+ * A transaction is a single consensus instance, it might order a whole batch
+ * of client operations. Until the primary assigns a sequence number it just
+ * holds a single client operation. An empty batch is a null request (only
+ * used to fill sequence gaps after a view change).
+ *
  * TODO: investigate if there's some memory structure that would allow to store
  * all transactions within one 'tree'
  *
@@ -39,23 +51,35 @@ public class Transaction implements Comparable<Transaction> {
     private State state = State.INCOMING;
 
     /**
-     * all exchanged precommit commands, should be replicaCount
+     * replicas that sent a prepare, should become replicaCount
+     */
+    private final VoteSet preparedVotes;
+
+    /**
+     * the digest all prepares must agree upon (taken from the first prepare)
      */
-    private Set<PrepareCommand> preparedCmds = new HashSet<>();
+    private OperationId prepareDigest = null;
 
-    private Set<CommitCommand> commitedCmds = new HashSet<>();
+    /**
+     * replicas that sent a commit
+     */
+    private final VoteSet commitedVotes;
 
     /**
      * the expected error model
      */
     private int f = 1;
 
-    private final Logger logger = LoggerFactory.getLogger(Transaction.class);
+    /**
+     * shared by all transactions, debug output is always guarded so that the
+     * (hot) state checks do not allocate anything if debugging is disabled
+     */
+    private static final Logger logger = LoggerFactory.getLogger(Transaction.class);
 
     /**
-     * fragment id
+     * fragment ids of all client operations within this batch
      */
-    private String fragmentid;
+    private final Set<String> fragmentids = new HashSet<>();
 
     /**
      * my sequence number (from primary)
@@ -63,11 +87,20 @@ public class Transaction implements Comparable<Transaction> {
     private int sequenceNr;
 
     /**
-     * sequence number of previous operation (from primary)
+     * sequence numbers of the previous operations upon the batched operations'
+     * fragments (from primary, same order as the batched operations)
      */
-    private int priorSequenceNr;
+    private int[] priorSequences;
 
-    private String clientOperationId;
+    /**
+     * batch digest (or the client operation id for single-operation batches)
+     */
+    private OperationId clientOperationId;
+
+    /**
+     * ordered client operation ids of this batch
+     */
+    private List<OperationId> clientOperationIds;
 
     private final ReentrantLock lock = new ReentrantLock();
 
@@ -77,108 +110,205 @@ public class Transaction implements Comparable<Transaction> {
 
     private final int replica;
 
-    private ClientCommand clientCmd = null;
+    /**
+     * the view this transaction's messages belong to
+     */
+    private final int viewNr;
+
+    /**
+     * the certificate this batch was re-proposed with after a view change
+     * (null otherwise), reported again if the batch does not prepare within
+     * the new view
+     */
+    private PreparedCertificate carriedOver = null;
+
+    /**
+     * the batch was already executed (tentatively or within a prior view),
+     * it is not executed again
+     */
+    private boolean executedBefore = false;
 
-    private byte[] result = null;
+    /**
+     * all received client commands of this batch (by client operation id)
+     */
+    private final Map<OperationId, ClientCommand> clientCmds = new HashMap<>();
 
     private BftEngineCallbacks callbacks = null;
 
+    private final DigestHelper digests;
+
+    /**
+     * set if this (not yet ordered) transaction became part of a batch
+     */
+    private volatile Transaction absorbedBy = null;
+
+    /**
+     * set while the transaction is registered as waiting for its prior
+     * sequence
+     */
+    private boolean waitingForPrior = false;
+
     /**
      * output a more readable id for debug output
      */
     public String readableId() {
 
-        if (clientCmd == null) {
+        ClientCommand first = clientOperationIds.isEmpty() ? null : clientCmds.get(clientOperationIds.get(0));
+
+        if (first == null) {
             return "" + this.replica + "/" + this.sequenceNr + "/?/?";
+        } else if (clientOperationIds.size() == 1) {
+            return "" + this.replica + "/" + this.sequenceNr + "/" + first.getClientId() + "/" + first.getClientSequence();
         } else {
-            return "" + this.replica + "/" + this.sequenceNr + "/" + this.clientCmd.getClientId() + "/" + this.clientCmd.getClientSequence();
+            return "" + this.replica + "/" + this.sequenceNr + "/" + first.getClientId() + "/" + first.getClientSequence() + "+" + (clientOperationIds.size() - 1);
         }
     }
     
-    public Transaction(AbstractCommand cmd, int replicaId, int f, BftEngineCallbacks callbacks) {
+    public Transaction(AbstractCommand cmd, int replicaId, int viewNr, int f, BftEngineCallbacks callbacks, DigestHelper digests) {
 
         /* default stuff, valid for all commands */
         this.f = f;
         this.replica = replicaId;
+        this.viewNr = viewNr;
         this.callbacks = callbacks;
-
-        /* if there's a fragment-id, record it */
-        if (cmd instanceof ClientFragmentCommand) {
-            this.fragmentid = ((ClientFragmentCommand) cmd).getFragmentId();
-        } else {
-            this.fragmentid = null;
-        }
+        this.digests = digests;
+        this.preparedVotes = new VoteSet(3 * f + 1);
+        this.commitedVotes = new VoteSet(3 * f + 1);
 
         if (cmd instanceof PreprepareCommand) {
             PreprepareCommand c = (PreprepareCommand) cmd;
-            this.clientOperationId = c.getClientOperationId();
+            this.clientOperationId = c.getClientOperationId(digests);
+            this.clientOperationIds = new ArrayList<>(c.getClientOperationIds());
             this.primaryReceived = true;
-            this.priorSequenceNr = c.getPriorSequence();
+            this.priorSequences = c.getPriorSequences();
             this.sequenceNr = c.getSequence();
         } else if (cmd instanceof PrepareCommand) {
             PrepareCommand c = (PrepareCommand) cmd;
             this.clientOperationId = c.getClientOperationId();
-            this.priorSequenceNr = -1;
+            this.clientOperationIds = new ArrayList<>();
+            this.priorSequences = new int[0];
             this.sequenceNr = c.getSequence();
+        } else if (cmd instanceof CommitCommand) {
+            /* commits of fast replicas can overtake the (pre-)prepare */
+            this.clientOperationIds = new ArrayList<>();
+            this.priorSequences = new int[0];
+            this.sequenceNr = ((CommitCommand) cmd).getSequence();
         } else if (cmd instanceof ClientCommand) {
-            this.clientCmd = (ClientCommand) cmd;
-            this.clientOperationId = this.clientCmd.getClientOperationId();
+            ClientCommand c = (ClientCommand) cmd;
+            this.priorSequences = new int[0];
+            this.clientOperationId = c.getClientOperationId(digests);
+            this.clientOperationIds = new ArrayList<>(Collections.singletonList(this.clientOperationId));
+            addClientCommand(c);
         } else {
             assert (false);
         }
     }
 
-    private boolean canAdvanceToPreprepared() {
-        return state == State.INCOMING && clientCmd != null && primaryReceived;
-    }
-    
-    AbstractCommand getClientCommand() {
-        return this.clientCmd;
-    }
+    /**
+     * @return true if the client commands of all batched operations are known
+     */
+    private boolean hasAllClientCommands() {
+        if (clientOperationIds.isEmpty()) {
+            /* null requests have nothing to wait for */
+            return primaryReceived;
+        }
 
-    private boolean canAdvanceToPrepared(int lastCommited) {
+        /* called for every message, so don't create an iterator */
+        for (int i = 0; i < clientOperationIds.size(); i++) {
+            if (!clientCmds.containsKey(clientOperationIds.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        logger.debug("{}: {} - {} - {}", readableId(), state, preparedCmds.size(), priorSequenceNr == -1 || priorSequenceNr <= lastCommited);
+    private boolean canAdvanceToPreprepared() {
+        return state == State.INCOMING && hasAllClientCommands() && primaryReceived;
+    }
 
-        if (state == State.PREPREPARED && preparedCmds.size() >= 2 * f) {
-            if (priorSequenceNr == -1 || priorSequenceNr <= lastCommited) {
-                return true;
+    /**
+     * @return all client commands of this batch in execution order
+     */
+    List<ClientCommand> getClientCommands() {
+        List<ClientCommand> cmds = new ArrayList<>(clientOperationIds.size());
+        for (OperationId id : clientOperationIds) {
+            if (clientCmds.containsKey(id)) {
+                cmds.add(clientCmds.get(id));
             }
         }
-        return false;
+        return cmds;
     }
 
-    private boolean canAdvanceToCommited() {
-        logger.debug("{}: {} - {}/{} - {}/{} - {}", readableId(), state, preparedCmds.size(), commitedCmds.size(), clientCmd != null, primaryReceived, priorSequenceNr);
-        return state == State.PREPARED && commitedCmds.size() >= (2 * f + 1) && !executed;
+    /**
+     * @return the first prior sequence that was not commited yet (or -1)
+     */
+    private int getUncommitedPrior(FragmentWatermarks commited) {
+        for (int i = 0; i < clientOperationIds.size() && i < priorSequences.length; i++) {
+            ClientCommand cmd = clientCmds.get(clientOperationIds.get(i));
+            if (cmd instanceof ClientFragmentCommand) {
+                String fragmentId = ((ClientFragmentCommand) cmd).getFragmentId();
+                if (!commited.isCommited(fragmentId, priorSequences[i])) {
+                    return priorSequences[i];
+                }
+            }
+        }
+        return -1;
     }
 
-    public void outputState() {
-        logger.warn("{}: {} - {}/{} - {}/{} - {}", readableId(), state, preparedCmds.size(), commitedCmds.size(), clientCmd != null, primaryReceived, priorSequenceNr);
+    private boolean canAdvanceToPrepared(FragmentWatermarks commited) {
+
+        int uncommitedPrior = getUncommitedPrior(commited);
+        if (logger.isDebugEnabled()) {
+            logger.debug("{}: {} - {} - {}", readableId(), state, preparedVotes.size(), uncommitedPrior);
+        }
+
+        return state == State.PREPREPARED && preparedVotes.size() >= 2 * f && uncommitedPrior == -1;
     }
 
     /**
-     * execute operation and return result
+     * @return the prior sequence the transaction is waiting for if it could
+     *         otherwise be prepared, -1 if it is not blocked by a prior
+     *         sequence
      */
-    private byte[] execute() {
+    public int getBlockingPrior(FragmentWatermarks commited) {
+        if (state == State.PREPREPARED && preparedVotes.size() >= 2 * f) {
+            return getUncommitedPrior(commited);
+        } else {
+            return -1;
+        }
+    }
+
+    public boolean isWaitingForPrior() {
+        return this.waitingForPrior;
+    }
 
-        assert (state == State.PREPARED);
-        state = State.COMMITED;
+    public void setWaitingForPrior(boolean waitingForPrior) {
+        this.waitingForPrior = waitingForPrior;
+    }
 
-        this.executed = true;
-        return callbacks.executeClientCommand(clientCmd);
+    private boolean canAdvanceToCommited() {
+        if (logger.isDebugEnabled()) {
+            logger.debug("{}: {} - {}/{} - {}/{} - {}", readableId(), state, preparedVotes.size(), commitedVotes.size(), hasAllClientCommands(), primaryReceived, Arrays.toString(priorSequences));
+        }
+        return state == State.PREPARED && commitedVotes.size() >= (2 * f + 1) && !executed;
     }
 
-    public String getFragmentId() {
-        return this.fragmentid;
+    public void outputState() {
+        logger.warn("{}: {} - {}/{} - {}/{} - {}", readableId(), state, preparedVotes.size(), commitedVotes.size(), hasAllClientCommands(), primaryReceived, Arrays.toString(priorSequences));
+    }
+
+
+    public Set<String> getFragmentIds() {
+        return this.fragmentids;
     }
 
     public int getSequenceNr() {
         return this.sequenceNr;
     }
 
-    public int getPriorSequenceNr() {
-        return this.priorSequenceNr;
+    @SuppressFBWarnings("EI_EXPOSE_REP")
+    public int[] getPriorSequences() {
+        return this.priorSequences;
     }
 
     public void lock() {
@@ -189,13 +319,13 @@ public class Transaction implements Comparable<Transaction> {
         this.lock.unlock();
     }
 
-    public void setDataFromPreprepareCommand(int sequence, int priorSequence) {
-        this.priorSequenceNr = priorSequence;
+    public void setDataFromPreprepareCommand(int sequence, int[] priorSequences) {
+        this.priorSequences = priorSequences;
         this.sequenceNr = sequence;
     }
 
     public PreprepareCommand createPreprepareCommand() {
-        PreprepareCommand seq = new PreprepareCommand(0, sequenceNr, replica, clientOperationId, priorSequenceNr);
+        PreprepareCommand seq = new PreprepareCommand(viewNr, sequenceNr, replica, clientOperationIds, priorSequences);
         if (this.state == State.INCOMING) {
             this.state = State.PREPREPARED;
         } else {
@@ -222,26 +352,15 @@ public class Transaction implements Comparable<Transaction> {
 
     @Override
     public int hashCode() {
-        int hash = 7;
-        hash = 37 * hash + Objects.hashCode(this.state);
-        hash = 37 * hash + Objects.hashCode(this.preparedCmds);
-        hash = 37 * hash + Objects.hashCode(this.commitedCmds);
-        hash = 37 * hash + this.f;
-        hash = 37 * hash + Objects.hashCode(this.fragmentid);
-        hash = 37 * hash + this.sequenceNr;
-        hash = 37 * hash + this.priorSequenceNr;
-        hash = 37 * hash + Objects.hashCode(this.clientOperationId);
-        hash = 37 * hash + (this.executed ? 1 : 0);
-        hash = 37 * hash + (this.primaryReceived ? 1 : 0);
-        hash = 37 * hash + this.replica;
-        hash = 37 * hash + Objects.hashCode(this.clientCmd);
-        hash = 37 * hash + Arrays.hashCode(this.result);
-        return hash;
+        /* consistent with equals, mutable state must not change the hash */
+        return this.sequenceNr;
     }
 
     public boolean tryMarkDelete() {
-        if (state == State.COMMITED && commitedCmds.size() == (3 * f + 1)) {
-            logger.debug("{} advance commited -> to-delete", readableId());
+        if (state == State.COMMITED && commitedVotes.size() == (3 * f + 1)) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("{} advance commited -> to-delete", readableId());
+            }
             return true;
         } else {
             return false;
@@ -252,69 +371,190 @@ public class Transaction implements Comparable<Transaction> {
         this.primaryReceived = true;
     }
 
+    /**
+     * @return true if the primary already assigned a sequence number
+     */
+    public boolean isOrdered() {
+        return this.primaryReceived;
+    }
+
+    public int getViewNr() {
+        return this.viewNr;
+    }
+
+    /**
+     * @return true if the batch is prepared within this view: its
+     *         pre-prepare, all of its client commands and 2f matching
+     *         prepares are known
+     */
+    public boolean isPrepared() {
+        return state != State.INCOMING && primaryReceived && preparedVotes.size() >= 2 * f
+                && (prepareDigest == null || prepareDigest.equals(clientOperationId));
+    }
+
+    /**
+     * @return the certificate to report during a view change, null if the
+     *         batch was never prepared
+     */
+    public PreparedCertificate getPreparedCertificate() {
+        if (isPrepared()) {
+            return new PreparedCertificate(viewNr, sequenceNr, clientOperationIds, priorSequences, new ArrayList<>(fragmentids));
+        } else {
+            return this.carriedOver;
+        }
+    }
+
+    /**
+     * @return the certificate of a pre-prepared (but maybe not prepared)
+     *         batch, null if it was not pre-prepared
+     */
+    public PreparedCertificate getPreprepareCertificate() {
+        if (isPreprepared()) {
+            return new PreparedCertificate(viewNr, sequenceNr, clientOperationIds, priorSequences, new ArrayList<>(fragmentids));
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the pre-prepare and all client commands of the batch
+     *         are known
+     */
+    public boolean isPreprepared() {
+        return state != State.INCOMING && primaryReceived;
+    }
+
+    /**
+     * note: expects the transaction to be locked
+     */
+    public void setCarriedOver(PreparedCertificate certificate) {
+        this.carriedOver = certificate;
+        this.fragmentids.addAll(certificate.getFragmentIds());
+    }
+
+    public boolean isExecutedBefore() {
+        return this.executedBefore;
+    }
+
+    public void setExecutedBefore() {
+        this.executedBefore = true;
+    }
+
+    /**
+     * @return the client command of one of the batched operations (null if
+     *         it was not received or already released)
+     */
+    public ClientCommand getClientCommand(OperationId id) {
+        return this.clientCmds.get(id);
+    }
+
+    /**
+     * counts the prepare's vote, retransmitted prepares are ignored
+     */
     public void addPrepareCommand(PrepareCommand c) throws InconsistentResultsException {
         /* verify that the digest matches */
-        if (this.preparedCmds.size() > 0) {
-            for (PrepareCommand i : preparedCmds) {
-                if (!c.getClientOperationId().equalsIgnoreCase(i.getClientOperationId())) {
-                    throw new InconsistentResultsException();
-                }
-            }
+        if (this.prepareDigest == null) {
+            this.prepareDigest = c.getClientOperationId();
+        } else if (!c.getClientOperationId().equals(this.prepareDigest)) {
+            throw new InconsistentResultsException();
         }
 
-        this.preparedCmds.add(c);
+        this.preparedVotes.add(c.getSourceReplicaId());
     }
 
+    /**
+     * counts the commit's vote, retransmitted commits are ignored
+     */
     public void addCommitCommand(CommitCommand cmd) {
-        this.commitedCmds.add(cmd);
+        this.commitedVotes.add(cmd.getSourceReplicaId());
     }
 
-    public void addClientCommand(ClientCommand cmd) {
-        this.clientCmd = cmd;
+    /**
+     * retransmitted client commands of executed transactions are ignored, the
+     * payload would never be released otherwise
+     */
+    public final void addClientCommand(ClientCommand cmd) {
+        if (executed) {
+            return;
+        }
+
+        this.clientCmds.put(cmd.getClientOperationId(digests), cmd);
         if (cmd instanceof ClientFragmentCommand) {
-            this.fragmentid = ((ClientFragmentCommand) cmd).getFragmentId();
+            this.fragmentids.add(((ClientFragmentCommand) cmd).getFragmentId());
         }
     }
 
-    public Set<PrepareCommand> getPreparedCommands() {
-        return this.preparedCmds;
+    /**
+     * takes over all client commands of a not yet ordered transaction (which
+     * became part of this batch)
+     *
+     * note: expects this transaction to be locked
+     */
+    public void absorb(Transaction other) {
+        other.lock();
+        try {
+            for (ClientCommand cmd : other.clientCmds.values()) {
+                addClientCommand(cmd);
+            }
+            other.absorbedBy = this;
+        } finally {
+            other.unlock();
+        }
     }
 
-    public Set<CommitCommand> getCommitedCommands() {
-        return this.commitedCmds;
+    /**
+     * @return the batch this transaction became part of (or null)
+     */
+    public Transaction getAbsorbedBy() {
+        return this.absorbedBy;
     }
 
-    public void setClientOperationId(String clientOperationId) {
-        this.clientOperationId = clientOperationId;
+    /**
+     * set the ordered batch content (as transmitted by the primary)
+     */
+    public void setBatch(List<OperationId> clientOperationIds, OperationId digest) {
+        this.clientOperationIds = new ArrayList<>(clientOperationIds);
+        this.clientOperationId = digest;
     }
 
-    public String getClientOperationId() {
+    public OperationId getClientOperationId() {
         return this.clientOperationId;
     }
 
+    public List<OperationId> getClientOperationIds() {
+        return Collections.unmodifiableList(this.clientOperationIds);
+    }
+
     public void tryAdvanceToPreprepared(boolean primary) {
         if (canAdvanceToPreprepared()) {
-            logger.debug("{} advance incoming -> (pre-)prepared", readableId());
+            if (logger.isDebugEnabled()) {
+                logger.debug("{} advance incoming -> (pre-)prepared", readableId());
+            }
 
             assert (this.state == State.INCOMING);
             if (primary) {
-                /* primary can directly jump to prepared */
-                this.state = State.PREPARED;
+                /* the primary's pre-prepare counts as its prepare */
+                this.state = State.PREPREPARED;
             } else {
-                PrepareCommand cmd = new PrepareCommand(0, sequenceNr, replica, clientOperationId);
-                this.preparedCmds.add(cmd);
+                PrepareCommand cmd = new PrepareCommand(viewNr, sequenceNr, replica, clientOperationId);
+                this.preparedVotes.add(replica);
+                if (this.prepareDigest == null) {
+                    this.prepareDigest = clientOperationId;
+                }
                 this.state = State.PREPREPARED;
                 callbacks.sendToReplicas(cmd);
             }
         }
     }
 
-    public boolean tryAdvanceToPrepared(int lastCommited) {
-        if (canAdvanceToPrepared(lastCommited)) {
-            logger.debug("{} advance prepared -> precommited", replica, readableId());
+    public boolean tryAdvanceToPrepared(FragmentWatermarks commited) {
+        if (canAdvanceToPrepared(commited)) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("{} advance prepared -> precommited", readableId());
+            }
 
-            CommitCommand cmd = new CommitCommand(0, sequenceNr, replica);
-            this.commitedCmds.add(cmd);
+            CommitCommand cmd = new CommitCommand(viewNr, sequenceNr, replica);
+            this.commitedVotes.add(replica);
 
             assert (this.state == State.PREPREPARED);
             this.state = State.PREPARED;
@@ -326,38 +566,50 @@ public class Transaction implements Comparable<Transaction> {
         }
     }
 
+    /**
+     * note: the caller has to hand the commited transaction to the execution
+     * stage
+     */
     public boolean tryAdvanceToCommited() {
         if (canAdvanceToCommited()) {
-            logger.debug("{} advance precommited -> commited", readableId());
-            result = execute();
-            this.callbacks.answerClient(new TransactionResult(this.clientCmd, this.replica, result));
+            if (logger.isDebugEnabled()) {
+                logger.debug("{} advance precommited -> commited", readableId());
+            }
+
+            assert (state == State.PREPARED);
+            this.state = State.COMMITED;
+            this.executed = true;
             return true;
         } else {
             return false;
         }
     }
 
-    @SuppressFBWarnings("EI_EXPOSE_REP")
-    public byte[] getResult() {
-        return this.result;
+    public boolean isCommited() {
+        return this.state == State.COMMITED;
+    }
+
+    /**
+     * drops all client commands (and their payloads) after the transaction
+     * was handed to the execution stage, only fragment ids and operation ids
+     * are kept
+     *
+     * note: expects the transaction to be locked
+     */
+    public void releaseClientCommands() {
+        assert (executed);
+        this.clientCmds.clear();
     }
 
     public boolean hasClientInteraction() {
-        return clientCmd != null;
+        return !clientCmds.isEmpty();
     }
 
     public void reset() {
         this.state = State.INCOMING;
-        this.preparedCmds.clear();
-        this.commitedCmds.clear();
+        this.preparedVotes.clear();
+        this.commitedVotes.clear();
+        this.prepareDigest = null;
         this.primaryReceived = false;
     }
-
-    public void merge(Transaction tmp) {
-        tmp.lock();
-        setDataFromPreprepareCommand(tmp.getSequenceNr(), tmp.getPriorSequenceNr());
-        preparedCmds = tmp.getPreparedCommands();
-        commitedCmds = tmp.getCommitedCommands();
-        tmp.unlock();
-    }
 }
@@ -1,137 +1,414 @@
 package at.archistar.bft.server;
 
 import at.archistar.bft.exceptions.InconsistentResultsException;
+import at.archistar.bft.helper.DigestHelper;
+import at.archistar.bft.journal.Journal;
 import at.archistar.bft.messages.AbstractCommand;
+import at.archistar.bft.messages.ClientCommand;
 import at.archistar.bft.messages.ClientFragmentCommand;
 import at.archistar.bft.messages.CommitCommand;
+import at.archistar.bft.messages.OperationId;
 import at.archistar.bft.messages.PrepareCommand;
+import at.archistar.bft.messages.PreparedCertificate;
 import at.archistar.bft.messages.PreprepareCommand;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Manages all transactions of an era (view).
+ *
+ * There is no global lock: both transaction tables are concurrent maps and
+ * every transaction is protected by its own lock, so messages for different
+ * sequences can be processed in parallel. Locks are always taken in the
+ * order sequence-transaction, client-only transaction; a thread never holds a
+ * client-only transaction's lock while waiting for another transaction lock.
+ * Only the primary's batching state is guarded by a (primary-only) lock.
+ *
+ * Only operations upon the same fragment are ordered relative to each other:
+ * every operation depends upon the last sequence that touched its fragment.
+ * Transactions that are only blocked by an uncommited prior sequence are
+ * parked until that sequence commits, so the cost of a message does not
+ * depend upon the amount of in-flight transactions.
+ *
+ * During a view change the manager is frozen (the primary stops ordering)
+ * and the next view's manager is derived from it through createNewEra.
+ *
+ * With tentative execution transactions are handed to the execution stage
+ * as soon as they are prepared, their commit only confirms the execution.
+ * Tentative executions that the next view does not re-propose unchanged are
+ * rolled back while it is created.
+ *
+ * In speculative mode pre-prepared batches are executed in sequence order
+ * right away (see speculate), each one answers its clients with the history
+ * digest up to its sequence. Prepares and commits are still exchanged in
+ * the background, they confirm the executions and drive checkpoints and view
+ * changes. Speculative executions are reported during view changes like
+ * prepared batches, if the next view does not re-propose one of them
+ * unchanged it is rolled back together with all later ones.
  *
- * TODO: can't we move some of the area stuff in here? A TransactionManager copy
- *       should be the same as an era?
- * 
  * @author andy
  */
 public class TransactionManager {
-    
+
     /**
      * (client-side operation id) -> transaction mapping
      */
-    private final SortedMap<String, Transaction> collClientId;
+    private final ConcurrentMap<OperationId, Transaction> collClientId;
 
     /**
      * (internal id aka. sequence) -> transaction mapping
      */
-    private final SortedMap<Integer, Transaction> collSequence;
+    private final ConcurrentNavigableMap<Integer, Transaction> collSequence;
+
+    /**
+     * (primary only) protects the pending batch and sequence generation
+     */
+    private final ReentrantLock lockBatch = new ReentrantLock();
 
-    private final ReentrantLock lockCollections = new ReentrantLock();
-    
     private final int replicaId;
-    
+
     private int maxSequence = 0;
-    
-    private int lastCommited = -1;
-    
+
+    private final AtomicInteger lastCommited = new AtomicInteger(-1);
+
+    /**
+     * highest commited sequence per fragment (shared by all views)
+     */
+    private final FragmentWatermarks commitedFragments;
+
+    /**
+     * (sequence) -> digest of all batches executed after the last stable
+     * checkpoint (shared by all views), re-proposed batches are not executed
+     * twice
+     */
+    private final ConcurrentNavigableMap<Integer, OperationId> executedBatches;
+
+    /**
+     * (speculative mode) shared by all views
+     */
+    private final SpeculativeHistory history;
+
+    /**
+     * transactions that were re-proposed by the new-view message
+     */
+    private final List<Transaction> proposed = new ArrayList<>();
+
+    /**
+     * set during a view change, nothing new is ordered afterwards
+     */
+    private volatile boolean frozen = false;
+
+    /**
+     * (primary only) fragment id -> last sequence that touched the fragment
+     */
+    private final Map<String, Integer> lastSequenceByFragment = new HashMap<>();
+
+    /**
+     * (prior sequence) -> transactions waiting for that sequence's commit
+     */
+    private final ConcurrentMap<Integer, Queue<Transaction>> waitingForPrior = new ConcurrentHashMap<>();
+
+    /**
+     * transactions whose prior sequence was commited, those are advanced
+     * during the next cleanup
+     */
+    private final Queue<Transaction> readyTransactions = new ConcurrentLinkedQueue<>();
+
     private final int viewNr;
-    
+
     private final Logger logger = LoggerFactory.getLogger(TransactionManager.class);
 
     private final int f;
-    
+
     private final BftEngineCallbacks callbacks;
-    
+
     private final CheckpointManager checkpoints;
-    
-    public TransactionManager(int replicaId, int viewNr, int f, BftEngineCallbacks callbacks, CheckpointManager checkpoints) {
-        this.collClientId = new TreeMap<>();
-        this.collSequence = new TreeMap<>();
+
+    private final BftEngineConfiguration config;
+
+    private final ExecutionStage executor;
+
+    private final DigestHelper digests;
+
+    /**
+     * null if nothing is journaled
+     */
+    private final Journal journal;
+
+    /**
+     * (primary only) client operations waiting to be ordered within the next
+     * batch, kept in arrival order
+     */
+    private final Map<OperationId, Transaction> pendingBatch = new LinkedHashMap<>();
+
+    /**
+     * (primary only) when did the oldest pending client operation arrive
+     */
+    private long pendingSince = 0;
+
+    /**
+     * (primary only) batches that were pre-prepared but not yet commited
+     */
+    private final AtomicInteger inFlightBatches = new AtomicInteger(0);
+
+    public TransactionManager(int replicaId, int viewNr, int f, BftEngineCallbacks callbacks, CheckpointManager checkpoints, ExecutionStage executor, Journal journal, DigestHelper digests,
+            BftEngineConfiguration config) {
+        this(replicaId, viewNr, f, callbacks, checkpoints, executor, journal, digests, config, new FragmentWatermarks(), new ConcurrentSkipListMap<Integer, OperationId>(),
+                new SpeculativeHistory());
+    }
+
+    private TransactionManager(int replicaId, int viewNr, int f, BftEngineCallbacks callbacks, CheckpointManager checkpoints, ExecutionStage executor, Journal journal, DigestHelper digests,
+            BftEngineConfiguration config, FragmentWatermarks commitedFragments, ConcurrentNavigableMap<Integer, OperationId> executedBatches, SpeculativeHistory history) {
+        this.commitedFragments = commitedFragments;
+        this.executedBatches = executedBatches;
+        this.history = history;
+        this.collClientId = new ConcurrentHashMap<>();
+        this.collSequence = new ConcurrentSkipListMap<>();
         this.replicaId = replicaId;
         this.f = f;
         this.callbacks = callbacks;
         this.checkpoints = checkpoints;
         this.viewNr = viewNr;
+        this.config = config;
+        this.executor = executor;
+        this.journal = journal;
+        this.digests = digests;
+    }
+
+    public TransactionManager(int replicaId, int viewNr, int f, BftEngineCallbacks callbacks, CheckpointManager checkpoints, ExecutionStage executor, BftEngineConfiguration config) {
+        this(replicaId, viewNr, f, callbacks, checkpoints, executor, null, new DigestHelper(config.getDigestAlgorithm(), config.getOperationIdMode()), config);
+    }
+
+    public TransactionManager(int replicaId, int viewNr, int f, BftEngineCallbacks callbacks, CheckpointManager checkpoints, BftEngineConfiguration config) {
+        this(replicaId, viewNr, f, callbacks, checkpoints, new ExecutionStage(replicaId, callbacks, checkpoints, 0), config);
     }
-    
+
+    public TransactionManager(int replicaId, int viewNr, int f, BftEngineCallbacks callbacks, CheckpointManager checkpoints) {
+        this(replicaId, viewNr, f, callbacks, checkpoints, new BftEngineConfiguration());
+    }
+
     public TransactionManager(int replicaId, int f, BftEngineCallbacks callbacks, CheckpointManager checkpoints) {
         this(replicaId, 0, f, callbacks, checkpoints);
     }
-    
+
+    /**
+     * locks a transaction. If the transaction was absorbed into a batch in
+     * the meantime the batch is locked (and returned) instead.
+     */
+    private static Transaction lockTransaction(Transaction t) {
+        t.lock();
+        Transaction batch = t.getAbsorbedBy();
+        while (batch != null) {
+            t.unlock();
+            t = batch;
+            t.lock();
+            batch = t.getAbsorbedBy();
+        }
+        return t;
+    }
+
+    /**
+     * @return the sequence's transaction, creates one if needed
+     */
+    private Transaction getOrCreateBySequence(int sequence, AbstractCommand cmd) {
+        Transaction result = collSequence.get(sequence);
+
+        if (result == null) {
+            Transaction created = new Transaction(cmd, replicaId, viewNr, f, this.callbacks, digests);
+            result = collSequence.putIfAbsent(sequence, created);
+            if (result == null) {
+                result = created;
+            }
+        }
+        return result;
+    }
+
     private Transaction handleClientFragmentCommand(ClientFragmentCommand c) {
-        String clientOperationId = c.getClientOperationId();
-        Transaction result;
+        OperationId clientOperationId = c.getClientOperationId(digests);
+        Transaction result = collClientId.get(clientOperationId);
 
-        if (collClientId.containsKey(clientOperationId)) {
-            /* there was already a preprepare request */
-            result = collClientId.get(clientOperationId);
-        } else {
+        if (result == null) {
             /* first request */
-            result = new Transaction(c, replicaId, f, this.callbacks);
-            collClientId.put(c.getClientOperationId(), result);
+            Transaction created = new Transaction(c, replicaId, viewNr, f, this.callbacks, digests);
+            result = collClientId.putIfAbsent(clientOperationId, created);
+            if (result == null) {
+                result = created;
+            }
         }
 
+        /* there might have been a preprepare request already */
+        result = lockTransaction(result);
         result.addClientCommand(c);
 
-        if (isPrimary()) {
-            result.setDataFromPreprepareCommand(maxSequence++, getPriorSequenceNumber(c.getFragmentId()));
-            collSequence.put(result.getSequenceNr(), result);
-            PreprepareCommand seq = result.createPreprepareCommand();
-            callbacks.sendToReplicas(seq);
+        if (isPrimary() && !result.isOrdered()) {
+            result.unlock();
+            addToPendingBatch(clientOperationId, result);
+
+            /* the operation might belong to a new batch now */
+            result = lockTransaction(result);
         }
         return result;
     }
-    
+
+    private void addToPendingBatch(OperationId clientOperationId, Transaction t) {
+        lockBatch.lock();
+        try {
+            if (!t.isOrdered() && t.getAbsorbedBy() == null && !pendingBatch.containsKey(clientOperationId)) {
+                if (pendingBatch.isEmpty()) {
+                    pendingSince = System.nanoTime();
+                }
+                pendingBatch.put(clientOperationId, t);
+            }
+
+            while (shouldFlushBatch()) {
+                flushPendingBatch();
+            }
+        } finally {
+            lockBatch.unlock();
+        }
+    }
+
+    /**
+     * the batch is sent out if it is full, if it waited for too long or if
+     * there's nothing else in-flight. The latter makes the batch size adapt to
+     * the current load: an idle primary orders operations immediately while a
+     * busy one collects them until the pipeline drains.
+     *
+     * Nothing is sent if the next sequence lies outside of the watermark
+     * window, the batch waits for the next stable checkpoint then.
+     *
+     * note: expects lockBatch to be held
+     */
+    private boolean shouldFlushBatch() {
+        if (frozen || pendingBatch.isEmpty() || !checkpoints.isInWindow(maxSequence)) {
+            return false;
+        }
+
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - pendingSince);
+        return pendingBatch.size() >= config.getMaxBatchSize()
+                || waited >= config.getBatchTimeout()
+                || inFlightBatches.get() == 0;
+    }
+
+    /**
+     * (primary only) assign a sequence number to (up to max-batch-size)
+     * pending client operations and pre-prepare them as a single batch
+     *
+     * note: expects lockBatch to be held
+     */
+    private void flushPendingBatch() {
+
+        /* take the oldest pending operations */
+        Map<OperationId, Transaction> operations = new LinkedHashMap<>();
+        Iterator<Entry<OperationId, Transaction>> pending = pendingBatch.entrySet().iterator();
+        while (pending.hasNext() && operations.size() < config.getMaxBatchSize()) {
+            Entry<OperationId, Transaction> e = pending.next();
+            operations.put(e.getKey(), e.getValue());
+            pending.remove();
+        }
+
+        /* every operation depends upon the last sequence touching its fragment */
+        int[] priorSequences = new int[operations.size()];
+        int i = 0;
+        for (Transaction t : operations.values()) {
+            priorSequences[i++] = getPriorSequenceNumber(t.getFragmentIds());
+        }
+
+        Iterator<Transaction> it = operations.values().iterator();
+        Transaction batch = it.next();
+
+        batch.lock();
+        try {
+            while (it.hasNext()) {
+                Transaction other = it.next();
+                batch.absorb(other);
+                collClientId.put(other.getClientOperationId(), batch);
+            }
+            List<OperationId> clientOperationIds = new ArrayList<>(operations.keySet());
+            batch.setBatch(clientOperationIds, digests.getBatchDigest(clientOperationIds));
+
+            int sequence = maxSequence++;
+            for (String fragmentId : batch.getFragmentIds()) {
+                lastSequenceByFragment.put(fragmentId, sequence);
+            }
+
+            batch.setDataFromPreprepareCommand(sequence, priorSequences);
+            collSequence.put(batch.getSequenceNr(), batch);
+            PreprepareCommand seq = batch.createPreprepareCommand();
+            callbacks.sendToReplicas(seq);
+        } finally {
+            batch.unlock();
+        }
+
+        inFlightBatches.incrementAndGet();
+    }
+
+    /**
+     * sends out the pending batch if its time window has elapsed
+     */
+    public void checkPendingBatch() {
+        if (!isPrimary()) {
+            return;
+        }
+
+        lockBatch.lock();
+        try {
+            while (shouldFlushBatch()) {
+                flushPendingBatch();
+            }
+        } finally {
+            lockBatch.unlock();
+        }
+    }
+
     private Transaction handlePreprepareCommand(PreprepareCommand c) {
-        String clientOperationId = c.getClientOperationId();
-        Transaction result;
         int sequence = c.getSequence();
 
-        boolean knownFromClientOpId = collClientId.containsKey(clientOperationId);
-        boolean knownFromSequence = collSequence.containsKey(sequence);
-
-        if (knownFromClientOpId && knownFromSequence) {
-            result = collClientId.get(clientOperationId);
-            result.merge(collSequence.get(sequence));
-        } else if (knownFromClientOpId && !knownFromSequence) {
-            result = collClientId.get(clientOperationId);
-            result.setDataFromPreprepareCommand(sequence, c.getPriorSequence());
-        } else if (!knownFromClientOpId && knownFromSequence) {
-            result = collSequence.get(sequence);
-            result.setClientOperationId(clientOperationId);
-        } else {
-            /* initial network package */
-            result = new Transaction(c, replicaId, f, this.callbacks);
+        /* prepare commands might have been faster, the sequence's transaction stays */
+        Transaction result = getOrCreateBySequence(sequence, c);
+        result.lock();
+        result.setBatch(c.getClientOperationIds(), c.getClientOperationId(digests));
+
+        /* collect all client commands that were received before the batch */
+        for (OperationId clientOperationId : c.getClientOperationIds()) {
+            Transaction known = collClientId.put(clientOperationId, result);
+            if (known != null && known != result) {
+                result.absorb(known);
+            }
         }
 
         if (!isPrimary()) {
-            result.setDataFromPreprepareCommand(sequence, c.getPriorSequence());
+            result.setDataFromPreprepareCommand(sequence, c.getPriorSequences());
         }
 
         /* after the prepare command the transaction should be known by both client-operation-id
          * as well as by the bft-internal sequence number */
         result.setPrepreparedReceived();
-        collSequence.put(sequence, result);
-        collClientId.put(clientOperationId, result);
         return result;
     }
-    
-    private Transaction handlePrepareCommand(PrepareCommand c) {
-        Transaction result;
-        int sequence = c.getSequence();
 
-        if (collSequence.containsKey(sequence)) {
-            result = collSequence.get(sequence);
-        } else {
-            result = new Transaction(c, replicaId, f, this.callbacks);
-            collSequence.put(sequence, result);
-        }
+    private Transaction handlePrepareCommand(PrepareCommand c) {
+        Transaction result = getOrCreateBySequence(c.getSequence(), c);
+        result.lock();
 
         try {
             result.addPrepareCommand(c);
@@ -140,165 +417,663 @@ public class TransactionManager {
         }
         return result;
     }
-    
+
     private Transaction handleCommitCommand(CommitCommand c) {
-        Transaction result = collSequence.get(c.getSequence());
+        Transaction result = getOrCreateBySequence(c.getSequence(), c);
+        result.lock();
         result.addCommitCommand(c);
         return result;
     }
 
+    /**
+     * @return the (locked) transaction the message belongs to
+     */
     public Transaction getTransaction(AbstractCommand msg) {
 
         Transaction result = null;
-        lockCollections.lock();
-        try {
-            
-            if (msg instanceof ClientFragmentCommand) {
+
+        switch (msg.getType()) {
+            case CLIENT_FRAGMENT:
                 result = handleClientFragmentCommand((ClientFragmentCommand)msg);
-            } else if (msg instanceof PreprepareCommand) {
+                break;
+            case PREPREPARE:
                 result = handlePreprepareCommand((PreprepareCommand)msg);
-            } else if (msg instanceof PrepareCommand) {
+                break;
+            case PREPARE:
                 result = handlePrepareCommand((PrepareCommand)msg);
-            } else if (msg instanceof CommitCommand) {
+                break;
+            case COMMIT:
                 result = handleCommitCommand((CommitCommand)msg);
-            } else {
+                break;
+            default:
                 callbacks.invalidMessageReceived(msg);
-            }
-        
-            if (result != null) {
-                result.lock();
-            }
-        } finally {
-            lockCollections.unlock();
         }
         return result;
     }
 
     public void cleanupTransactions(Transaction mightDelete) {
 
-        this.lockCollections.lock();
+        mightDelete.lock();
         try {
             if (mightDelete.tryMarkDelete()) {
-                mightDelete.lock();
-                collClientId.remove(mightDelete.getClientOperationId());
-                collSequence.remove(mightDelete.getSequenceNr());
-                /* free transaction */
-                mightDelete.unlock();
+                removeTransaction(mightDelete);
             }
-            
-            /* search for preparable and commitable transactions */
-            Iterator<Transaction> it = collSequence.values().iterator();
-            while (it.hasNext()) {
-                Transaction x = it.next();
-                
-                x.lock();
-                
-                if (x.tryAdvanceToPrepared(lastCommited)) {
-                    lastCommited = Math.max(lastCommited, x.getPriorSequenceNr());
-                    
+        } finally {
+            mightDelete.unlock();
+        }
+
+        cleanupTransactions();
+    }
+
+    /**
+     * advances all transactions that were woken up
+     */
+    public void cleanupTransactions() {
+
+        /* advance all transactions whose prior sequence was commited, this
+         * might commit further transactions and wake up their successors */
+        Transaction x;
+        while ((x = readyTransactions.poll()) != null) {
+
+            x.lock();
+            try {
+                x.setWaitingForPrior(false);
+
+                if (x.tryAdvanceToPrepared(commitedFragments)) {
+                    newPrepared(x);
                     if (x.tryAdvanceToCommited()) {
-                        /* check if we should send a CHECKPOINT message */
-                        checkpoints.addTransaction(x, x.getResult(), viewNr);
-                        
-                        newCommited(x.getSequenceNr());
+                        newCommited(x);
                     }
-                    
+
                     if (x.tryMarkDelete()) {
-                        collClientId.remove(x.getClientOperationId());
-                        it.remove();
+                        removeTransaction(x);
                     }
+                } else {
+                    waitForPrior(x);
                 }
+            } finally {
                 x.unlock();
             }
+        }
+
+        speculate();
+
+        /* commits might have drained the pipeline */
+        checkPendingBatch();
+    }
+
+    /**
+     * (speculative mode) walks all sequences that were not walked yet in
+     * sequence order and executes their batches speculatively, this stops at
+     * the first sequence that was not pre-prepared yet.
+     *
+     * note: must not be called while a transaction is locked
+     */
+    void speculate() {
+        if (!config.isSpeculative()) {
+            return;
+        }
+
+        history.requestWalk();
+        while (history.tryStartWalk()) {
+            try {
+                while (!frozen && speculateNext()) {
+                    /* continue with the next sequence */
+                }
+            } finally {
+                history.endWalk();
+            }
+        }
+    }
+
+    /**
+     * executes the next sequence speculatively (if it was not executed yet)
+     * and extends the history digest by its batch. Every prior sequence was
+     * executed or handed to the execution stage already, so the per-fragment
+     * execution order is kept.
+     *
+     * note: expects the history to be locked
+     *
+     * @return false if the sequence cannot be walked yet
+     */
+    private boolean speculateNext() {
+        int sequence = history.getWalkedUpTo() + 1;
+        boolean executed = sequence <= Math.max(checkpoints.getTransferredUpTo(), executor.getLastExecuted());
+
+        Transaction t = collSequence.get(sequence);
+        if (t == null) {
+            /* commited and removed already (or not known yet) */
+            OperationId batch = executedBatches.get(sequence);
+            if (batch == null && !executed) {
+                return false;
+            }
+            history.walked(sequence, extendHistory(sequence, batch));
+            return true;
+        }
+
+        t.lock();
+        try {
+            if (!t.isPreprepared()) {
+                if (!executed) {
+                    return false;
+                }
+                history.walked(sequence, null);
+                return true;
+            }
+
+            OperationId next = extendHistory(sequence, t.getClientOperationId());
+            if (t.isCommited() || t.isExecutedBefore() || executed) {
+                history.walked(sequence, next);
+                return true;
+            } else if (next == null) {
+                /* the history is not known until the next checkpoint, wait for the commit */
+                return false;
+            }
+
+            executor.executeSpeculatively(t, viewNr, next);
+            executedBatches.put(sequence, t.getClientOperationId());
+            t.setExecutedBefore();
+            history.walked(sequence, next);
+            return true;
         } finally {
-            this.lockCollections.unlock();
+            t.unlock();
         }
     }
 
-    private int getPriorSequenceNumber(String fragmentId) {
-        int priorSequence = -2;
+    /**
+     * @return the history digest after the sequence's batch, null if the
+     *         batch or the history before it is not known
+     */
+    private OperationId extendHistory(int sequence, OperationId batch) {
+        if (batch == null) {
+            return null;
+        }
+
+        /* the history restarts after every checkpoint */
+        if (sequence == 0 || CheckpointManager.getCheckpointSequence(sequence - 1) == sequence - 1) {
+            return digests.getHistoryDigest(null, sequence, batch);
+        }
+        OperationId previous = history.get(sequence - 1);
+        return previous == null ? null : digests.getHistoryDigest(previous, sequence, batch);
+    }
+
+    /**
+     * @return true if the sequence was walked with the given history digest
+     *         (speculative mode), commit certificates are only accepted then
+     */
+    public boolean hasHistory(int sequence, OperationId digest) {
+        return digest.equals(history.get(sequence));
+    }
+
+    /**
+     * parks the transaction if it is only blocked by its prior sequence. If
+     * that sequence commits the transaction will be advanced by
+     * cleanupTransactions.
+     *
+     * note: expects t to be locked
+     */
+    void waitForPrior(Transaction t) {
+        int prior = t.getBlockingPrior(commitedFragments);
+        if (t.isWaitingForPrior() || prior == -1) {
+            return;
+        }
 
-        /* TODO: there could be sequence commands without fragment (bad timing...) */
-        for (Transaction x : this.collSequence.values()) {
-            if (fragmentId.equals(x.getFragmentId()) || x.getFragmentId() == null) {
-                priorSequence = Math.max(priorSequence, x.getSequenceNr());
+        t.setWaitingForPrior(true);
+
+        Queue<Transaction> waiting = waitingForPrior.get(prior);
+        if (waiting == null) {
+            Queue<Transaction> created = new ConcurrentLinkedQueue<>();
+            waiting = waitingForPrior.putIfAbsent(prior, created);
+            if (waiting == null) {
+                waiting = created;
             }
         }
+        waiting.add(t);
+
+        /* the prior sequence might have been commited concurrently */
+        if (t.getBlockingPrior(commitedFragments) != prior) {
+            readyTransactions.add(t);
+        }
+    }
+
+    /**
+     * note: expects t to be locked
+     */
+    private void removeTransaction(Transaction t) {
+        for (OperationId clientOperationId : t.getClientOperationIds()) {
+            collClientId.remove(clientOperationId, t);
+        }
+        collSequence.remove(t.getSequenceNr(), t);
+    }
+
+    /**
+     * (primary only) note: expects lockBatch to be held
+     *
+     * @return the last sequence that touched one of the fragments
+     */
+    private int getPriorSequenceNumber(Set<String> fragmentIds) {
+        int priorSequence = -2;
 
+        for (String fragmentId : fragmentIds) {
+            Integer last = lastSequenceByFragment.get(fragmentId);
+            if (last != null) {
+                priorSequence = Math.max(priorSequence, last);
+            }
+        }
         return priorSequence;
     }
-    
-    public void checkCollections() {
-        lockCollections.lock();
-        try {
-            if (collClientId.size() >= 100 || collSequence.size() >= 100) {
-                logger.info("server: {} collClient: {} collSequence: {}", this.replicaId, collClientId.size(), collSequence.size());
+
+    /**
+     * removes all commited transactions up to (and including) a stable
+     * checkpoint, even if not all replicas sent their commits. Transactions
+     * that did not commit yet are kept, this replica lags behind then.
+     */
+    public void collectGarbage(int stableSequence) {
+        int removed = 0;
+        int lagging = 0;
+
+        for (Transaction t : collSequence.headMap(stableSequence, true).values()) {
+            t.lock();
+            try {
+                if (t.isCommited()) {
+                    removeTransaction(t);
+                    removed++;
+                } else {
+                    lagging++;
+                }
+            } finally {
+                t.unlock();
+            }
+        }
+
+        executedBatches.headMap(stableSequence, true).clear();
+        history.collectGarbage(stableSequence);
+
+        if (lagging > 0) {
+            logger.warn("server {}: {} uncommited transactions before stable checkpoint {}", replicaId, lagging, stableSequence);
+        }
+        logger.debug("server {}: removed {} transactions up to checkpoint {}", replicaId, removed, stableSequence);
+    }
+
+    /**
+     * the state of the checkpoint was installed through state transfer: all
+     * transactions up to it are dropped and their successors are woken up
+     */
+    public void stateTransferred(int checkpoint) {
+        executor.dropTentative(checkpoint);
+        commitedFragments.setFloor(checkpoint);
+        raiseLastCommited(checkpoint);
+
+        for (Transaction t : collSequence.headMap(checkpoint, true).values()) {
+            t.lock();
+            try {
+                removeTransaction(t);
+            } finally {
+                t.unlock();
+            }
+        }
+
+        Iterator<Entry<Integer, Queue<Transaction>>> it = waitingForPrior.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry<Integer, Queue<Transaction>> e = it.next();
+            if (e.getKey() <= checkpoint) {
+                readyTransactions.addAll(e.getValue());
+                it.remove();
+            }
+        }
+
+        if (isPrimary()) {
+            lockBatch.lock();
+            try {
+                maxSequence = Math.max(maxSequence, checkpoint + 1);
+            } finally {
+                lockBatch.unlock();
             }
-        } finally {
-            lockCollections.unlock();
         }
     }
-    
-    public TransactionManager createNewEra(int era) {
-        lockCollections.lock();
-        
-        TransactionManager newEra;
+
+    /**
+     * restores the commited fragments and the sequence counter after the
+     * journal was replayed (and the stable checkpoint was restored through
+     * stateTransferred)
+     *
+     * @param commited fragment id -> highest commited sequence
+     * @param lastSequence the highest sequence this replica voted for, it
+     *        is never assigned again
+     */
+    public void recovered(Map<String, Integer> commited, int lastSequence) {
+        for (Entry<String, Integer> e : commited.entrySet()) {
+            commitedFragments.newCommited(e.getKey(), e.getValue());
+            raiseLastCommited(e.getValue());
+        }
+
+        lockBatch.lock();
         try {
-            newEra = new TransactionManager(replicaId, era, f, callbacks, checkpoints);
-            
-            if (this.viewNr <= era) {
-                logger.warn("already in era {}", era);
-            } else {
-                
-                /* remove all non-client transactions and reset all client-ones */
-                for (Transaction t : collSequence.values()) {                    
-                    newEra.addTransaction(t);
+            lastSequenceByFragment.putAll(commited);
+            maxSequence = Math.max(maxSequence, lastSequence + 1);
+        } finally {
+            lockBatch.unlock();
+        }
+    }
+
+    /**
+     * @return the amount of ordered transactions
+     */
+    int getSequenceCount() {
+        return collSequence.size();
+    }
+
+    public void checkCollections() {
+        int clientCount = collClientId.size();
+        int sequenceCount = collSequence.size();
+        if (clientCount >= 100 || sequenceCount >= 100) {
+            logger.info("server: {} collClient: {} collSequence: {}", this.replicaId, clientCount, sequenceCount);
+        }
+    }
+
+    /**
+     * stops ordering new batches, called when this replica leaves the view
+     */
+    public void freeze() {
+        this.frozen = true;
+    }
+
+    public boolean isFrozen() {
+        return this.frozen;
+    }
+
+    /**
+     * @return certificates of all batches after the stable checkpoint that
+     *         were prepared within this view (or carried over into it), in
+     *         speculative mode also of speculatively executed batches
+     */
+    public List<PreparedCertificate> getPreparedCertificates(int stableSequence) {
+        List<PreparedCertificate> result = new ArrayList<>();
+        for (Transaction t : collSequence.tailMap(stableSequence, false).values()) {
+            t.lock();
+            try {
+                PreparedCertificate certificate = t.getPreparedCertificate();
+                if (certificate == null && config.isSpeculative() && t.isExecutedBefore()) {
+                    /* clients might have completed upon the speculative execution */
+                    certificate = t.getPreprepareCertificate();
+                }
+                if (certificate != null) {
+                    result.add(certificate);
                 }
+            } finally {
+                t.unlock();
             }
+        }
+        return result;
+    }
+
+    /**
+     * creates the next view's transactions (this view must be frozen).
+     *
+     * Every proposal of the new-view message is pre-prepared under its old
+     * sequence within the new view, together with the client commands that
+     * are already known, so only its prepare and commit rounds are repeated.
+     * Proposals that were executed here already are not executed again.
+     * All other client operations are handed over as unordered operations,
+     * the new primary batches them after the proposals.
+     *
+     * @param stableSequence the new view's stable checkpoint
+     * @param proposals re-proposed batches (and null requests) in sequence
+     *        order
+     */
+    public TransactionManager createNewEra(int newViewNr, int stableSequence, List<PreparedCertificate> proposals) {
+        if (config.isSpeculative()) {
+            history.lock();
+            try {
+                rollbackSpeculative(proposals);
+            } finally {
+                history.unlock();
+            }
+        } else {
+            rollbackAborted(proposals);
+        }
+
+        TransactionManager next = new TransactionManager(replicaId, newViewNr, f, callbacks, checkpoints, executor, journal, digests, config, commitedFragments, executedBatches, history);
+        next.raiseLastCommited(getLastCommited());
+        int primaryId = newViewNr % (3 * f + 1);
+
+        /* dependency chains only continue upon commited or re-proposed sequences,
+         * batches of this view that were not re-proposed become null requests */
+        next.lastSequenceByFragment.putAll(commitedFragments.getCommited());
+        int maxProposal = stableSequence;
+        for (PreparedCertificate p : proposals) {
+            Transaction t = new Transaction(new PreprepareCommand(newViewNr, p.getSequence(), primaryId, p.getClientOperationIds(), p.getPriorSequences()),
+                    replicaId, newViewNr, f, callbacks, digests);
+            if (!p.isNullRequest()) {
+                t.setCarriedOver(p);
+            }
+            if (p.getDigest(digests).equals(executedBatches.get(p.getSequence()))) {
+                t.setExecutedBefore();
+            }
+
+            for (OperationId id : p.getClientOperationIds()) {
+                next.collClientId.put(id, t);
+            }
+            for (String fragmentId : p.getFragmentIds()) {
+                Integer last = next.lastSequenceByFragment.get(fragmentId);
+                if (last == null || last < p.getSequence()) {
+                    next.lastSequenceByFragment.put(fragmentId, p.getSequence());
+                }
+            }
+            next.collSequence.put(p.getSequence(), t);
+            next.proposed.add(t);
+            maxProposal = Math.max(maxProposal, p.getSequence());
+        }
+        next.maxSequence = Math.max(maxSequence, maxProposal + 1);
+        next.inFlightBatches.set(proposals.size());
+
+        /* hand over all client commands that were not released yet */
+        Map<Transaction, Boolean> known = new IdentityHashMap<>();
+        for (Transaction t : collSequence.values()) {
+            known.put(t, Boolean.TRUE);
+        }
+        for (Transaction t : collClientId.values()) {
+            known.put(t, Boolean.TRUE);
+        }
+
+        List<ClientFragmentCommand> unordered = new ArrayList<>();
+        for (Transaction t : known.keySet()) {
+            t.lock();
+            try {
+                if (t.getAbsorbedBy() != null) {
+                    continue;
+                }
+                for (ClientCommand c : t.getClientCommands()) {
+                    Transaction proposal = next.collClientId.get(c.getClientOperationId(digests));
+                    if (proposal != null) {
+                        proposal.addClientCommand(c);
+                    } else if (c instanceof ClientFragmentCommand) {
+                        unordered.add((ClientFragmentCommand) c);
+                    }
+                }
+            } finally {
+                t.unlock();
+            }
+        }
+
+        for (ClientFragmentCommand c : unordered) {
+            next.handleClientFragmentCommand(c).unlock();
+        }
+        return next;
+    }
+
+    /**
+     * rolls back all tentative executions (latest first) whose batch is not
+     * re-proposed under its sequence
+     */
+    private void rollbackAborted(List<PreparedCertificate> proposals) {
+        Map<Integer, OperationId> kept = getDigests(proposals);
+
+        List<Integer> tentative = executor.getTentative();
+        for (int i = tentative.size() - 1; i >= 0; i--) {
+            int sequence = tentative.get(i);
+            OperationId digest = executedBatches.get(sequence);
+            if (digest == null || !digest.equals(kept.get(sequence))) {
+                rollback(sequence);
+            }
+        }
+    }
+
+    /**
+     * (speculative mode) speculative executions were not ordered after their
+     * prior sequences commited: the first one whose batch is not re-proposed
+     * under its sequence is rolled back together with all later ones
+     * (latest first), their history is walked again
+     *
+     * note: expects the history to be locked
+     */
+    private void rollbackSpeculative(List<PreparedCertificate> proposals) {
+        Map<Integer, OperationId> kept = getDigests(proposals);
+
+        List<Integer> tentative = executor.getTentative();
+        int first = tentative.size();
+        for (int i = 0; i < tentative.size() && first == tentative.size(); i++) {
+            OperationId digest = executedBatches.get(tentative.get(i));
+            if (digest == null || !digest.equals(kept.get(tentative.get(i)))) {
+                first = i;
+            }
+        }
+
+        for (int i = tentative.size() - 1; i >= first; i--) {
+            rollback(tentative.get(i));
+        }
+        if (first < tentative.size()) {
+            history.truncate(tentative.get(first));
+        }
+    }
+
+    /**
+     * @return (sequence) -> batch digest of all proposals
+     */
+    private Map<Integer, OperationId> getDigests(List<PreparedCertificate> proposals) {
+        Map<Integer, OperationId> batches = new HashMap<>();
+        for (PreparedCertificate p : proposals) {
+            batches.put(p.getSequence(), p.getDigest(digests));
+        }
+        return batches;
+    }
+
+    private void rollback(int sequence) {
+        try {
+            executor.rollback(sequence);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while rolling back sequence " + sequence, e);
+        }
+        executedBatches.remove(sequence);
+        logger.info("server {}: rolled back tentative execution of sequence {}", replicaId, sequence);
+    }
+
+    /**
+     * @return the transactions re-proposed within this view, those must be
+     *         advanced once the view is installed
+     */
+    List<Transaction> getProposed() {
+        return Collections.unmodifiableList(this.proposed);
+    }
+
+    /**
+     * @return the client command (if still known) of an operation of this
+     *         view
+     */
+    ClientCommand getClientCommand(OperationId id) {
+        Transaction t = collClientId.get(id);
+        if (t == null) {
+            return null;
+        }
+        t = lockTransaction(t);
+        try {
+            return t.getClientCommand(id);
         } finally {
-            lockCollections.unlock();
+            t.unlock();
         }
-        
-        return newEra;
     }
-        
+
     public int getLastCommited() {
-        return this.lastCommited;
+        return this.lastCommited.get();
     }
-    
+
+    FragmentWatermarks getCommitedFragments() {
+        return this.commitedFragments;
+    }
+
     public int getViewNr() {
         return this.viewNr;
     }
-    
+
     boolean isPrimary() {
         return this.replicaId == (viewNr % (3*f + 1));
     }
 
-    void newCommited(int sequenceNr) {
-        this.lastCommited = Math.max(sequenceNr, this.lastCommited);
+    private void raiseLastCommited(int sequenceNr) {
+        int current = lastCommited.get();
+        while (sequenceNr > current && !lastCommited.compareAndSet(current, sequenceNr)) {
+            current = lastCommited.get();
+        }
     }
 
-    void addTransaction(Transaction t) {
+    /**
+     * executes the just prepared transaction tentatively (if enabled)
+     *
+     * note: expects t to be locked
+     */
+    void newPrepared(Transaction t) {
+        if (config.isTentativeExecution() && t.getSequenceNr() > checkpoints.getTransferredUpTo() && !t.isExecutedBefore()) {
+            executor.executeTentatively(t, viewNr);
+            executedBatches.put(t.getSequenceNr(), t.getClientOperationId());
+            t.setExecutedBefore();
+        }
+    }
+
+    /**
+     * hands the transaction to the execution stage, raises the commited
+     * watermarks and moves all transactions that were waiting for this
+     * sequence to the ready queue
+     *
+     * note: expects t to be locked. The transaction must be handed to the
+     * execution stage before its successors can commit, this keeps the
+     * per-fragment execution order.
+     */
+    void newCommited(Transaction t) {
+        /* the state of transferred sequences was already installed, re-proposed
+         * batches might have been executed within the prior view */
+        if (t.getSequenceNr() > checkpoints.getTransferredUpTo()) {
+            List<ClientCommand> tentative = executor.getTentativeCommands(t.getSequenceNr());
+            if (tentative != null) {
+                /* only confirms the execution */
+                if (journal != null) {
+                    journal.logCommited(t.getSequenceNr(), viewNr, tentative);
+                }
+                executor.commit(t.getSequenceNr());
+            } else if (!t.isExecutedBefore()) {
+                if (journal != null) {
+                    journal.logCommited(t.getSequenceNr(), viewNr, t.getClientCommands());
+                }
+                executor.execute(t, viewNr);
+                executedBatches.put(t.getSequenceNr(), t.getClientOperationId());
+            }
+        }
+        t.releaseClientCommands();
+
+        int sequenceNr = t.getSequenceNr();
+        raiseLastCommited(sequenceNr);
 
-        if (t.hasClientInteraction()) {
-            
-            Transaction newT = new Transaction(t.getClientCommand(), replicaId, f, callbacks);
-            
-            this.collClientId.put(newT.getClientOperationId(), newT);
-            this.collSequence.put(newT.getSequenceNr(), newT);
+        for (String fragmentId : t.getFragmentIds()) {
+            commitedFragments.newCommited(fragmentId, sequenceNr);
+        }
 
-            if (isPrimary()) {
-                this.callbacks.sendToReplicas(newT.createPreprepareCommand());
+        Queue<Transaction> waiting = waitingForPrior.remove(sequenceNr);
+        if (waiting != null) {
+            readyTransactions.addAll(waiting);
+        }
 
-                /* generates pre-prepare commands and sets state to prepared */
-                newT.tryAdvanceToPreprepared(true);
-            }
-        } else {
-            /* TODO: create copies of t */
-            
-            /* means that it will be added */
-            this.collClientId.put(t.getClientOperationId(), t);
-            this.collSequence.put(t.getSequenceNr(), t);
+        if (isPrimary()) {
+            inFlightBatches.decrementAndGet();
         }
     }
 }
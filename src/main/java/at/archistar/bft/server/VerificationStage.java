@@ -0,0 +1,93 @@
+package at.archistar.bft.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.archistar.bft.messages.IntraReplicaCommand;
+import at.archistar.bft.messages.MacAuthenticator;
+
+/**
+ * verifies the MAC authenticators of incoming replica messages before they
+ * are processed by the BFT engine. Messages with invalid authenticators are
+ * reported and dropped, they never reach the transaction tables.
+ *
+ * With worker threads verification is done in parallel (and might reorder
+ * messages, which the protocol tolerates), otherwise messages are verified
+ * by the calling thread.
+ *
+ * @author andy
+ */
+public class VerificationStage {
+
+    private final Logger logger = LoggerFactory.getLogger(VerificationStage.class);
+
+    private final BftEngine engine;
+
+    private final MacAuthenticator authenticator;
+
+    private final BftEngineCallbacks callbacks;
+
+    /**
+     * null if messages are verified inline
+     */
+    private final ExecutorService workers;
+
+    public VerificationStage(BftEngine engine, MacAuthenticator authenticator, BftEngineCallbacks callbacks, int threads, int replicaId) {
+        this.engine = engine;
+        this.authenticator = authenticator;
+        this.callbacks = callbacks;
+
+        if (threads > 0) {
+            final AtomicInteger count = new AtomicInteger(0);
+            final String prefix = "bft-verification-" + replicaId + "-";
+            this.workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, prefix + count.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        } else {
+            this.workers = null;
+        }
+    }
+
+    public void submit(final IntraReplicaCommand cmd) {
+        if (workers == null) {
+            verify(cmd);
+        } else {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    verify(cmd);
+                }
+            });
+        }
+    }
+
+    private void verify(IntraReplicaCommand cmd) {
+        if (authenticator.verify(cmd)) {
+            engine.processVerified(cmd);
+        } else {
+            logger.warn("dropping message with invalid authenticator: {}", cmd);
+            callbacks.invalidMessageReceived(cmd);
+        }
+    }
+
+    /**
+     * waits until all submitted messages were verified (and handed on)
+     */
+    public void shutdown() throws InterruptedException {
+        if (workers != null) {
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+}
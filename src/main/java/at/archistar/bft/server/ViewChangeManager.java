@@ -0,0 +1,481 @@
+package at.archistar.bft.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.archistar.bft.messages.IntraReplicaCommand;
+import at.archistar.bft.messages.MessageType;
+import at.archistar.bft.messages.NewViewMessage;
+import at.archistar.bft.messages.PreparedCertificate;
+import at.archistar.bft.messages.ViewChangeMessage;
+
+/**
+ * moves the replica from one view to the next (PBFT view change).
+ *
+ * A replica leaving its view freezes the current transactions and sends a
+ * view-change message with its stable checkpoint and the certificates of all
+ * batches it prepared after it. It joins a view change as soon as f+1
+ * replicas moved to a higher view. The new view's primary waits for 2f+1
+ * view-change messages (including its own), selects the stable checkpoint
+ * and re-proposes the newest prepared batch of every sequence after it; gaps
+ * are filled with null requests. Every re-proposed batch keeps its sequence
+ * and prior sequences, so only the prepare and commit rounds are repeated.
+ * Correct replicas never prepare different batches for a sequence within
+ * the same view, so view-change messages reporting that are conflicting:
+ * the primary picks another set of 2f+1 view-change messages (or waits for
+ * further ones).
+ *
+ * Authenticators cannot be forwarded, so backups recompute the new-view's
+ * proposals from the named view-change messages and only install the view
+ * if the result matches. If the new view does not get installed within the
+ * view-change timeout the replica moves on to the next view (doubling the
+ * timeout).
+ *
+ * Messages of views that are not installed yet are held back and processed
+ * after the installation.
+ *
+ * @author andy
+ */
+public class ViewChangeManager {
+
+    private final Logger logger = LoggerFactory.getLogger(ViewChangeManager.class);
+
+    /**
+     * upper bound of held back messages, protects against replicas flooding
+     * future views
+     */
+    private static final int MAX_HELD_BACK = 1 << 20;
+
+    private final BftEngine engine;
+
+    private final int replicaId;
+
+    private final int f;
+
+    private final BftEngineCallbacks callbacks;
+
+    private final CheckpointManager checkpoints;
+
+    private final BftEngineConfiguration config;
+
+    private int installedView;
+
+    /**
+     * the view this replica is moving to (equals installedView if there's
+     * no view change in progress)
+     */
+    private int pendingView;
+
+    private volatile boolean changing = false;
+
+    private long startedAt = 0;
+
+    /**
+     * current view-change timeout (in milliseconds)
+     */
+    private long timeout;
+
+    /**
+     * (view) -> (source replica) -> view-change message
+     */
+    private final SortedMap<Integer, SortedMap<Integer, ViewChangeMessage>> viewChanges = new TreeMap<>();
+
+    private NewViewMessage pendingNewView = null;
+
+    /**
+     * (view) -> messages of that view that arrived before it was installed
+     */
+    private final SortedMap<Integer, List<IntraReplicaCommand>> heldBack = new TreeMap<>();
+
+    private int heldBackCount = 0;
+
+    /**
+     * held back messages of the installed view, processed by the engine
+     */
+    private final List<IntraReplicaCommand> released = new ArrayList<>();
+
+    public ViewChangeManager(BftEngine engine, int replicaId, int f, BftEngineCallbacks callbacks, CheckpointManager checkpoints, BftEngineConfiguration config, int viewNr) {
+        this.engine = engine;
+        this.replicaId = replicaId;
+        this.f = f;
+        this.callbacks = callbacks;
+        this.checkpoints = checkpoints;
+        this.config = config;
+        this.installedView = viewNr;
+        this.pendingView = viewNr;
+        this.timeout = config.getViewChangeTimeout();
+    }
+
+    private int primaryOf(int viewNr) {
+        return viewNr % (3 * f + 1);
+    }
+
+    /**
+     * @return true while the replica is moving to a new view
+     */
+    public boolean isChanging() {
+        return this.changing;
+    }
+
+    public synchronized int getPendingView() {
+        return this.pendingView;
+    }
+
+    /**
+     * leaves the current view, the replica moves to the given view
+     */
+    public synchronized void start(int newViewNr) {
+        startViewChange(newViewNr);
+    }
+
+    private void startViewChange(int newViewNr) {
+        if (newViewNr <= pendingView) {
+            return;
+        }
+
+        TransactionManager era = engine.getCurrentEra();
+        era.freeze();
+
+        if (!changing) {
+            startedAt = System.nanoTime();
+        }
+        pendingView = newViewNr;
+        changing = true;
+
+        int stable = checkpoints.getLowWaterMark();
+        ViewChangeMessage own = new ViewChangeMessage(replicaId, stable, newViewNr, era.getPreparedCertificates(stable));
+        store(own);
+        callbacks.sendToReplicas(own);
+        logger.info("server {}: view change to {}, {} prepared batches after checkpoint {}", replicaId, newViewNr, own.getPrepared().size(), stable);
+
+        tryComplete();
+    }
+
+    private void store(ViewChangeMessage msg) {
+        SortedMap<Integer, ViewChangeMessage> forView = viewChanges.get(msg.getViewNr());
+        if (forView == null) {
+            forView = new TreeMap<>();
+            viewChanges.put(msg.getViewNr(), forView);
+        }
+        forView.put(msg.getSourceReplicaId(), msg);
+    }
+
+    /**
+     * handles view-change and new-view messages
+     */
+    public synchronized void handle(IntraReplicaCommand cmd) {
+        if (cmd.getViewNr() <= installedView) {
+            logger.debug("server {}: ignoring {} of an installed view", replicaId, cmd);
+            return;
+        }
+
+        if (cmd.getType() == MessageType.VIEW_CHANGE) {
+            handleViewChange((ViewChangeMessage) cmd);
+        } else if (cmd.getType() == MessageType.NEW_VIEW) {
+            handleNewView((NewViewMessage) cmd);
+        } else {
+            callbacks.invalidMessageReceived(cmd);
+        }
+    }
+
+    private void handleViewChange(ViewChangeMessage msg) {
+        store(msg);
+
+        /* f+1 replicas (at least one correct one) left their view: join the smallest view they moved to */
+        SortedMap<Integer, SortedMap<Integer, ViewChangeMessage>> higher = viewChanges.tailMap(pendingView + 1);
+        Set<Integer> sources = new HashSet<>();
+        for (Map<Integer, ViewChangeMessage> forView : higher.values()) {
+            sources.addAll(forView.keySet());
+        }
+        if (sources.size() >= f + 1) {
+            startViewChange(higher.firstKey());
+        }
+
+        tryComplete();
+    }
+
+    private void handleNewView(NewViewMessage msg) {
+        int viewNr = msg.getViewNr();
+        if (msg.getSourceReplicaId() != primaryOf(viewNr)) {
+            callbacks.invalidMessageReceived(msg);
+            return;
+        }
+        if (viewNr < pendingView) {
+            logger.debug("server {}: ignoring outdated {}", replicaId, msg);
+            return;
+        }
+
+        startViewChange(viewNr);
+        pendingNewView = msg;
+        tryComplete();
+    }
+
+    /**
+     * installs the pending view if enough view-change messages (and the
+     * primary's new-view message) were received
+     */
+    private void tryComplete() {
+        if (!changing) {
+            return;
+        }
+
+        int viewNr = pendingView;
+        SortedMap<Integer, ViewChangeMessage> received = viewChanges.get(viewNr);
+        if (received == null) {
+            return;
+        }
+
+        if (primaryOf(viewNr) == replicaId) {
+            if (received.size() < 2 * f + 1 || !received.containsKey(replicaId)) {
+                return;
+            }
+
+            /* own view-change message plus the ones of the lowest replica ids without conflicts */
+            List<ViewChangeMessage> used = new ArrayList<>();
+            used.add(received.get(replicaId));
+            List<ViewChangeMessage> others = new ArrayList<>();
+            for (ViewChangeMessage msg : received.values()) {
+                if (msg.getSourceReplicaId() != replicaId) {
+                    others.add(msg);
+                }
+            }
+            if (!propose(viewNr, used, others, 0)) {
+                logger.warn("server {}: conflicting view-change messages for view {}, waiting for further ones", replicaId, viewNr);
+            }
+        } else if (pendingNewView != null && pendingNewView.getViewNr() == viewNr) {
+            List<ViewChangeMessage> used = getNamedViewChanges(pendingNewView, received);
+            if (used == null) {
+                /* wait for the missing view-change messages */
+                return;
+            }
+
+            int stable = selectStableCheckpoint(used, f);
+            List<PreparedCertificate> proposals = selectProposals(used, stable, config.getWatermarkWindow(), viewNr);
+            if (proposals != null && stable == pendingNewView.getStableCheckpoint() && matches(proposals, pendingNewView.getProposals())) {
+                install(viewNr, stable, proposals);
+            } else {
+                logger.warn("server {}: new-view message of view {} does not match its view-change messages", replicaId, viewNr);
+                callbacks.invalidMessageReceived(pendingNewView);
+                pendingNewView = null;
+                startViewChange(viewNr + 1);
+            }
+        }
+    }
+
+    /**
+     * completes the used view-change messages with others (from the given
+     * index on) until a set of 2f+1 without conflicts is found, the new view
+     * is proposed and installed then
+     *
+     * @return false if every set is conflicting
+     */
+    private boolean propose(int viewNr, List<ViewChangeMessage> used, List<ViewChangeMessage> others, int next) {
+        if (used.size() == 2 * f + 1) {
+            int stable = selectStableCheckpoint(used, f);
+            List<PreparedCertificate> proposals = selectProposals(used, stable, config.getWatermarkWindow(), viewNr);
+            if (proposals == null) {
+                return false;
+            }
+
+            int[] sources = new int[used.size()];
+            for (int i = 0; i < sources.length; i++) {
+                sources[i] = used.get(i).getSourceReplicaId();
+            }
+            callbacks.sendToReplicas(new NewViewMessage(replicaId, stable, viewNr, sources, proposals));
+            install(viewNr, stable, proposals);
+            return true;
+        }
+
+        for (int i = next; i <= others.size() - (2 * f + 1 - used.size()); i++) {
+            used.add(others.get(i));
+            if (propose(viewNr, used, others, i + 1)) {
+                return true;
+            }
+            used.remove(used.size() - 1);
+        }
+        return false;
+    }
+
+    /**
+     * @return the view-change messages named by the new-view message, null
+     *         if not all of them were received yet
+     */
+    private List<ViewChangeMessage> getNamedViewChanges(NewViewMessage msg, Map<Integer, ViewChangeMessage> received) {
+        int[] sources = msg.getViewChangeSources();
+        Set<Integer> distinct = new HashSet<>();
+        for (int source : sources) {
+            distinct.add(source);
+        }
+
+        List<ViewChangeMessage> used = new ArrayList<>();
+        if (distinct.size() != sources.length || sources.length < 2 * f + 1) {
+            return used;
+        }
+
+        for (int source : sources) {
+            ViewChangeMessage vc = received.get(source);
+            if (vc == null) {
+                return null;
+            }
+            used.add(vc);
+        }
+        return used;
+    }
+
+    private static boolean matches(List<PreparedCertificate> expected, List<PreparedCertificate> proposals) {
+        if (expected.size() != proposals.size()) {
+            return false;
+        }
+        for (int i = 0; i < expected.size(); i++) {
+            if (!expected.get(i).sameBatch(proposals.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the (f+1)-th highest claimed stable checkpoint, at least one
+     *         correct replica vouches for it
+     */
+    static int selectStableCheckpoint(Collection<ViewChangeMessage> used, int f) {
+        List<Integer> claimed = new ArrayList<>();
+        for (ViewChangeMessage msg : used) {
+            claimed.add(msg.getStableCheckpoint());
+        }
+        Collections.sort(claimed, Collections.reverseOrder());
+        return claimed.size() > f ? claimed.get(f) : -1;
+    }
+
+    /**
+     * @return the newest prepared batch of every sequence within the window
+     *         after the stable checkpoint, gaps are filled with null
+     *         requests of the new view. Certificates of the new view (or
+     *         later ones) are dropped. A committed batch might only be
+     *         reported by a single correct replica, so any certificate is
+     *         accepted unless a newer one contradicts it. Null if different
+     *         batches are reported as the newest ones of a sequence (within
+     *         the same view), at least one of the reporters is faulty then.
+     */
+    static List<PreparedCertificate> selectProposals(Collection<ViewChangeMessage> used, int stable, int window, int newViewNr) {
+
+        SortedMap<Integer, PreparedCertificate> selected = new TreeMap<>();
+        Set<Integer> conflicting = new HashSet<>();
+        for (ViewChangeMessage msg : used) {
+            for (PreparedCertificate certificate : msg.getPrepared()) {
+                int sequence = certificate.getSequence();
+                if (sequence <= stable || (long) sequence - stable > window
+                        || certificate.getViewNr() < 0 || certificate.getViewNr() >= newViewNr) {
+                    continue;
+                }
+
+                PreparedCertificate current = selected.get(sequence);
+                if (current == null || certificate.getViewNr() > current.getViewNr()) {
+                    selected.put(sequence, certificate);
+                    conflicting.remove(sequence);
+                } else if (certificate.getViewNr() == current.getViewNr() && !certificate.sameBatch(current)) {
+                    conflicting.add(sequence);
+                }
+            }
+        }
+        if (!conflicting.isEmpty()) {
+            return null;
+        }
+
+        List<PreparedCertificate> proposals = new ArrayList<>();
+        if (selected.isEmpty()) {
+            return proposals;
+        }
+        for (int sequence = stable + 1; sequence <= selected.lastKey(); sequence++) {
+            PreparedCertificate certificate = selected.get(sequence);
+            proposals.add(certificate != null ? certificate : PreparedCertificate.nullRequest(newViewNr, sequence));
+        }
+        return proposals;
+    }
+
+    private void install(int viewNr, int stable, List<PreparedCertificate> proposals) {
+        engine.installView(viewNr, stable, proposals);
+
+        logger.info("server {}: installed view {} after {}ms, {} re-proposed sequences after checkpoint {}", replicaId, viewNr,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt), proposals.size(), stable);
+
+        installedView = viewNr;
+        changing = false;
+        pendingNewView = null;
+        timeout = config.getViewChangeTimeout();
+        viewChanges.headMap(viewNr + 1).clear();
+
+        SortedMap<Integer, List<IntraReplicaCommand>> outdated = heldBack.headMap(viewNr + 1);
+        List<IntraReplicaCommand> early = outdated.get(viewNr);
+        if (early != null) {
+            released.addAll(early);
+        }
+        for (List<IntraReplicaCommand> msgs : outdated.values()) {
+            heldBackCount -= msgs.size();
+        }
+        outdated.clear();
+    }
+
+    /**
+     * holds back messages of views that are not installed yet, messages of
+     * a view that is left are dropped
+     *
+     * @return false if the message belongs to the installed view and should
+     *         be processed
+     */
+    public synchronized boolean holdBack(IntraReplicaCommand cmd) {
+        int viewNr = cmd.getViewNr();
+        if (viewNr == installedView && !changing) {
+            return false;
+        }
+
+        if (viewNr > installedView && heldBackCount < MAX_HELD_BACK) {
+            List<IntraReplicaCommand> msgs = heldBack.get(viewNr);
+            if (msgs == null) {
+                msgs = new ArrayList<>();
+                heldBack.put(viewNr, msgs);
+            }
+            msgs.add(cmd);
+            heldBackCount++;
+        } else {
+            logger.debug("server {}: dropping {} during view change", replicaId, cmd);
+        }
+        return true;
+    }
+
+    /**
+     * @return held back messages of the just installed view
+     */
+    public synchronized List<IntraReplicaCommand> takeReleased() {
+        if (released.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<IntraReplicaCommand> result = new ArrayList<>(released);
+        released.clear();
+        return result;
+    }
+
+    /**
+     * moves on to the next view if the pending one was not installed in
+     * time
+     */
+    public synchronized void checkTimeout() {
+        if (changing && TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt) >= timeout) {
+            logger.warn("server {}: view {} was not installed within {}ms", replicaId, pendingView, timeout);
+            timeout *= 2;
+            startedAt = System.nanoTime();
+            startViewChange(pendingView + 1);
+        }
+    }
+}
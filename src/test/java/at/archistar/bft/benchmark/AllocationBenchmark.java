@@ -0,0 +1,71 @@
+package at.archistar.bft.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import at.archistar.bft.helper.CountingCallbacks;
+import at.archistar.bft.helper.SequenceDriver;
+import at.archistar.bft.messages.AbstractCommand;
+import at.archistar.bft.server.BftEngine;
+import at.archistar.bft.server.BftEngineConfiguration;
+
+/**
+ * Measures how many bytes a replica allocates per processed consensus
+ * message (messages are created up-front and are not counted). Needs a JVM
+ * that supports per-thread allocation counters (HotSpot).
+ *
+ * This is not a unit test, run it manually through its main method:
+ *   java -cp ... at.archistar.bft.benchmark.AllocationBenchmark [operations]
+ *
+ * @author andy
+ */
+public class AllocationBenchmark {
+
+    private AllocationBenchmark() {
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static double run(int operations) {
+
+        BftEngineConfiguration config = new BftEngineConfiguration();
+        config.setWatermarkWindow(Integer.MAX_VALUE);
+
+        CountingCallbacks callbacks = new CountingCallbacks();
+        BftEngine replica = new BftEngine(1, 0, 1, callbacks, config);
+
+        List<List<AbstractCommand>> messages = new ArrayList<>();
+        int count = 0;
+        for (int i = 0; i < operations; i++) {
+            /* this also creates (and caches) the client operation id */
+            List<AbstractCommand> msgs = SequenceDriver.createMessages(0, i);
+            count += msgs.size();
+            messages.add(msgs);
+        }
+
+        long before = allocatedBytes();
+        for (List<AbstractCommand> msgs : messages) {
+            SequenceDriver.deliver(replica, msgs);
+        }
+        long allocated = allocatedBytes() - before;
+
+        if (callbacks.getExecuted() != operations) {
+            throw new IllegalStateException("not all operations were executed");
+        }
+        return (double) allocated / count;
+    }
+
+    public static void main(String[] args) {
+
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+        /* warm-up */
+        run(operations);
+
+        System.out.printf("bytes/message\t%.1f%n", run(operations));
+    }
+}
@@ -0,0 +1,100 @@
+package at.archistar.bft.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import at.archistar.bft.exceptions.InvalidMessageException;
+import at.archistar.bft.helper.DigestHelper;
+import at.archistar.bft.helper.FakeCommand;
+import at.archistar.bft.messages.AbstractCommand;
+import at.archistar.bft.messages.ClientCommand;
+import at.archistar.bft.messages.CommitCommand;
+import at.archistar.bft.messages.MessageCodec;
+import at.archistar.bft.messages.OperationId;
+import at.archistar.bft.messages.PrepareCommand;
+import at.archistar.bft.messages.PreprepareCommand;
+
+/**
+ * Compares encoding and decoding (round-trip) of the binary MessageCodec with
+ * java serialization (ObjectOutputStream/ObjectInputStream) for the messages
+ * of a consensus round.
+ *
+ * This is not a unit test, run it manually through its main method:
+ *   java -cp ... at.archistar.bft.benchmark.CodecBenchmark [iterations]
+ *
+ * @author andy
+ */
+public class CodecBenchmark {
+
+    private static volatile Object sink;
+
+    private CodecBenchmark() {
+    }
+
+    private static byte[] serialize(AbstractCommand cmd) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(cmd);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return in.readObject();
+        }
+    }
+
+    private static double javaSerialization(AbstractCommand cmd, int iterations) throws IOException, ClassNotFoundException {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink = deserialize(serialize(cmd));
+        }
+        return (double) (System.nanoTime() - start) / iterations;
+    }
+
+    private static double codec(AbstractCommand cmd, int iterations) throws InvalidMessageException {
+        ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.encodedSize(cmd));
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            buffer.clear();
+            MessageCodec.encode(cmd, buffer);
+            buffer.flip();
+            sink = MessageCodec.decode(buffer);
+        }
+        return (double) (System.nanoTime() - start) / iterations;
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        byte[] payload = new byte[1024];
+        Arrays.fill(payload, (byte) 42);
+        ClientCommand client = new FakeCommand(1, 1, "fragment-1", payload);
+        OperationId id = client.getClientOperationId(new DigestHelper());
+
+        AbstractCommand[] messages = {
+            client,
+            new PreprepareCommand(0, 1, 0, id, -2),
+            new PrepareCommand(0, 1, 2, id),
+            new CommitCommand(0, 1, 2)
+        };
+
+        System.out.println("message\tserialization ns\tcodec ns\tserialization bytes\tcodec bytes");
+        for (AbstractCommand cmd : messages) {
+            /* warm-up */
+            javaSerialization(cmd, iterations / 10);
+            codec(cmd, iterations / 10);
+
+            System.out.printf("%s\t%.0f\t%.0f\t%d\t%d%n", cmd.getType(),
+                    javaSerialization(cmd, iterations), codec(cmd, iterations),
+                    serialize(cmd).length, MessageCodec.encodedSize(cmd));
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package at.archistar.bft.benchmark;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import at.archistar.bft.helper.DigestHelper;
+
+/**
+ * Compares client operation id creation of the former DigestHelper (one
+ * shared, synchronized MessageDigest with hex output) with the current one
+ * (per-thread digests, binary output) and with packed operation ids.
+ *
+ * This is not a unit test, run it manually through its main method:
+ *   java -cp ... at.archistar.bft.benchmark.DigestBenchmark [ids per thread]
+ *
+ * @author andy
+ */
+public class DigestBenchmark {
+
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8};
+
+    private static MessageDigest legacyMd;
+
+    private static volatile Object sink;
+
+    private DigestBenchmark() {
+    }
+
+    /**
+     * mirrors the former implementation (hex through BigInteger as
+     * HexBinaryAdapter is not available on all JDKs)
+     */
+    private static synchronized String legacyClientOperationId(int clientId, int clientSequence) {
+        legacyMd.update(ByteBuffer.allocate(4).putInt(clientId).array());
+        legacyMd.update(ByteBuffer.allocate(4).putInt(clientSequence).array());
+        return new BigInteger(1, legacyMd.digest()).toString(16);
+    }
+
+    /**
+     * @param digests null runs the legacy variant
+     */
+    private static long run(final DigestHelper digests, int threadCount, final int perThread) throws InterruptedException {
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            final int clientId = i;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    Object last = null;
+                    for (int j = 0; j < perThread; j++) {
+                        if (digests == null) {
+                            last = legacyClientOperationId(clientId, j);
+                        } else {
+                            last = digests.getClientOperationId(clientId, j);
+                        }
+                    }
+                    sink = last;
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) throws InterruptedException, NoSuchAlgorithmException {
+
+        int perThread = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        legacyMd = MessageDigest.getInstance("SHA-256");
+
+        String[] variants = {"legacy", DigestHelper.OperationIdMode.HASHED.name(), DigestHelper.OperationIdMode.PACKED.name()};
+
+        System.out.println("variant\tthreads\tids/s");
+        for (String variant : variants) {
+            DigestHelper digests = null;
+            if (!"legacy".equals(variant)) {
+                digests = new DigestHelper(DigestHelper.DEFAULT_ALGORITHM, DigestHelper.OperationIdMode.valueOf(variant));
+            }
+
+            /* warm-up */
+            run(digests, 2, perThread / 10);
+
+            for (int threadCount : THREAD_COUNTS) {
+                long duration = run(digests, threadCount, perThread);
+                System.out.printf("%s\t%d\t%.0f%n", variant, threadCount, (double) threadCount * perThread / (duration / 1e9));
+            }
+        }
+    }
+}
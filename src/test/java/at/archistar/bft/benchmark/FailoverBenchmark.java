@@ -0,0 +1,137 @@
+package at.archistar.bft.benchmark;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import at.archistar.bft.helper.CountingCallbacks;
+import at.archistar.bft.helper.FakeCommand;
+import at.archistar.bft.messages.IntraReplicaCommand;
+import at.archistar.bft.messages.MessageType;
+import at.archistar.bft.server.BftEngine;
+import at.archistar.bft.server.BftEngineConfiguration;
+
+/**
+ * Measures the failover latency of a view change: four replicas (within a
+ * single in-memory network) prepare the given amount of operations, but all
+ * commits are lost. Afterwards the primary crashes and the remaining
+ * replicas move to the next view. The time from the view change's start
+ * until every operation was executed by all remaining replicas is reported.
+ *
+ * This is not a unit test, run it manually through its main method:
+ *   java -cp ... at.archistar.bft.benchmark.FailoverBenchmark [operations]
+ *
+ * @author andy
+ */
+public class FailoverBenchmark {
+
+    private static final int REPLICAS = 4;
+
+    private final BftEngine[] engines = new BftEngine[REPLICAS];
+
+    private final CountingCallbacks[] servers = new CountingCallbacks[REPLICAS];
+
+    private final Queue<Object[]> network = new ArrayDeque<>();
+
+    private boolean primaryCrashed = false;
+
+    private final byte[] data = new byte[64];
+
+    private FailoverBenchmark(int operations, int batchSize) {
+        BftEngineConfiguration config = new BftEngineConfiguration();
+        config.setWatermarkWindow(Math.max(1024, 2 * operations));
+        config.setMaxBatchSize(batchSize);
+
+        for (int i = 0; i < REPLICAS; i++) {
+            final int replicaId = i;
+            servers[i] = new CountingCallbacks() {
+                @Override
+                public void sendToReplicas(IntraReplicaCommand cmd) {
+                    for (int target = 0; target < REPLICAS; target++) {
+                        if (target != replicaId) {
+                            network.add(new Object[] {target, cmd});
+                        }
+                    }
+                }
+            };
+            engines[i] = new BftEngine(i, 0, 1, servers[i], config);
+        }
+    }
+
+    private void deliverAll() {
+        Object[] delivery;
+        while ((delivery = network.poll()) != null) {
+            int target = (Integer) delivery[0];
+            IntraReplicaCommand cmd = (IntraReplicaCommand) delivery[1];
+            if (primaryCrashed && (target == 0 || cmd.getSourceReplicaId() == 0)) {
+                continue;
+            }
+            /* all commits of the first view are lost */
+            if (!primaryCrashed && cmd.getType() == MessageType.COMMIT) {
+                continue;
+            }
+            engines[target].processIntraReplicaCommand(cmd);
+        }
+    }
+
+    private void prepare(int operations) throws InterruptedException {
+        for (int i = 0; i < operations; i++) {
+            for (BftEngine engine : engines) {
+                engine.processClientCommand(new FakeCommand(1, i, "fragment-" + i, data));
+            }
+            deliverAll();
+        }
+
+        /* flush the last (partial) batch */
+        Thread.sleep(20);
+        engines[0].checkPendingBatch();
+        deliverAll();
+    }
+
+    /**
+     * @return the failover latency in milliseconds
+     */
+    private double failover(int operations) {
+        primaryCrashed = true;
+
+        long start = System.nanoTime();
+        for (int i = 1; i < REPLICAS; i++) {
+            engines[i].tryAdvanceEra();
+        }
+        deliverAll();
+        long duration = System.nanoTime() - start;
+
+        for (int i = 1; i < REPLICAS; i++) {
+            if (servers[i].getExecuted() != operations || engines[i].getViewNr() != 1) {
+                throw new IllegalStateException("replica " + i + " executed " + servers[i].getExecuted() + " operations in view " + engines[i].getViewNr());
+            }
+        }
+        return duration / 1e6;
+    }
+
+    private void shutdown() throws InterruptedException {
+        for (BftEngine engine : engines) {
+            engine.shutdown();
+        }
+    }
+
+    private static double run(int operations, int batchSize) throws InterruptedException {
+        FailoverBenchmark benchmark = new FailoverBenchmark(operations, batchSize);
+        benchmark.prepare(operations);
+        double latency = benchmark.failover(operations);
+        benchmark.shutdown();
+        return latency;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+
+        /* warm-up */
+        run(operations, 16);
+
+        System.out.println("in-flight\tbatch size\tfailover (ms)");
+        for (int batchSize : new int[] {1, 16, 64}) {
+            System.out.printf("%d\t%d\t%.1f%n", operations, batchSize, run(operations, batchSize));
+        }
+    }
+}
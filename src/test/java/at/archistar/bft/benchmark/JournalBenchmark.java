@@ -0,0 +1,92 @@
+package at.archistar.bft.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import at.archistar.bft.helper.CountingCallbacks;
+import at.archistar.bft.helper.SequenceDriver;
+import at.archistar.bft.messages.AbstractCommand;
+import at.archistar.bft.server.BftEngine;
+import at.archistar.bft.server.BftEngineConfiguration;
+
+/**
+ * Measures the throughput of a single replica without journal, with a
+ * journal that is never forced and with group-commited (fsync'ed) journal.
+ * The time includes flushing the journal and sending all held back votes.
+ *
+ * This is not a unit test, run it manually through its main method:
+ *   java -cp ... at.archistar.bft.benchmark.JournalBenchmark [operations] [directory]
+ *
+ * @author andy
+ */
+public class JournalBenchmark {
+
+    private JournalBenchmark() {
+    }
+
+    private static long run(File directory, boolean sync, int operations) throws InterruptedException {
+
+        BftEngineConfiguration config = new BftEngineConfiguration();
+        config.setWatermarkWindow(Integer.MAX_VALUE);
+        config.setProcessingMode(BftEngineConfiguration.ProcessingMode.SINGLE_WRITER);
+        config.setJournalDirectory(directory);
+        config.setJournalSync(sync);
+
+        CountingCallbacks callbacks = new CountingCallbacks();
+        BftEngine replica = new BftEngine(1, 0, 1, callbacks, config);
+
+        List<List<AbstractCommand>> msgs = new ArrayList<>();
+        for (int i = 0; i < operations; i++) {
+            msgs.add(SequenceDriver.createMessages(0, i));
+        }
+
+        long start = System.nanoTime();
+        for (List<AbstractCommand> m : msgs) {
+            SequenceDriver.deliver(replica, m);
+        }
+        replica.shutdown();
+        long duration = System.nanoTime() - start;
+
+        if (callbacks.getExecuted() != operations) {
+            throw new IllegalStateException("not all operations were executed");
+        }
+        return duration;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IllegalStateException("could not delete " + file);
+        }
+    }
+
+    private static void report(String name, int operations, long duration) {
+        System.out.printf("%s\t%.0f%n", name, operations / (duration / 1e9));
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        File base = args.length > 1 ? new File(args[1]) : new File(System.getProperty("java.io.tmpdir"), "bft-journal-benchmark");
+
+        /* warm-up */
+        run(null, false, operations / 10);
+
+        System.out.println("journal\toperations/s");
+        report("none", operations, run(null, false, operations));
+
+        delete(base);
+        report("no-sync", operations, run(new File(base, "no-sync"), false, operations));
+
+        delete(base);
+        report("group-commit", operations, run(new File(base, "sync"), true, operations));
+        delete(base);
+    }
+}
@@ -0,0 +1,132 @@
+package at.archistar.bft.benchmark;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import at.archistar.bft.client.ClientConfiguration;
+import at.archistar.bft.client.ClientResult;
+import at.archistar.bft.client.FullResultRequester;
+import at.archistar.bft.client.ResultManager;
+import at.archistar.bft.exceptions.InconsistentResultsException;
+import at.archistar.bft.helper.CountingCallbacks;
+import at.archistar.bft.helper.FakeCommand;
+import at.archistar.bft.messages.ClientCommand;
+import at.archistar.bft.messages.IntraReplicaCommand;
+import at.archistar.bft.messages.MessageCodec;
+import at.archistar.bft.messages.ResultRequest;
+import at.archistar.bft.messages.TransactionResult;
+import at.archistar.bft.server.BftEngine;
+import at.archistar.bft.server.BftEngineConfiguration;
+
+/**
+ * Measures the reply bandwidth: four replicas (within a single in-memory
+ * network) order and execute the given amount of read operations, every
+ * operation returns a result of the given size. All replies are encoded
+ * (MessageCodec) and handed to the client's result manager. Reports the
+ * encoded reply bytes per operation with full and with digest replies.
+ *
+ * This is not a unit test, run it manually through its main method:
+ *   java -cp ... at.archistar.bft.benchmark.ReplyBenchmark [operations]
+ *
+ * @author andy
+ */
+public class ReplyBenchmark {
+
+    private static final int REPLICAS = 4;
+
+    private final BftEngine[] engines = new BftEngine[REPLICAS];
+
+    private final Queue<Object[]> network = new ArrayDeque<>();
+
+    private final ResultManager results;
+
+    private long replyBytes = 0;
+
+    private ReplyBenchmark(boolean digestReplies, final int resultSize) {
+        BftEngineConfiguration config = new BftEngineConfiguration();
+        config.setDigestReplies(digestReplies);
+
+        ClientConfiguration clientConfig = new ClientConfiguration();
+        clientConfig.setMatchingResults(true);
+        results = new ResultManager(clientConfig, new FullResultRequester() {
+            @Override
+            public void requestFullResult(int clientId, int clientSequence) {
+                for (BftEngine engine : engines) {
+                    engine.processClientCommand(new ResultRequest(clientId, clientSequence));
+                }
+            }
+        });
+
+        final byte[] result = new byte[resultSize];
+        for (int i = 0; i < REPLICAS; i++) {
+            final int replicaId = i;
+            CountingCallbacks server = new CountingCallbacks() {
+                @Override
+                public void sendToReplicas(IntraReplicaCommand cmd) {
+                    for (int target = 0; target < REPLICAS; target++) {
+                        if (target != replicaId) {
+                            network.add(new Object[] {target, cmd});
+                        }
+                    }
+                }
+
+                @Override
+                public byte[] executeClientCommand(ClientCommand cmd) {
+                    return result;
+                }
+
+                @Override
+                public void answerClient(TransactionResult tx) {
+                    replyBytes += MessageCodec.encodedSize(tx);
+                    try {
+                        results.addClientResponse(tx.getClientId(), tx.getClientSequence(), tx);
+                    } catch (InconsistentResultsException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+            engines[i] = new BftEngine(i, 0, 1, server, config);
+        }
+    }
+
+    private void deliverAll() {
+        Object[] delivery;
+        while ((delivery = network.poll()) != null) {
+            engines[(Integer) delivery[0]].processIntraReplicaCommand((IntraReplicaCommand) delivery[1]);
+        }
+    }
+
+    /**
+     * @return encoded reply bytes per operation
+     */
+    private double run(int operations) throws InterruptedException {
+        byte[] request = new byte[16];
+        for (int i = 0; i < operations; i++) {
+            ClientResult result = results.addClientOperation(1, 1, i);
+            for (BftEngine engine : engines) {
+                engine.processClientCommand(new FakeCommand(1, i, "fragment-" + i, request));
+            }
+            deliverAll();
+            if (!result.isDone()) {
+                throw new IllegalStateException("operation " + i + " did not complete");
+            }
+        }
+
+        for (BftEngine engine : engines) {
+            engine.shutdown();
+        }
+        return replyBytes / (double) operations;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+        System.out.println("result size\tfull replies (bytes/op)\tdigest replies (bytes/op)\treduction");
+        for (int size : new int[] {64, 4096, 65536}) {
+            double full = new ReplyBenchmark(false, size).run(operations);
+            double digest = new ReplyBenchmark(true, size).run(operations);
+            System.out.printf("%d\t%.0f\t%.0f\t%.2fx%n", size, full, digest, full / digest);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package at.archistar.bft.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+import at.archistar.bft.helper.CountingCallbacks;
+import at.archistar.bft.helper.SequenceDriver;
+import at.archistar.bft.journal.Journal;
+import at.archistar.bft.server.BftEngine;
+import at.archistar.bft.server.BftEngineConfiguration;
+import at.archistar.bft.server.RecoveryCallbacks;
+
+/**
+ * Measures the time-to-ready of a restarted replica: a single replica logs
+ * the given amount of operations, afterwards it is restarted from snapshots
+ * of decreasing age. Journal segments up to the snapshot are deleted first
+ * (as it would have happened at the stable checkpoint), so only the tail
+ * after the snapshot is replayed.
+ *
+ * This is not a unit test, run it manually through its main method:
+ *   java -cp ... at.archistar.bft.benchmark.RestartBenchmark [operations] [directory]
+ *
+ * @author andy
+ */
+public class RestartBenchmark {
+
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private RestartBenchmark() {
+    }
+
+    /**
+     * pretends to restore a snapshot of the given checkpoint
+     */
+    private static class SnapshotCallbacks extends CountingCallbacks implements RecoveryCallbacks {
+
+        private final int snapshot;
+
+        SnapshotCallbacks(int snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public int restoreSnapshot() {
+            return snapshot;
+        }
+
+        @Override
+        public void takeSnapshot(int checkpoint) {
+        }
+    }
+
+    private static BftEngineConfiguration createConfiguration(File directory) {
+        BftEngineConfiguration config = new BftEngineConfiguration();
+        config.setWatermarkWindow(Integer.MAX_VALUE);
+        config.setJournalDirectory(directory);
+        config.setJournalSegmentSize(SEGMENT_SIZE);
+        config.setJournalSync(false);
+        return config;
+    }
+
+    private static void log(File directory, int operations) throws InterruptedException {
+        BftEngine replica = new BftEngine(1, 0, 1, new SnapshotCallbacks(-1), createConfiguration(directory));
+        for (int i = 0; i < operations; i++) {
+            SequenceDriver.drive(replica, 0, i);
+        }
+        replica.shutdown();
+    }
+
+    private static void truncate(File directory, int snapshot) throws IOException, InterruptedException {
+        Journal journal = Journal.open(directory, SEGMENT_SIZE, false);
+        journal.truncate(snapshot);
+        journal.close();
+    }
+
+    private static void restart(File directory, int operations, int snapshot) throws InterruptedException {
+        SnapshotCallbacks callbacks = new SnapshotCallbacks(snapshot);
+
+        long start = System.nanoTime();
+        BftEngine replica = new BftEngine(1, 0, 1, callbacks, createConfiguration(directory));
+        long duration = System.nanoTime() - start;
+        replica.shutdown();
+
+        if (callbacks.getExecuted() != operations - 1 - snapshot) {
+            throw new IllegalStateException("replayed " + callbacks.getExecuted() + " operations");
+        }
+        System.out.printf("%d\t%d\t%.1f%n", snapshot, callbacks.getExecuted(), duration / 1e6);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IllegalStateException("could not delete " + file);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        File directory = args.length > 1 ? new File(args[1]) : new File(System.getProperty("java.io.tmpdir"), "bft-restart-benchmark");
+
+        delete(directory);
+        log(directory, operations);
+
+        /* warm-up */
+        restart(directory, operations, operations - 1 - operations / 10);
+
+        System.out.println("snapshot\treplayed\ttime-to-ready (ms)");
+        int[] tails = {operations, operations / 2, operations / 10, operations / 100};
+        for (int tail : tails) {
+            int snapshot = operations - 1 - tail;
+            if (snapshot >= 0) {
+                truncate(directory, snapshot);
+            }
+            restart(directory, operations, snapshot);
+        }
+        delete(directory);
+    }
+}
@@ -0,0 +1,93 @@
+package at.archistar.bft.benchmark;
+
+import java.util.concurrent.CountDownLatch;
+
+import at.archistar.bft.client.ClientConfiguration;
+import at.archistar.bft.client.ClientResult;
+import at.archistar.bft.client.ResultListener;
+import at.archistar.bft.client.ResultManager;
+import at.archistar.bft.exceptions.InconsistentResultsException;
+import at.archistar.bft.messages.TransactionResult;
+
+/**
+ * Measures the client-side result handling: the given amount of operations
+ * is registered (all outstanding at once), afterwards one thread per replica
+ * delivers that replica's answers. Reports the time until every operation
+ * completed.
+ *
+ * This is not a unit test, run it manually through its main method:
+ *   java -cp ... at.archistar.bft.benchmark.ResultBenchmark [operations]
+ *
+ * @author andy
+ */
+public class ResultBenchmark {
+
+    private static final int F = 1;
+
+    private ResultBenchmark() {
+    }
+
+    private static double run(final int operations) throws InterruptedException {
+        ClientConfiguration config = new ClientConfiguration();
+        config.setMatchingResults(true);
+        config.setMaxPending(operations);
+        final ResultManager manager = new ResultManager(config);
+        final byte[] data = new byte[64];
+
+        final CountDownLatch completed = new CountDownLatch(operations);
+        ResultListener listener = new ResultListener() {
+            @Override
+            public void completed(ClientResult result) {
+                completed.countDown();
+            }
+        };
+
+        long start = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            manager.addClientOperation(F, 1, i).addListener(listener);
+        }
+
+        Thread[] replicas = new Thread[3 * F + 1];
+        for (int r = 0; r < replicas.length; r++) {
+            final int replicaId = r;
+            replicas[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < operations; i++) {
+                        try {
+                            manager.addClientResponse(1, i, new TransactionResult(1, replicaId, i, data));
+                        } catch (InconsistentResultsException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                }
+            });
+            replicas[r].start();
+        }
+
+        completed.await();
+        long duration = System.nanoTime() - start;
+        for (Thread replica : replicas) {
+            replica.join();
+        }
+
+        if (manager.getPendingCount() != 0) {
+            throw new IllegalStateException(manager.getPendingCount() + " operations were not evicted");
+        }
+        return duration / 1e6;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+
+        /* warm-up */
+        run(operations);
+
+        System.out.println("outstanding\ttime (ms)\toperations/s");
+        for (int i = 0; i < 3; i++) {
+            double ms = run(operations);
+            System.out.printf("%d\t%.1f\t%.0f%n", operations, ms, operations / ms * 1000);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package at.archistar.bft.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import at.archistar.bft.helper.CountingCallbacks;
+import at.archistar.bft.helper.SequenceDriver;
+import at.archistar.bft.messages.AbstractCommand;
+import at.archistar.bft.server.BftEngine;
+import at.archistar.bft.server.BftEngineConfiguration;
+
+/**
+ * Measures how message processing of a single replica scales with the count
+ * of transport threads. Every thread drives its own (independent) sequences
+ * through pre-prepare, prepare and commit. Both processing modes are measured,
+ * in single-writer mode the time includes draining the engine's queue.
+ *
+ * This is not a unit test, run it manually through its main method:
+ *   java -cp ... at.archistar.bft.benchmark.ScalingBenchmark [operations per thread]
+ *
+ * @author andy
+ */
+public class ScalingBenchmark {
+
+    private static final int MESSAGES_PER_OPERATION = 8;
+
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8};
+
+    private ScalingBenchmark() {
+    }
+
+    private static long run(BftEngineConfiguration.ProcessingMode mode, final int threadCount,
+            final int perThread) throws InterruptedException {
+
+        /* there's no checkpoint traffic, so don't limit the sequence window */
+        BftEngineConfiguration config = new BftEngineConfiguration();
+        config.setWatermarkWindow(Integer.MAX_VALUE);
+        config.setProcessingMode(mode);
+
+        CountingCallbacks callbacks = new CountingCallbacks();
+        final BftEngine replica = new BftEngine(1, 0, 1, callbacks, config);
+
+        /* create all messages up-front, only their processing is measured */
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            final List<List<AbstractCommand>> operations = new ArrayList<>();
+            for (int j = 0; j < perThread; j++) {
+                operations.add(SequenceDriver.createMessages(0, j * threadCount + i));
+            }
+
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (List<AbstractCommand> msgs : operations) {
+                        SequenceDriver.deliver(replica, msgs);
+                    }
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        replica.shutdown();
+        long duration = System.nanoTime() - start;
+
+        if (callbacks.getExecuted() != threadCount * perThread) {
+            throw new IllegalStateException("not all operations were executed");
+        }
+        return duration;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+
+        int perThread = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+
+        /* warm-up */
+        for (BftEngineConfiguration.ProcessingMode mode : BftEngineConfiguration.ProcessingMode.values()) {
+            run(mode, 2, perThread / 10);
+        }
+
+        System.out.println("mode\tthreads\toperations/s\tmessages/s");
+        for (BftEngineConfiguration.ProcessingMode mode : BftEngineConfiguration.ProcessingMode.values()) {
+            for (int threadCount : THREAD_COUNTS) {
+                long duration = run(mode, threadCount, perThread);
+                double ops = (double) threadCount * perThread / (duration / 1e9);
+                System.out.printf("%s\t%d\t%.0f\t%.0f%n", mode, threadCount, ops, ops * MESSAGES_PER_OPERATION);
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package at.archistar.bft.benchmark;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import at.archistar.bft.client.ClientConfiguration;
+import at.archistar.bft.client.ClientResult;
+import at.archistar.bft.client.CommitCertificateSender;
+import at.archistar.bft.client.ResultManager;
+import at.archistar.bft.exceptions.InconsistentResultsException;
+import at.archistar.bft.helper.CountingCallbacks;
+import at.archistar.bft.helper.FakeCommand;
+import at.archistar.bft.messages.AbstractCommand;
+import at.archistar.bft.messages.ClientCommand;
+import at.archistar.bft.messages.CommitCertificate;
+import at.archistar.bft.messages.IntraReplicaCommand;
+import at.archistar.bft.messages.TransactionResult;
+import at.archistar.bft.server.BftEngine;
+import at.archistar.bft.server.BftEngineConfiguration;
+import at.archistar.bft.server.BftEngineConfiguration.AgreementMode;
+import at.archistar.bft.server.TentativeExecutionCallbacks;
+
+/**
+ * Compares the agreement modes: four replicas (within a single in-memory
+ * network) order and execute the given amount of operations one after
+ * another. The network delivers messages in rounds (every round is one
+ * message delay), the client's latency is reported in message delays
+ * (request, replica rounds, reply) next to the achieved operations/s.
+ * Optionally one replica never answers the client, speculative operations
+ * need a commit certificate then.
+ *
+ * This is not a unit test, run it manually through its main method:
+ *   java -cp ... at.archistar.bft.benchmark.SpeculationBenchmark [operations]
+ *
+ * @author andy
+ */
+public class SpeculationBenchmark {
+
+    private static final int REPLICAS = 4;
+
+    private final BftEngine[] engines = new BftEngine[REPLICAS];
+
+    /**
+     * messages of the next round: target replica (-1 for all) and message
+     */
+    private Queue<Object[]> network = new ArrayDeque<>();
+
+    private final ResultManager results;
+
+    private SpeculationBenchmark(AgreementMode mode, final boolean silentReplica) {
+        BftEngineConfiguration config = new BftEngineConfiguration();
+        config.setAgreementMode(mode);
+
+        ClientConfiguration clientConfig = new ClientConfiguration();
+        clientConfig.setMatchingResults(true);
+        clientConfig.setCommitCertificateDelay(0);
+        results = new ResultManager(clientConfig, null, new CommitCertificateSender() {
+            @Override
+            public void sendCommitCertificate(CommitCertificate certificate) {
+                network.add(new Object[] {-1, certificate});
+            }
+        });
+
+        for (int i = 0; i < REPLICAS; i++) {
+            engines[i] = new BftEngine(i, 0, 1, new Replica(i, silentReplica && i == REPLICAS - 1), config);
+        }
+    }
+
+    private class Replica extends CountingCallbacks implements TentativeExecutionCallbacks {
+
+        private final int replicaId;
+
+        private final boolean silent;
+
+        Replica(int replicaId, boolean silent) {
+            this.replicaId = replicaId;
+            this.silent = silent;
+        }
+
+        @Override
+        public void sendToReplicas(IntraReplicaCommand cmd) {
+            for (int target = 0; target < REPLICAS; target++) {
+                if (target != replicaId) {
+                    network.add(new Object[] {target, cmd});
+                }
+            }
+        }
+
+        @Override
+        public void answerClient(TransactionResult tx) {
+            if (silent) {
+                return;
+            }
+            try {
+                results.addClientResponse(tx.getClientId(), tx.getClientSequence(), tx);
+            } catch (InconsistentResultsException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void rollback(ClientCommand cmd) {
+            throw new IllegalStateException("nothing is rolled back without failures");
+        }
+    }
+
+    private void deliver(int target, AbstractCommand cmd) {
+        if (target == -1) {
+            for (BftEngine engine : engines) {
+                engine.processClientCommand((ClientCommand) cmd);
+            }
+        } else {
+            engines[target].processIntraReplicaCommand((IntraReplicaCommand) cmd);
+        }
+    }
+
+    /**
+     * @return {average message delays until the client completed, operations/s}
+     */
+    private double[] run(int operations) throws InterruptedException {
+        byte[] request = new byte[16];
+        long delays = 0;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            ClientResult result = results.addClientOperation(1, 1, i);
+            for (BftEngine engine : engines) {
+                engine.processClientCommand(new FakeCommand(1, i, "fragment-" + (i % 16), request));
+            }
+
+            /* request and reply, plus one delay per round */
+            int rounds = 0;
+            while (!network.isEmpty()) {
+                if (!result.isDone()) {
+                    results.expire();
+                    rounds++;
+                }
+                Queue<Object[]> round = network;
+                network = new ArrayDeque<>();
+                for (Object[] delivery : round) {
+                    deliver((Integer) delivery[0], (AbstractCommand) delivery[1]);
+                }
+            }
+            if (!result.isDone()) {
+                throw new IllegalStateException("operation " + i + " did not complete");
+            }
+            delays += rounds + 2;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        for (BftEngine engine : engines) {
+            engine.shutdown();
+        }
+        return new double[] {delays / (double) operations, operations / seconds};
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        /* warm-up */
+        new SpeculationBenchmark(AgreementMode.PBFT, false).run(operations);
+        new SpeculationBenchmark(AgreementMode.SPECULATIVE, false).run(operations);
+
+        System.out.println("mode\tsilent replica\tlatency (message delays)\toperations/s");
+        for (boolean silent : new boolean[] {false, true}) {
+            for (AgreementMode mode : AgreementMode.values()) {
+                double[] result = new SpeculationBenchmark(mode, silent).run(operations);
+                System.out.printf("%s\t%s\t%.1f\t%.0f%n", mode, silent, result[0], result[1]);
+            }
+        }
+    }
+}
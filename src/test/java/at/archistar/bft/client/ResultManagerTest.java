@@ -0,0 +1,306 @@
+package at.archistar.bft.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.*;
+
+import at.archistar.bft.exceptions.InconsistentResultsException;
+import at.archistar.bft.helper.DigestHelper;
+import at.archistar.bft.messages.ClientCommand;
+import at.archistar.bft.messages.CommitCertificate;
+import at.archistar.bft.messages.OperationId;
+import at.archistar.bft.messages.ResultRequest;
+import at.archistar.bft.messages.TransactionResult;
+
+public class ResultManagerTest {
+
+    private final DigestHelper digests = new DigestHelper();
+
+    private final byte[] data = {1, 2, 3};
+
+    private final byte[] other = {4, 5, 6};
+
+    private ClientConfiguration matching() {
+        ClientConfiguration config = new ClientConfiguration();
+        config.setMatchingResults(true);
+        return config;
+    }
+
+    @Test
+    public void defaultsCollectSecretSharedAnswersWithoutTimeout() throws Exception {
+        ResultManager manager = new ResultManager();
+        ClientResult result = manager.addClientOperation(1, 7, 1);
+
+        manager.addClientResponse(7, 1, new TransactionResult(7, 0, 1, data));
+        manager.addClientResponse(7, 1, new TransactionResult(7, 1, 1, other));
+        Thread.sleep(5);
+        manager.expire();
+        assertThat(result.isDone()).isFalse();
+
+        /* 2f+1 answers, whatever their payload */
+        manager.addClientResponse(7, 1, new TransactionResult(7, 2, 1, new byte[] {7}));
+        assertThat(result.isDone()).isTrue();
+        assertThat(result.get()).isNull();
+        assertThat(result.getDataForServer(1)).isEqualTo(other);
+    }
+
+    @Test
+    public void completesWithMatchingQuorum() throws Exception {
+        ResultManager manager = new ResultManager(matching());
+        ClientResult result = manager.addClientOperation(1, 7, 1);
+
+        final AtomicInteger notified = new AtomicInteger(0);
+        result.addListener(new ResultListener() {
+            @Override
+            public void completed(ClientResult result) {
+                notified.incrementAndGet();
+            }
+        });
+
+        manager.addClientResponse(7, 1, new TransactionResult(7, 0, 1, data));
+        manager.addClientResponse(7, 1, new TransactionResult(7, 1, 1, other));
+        /* retransmissions do not count twice */
+        manager.addClientResponse(7, 1, new TransactionResult(7, 0, 1, data));
+        assertThat(result.isDone()).isFalse();
+
+        manager.addClientResponse(7, 1, new TransactionResult(7, 2, 1, data));
+        assertThat(result.isDone()).isTrue();
+        assertThat(result.get()).isEqualTo(data);
+        assertThat(notified.get()).isEqualTo(1);
+
+        /* completed operations are evicted, late answers are ignored */
+        assertThat(manager.getPendingCount()).isEqualTo(0);
+        manager.addClientResponse(7, 1, new TransactionResult(7, 3, 1, data));
+    }
+
+    @Test
+    public void waitingTimesOutWithoutExpire() throws Exception {
+        ResultManager manager = new ResultManager(matching());
+        ClientResult result = manager.addClientOperation(1, 7, 1, 20);
+        manager.addClientResponse(7, 1, new TransactionResult(7, 0, 1, data));
+
+        long start = System.nanoTime();
+        try {
+            result.get();
+            fail("the operation should have timed out");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(TimeoutException.class);
+        }
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(10));
+        assertThat(manager.getPendingCount()).isEqualTo(0);
+
+        /* a shorter wait does not time out the operation */
+        ClientResult waiting = manager.addClientOperation(1, 7, 2, 10000);
+        try {
+            waiting.get(1, TimeUnit.MILLISECONDS);
+            fail("the wait should have timed out");
+        } catch (TimeoutException e) {
+            assertThat(waiting.isDone()).isFalse();
+        }
+
+        /* neither does blocking without a deadline */
+        ClientResult endless = manager.addClientOperation(1, 7, 3, 0);
+        try {
+            endless.get(1, TimeUnit.MILLISECONDS);
+            fail("the wait should have timed out");
+        } catch (TimeoutException e) {
+            assertThat(endless.isDone()).isFalse();
+        }
+    }
+
+    @Test
+    public void failsIfNoQuorumIsPossible() throws Exception {
+        ClientConfiguration config = matching();
+        config.setQuorum(3);
+        ResultManager manager = new ResultManager(config);
+        ClientResult result = manager.addClientOperation(1, 7, 1);
+
+        manager.addClientResponse(7, 1, new TransactionResult(7, 0, 1, data));
+        manager.addClientResponse(7, 1, new TransactionResult(7, 1, 1, other));
+        assertThat(result.isDone()).isFalse();
+        manager.addClientResponse(7, 1, new TransactionResult(7, 2, 1, new byte[] {7}));
+        assertThat(result.isDone()).isTrue();
+
+        try {
+            result.get();
+            fail("inconsistent answers must fail the operation");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(InconsistentResultsException.class);
+        }
+    }
+
+    @Test
+    public void operationsTimeOutAndAreBounded() throws Exception {
+        ClientConfiguration config = new ClientConfiguration();
+        config.setMaxPending(2);
+        ResultManager manager = new ResultManager(config);
+
+        ClientResult expiring = manager.addClientOperation(1, 7, 1, 1);
+        manager.addClientOperation(1, 7, 2);
+        try {
+            manager.addClientOperation(1, 7, 3);
+            fail("the pending table is bounded");
+        } catch (IllegalStateException e) {
+            assertThat(manager.getPendingCount()).isEqualTo(2);
+        }
+
+        Thread.sleep(5);
+        manager.expire();
+        assertThat(manager.getPendingCount()).isEqualTo(1);
+        try {
+            expiring.get();
+            fail("the operation should have timed out");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(TimeoutException.class);
+        }
+
+        manager.addClientOperation(1, 7, 3);
+        assertThat(manager.getPendingCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void digestRepliesNeedAMatchingFullResult() throws Exception {
+        final List<Integer> requested = new ArrayList<>();
+        ResultManager manager = new ResultManager(matching(), new FullResultRequester() {
+            @Override
+            public void requestFullResult(int clientId, int clientSequence) {
+                requested.add(clientSequence);
+            }
+        });
+        ClientCommand cmd = new ResultRequest(7, 1);
+        int designated = TransactionResult.getDesignatedReplica(7, 1, 1);
+        int first = (designated + 1) % 4;
+        int second = (designated + 2) % 4;
+
+        /* enough digests, the designated replica's full result completes */
+        ClientResult result = manager.addClientOperation(1, 7, 1);
+        manager.addClientResponse(7, 1, TransactionResult.digestOf(cmd, first, data, digests));
+        manager.addClientResponse(7, 1, TransactionResult.digestOf(cmd, second, data, digests));
+        assertThat(result.isDone()).isFalse();
+        manager.addClientResponse(7, 1, new TransactionResult(7, designated, 1, data));
+        assertThat(result.get()).isEqualTo(data);
+        assertThat(requested).isEmpty();
+
+        /* a mismatching full result is replaced by a requested one */
+        cmd = new ResultRequest(7, 2);
+        designated = TransactionResult.getDesignatedReplica(7, 2, 1);
+        first = (designated + 1) % 4;
+        result = manager.addClientOperation(1, 7, 2);
+        manager.addClientResponse(7, 2, new TransactionResult(7, designated, 2, other));
+        manager.addClientResponse(7, 2, TransactionResult.digestOf(cmd, first, data, digests));
+        manager.addClientResponse(7, 2, TransactionResult.digestOf(cmd, (designated + 2) % 4, data, digests));
+        assertThat(result.isDone()).isFalse();
+        assertThat(requested).containsOnly(2);
+
+        manager.addClientResponse(7, 2, new TransactionResult(7, first, 2, data));
+        assertThat(result.get()).isEqualTo(data);
+    }
+
+    @Test
+    public void readOnlyOperationsFallBackToOrdering() throws Exception {
+        final List<Integer> resubmitted = new ArrayList<>();
+        ReadOnlyFallback fallback = new ReadOnlyFallback() {
+            @Override
+            public void resubmitOrdered(int clientId, int clientSequence) {
+                resubmitted.add(clientSequence);
+            }
+        };
+        ResultManager manager = new ResultManager(matching());
+        ClientCommand cmd = new ResultRequest(7, 1);
+
+        /* 2f+1 matching unordered answers */
+        ClientResult result = manager.addReadOnlyOperation(1, 7, 1, fallback);
+        manager.addClientResponse(7, 1, TransactionResult.readOnly(cmd, 0, data, 10));
+        manager.addClientResponse(7, 1, TransactionResult.readOnly(cmd, 1, data, 11));
+        assertThat(result.isDone()).isFalse();
+        manager.addClientResponse(7, 1, TransactionResult.readOnly(cmd, 2, data, 10));
+        assertThat(result.get()).isEqualTo(data);
+        assertThat(manager.getPendingCount()).isEqualTo(0);
+
+        /* disagreeing answers, the ordered answers complete the operation */
+        cmd = new ResultRequest(7, 2);
+        result = manager.addReadOnlyOperation(1, 7, 2, fallback);
+        manager.addClientResponse(7, 2, TransactionResult.readOnly(cmd, 0, data, 10));
+        manager.addClientResponse(7, 2, TransactionResult.readOnly(cmd, 1, other, 12));
+        assertThat(resubmitted).isEmpty();
+        manager.addClientResponse(7, 2, TransactionResult.readOnly(cmd, 2, new byte[] {7}, 13));
+        assertThat(resubmitted).containsOnly(2);
+        assertThat(result.isDone()).isFalse();
+
+        manager.addClientResponse(7, 2, new TransactionResult(7, 0, 2, other));
+        manager.addClientResponse(7, 2, new TransactionResult(7, 1, 2, other));
+        assertThat(result.get()).isEqualTo(other);
+    }
+
+    private TransactionResult tentative(int replicaId, int clientSequence, byte[] payload) {
+        TransactionResult tx = new TransactionResult(7, replicaId, clientSequence, payload);
+        tx.setTentative(true);
+        return tx;
+    }
+
+    @Test
+    public void tentativeAnswersNeedTwoFPlusOne() throws Exception {
+        ResultManager manager = new ResultManager(matching());
+        ClientResult result = manager.addClientOperation(1, 7, 1);
+
+        manager.addClientResponse(7, 1, tentative(0, 1, data));
+        manager.addClientResponse(7, 1, tentative(1, 1, other));
+        manager.addClientResponse(7, 1, tentative(2, 1, data));
+        assertThat(result.isDone()).isFalse();
+
+        /* the replica's answer after a rollback replaces its tentative one */
+        manager.addClientResponse(7, 1, tentative(1, 1, data));
+        assertThat(result.get()).isEqualTo(data);
+    }
+
+    private TransactionResult speculative(int replicaId, int clientSequence, OperationId history) {
+        TransactionResult tx = new TransactionResult(7, replicaId, clientSequence, data);
+        tx.setSpeculation(0, clientSequence, history);
+        return tx;
+    }
+
+    @Test
+    public void speculativeAnswersNeedAllReplicasOrACertificate() throws Exception {
+        final List<CommitCertificate> certificates = new ArrayList<>();
+        ResultManager manager = new ResultManager(matching(), null, new CommitCertificateSender() {
+            @Override
+            public void sendCommitCertificate(CommitCertificate certificate) {
+                certificates.add(certificate);
+            }
+        });
+        OperationId history = new OperationId(1, 2, 3, 4);
+
+        /* 3f+1 matching speculative answers */
+        ClientResult result = manager.addClientOperation(1, 7, 1);
+        for (int i = 0; i < 3; i++) {
+            manager.addClientResponse(7, 1, speculative(i, 1, history));
+        }
+        assertThat(result.isDone()).isFalse();
+        manager.addClientResponse(7, 1, speculative(3, 1, history));
+        assertThat(result.get()).isEqualTo(data);
+        assertThat(certificates).isEmpty();
+
+        /* a diverging history, the 2f+1 matching answers are certified */
+        result = manager.addClientOperation(1, 7, 2);
+        manager.addClientResponse(7, 2, speculative(0, 2, history));
+        manager.addClientResponse(7, 2, speculative(1, 2, new OperationId(5, 6, 7, 8)));
+        manager.addClientResponse(7, 2, speculative(2, 2, history));
+        manager.addClientResponse(7, 2, speculative(3, 2, history));
+        assertThat(certificates).hasSize(1);
+        CommitCertificate certificate = certificates.get(0);
+        assertThat(certificate.getReplicaIds()).isEqualTo(new int[] {0, 2, 3});
+        assertThat(certificate.getHistory()).isEqualTo(history);
+
+        manager.addClientResponse(7, 2, TransactionResult.localCommit(certificate, 0));
+        manager.addClientResponse(7, 2, TransactionResult.localCommit(certificate, 2));
+        assertThat(result.isDone()).isFalse();
+        manager.addClientResponse(7, 2, TransactionResult.localCommit(certificate, 3));
+        assertThat(result.get()).isEqualTo(data);
+    }
+}
@@ -0,0 +1,74 @@
+package at.archistar.bft.helper;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import at.archistar.bft.messages.AbstractCommand;
+import at.archistar.bft.messages.CheckpointMessage;
+import at.archistar.bft.messages.ClientCommand;
+import at.archistar.bft.messages.IntraReplicaCommand;
+import at.archistar.bft.messages.TransactionResult;
+import at.archistar.bft.server.BftEngineCallbacks;
+
+/**
+ * Thread-safe callbacks that only count what the engine did. Used instead of
+ * mocks if the engine is driven by multiple threads or for long runs.
+ *
+ * @author andy
+ */
+public class CountingCallbacks implements BftEngineCallbacks {
+
+    private final AtomicInteger executed = new AtomicInteger(0);
+
+    private final AtomicInteger answered = new AtomicInteger(0);
+
+    private final AtomicInteger sent = new AtomicInteger(0);
+
+    private final AtomicInteger problems = new AtomicInteger(0);
+
+    @Override
+    public void invalidMessageReceived(AbstractCommand msg) {
+        problems.incrementAndGet();
+    }
+
+    @Override
+    public void replicasMightBeMalicous() {
+        problems.incrementAndGet();
+    }
+
+    @Override
+    public void sendToReplicas(IntraReplicaCommand cmd) {
+        sent.incrementAndGet();
+    }
+
+    @Override
+    public byte[] executeClientCommand(ClientCommand cmd) {
+        executed.incrementAndGet();
+        return cmd.getPayload();
+    }
+
+    @Override
+    public void invalidCheckpointMessage(CheckpointMessage msg) {
+        problems.incrementAndGet();
+    }
+
+    @Override
+    public void answerClient(TransactionResult transactionResult) {
+        answered.incrementAndGet();
+    }
+
+    public int getExecuted() {
+        return executed.get();
+    }
+
+    public int getAnswered() {
+        return answered.get();
+    }
+
+    public int getSent() {
+        return sent.get();
+    }
+
+    public int getProblems() {
+        return problems.get();
+    }
+}
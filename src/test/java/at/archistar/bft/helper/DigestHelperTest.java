@@ -0,0 +1,57 @@
+package at.archistar.bft.helper;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.*;
+
+import at.archistar.bft.messages.OperationId;
+
+public class DigestHelperTest {
+
+    @Test
+    public void operationIdsAreStable() {
+        for (DigestHelper.OperationIdMode mode : DigestHelper.OperationIdMode.values()) {
+            DigestHelper digests = new DigestHelper(DigestHelper.DEFAULT_ALGORITHM, mode);
+
+            OperationId id = digests.getClientOperationId(1, 2);
+            assertThat(digests.getClientOperationId(1, 2)).isEqualTo(id);
+            assertThat(digests.getClientOperationId(2, 1)).isNotEqualTo(id);
+            assertThat(OperationId.fromBytes(id.toBytes())).isEqualTo(id);
+        }
+    }
+
+    @Test
+    public void packedIdsOfDifferentClientsHashDifferently() {
+        DigestHelper digests = new DigestHelper(DigestHelper.DEFAULT_ALGORITHM, DigestHelper.OperationIdMode.PACKED);
+
+        assertThat(digests.getClientOperationId(1, 2).hashCode()).isNotEqualTo(digests.getClientOperationId(2, 1).hashCode());
+        assertThat(digests.getClientOperationId(3, 3).hashCode()).isNotEqualTo(digests.getClientOperationId(5, 5).hashCode());
+    }
+
+    @Test
+    public void shorterDigestsArePadded() {
+        DigestHelper digests = new DigestHelper("SHA-1");
+
+        OperationId a = digests.getClientOperationId(1, 1);
+        OperationId b = digests.getClientOperationId(1, 2);
+        assertThat(digests.getBatchDigest(Arrays.asList(a, b))).isNotEqualTo(digests.getBatchDigest(Arrays.asList(b, a)));
+        assertThat(digests.createResultHash(1, Arrays.asList(new byte[] {1}))).hasSize(20);
+    }
+
+    @Test
+    public void helpersDoNotShareTheirSettings() {
+        DigestHelper sha1 = new DigestHelper("SHA-1", DigestHelper.OperationIdMode.PACKED);
+        DigestHelper sha256 = new DigestHelper();
+
+        assertThat(sha1.createHash(new byte[] {1})).hasSize(20);
+        assertThat(sha256.createHash(new byte[] {1})).hasSize(32);
+        assertThat(sha1.getClientOperationId(1, 2)).isNotEqualTo(sha256.getClientOperationId(1, 2));
+        assertThat(new DigestHelper().getClientOperationId(1, 2)).isEqualTo(sha256.getClientOperationId(1, 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownAlgorithm() {
+        new DigestHelper("no-such-digest");
+    }
+}
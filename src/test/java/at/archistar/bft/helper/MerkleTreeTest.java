@@ -0,0 +1,65 @@
+package at.archistar.bft.helper;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.*;
+
+public class MerkleTreeTest {
+
+    private final DigestHelper digests = new DigestHelper();
+
+    private MerkleTree fill(int[] order) {
+        MerkleTree tree = new MerkleTree(8, digests);
+        for (int i : order) {
+            tree.setLeaf(i, digests.createResultHash(i, Arrays.asList(new byte[] {(byte) i})));
+        }
+        return tree;
+    }
+
+    @Test
+    public void rootDoesNotDependOnInsertionOrder() {
+        MerkleTree a = fill(new int[] {0, 1, 2, 3, 4, 5, 6, 7});
+        MerkleTree b = fill(new int[] {7, 3, 5, 1, 0, 6, 2, 4});
+
+        assertThat(a.getLeafCount()).isEqualTo(8);
+        assertThat(a.getRoot()).isEqualTo(b.getRoot());
+        assertThat(a.diff(b)).isEmpty();
+    }
+
+    @Test
+    public void changedLeavesInvalidateTheRoot() {
+        MerkleTree tree = fill(new int[] {0, 1, 2, 3});
+        byte[] root = tree.getRoot();
+
+        tree.setLeaf(6, new byte[] {1});
+        assertThat(tree.getRoot()).isNotEqualTo(root);
+        assertThat(tree.getLeafCount()).isEqualTo(5);
+        assertThat(tree.getLeaf(7)).isNull();
+    }
+
+    @Test
+    public void proofsVerifyLeaves() {
+        MerkleTree tree = fill(new int[] {0, 1, 2, 3, 4});
+        byte[] root = tree.getRoot();
+
+        for (int i = 0; i < 8; i++) {
+            byte[] leaf = tree.getLeaf(i) == null ? new byte[0] : tree.getLeaf(i);
+            assertThat(MerkleTree.verifyProof(root, i, leaf, tree.getProof(i), digests)).isTrue();
+        }
+        assertThat(MerkleTree.verifyProof(root, 1, tree.getLeaf(2), tree.getProof(1), digests)).isFalse();
+        assertThat(MerkleTree.verifyProof(root, 8, tree.getLeaf(2), tree.getProof(1), digests)).isFalse();
+    }
+
+    @Test
+    public void diffLocatesMismatchingLeaves() {
+        MerkleTree a = fill(new int[] {0, 1, 2, 3, 4, 5, 6, 7});
+        MerkleTree b = fill(new int[] {0, 1, 2, 3, 4, 5, 6, 7});
+        b.setLeaf(2, new byte[] {1});
+        b.setLeaf(5, new byte[] {1});
+
+        assertThat(a.diff(b)).containsExactly(2, 5);
+        assertThat(a.getNode(1, 0)).isNotEqualTo(b.getNode(1, 0));
+        assertThat(a.getNode(2, 3)).isEqualTo(b.getNode(2, 3));
+    }
+}
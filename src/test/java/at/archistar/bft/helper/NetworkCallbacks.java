@@ -0,0 +1,45 @@
+package at.archistar.bft.helper;
+
+import at.archistar.bft.messages.IntraReplicaCommand;
+
+/**
+ * Counting callbacks of a single replica within a ReplicaNetwork: messages
+ * to the other replicas are queued within the network.
+ *
+ * sendToReplica matches StateTransferCallbacks, so subclasses can implement
+ * it without providing the method.
+ *
+ * @author andy
+ */
+public class NetworkCallbacks extends CountingCallbacks {
+
+    private final int replicaId;
+
+    private ReplicaNetwork<?> network;
+
+    public NetworkCallbacks(int replicaId) {
+        this.replicaId = replicaId;
+    }
+
+    void attach(ReplicaNetwork<?> network) {
+        this.network = network;
+    }
+
+    public int getReplicaId() {
+        return this.replicaId;
+    }
+
+    @Override
+    public void sendToReplicas(IntraReplicaCommand cmd) {
+        super.sendToReplicas(cmd);
+        for (int i = 0; i < network.getReplicaCount(); i++) {
+            if (i != replicaId) {
+                network.send(i, cmd);
+            }
+        }
+    }
+
+    public void sendToReplica(int replica, IntraReplicaCommand cmd) {
+        network.send(replica, cmd);
+    }
+}
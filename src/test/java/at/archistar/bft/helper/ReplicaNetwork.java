@@ -0,0 +1,121 @@
+package at.archistar.bft.helper;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+import at.archistar.bft.messages.ClientCommand;
+import at.archistar.bft.messages.IntraReplicaCommand;
+import at.archistar.bft.server.BftEngine;
+import at.archistar.bft.server.BftEngineConfiguration;
+
+/**
+ * Connects 3f+1 in-memory replicas (view 0) for tests. Sent messages are
+ * queued and delivered in send order by deliverAll (within the calling
+ * thread), a pluggable drop predicate decides which deliveries get lost.
+ *
+ * @param <C> the replicas' callbacks
+ * @author andy
+ */
+public class ReplicaNetwork<C extends NetworkCallbacks> {
+
+    /**
+     * decides which messages are not delivered
+     */
+    public interface DropPredicate {
+
+        boolean isDropped(int target, IntraReplicaCommand cmd);
+    }
+
+    /**
+     * creates the callbacks of a single replica
+     */
+    public interface CallbacksFactory<C> {
+
+        C create(int replicaId);
+    }
+
+    private static final DropPredicate NOTHING = new DropPredicate() {
+        @Override
+        public boolean isDropped(int target, IntraReplicaCommand cmd) {
+            return false;
+        }
+    };
+
+    private final List<BftEngine> engines = new ArrayList<>();
+
+    private final List<C> callbacks = new ArrayList<>();
+
+    /**
+     * messages in flight: target replica and message
+     */
+    private final Queue<Object[]> inFlight = new ArrayDeque<>();
+
+    private DropPredicate dropped = NOTHING;
+
+    public ReplicaNetwork(int f, BftEngineConfiguration config, CallbacksFactory<C> factory) {
+        for (int i = 0; i < 3 * f + 1; i++) {
+            C replica = factory.create(i);
+            replica.attach(this);
+            callbacks.add(replica);
+            engines.add(new BftEngine(i, 0, f, replica, config));
+        }
+    }
+
+    public void setDropPredicate(DropPredicate dropped) {
+        this.dropped = dropped == null ? NOTHING : dropped;
+    }
+
+    public int getReplicaCount() {
+        return this.engines.size();
+    }
+
+    public BftEngine getEngine(int replicaId) {
+        return this.engines.get(replicaId);
+    }
+
+    public List<BftEngine> getEngines() {
+        return this.engines;
+    }
+
+    public C getCallbacks(int replicaId) {
+        return this.callbacks.get(replicaId);
+    }
+
+    void send(int target, IntraReplicaCommand cmd) {
+        inFlight.add(new Object[] {target, cmd});
+    }
+
+    /**
+     * @return true if no message is in flight
+     */
+    public boolean isIdle() {
+        return this.inFlight.isEmpty();
+    }
+
+    /**
+     * delivers all messages in flight (including the ones sent meanwhile)
+     */
+    public void deliverAll() {
+        Object[] delivery;
+        while ((delivery = inFlight.poll()) != null) {
+            int target = (Integer) delivery[0];
+            IntraReplicaCommand cmd = (IntraReplicaCommand) delivery[1];
+            if (!dropped.isDropped(target, cmd)) {
+                engines.get(target).processIntraReplicaCommand(cmd);
+            }
+        }
+    }
+
+    /**
+     * hands the client command to every replica and delivers all resulting
+     * messages
+     */
+    public void submit(ClientCommand cmd) {
+        for (BftEngine engine : engines) {
+            engine.processClientCommand(cmd);
+        }
+        deliverAll();
+    }
+}
@@ -0,0 +1,68 @@
+package at.archistar.bft.helper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import at.archistar.bft.messages.AbstractCommand;
+import at.archistar.bft.messages.ClientCommand;
+import at.archistar.bft.messages.CommitCommand;
+import at.archistar.bft.messages.IntraReplicaCommand;
+import at.archistar.bft.messages.OperationId;
+import at.archistar.bft.messages.PrepareCommand;
+import at.archistar.bft.messages.PreprepareCommand;
+import at.archistar.bft.server.BftEngine;
+
+/**
+ * Plays the part of the client, the primary (replica 0) and the other
+ * replicas (2, 3) for a single non-primary replica (replica 1, f = 1): it
+ * feeds all messages of one complete (and successful) operation.
+ *
+ * @author andy
+ */
+public class SequenceDriver {
+
+    private static final byte[] DATA = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+
+    /**
+     * matches the replica's default configuration
+     */
+    private static final DigestHelper DIGESTS = new DigestHelper();
+
+    private SequenceDriver() {
+    }
+
+    /**
+     * creates all messages of one independent operation (own fragment) with
+     * the given sequence, in the order replica 1 would typically receive them
+     */
+    public static List<AbstractCommand> createMessages(int viewNr, int sequence) {
+
+        ClientCommand cmd = new FakeCommand(sequence, sequence, "fragment-" + sequence, DATA);
+        OperationId digest = cmd.getClientOperationId(DIGESTS);
+
+        List<AbstractCommand> msgs = new ArrayList<>();
+        msgs.add(cmd);
+        msgs.add(new PreprepareCommand(viewNr, sequence, 0, digest, -2));
+        msgs.add(new PrepareCommand(viewNr, sequence, 0, digest));
+        msgs.add(new PrepareCommand(viewNr, sequence, 2, digest));
+        msgs.add(new PrepareCommand(viewNr, sequence, 3, digest));
+        msgs.add(new CommitCommand(viewNr, sequence, 0));
+        msgs.add(new CommitCommand(viewNr, sequence, 2));
+        msgs.add(new CommitCommand(viewNr, sequence, 3));
+        return msgs;
+    }
+
+    public static void deliver(BftEngine replica, List<AbstractCommand> msgs) {
+        for (AbstractCommand msg : msgs) {
+            if (msg instanceof ClientCommand) {
+                replica.processClientCommand((ClientCommand) msg);
+            } else {
+                replica.processIntraReplicaCommand((IntraReplicaCommand) msg);
+            }
+        }
+    }
+
+    public static void drive(BftEngine replica, int viewNr, int sequence) {
+        deliver(replica, createMessages(viewNr, sequence));
+    }
+}
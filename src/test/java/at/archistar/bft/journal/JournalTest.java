@@ -0,0 +1,85 @@
+package at.archistar.bft.journal;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.fest.assertions.api.Assertions.*;
+
+public class JournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private void appendSequences(Journal journal, int from, int to) {
+        for (int i = from; i < to; i++) {
+            journal.logExecuted(i, 0, new byte[100]);
+        }
+    }
+
+    @Test
+    public void stableCheckpointsDeleteOldSegments() throws Exception {
+        File directory = folder.newFolder("journal");
+
+        Journal journal = Journal.open(directory, 1024, false);
+        appendSequences(journal, 0, 40);
+        int segments = journal.getSegmentCount();
+        assertThat(segments).isGreaterThan(3);
+
+        journal.truncate(20);
+        assertThat(journal.getSegmentCount()).isLessThan(segments).isGreaterThan(1);
+        segments = journal.getSegmentCount();
+        journal.close();
+
+        /* appending continues after the existing records */
+        journal = Journal.open(directory, 1024, false);
+        assertThat(journal.getSegmentCount()).isEqualTo(segments);
+        appendSequences(journal, 40, 41);
+        assertThat(journal.getSegmentCount()).isIn(segments, segments + 1);
+
+        journal.truncate(1000);
+        assertThat(journal.getSegmentCount()).isEqualTo(1);
+        assertThat(directory.list()).hasSize(1);
+        journal.close();
+    }
+
+    @Test
+    public void deferredActionsRunInOrder() throws Exception {
+        Journal journal = Journal.open(folder.newFolder("journal"), 4096, true);
+
+        final List<Integer> done = Collections.synchronizedList(new ArrayList<Integer>());
+        for (int i = 0; i < 100; i++) {
+            final int nr = i;
+            if (i % 3 == 0) {
+                journal.append(RecordType.MESSAGE, i, 0, ByteBuffer.wrap(new byte[10]));
+            }
+            journal.afterSync(new Runnable() {
+                @Override
+                public void run() {
+                    done.add(nr);
+                }
+            });
+        }
+        journal.close();
+
+        assertThat(done).hasSize(100);
+        for (int i = 0; i < 100; i++) {
+            assertThat(done.get(i)).isEqualTo(i);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void oversizedRecordsAreRejected() throws Exception {
+        Journal journal = Journal.open(folder.newFolder("journal"), 1024, false);
+        try {
+            journal.logCheckpoint(0, 0, new byte[2048]);
+        } finally {
+            journal.close();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package at.archistar.bft.messages;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.*;
+
+import at.archistar.bft.exceptions.InvalidMessageException;
+import at.archistar.bft.helper.DigestHelper;
+import at.archistar.bft.helper.FakeCommand;
+
+public class MessageCodecTest {
+
+    private final DigestHelper digests = new DigestHelper();
+
+    private final byte[] data = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+
+    private <T extends AbstractCommand> T roundtrip(T cmd) throws InvalidMessageException {
+        ByteBuffer buffer = MessageCodec.encode(cmd);
+        assertThat(buffer.remaining()).isEqualTo(MessageCodec.encodedSize(cmd));
+
+        AbstractCommand decoded = MessageCodec.decode(buffer);
+        assertThat(buffer.hasRemaining()).isFalse();
+        assertThat(decoded.getType()).isEqualTo(cmd.getType());
+
+        @SuppressWarnings("unchecked")
+        T result = (T) decoded;
+        return result;
+    }
+
+    @Test
+    public void intraReplicaMessages() throws InvalidMessageException {
+
+        OperationId a = new FakeCommand(1, 1, "fragment-1", data).getClientOperationId(digests);
+        OperationId b = new FakeCommand(1, 2, "fragment-2", data).getClientOperationId(digests);
+
+        PreprepareCommand pp = roundtrip(new PreprepareCommand(1, 42, 0, Arrays.asList(a, b), new int[] {-2, 17}));
+        assertThat(pp.getSequence()).isEqualTo(42);
+        assertThat(pp.getViewNr()).isEqualTo(1);
+        assertThat(pp.getClientOperationIds()).containsExactly(a, b);
+        assertThat(pp.getPriorSequences()).isEqualTo(new int[] {-2, 17});
+
+        PrepareCommand p = roundtrip(new PrepareCommand(1, 42, 3, a));
+        assertThat(p.getSourceReplicaId()).isEqualTo(3);
+        assertThat(p.getClientOperationId()).isEqualTo(a);
+
+        CommitCommand c = roundtrip(new CommitCommand(1, 42, 2));
+        assertThat(c.getSourceReplicaId()).isEqualTo(2);
+        assertThat(c.getSequence()).isEqualTo(42);
+
+        CheckpointMessage cp = new CheckpointMessage(1, -10, 1, 128, data);
+        assertThat(roundtrip(cp).compatibleWith(cp)).isTrue();
+        assertThat(cp.compatibleWith(new CheckpointMessage(2, -10, 1, 128, new byte[10]))).isFalse();
+    }
+
+    @Test
+    public void viewChangeMessages() throws InvalidMessageException {
+
+        OperationId a = new FakeCommand(1, 1, "fragment-1", data).getClientOperationId(digests);
+        OperationId b = new FakeCommand(1, 2, "fragment-2", data).getClientOperationId(digests);
+        PreparedCertificate batch = new PreparedCertificate(1, 130, Arrays.asList(a, b), new int[] {-2, 129}, Arrays.asList("fragment-1", "fragment-2"));
+
+        ViewChangeMessage vc = roundtrip(new ViewChangeMessage(3, 128, 2, Arrays.asList(batch)));
+        assertThat(vc.getStableCheckpoint()).isEqualTo(128);
+        assertThat(vc.getViewNr()).isEqualTo(2);
+        PreparedCertificate decoded = vc.getPrepared().get(0);
+        assertThat(decoded.getViewNr()).isEqualTo(1);
+        assertThat(decoded.sameBatch(batch)).isTrue();
+        assertThat(decoded.getFragmentIds()).containsExactly("fragment-1", "fragment-2");
+
+        NewViewMessage nv = roundtrip(new NewViewMessage(2, 128, 2, new int[] {0, 2, 3}, Arrays.asList(batch, PreparedCertificate.nullRequest(2, 131))));
+        assertThat(nv.getViewChangeSources()).isEqualTo(new int[] {0, 2, 3});
+        assertThat(nv.getProposals()).hasSize(2);
+        assertThat(nv.getProposals().get(0).sameBatch(batch)).isTrue();
+        assertThat(nv.getProposals().get(1).isNullRequest()).isTrue();
+    }
+
+    @Test
+    public void stateTransferMessages() throws InvalidMessageException {
+
+        StateRequestMessage request = roundtrip(new StateRequestMessage(1, 256, 0, StateRequestMessage.MANIFEST));
+        assertThat(request.getSequence()).isEqualTo(256);
+        assertThat(request.getChunk()).isEqualTo(StateRequestMessage.MANIFEST);
+
+        StateManifestMessage manifest = roundtrip(new StateManifestMessage(2, 256, 0, 1L << 40, data));
+        assertThat(manifest.getSnapshotSize()).isEqualTo(1L << 40);
+        assertThat(manifest.getRoot()).isEqualTo(data);
+
+        StateChunkMessage chunk = roundtrip(new StateChunkMessage(2, 256, 0, 3, data, new byte[][] {data, new byte[0]}));
+        assertThat(chunk.getChunk()).isEqualTo(3);
+        assertThat(chunk.getData()).isEqualTo(data);
+        assertThat(chunk.getProof()).hasSize(2);
+    }
+
+    @Test
+    public void clientMessagesReferenceTheBuffer() throws InvalidMessageException {
+
+        ByteBuffer buffer = MessageCodec.encode(new FakeCommand(7, 3, "fragment-7", data));
+        DecodedFragmentCommand cmd = (DecodedFragmentCommand) MessageCodec.decode(buffer);
+        assertThat(cmd.getClientId()).isEqualTo(7);
+        assertThat(cmd.getFragmentId()).isEqualTo("fragment-7");
+        assertThat(cmd.getClientOperationId(digests)).isEqualTo(new FakeCommand(7, 3, "fragment-7", data).getClientOperationId(digests));
+        assertThat(cmd.getPayloadBuffer().remaining()).isEqualTo(data.length);
+        assertThat(cmd.getPayload()).isEqualTo(data);
+
+        /* forwarding a decoded command does not need a payload array */
+        assertThat(roundtrip(cmd).getPayload()).isEqualTo(data);
+
+        TransactionResult result = roundtrip(new TransactionResult(7, 2, 3, data));
+        assertThat(result.getReplicaId()).isEqualTo(2);
+        assertThat(result.getPayload()).isEqualTo(data);
+    }
+
+    @Test
+    public void digestRepliesAndResultRequests() throws InvalidMessageException {
+
+        TransactionResult digest = roundtrip(TransactionResult.digestOf(new FakeCommand(7, 3, "f", data), 1, data, digests));
+        assertThat(digest.isDigestOnly()).isTrue();
+        assertThat(digest.getResultDigest(digests)).isEqualTo(new TransactionResult(7, 2, 3, data).getResultDigest(digests));
+        assertThat(digest.verifyContent(new TransactionResult(7, 2, 3, data), digests)).isTrue();
+
+        ResultRequest request = roundtrip(new ResultRequest(7, 3));
+        assertThat(request.getClientId()).isEqualTo(7);
+        assertThat(request.getClientSequence()).isEqualTo(3);
+    }
+
+    @Test
+    public void readOnlyCommandsAndResults() throws InvalidMessageException {
+
+        FakeCommand read = new FakeCommand(7, 3, "f", data);
+        read.setReadOnly(true);
+        assertThat(((ClientCommand) MessageCodec.decode(MessageCodec.encode(read))).isReadOnly()).isTrue();
+        assertThat(((ClientCommand) MessageCodec.decode(MessageCodec.encode(new FakeCommand(7, 3, "f", data)))).isReadOnly()).isFalse();
+
+        TransactionResult result = roundtrip(TransactionResult.readOnly(read, 2, data, 41));
+        assertThat(result.isReadOnly()).isTrue();
+        assertThat(result.isDigestOnly()).isFalse();
+        assertThat(result.getLastExecuted()).isEqualTo(41);
+        assertThat(result.getPayload()).isEqualTo(data);
+    }
+
+    @Test
+    public void speculativeResultsAndCommitCertificates() throws InvalidMessageException {
+
+        OperationId history = new OperationId(1, 2, 3, 4);
+        TransactionResult speculative = new TransactionResult(7, 2, 3, data);
+        speculative.setSpeculation(1, 40, history);
+        TransactionResult result = roundtrip(speculative);
+        assertThat(result.isSpeculative()).isTrue();
+        assertThat(result.isTentative()).isTrue();
+        assertThat(result.isLocalCommit()).isFalse();
+        assertThat(result.sameSpeculation(speculative)).isTrue();
+        assertThat(result.getPayload()).isEqualTo(data);
+
+        CommitCertificate certificate = roundtrip(new CommitCertificate(7, 3, 1, 40, history, new int[] {0, 2, 3}));
+        assertThat(certificate.getClientSequence()).isEqualTo(3);
+        assertThat(certificate.getSequence()).isEqualTo(40);
+        assertThat(certificate.getHistory()).isEqualTo(history);
+        assertThat(certificate.getReplicaIds()).isEqualTo(new int[] {0, 2, 3});
+
+        TransactionResult commit = roundtrip(TransactionResult.localCommit(certificate, 1));
+        assertThat(commit.isLocalCommit()).isTrue();
+        assertThat(commit.isTentative()).isFalse();
+        assertThat(commit.sameSpeculation(speculative)).isTrue();
+    }
+
+    @Test(expected = InvalidMessageException.class)
+    public void truncatedMessage() throws InvalidMessageException {
+        ByteBuffer buffer = MessageCodec.encode(new PrepareCommand(0, 1, 2, new FakeCommand(1, 1, "f", data).getClientOperationId(digests)));
+        buffer.limit(buffer.limit() - 1);
+        MessageCodec.decode(buffer);
+    }
+
+    @Test(expected = InvalidMessageException.class)
+    public void unknownVersion() throws InvalidMessageException {
+        ByteBuffer buffer = MessageCodec.encode(new CommitCommand(0, 1, 2));
+        buffer.put(0, (byte) (MessageCodec.VERSION + 1));
+        MessageCodec.decode(buffer);
+    }
+}
@@ -0,0 +1,84 @@
+package at.archistar.bft.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.*;
+
+import at.archistar.bft.helper.CountingCallbacks;
+import at.archistar.bft.helper.DigestHelper;
+import at.archistar.bft.helper.FakeCommand;
+import at.archistar.bft.messages.ClientCommand;
+import at.archistar.bft.messages.CommitCommand;
+import at.archistar.bft.messages.OperationId;
+import at.archistar.bft.messages.PrepareCommand;
+import at.archistar.bft.messages.PreprepareCommand;
+
+public class AsyncExecutionTest {
+
+    private final DigestHelper digests = new DigestHelper();
+
+    private final byte[] data = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+
+    /**
+     * keeps all executions pending until they are completed by the test
+     */
+    private static class PendingCallbacks extends CountingCallbacks implements AsyncExecutionCallbacks {
+
+        private final List<ClientCommand> started = new ArrayList<>();
+
+        private final List<ExecutionListener> listeners = new ArrayList<>();
+
+        @Override
+        public synchronized void executeClientCommand(ClientCommand cmd, ExecutionListener listener) {
+            started.add(cmd);
+            listeners.add(listener);
+        }
+
+        synchronized void complete(int index) {
+            listeners.get(index).completed(started.get(index).getPayload());
+        }
+    }
+
+    private void commit(BftEngine replica, ClientCommand cmd, int sequence, int prior) {
+        int viewNr = 0;
+        OperationId digest = cmd.getClientOperationId(digests);
+
+        replica.processClientCommand(cmd);
+        replica.processIntraReplicaCommand(new PreprepareCommand(viewNr, sequence, 0, digest, prior));
+        replica.processIntraReplicaCommand(new PrepareCommand(viewNr, sequence, 0, digest));
+        replica.processIntraReplicaCommand(new PrepareCommand(viewNr, sequence, 2, digest));
+        replica.processIntraReplicaCommand(new CommitCommand(viewNr, sequence, 0));
+        replica.processIntraReplicaCommand(new CommitCommand(viewNr, sequence, 2));
+    }
+
+    @Test
+    public void protocolContinuesWhileExecutionIsPending() throws InterruptedException {
+
+        PendingCallbacks callbacks = new PendingCallbacks();
+        BftEngine replica = new BftEngine(1, 0, 1, callbacks);
+
+        ClientCommand cmd1 = new FakeCommand(1, 1, "fragment-1", data);
+        ClientCommand cmd2 = new FakeCommand(1, 2, "fragment-1", data);
+        ClientCommand cmd3 = new FakeCommand(2, 1, "fragment-2", data);
+
+        commit(replica, cmd1, 0, -2);
+        commit(replica, cmd2, 1, 0);
+        commit(replica, cmd3, 2, -2);
+
+        /* all three were commited, the second waits for the first's execution */
+        assertThat(callbacks.started).containsExactly(cmd1, cmd3);
+        assertThat(callbacks.getAnswered()).isEqualTo(0);
+
+        callbacks.complete(1);
+        assertThat(callbacks.getAnswered()).isEqualTo(1);
+
+        callbacks.complete(0);
+        assertThat(callbacks.started).containsExactly(cmd1, cmd3, cmd2);
+
+        callbacks.complete(2);
+        replica.shutdown();
+        assertThat(callbacks.getAnswered()).isEqualTo(3);
+    }
+}
@@ -0,0 +1,110 @@
+package at.archistar.bft.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.*;
+
+import at.archistar.bft.helper.CountingCallbacks;
+import at.archistar.bft.helper.SequenceDriver;
+import at.archistar.bft.messages.AbstractCommand;
+import at.archistar.bft.messages.CommitCommand;
+import at.archistar.bft.messages.IntraReplicaCommand;
+import at.archistar.bft.messages.MacAuthenticator;
+
+public class AuthenticationTest {
+
+    private static final int REPLICAS = 4;
+
+    /**
+     * remembers all messages sent to the other replicas
+     */
+    private static class SendingCallbacks extends CountingCallbacks {
+
+        private final List<IntraReplicaCommand> sentMessages = Collections.synchronizedList(new ArrayList<IntraReplicaCommand>());
+
+        @Override
+        public void sendToReplicas(IntraReplicaCommand cmd) {
+            sentMessages.add(cmd);
+            super.sendToReplicas(cmd);
+        }
+    }
+
+    /**
+     * @return the keys replica shares with every other replica
+     */
+    private byte[][] keysOf(int replica) {
+        byte[][] keys = new byte[REPLICAS][];
+        for (int i = 0; i < REPLICAS; i++) {
+            String key = "key-" + Math.min(replica, i) + "-" + Math.max(replica, i);
+            keys[i] = key.getBytes(StandardCharsets.US_ASCII);
+        }
+        return keys;
+    }
+
+    private BftEngine createEngine(CountingCallbacks callbacks) {
+        BftEngineConfiguration config = new BftEngineConfiguration();
+        config.setMacKeys(keysOf(1));
+        config.setVerificationThreads(2);
+        return new BftEngine(1, 0, 1, callbacks, config);
+    }
+
+    @Test
+    public void authenticatedMessagesAreProcessed() throws InterruptedException {
+
+        SendingCallbacks callbacks = new SendingCallbacks();
+        BftEngine replica = createEngine(callbacks);
+
+        List<AbstractCommand> msgs = SequenceDriver.createMessages(0, 0);
+        for (AbstractCommand msg : msgs) {
+            if (msg instanceof IntraReplicaCommand) {
+                IntraReplicaCommand cmd = (IntraReplicaCommand) msg;
+                new MacAuthenticator(cmd.getSourceReplicaId(), keysOf(cmd.getSourceReplicaId())).authenticate(cmd);
+            }
+        }
+        SequenceDriver.deliver(replica, msgs);
+        replica.shutdown();
+
+        assertThat(callbacks.getExecuted()).isEqualTo(1);
+        assertThat(callbacks.getProblems()).isEqualTo(0);
+
+        /* the replica's own prepare, commit and checkpoint (sequence 0) can be
+         * verified by all others */
+        assertThat(callbacks.sentMessages).hasSize(3);
+        for (int other : new int[] {0, 2, 3}) {
+            MacAuthenticator authenticator = new MacAuthenticator(other, keysOf(other));
+            for (IntraReplicaCommand sent : callbacks.sentMessages) {
+                assertThat(authenticator.verify(sent)).isTrue();
+            }
+        }
+    }
+
+    @Test
+    public void invalidAuthenticatorsAreDropped() throws InterruptedException {
+
+        CountingCallbacks callbacks = new CountingCallbacks();
+        BftEngine replica = createEngine(callbacks);
+
+        /* no authenticator */
+        replica.processIntraReplicaCommand(new CommitCommand(0, 0, 2));
+
+        /* replica 3 pretends to be replica 2 */
+        CommitCommand forged = new CommitCommand(0, 0, 2);
+        new MacAuthenticator(3, keysOf(3)).authenticate(forged);
+        replica.processIntraReplicaCommand(forged);
+
+        /* modified after authentication */
+        CommitCommand valid = new CommitCommand(0, 0, 2);
+        new MacAuthenticator(2, keysOf(2)).authenticate(valid);
+        CommitCommand modified = new CommitCommand(0, 1, 2);
+        modified.setAuthenticator(valid.getAuthenticator());
+        replica.processIntraReplicaCommand(modified);
+
+        replica.shutdown();
+        assertThat(callbacks.getProblems()).isEqualTo(3);
+        assertThat(callbacks.getSent()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,113 @@
+package at.archistar.bft.server;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import static org.fest.assertions.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import at.archistar.bft.helper.DigestHelper;
+import at.archistar.bft.helper.FakeCommand;
+import at.archistar.bft.messages.ClientCommand;
+import at.archistar.bft.messages.CommitCommand;
+import at.archistar.bft.messages.IntraReplicaCommand;
+import at.archistar.bft.messages.OperationId;
+import at.archistar.bft.messages.PrepareCommand;
+import at.archistar.bft.messages.PreprepareCommand;
+import at.archistar.bft.messages.TransactionResult;
+
+public class BatchingTest {
+
+    private final DigestHelper digests = new DigestHelper();
+
+    private final byte[] data = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+
+    private BftEngineConfiguration batchingConfig() {
+        BftEngineConfiguration config = new BftEngineConfiguration();
+        config.setMaxBatchSize(3);
+        config.setBatchTimeout(60000);
+        return config;
+    }
+
+    @Test
+    public void busyPrimaryBatchesClientOperations() {
+
+        BftEngineCallbacks callbacks = mock(BftEngineCallbacks.class);
+        BftEngine primary = new BftEngine(0, 0, 1, callbacks, batchingConfig());
+        int viewNr = 0;
+
+        /* an idle primary orders the first operation immediately */
+        primary.processClientCommand(new FakeCommand(1, 1, "fragment-1", data));
+        verify(callbacks, times(1)).sendToReplicas(isA(PreprepareCommand.class));
+
+        /* while this is in-flight, the next operations are collected */
+        ClientCommand cmd2 = new FakeCommand(1, 2, "fragment-2", data);
+        ClientCommand cmd3 = new FakeCommand(1, 3, "fragment-3", data);
+        ClientCommand cmd4 = new FakeCommand(1, 4, "fragment-4", data);
+        primary.processClientCommand(cmd2);
+        primary.processClientCommand(cmd3);
+        verify(callbacks, times(1)).sendToReplicas(isA(PreprepareCommand.class));
+        primary.processClientCommand(cmd4);
+
+        ArgumentCaptor<IntraReplicaCommand> sent = ArgumentCaptor.forClass(IntraReplicaCommand.class);
+        verify(callbacks, times(2)).sendToReplicas(sent.capture());
+        PreprepareCommand batch = (PreprepareCommand) sent.getAllValues().get(1);
+
+        assertThat(batch.getClientOperationIds()).containsExactly(cmd2.getClientOperationId(digests),
+                cmd3.getClientOperationId(digests), cmd4.getClientOperationId(digests));
+
+        OperationId digest = batch.getClientOperationId(digests);
+        int sequence = batch.getSequence();
+
+        primary.processIntraReplicaCommand(new PrepareCommand(viewNr, sequence, 1, digest));
+        primary.processIntraReplicaCommand(new PrepareCommand(viewNr, sequence, 2, digest));
+        verify(callbacks, times(1)).sendToReplicas(isA(CommitCommand.class));
+
+        primary.processIntraReplicaCommand(new CommitCommand(viewNr, sequence, 1));
+        primary.processIntraReplicaCommand(new CommitCommand(viewNr, sequence, 2));
+
+        /* one consensus instance, but every operation is executed and answered */
+        InOrder inOrder = inOrder(callbacks);
+        inOrder.verify(callbacks).executeClientCommand(cmd2);
+        inOrder.verify(callbacks).executeClientCommand(cmd3);
+        inOrder.verify(callbacks).executeClientCommand(cmd4);
+        verify(callbacks, times(3)).answerClient(isA(TransactionResult.class));
+    }
+
+    @Test
+    public void replicaExecutesBatchInOrder() {
+
+        BftEngineCallbacks callbacks = mock(BftEngineCallbacks.class);
+        BftEngine replica = new BftEngine(1, 0, 1, callbacks, batchingConfig());
+        int viewNr = 0;
+        int sequence = 0;
+
+        ClientCommand cmd1 = new FakeCommand(1, 1, "fragment-1", data);
+        ClientCommand cmd2 = new FakeCommand(2, 1, "fragment-2", data);
+        List<OperationId> ids = Arrays.asList(cmd2.getClientOperationId(digests), cmd1.getClientOperationId(digests));
+        PreprepareCommand batch = new PreprepareCommand(viewNr, sequence, 0, ids, -2);
+        OperationId digest = batch.getClientOperationId(digests);
+
+        /* replica needs all client operations before it can prepare */
+        replica.processClientCommand(cmd1);
+        replica.processIntraReplicaCommand(batch);
+        verify(callbacks, never()).sendToReplicas(isA(PrepareCommand.class));
+        replica.processClientCommand(cmd2);
+        verify(callbacks, times(1)).sendToReplicas(isA(PrepareCommand.class));
+
+        replica.processIntraReplicaCommand(new PrepareCommand(viewNr, sequence, 0, digest));
+        replica.processIntraReplicaCommand(new PrepareCommand(viewNr, sequence, 2, digest));
+        verify(callbacks, times(1)).sendToReplicas(isA(CommitCommand.class));
+
+        replica.processIntraReplicaCommand(new CommitCommand(viewNr, sequence, 0));
+        replica.processIntraReplicaCommand(new CommitCommand(viewNr, sequence, 2));
+
+        InOrder inOrder = inOrder(callbacks);
+        inOrder.verify(callbacks).executeClientCommand(cmd2);
+        inOrder.verify(callbacks).executeClientCommand(cmd1);
+        verify(callbacks, times(2)).answerClient(isA(TransactionResult.class));
+    }
+}
@@ -0,0 +1,47 @@
+package at.archistar.bft.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.*;
+
+import at.archistar.bft.helper.CountingCallbacks;
+import at.archistar.bft.helper.SequenceDriver;
+
+public class ConcurrentProcessingTest {
+
+    @Test
+    public void parallelSequencesAreAllExecuted() throws InterruptedException {
+
+        final int threadCount = 4;
+        final int perThread = 250;
+
+        CountingCallbacks callbacks = new CountingCallbacks();
+        final BftEngine replica = new BftEngine(1, 1, callbacks);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            final int offset = i;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < perThread; j++) {
+                        SequenceDriver.drive(replica, 0, j * threadCount + offset);
+                    }
+                }
+            });
+        }
+
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertThat(callbacks.getExecuted()).isEqualTo(threadCount * perThread);
+        assertThat(callbacks.getAnswered()).isEqualTo(threadCount * perThread);
+        assertThat(callbacks.getProblems()).isEqualTo(0);
+    }
+}
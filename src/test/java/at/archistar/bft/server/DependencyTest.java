@@ -0,0 +1,97 @@
+package at.archistar.bft.server;
+
+import java.util.List;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import static org.fest.assertions.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import at.archistar.bft.helper.DigestHelper;
+import at.archistar.bft.helper.FakeCommand;
+import at.archistar.bft.messages.ClientCommand;
+import at.archistar.bft.messages.CommitCommand;
+import at.archistar.bft.messages.IntraReplicaCommand;
+import at.archistar.bft.messages.OperationId;
+import at.archistar.bft.messages.PrepareCommand;
+import at.archistar.bft.messages.PreprepareCommand;
+
+public class DependencyTest {
+
+    private final DigestHelper digests = new DigestHelper();
+
+    private final byte[] data = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+
+    private final int viewNr = 0;
+
+    private void runOperation(BftEngine replica, ClientCommand cmd, int sequence, int priorSequence) {
+        OperationId digest = cmd.getClientOperationId(digests);
+
+        replica.processClientCommand(cmd);
+        replica.processIntraReplicaCommand(new PreprepareCommand(viewNr, sequence, 0, digest, priorSequence));
+        replica.processIntraReplicaCommand(new PrepareCommand(viewNr, sequence, 0, digest));
+        replica.processIntraReplicaCommand(new PrepareCommand(viewNr, sequence, 2, digest));
+        replica.processIntraReplicaCommand(new CommitCommand(viewNr, sequence, 0));
+        replica.processIntraReplicaCommand(new CommitCommand(viewNr, sequence, 2));
+        replica.processIntraReplicaCommand(new CommitCommand(viewNr, sequence, 3));
+    }
+
+    @Test
+    public void commitOfPriorSequenceWakesUpSuccessor() {
+
+        BftEngineCallbacks callbacks = mock(BftEngineCallbacks.class);
+        BftEngine replica = new BftEngine(1, 1, callbacks);
+
+        ClientCommand first = new FakeCommand(1, 1, "fragment-id-1", data);
+        ClientCommand second = new FakeCommand(1, 2, "fragment-id-1", data);
+
+        /* the successor is complete but has to wait for its prior sequence */
+        runOperation(replica, second, 1, 0);
+        verify(callbacks, never()).executeClientCommand(second);
+
+        /* no further message for sequence 1 is needed */
+        runOperation(replica, first, 0, -2);
+
+        InOrder inOrder = inOrder(callbacks);
+        inOrder.verify(callbacks).executeClientCommand(first);
+        inOrder.verify(callbacks).executeClientCommand(second);
+    }
+
+    @Test
+    public void unrelatedFragmentsDoNotWait() {
+
+        BftEngineCallbacks callbacks = mock(BftEngineCallbacks.class);
+        BftEngine replica = new BftEngine(1, 1, callbacks);
+
+        ClientCommand first = new FakeCommand(1, 1, "fragment-id-1", data);
+        ClientCommand second = new FakeCommand(1, 2, "fragment-id-2", data);
+
+        /* sequence 0 is still in-flight, but sequence 1 touches another fragment */
+        replica.processClientCommand(first);
+        replica.processIntraReplicaCommand(new PreprepareCommand(viewNr, 0, 0, first.getClientOperationId(digests), -2));
+        runOperation(replica, second, 1, -2);
+
+        verify(callbacks, never()).executeClientCommand(first);
+        verify(callbacks, times(1)).executeClientCommand(second);
+    }
+
+    @Test
+    public void primaryChainsOperationsPerFragment() {
+
+        BftEngineCallbacks callbacks = mock(BftEngineCallbacks.class);
+        BftEngine primary = new BftEngine(0, 1, callbacks);
+
+        primary.processClientCommand(new FakeCommand(1, 1, "fragment-id-1", data));
+        primary.processClientCommand(new FakeCommand(1, 2, "fragment-id-2", data));
+        primary.processClientCommand(new FakeCommand(1, 3, "fragment-id-1", data));
+
+        ArgumentCaptor<IntraReplicaCommand> sent = ArgumentCaptor.forClass(IntraReplicaCommand.class);
+        verify(callbacks, times(3)).sendToReplicas(sent.capture());
+        List<IntraReplicaCommand> preprepares = sent.getAllValues();
+
+        assertThat(((PreprepareCommand) preprepares.get(0)).getPriorSequence()).isEqualTo(-2);
+        assertThat(((PreprepareCommand) preprepares.get(1)).getPriorSequence()).isEqualTo(-2);
+        assertThat(((PreprepareCommand) preprepares.get(2)).getPriorSequence()).isEqualTo(preprepares.get(0).getSequence());
+    }
+}
@@ -0,0 +1,58 @@
+package at.archistar.bft.server;
+
+import org.junit.Test;
+
+import static org.mockito.Mockito.*;
+
+import at.archistar.bft.helper.DigestHelper;
+import at.archistar.bft.helper.FakeCommand;
+import at.archistar.bft.messages.AbstractCommand;
+import at.archistar.bft.messages.ClientCommand;
+import at.archistar.bft.messages.CommitCommand;
+import at.archistar.bft.messages.OperationId;
+import at.archistar.bft.messages.PrepareCommand;
+import at.archistar.bft.messages.PreprepareCommand;
+
+public class DuplicateVoteTest {
+
+    private final DigestHelper digests = new DigestHelper();
+
+    private final byte[] data = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+
+    @Test
+    public void retransmittedVotesAreCountedOnce() {
+
+        BftEngineCallbacks callbacks = mock(BftEngineCallbacks.class);
+        BftEngine replica = new BftEngine(1, 0, 1, callbacks);
+        int viewNr = 0;
+        int sequence = 0;
+
+        ClientCommand cmd = new FakeCommand(1, 1, "fragment-1", data);
+        OperationId digest = cmd.getClientOperationId(digests);
+
+        replica.processClientCommand(cmd);
+        replica.processIntraReplicaCommand(new PreprepareCommand(viewNr, sequence, 0, digest, -2));
+
+        replica.processIntraReplicaCommand(new PrepareCommand(viewNr, sequence, 0, digest));
+        replica.processIntraReplicaCommand(new PrepareCommand(viewNr, sequence, 0, digest));
+        verify(callbacks, times(1)).sendToReplicas(isA(CommitCommand.class));
+
+        /* own commit + two copies of replica 0's commit are no quorum */
+        replica.processIntraReplicaCommand(new CommitCommand(viewNr, sequence, 0));
+        replica.processIntraReplicaCommand(new CommitCommand(viewNr, sequence, 0));
+        verify(callbacks, never()).executeClientCommand(cmd);
+
+        replica.processIntraReplicaCommand(new CommitCommand(viewNr, sequence, 2));
+        verify(callbacks, times(1)).executeClientCommand(cmd);
+    }
+
+    @Test
+    public void votesFromUnknownReplicasAreRejected() {
+
+        BftEngineCallbacks callbacks = mock(BftEngineCallbacks.class);
+        BftEngine replica = new BftEngine(1, 0, 1, callbacks);
+
+        replica.processIntraReplicaCommand(new CommitCommand(0, 0, 4));
+        verify(callbacks, times(1)).invalidMessageReceived(isA(AbstractCommand.class));
+    }
+}
@@ -0,0 +1,131 @@
+package at.archistar.bft.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import static org.fest.assertions.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import at.archistar.bft.helper.SequenceDriver;
+import at.archistar.bft.messages.AbstractCommand;
+import at.archistar.bft.messages.CheckpointMessage;
+import at.archistar.bft.messages.CommitCommand;
+import at.archistar.bft.messages.IntraReplicaCommand;
+
+public class GarbageCollectionTest {
+
+    /**
+     * replica 3 is down, so no transaction ever gets all commits
+     */
+    private void driveWithoutReplica3(BftEngine replica, int sequence) {
+        List<AbstractCommand> msgs = new ArrayList<>();
+        for (AbstractCommand msg : SequenceDriver.createMessages(0, sequence)) {
+            if (!(msg instanceof CommitCommand) || ((CommitCommand) msg).getSourceReplicaId() != 3) {
+                msgs.add(msg);
+            }
+        }
+        SequenceDriver.deliver(replica, msgs);
+    }
+
+    @Test
+    public void stableCheckpointRemovesCommitedTransactions() {
+
+        BftEngineCallbacks callbacks = mock(BftEngineCallbacks.class);
+        BftEngine replica = new BftEngine(1, 0, 1, callbacks);
+
+        driveWithoutReplica3(replica, 0);
+        driveWithoutReplica3(replica, 1);
+        assertThat(replica.getCurrentEra().getSequenceCount()).isEqualTo(2);
+
+        /* the other replicas agree upon our checkpoint for sequence 0 */
+        ArgumentCaptor<IntraReplicaCommand> sent = ArgumentCaptor.forClass(IntraReplicaCommand.class);
+        verify(callbacks, atLeastOnce()).sendToReplicas(sent.capture());
+        CheckpointMessage own = null;
+        for (IntraReplicaCommand msg : sent.getAllValues()) {
+            if (msg instanceof CheckpointMessage) {
+                own = (CheckpointMessage) msg;
+            }
+        }
+        assertThat(own).isNotNull();
+
+        replica.processIntraReplicaCommand(new CheckpointMessage(0, -10, 0, 0, own.getStateDigest()));
+        replica.processIntraReplicaCommand(new CheckpointMessage(2, -10, 0, 0, own.getStateDigest()));
+
+        assertThat(replica.getCurrentEra().getSequenceCount()).isEqualTo(1);
+        verify(callbacks, never()).invalidCheckpointMessage(isA(CheckpointMessage.class));
+    }
+
+    @Test
+    public void checkpointNeedsTheSameDigestFromDistinctReplicas() {
+
+        BftEngineCallbacks callbacks = mock(BftEngineCallbacks.class);
+        CheckpointManager checkpoints = new CheckpointManager(0, callbacks, 1);
+        byte[] digest = {1, 2, 3};
+        byte[] other = {3, 2, 1};
+
+        /* repeated messages of a single replica count once */
+        for (int i = 0; i < 3; i++) {
+            checkpoints.addCheckpointMessage(new CheckpointMessage(1, -10, 0, 128, other));
+        }
+        assertThat(checkpoints.getLowWaterMark()).isEqualTo(-1);
+
+        /* replica 1 may not switch to the digest of the others */
+        checkpoints.addCheckpointMessage(new CheckpointMessage(2, -10, 0, 128, digest));
+        checkpoints.addCheckpointMessage(new CheckpointMessage(3, -10, 0, 128, digest));
+        checkpoints.addCheckpointMessage(new CheckpointMessage(1, -10, 0, 128, digest));
+        assertThat(checkpoints.getLowWaterMark()).isEqualTo(-1);
+        verify(callbacks, times(3)).invalidCheckpointMessage(isA(CheckpointMessage.class));
+
+        checkpoints.addCheckpointMessage(new CheckpointMessage(0, -10, 0, 128, digest));
+        assertThat(checkpoints.getLowWaterMark()).isEqualTo(128);
+    }
+
+    @Test
+    public void checkpointsOfUnknownReplicasAreNotCounted() {
+
+        BftEngineCallbacks callbacks = mock(BftEngineCallbacks.class);
+        BftEngine replica = new BftEngine(1, 0, 1, callbacks);
+        byte[] digest = {1, 2, 3};
+
+        for (int i = 4; i < 7; i++) {
+            replica.processIntraReplicaCommand(new CheckpointMessage(i, -10, 0, 128, digest));
+        }
+        replica.processIntraReplicaCommand(new CheckpointMessage(-1, -10, 0, 128, digest));
+        verify(callbacks, times(4)).invalidMessageReceived(isA(CheckpointMessage.class));
+
+        replica.processIntraReplicaCommand(new CheckpointMessage(0, -10, 0, 128, digest));
+        replica.processIntraReplicaCommand(new CheckpointMessage(2, -10, 0, 128, digest));
+
+        /* the checkpoint did not become stable, so the window did not move */
+        driveWithoutReplica3(replica, 1100);
+        assertThat(replica.getCurrentEra().getSequenceCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void onlyTheHighestCheckpointBeyondTheWindowIsKept() {
+
+        BftEngineCallbacks callbacks = mock(BftEngineCallbacks.class);
+        CheckpointManager checkpoints = new CheckpointManager(0, callbacks, 1, 1024);
+        byte[] digest = {1, 2, 3};
+
+        /* replica 1's far-future checkpoint replaces its older one */
+        checkpoints.addCheckpointMessage(new CheckpointMessage(1, -10, 0, 2048, digest));
+        checkpoints.addCheckpointMessage(new CheckpointMessage(1, -10, 0, 4096, digest));
+        checkpoints.addCheckpointMessage(new CheckpointMessage(2, -10, 0, 2048, digest));
+        checkpoints.addCheckpointMessage(new CheckpointMessage(3, -10, 0, 2048, digest));
+        assertThat(checkpoints.getLowWaterMark()).isEqualTo(-1);
+
+        /* an older one does not replace it */
+        checkpoints.addCheckpointMessage(new CheckpointMessage(1, -10, 0, 2048, digest));
+        assertThat(checkpoints.getLowWaterMark()).isEqualTo(-1);
+
+        checkpoints.addCheckpointMessage(new CheckpointMessage(0, -10, 0, 2048, digest));
+        assertThat(checkpoints.getLowWaterMark()).isEqualTo(2048);
+
+        /* sequences within the window are all kept, but must be checkpoints */
+        checkpoints.addCheckpointMessage(new CheckpointMessage(1, -10, 0, 2049, digest));
+        verify(callbacks).invalidCheckpointMessage(isA(CheckpointMessage.class));
+    }
+}
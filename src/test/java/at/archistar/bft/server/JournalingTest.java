@@ -0,0 +1,42 @@
+package at.archistar.bft.server;
+
+import java.io.File;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.fest.assertions.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import at.archistar.bft.helper.SequenceDriver;
+import at.archistar.bft.messages.ClientCommand;
+import at.archistar.bft.messages.CommitCommand;
+import at.archistar.bft.messages.PrepareCommand;
+
+public class JournalingTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void votesAreSentAfterTheJournalWasFlushed() throws Exception {
+        File directory = folder.newFolder("journal");
+
+        BftEngineConfiguration config = new BftEngineConfiguration();
+        config.setJournalDirectory(directory);
+        config.setJournalSegmentSize(1024 * 1024);
+
+        BftEngineCallbacks callbacks = mock(BftEngineCallbacks.class);
+        BftEngine replica = new BftEngine(1, 0, 1, callbacks, config);
+
+        SequenceDriver.drive(replica, 0, 0);
+        SequenceDriver.drive(replica, 0, 1);
+        replica.shutdown();
+
+        verify(callbacks, times(2)).sendToReplicas(isA(PrepareCommand.class));
+        verify(callbacks, times(2)).sendToReplicas(isA(CommitCommand.class));
+        verify(callbacks, times(2)).executeClientCommand(isA(ClientCommand.class));
+        assertThat(directory.list()).hasSize(1);
+        assertThat(new File(directory, directory.list()[0]).length()).isEqualTo(1024 * 1024);
+    }
+}
@@ -0,0 +1,131 @@
+package at.archistar.bft.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.*;
+
+import at.archistar.bft.helper.CountingCallbacks;
+import at.archistar.bft.helper.DigestHelper;
+import at.archistar.bft.helper.FakeCommand;
+import at.archistar.bft.helper.SequenceDriver;
+import at.archistar.bft.messages.ClientCommand;
+import at.archistar.bft.messages.CommitCommand;
+import at.archistar.bft.messages.OperationId;
+import at.archistar.bft.messages.PrepareCommand;
+import at.archistar.bft.messages.PreprepareCommand;
+
+public class ParallelExecutionTest {
+
+    private final DigestHelper digests = new DigestHelper();
+
+    private final byte[] data = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+
+    /**
+     * records the execution order of both used fragments
+     */
+    private static class RecordingCallbacks extends CountingCallbacks {
+
+        private final List<List<Integer>> executions = new ArrayList<>();
+
+        RecordingCallbacks() {
+            executions.add(Collections.synchronizedList(new ArrayList<Integer>()));
+            executions.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+
+        @Override
+        public byte[] executeClientCommand(ClientCommand cmd) {
+            executions.get(cmd.getClientId()).add(cmd.getClientSequence());
+            Thread.yield();
+            return super.executeClientCommand(cmd);
+        }
+    }
+
+    private BftEngine createEngine(CountingCallbacks callbacks) {
+        BftEngineConfiguration config = new BftEngineConfiguration();
+        config.setExecutionThreads(4);
+        return new BftEngine(1, 0, 1, callbacks, config);
+    }
+
+    @Test
+    public void operationsOfAFragmentAreExecutedInSequenceOrder() throws InterruptedException {
+
+        RecordingCallbacks callbacks = new RecordingCallbacks();
+        BftEngine replica = createEngine(callbacks);
+        int viewNr = 0;
+
+        /* two fragments, every operation depends upon the previous one */
+        for (int sequence = 0; sequence < 200; sequence++) {
+            int fragment = sequence % 2;
+            ClientCommand cmd = new FakeCommand(fragment, sequence, "fragment-" + fragment, data);
+            OperationId digest = cmd.getClientOperationId(digests);
+            int prior = sequence < 2 ? -2 : sequence - 2;
+
+            replica.processClientCommand(cmd);
+            replica.processIntraReplicaCommand(new PreprepareCommand(viewNr, sequence, 0, digest, prior));
+            replica.processIntraReplicaCommand(new PrepareCommand(viewNr, sequence, 0, digest));
+            replica.processIntraReplicaCommand(new PrepareCommand(viewNr, sequence, 2, digest));
+            replica.processIntraReplicaCommand(new CommitCommand(viewNr, sequence, 0));
+            replica.processIntraReplicaCommand(new CommitCommand(viewNr, sequence, 2));
+        }
+        replica.shutdown();
+
+        assertThat(callbacks.getExecuted()).isEqualTo(200);
+        assertThat(callbacks.getAnswered()).isEqualTo(200);
+        for (List<Integer> executed : callbacks.executions) {
+            assertThat(executed).hasSize(100).isSorted();
+        }
+    }
+
+    @Test
+    public void independentFragmentsFromMultipleThreads() throws InterruptedException {
+
+        final int threadCount = 4;
+        final int perThread = 250;
+
+        CountingCallbacks callbacks = new CountingCallbacks();
+        final BftEngine replica = createEngine(callbacks);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            final int offset = i;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < perThread; j++) {
+                        SequenceDriver.drive(replica, 0, j * threadCount + offset);
+                    }
+                }
+            });
+        }
+
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        replica.shutdown();
+
+        assertThat(callbacks.getExecuted()).isEqualTo(threadCount * perThread);
+        assertThat(callbacks.getAnswered()).isEqualTo(threadCount * perThread);
+        assertThat(callbacks.getProblems()).isEqualTo(0);
+    }
+
+    @Test
+    public void lastExecutedOnlyAdvancesWithoutGaps() {
+
+        CountingCallbacks callbacks = new CountingCallbacks();
+        ExecutionStage stage = new ExecutionStage(1, callbacks, new CheckpointManager(1, callbacks, 1), 0);
+
+        /* independent fragments, sequence 1 is handed in first */
+        stage.replay(1, Collections.<ClientCommand>singletonList(new FakeCommand(1, 1, "fragment-1", data)), 0);
+        stage.replay(2, Collections.<ClientCommand>singletonList(new FakeCommand(1, 2, "fragment-1", data)), 0);
+        assertThat(stage.getLastExecuted()).isEqualTo(-1);
+
+        stage.replay(0, Collections.<ClientCommand>singletonList(new FakeCommand(0, 0, "fragment-0", data)), 0);
+        assertThat(stage.getLastExecuted()).isEqualTo(2);
+    }
+}
@@ -6,9 +6,11 @@ import org.mockito.ArgumentCaptor;
 import static org.fest.assertions.api.Assertions.*;
 import static org.mockito.Mockito.*;
 
+import at.archistar.bft.helper.DigestHelper;
 import at.archistar.bft.helper.FakeCommand;
 import at.archistar.bft.messages.ClientCommand;
 import at.archistar.bft.messages.CommitCommand;
+import at.archistar.bft.messages.OperationId;
 import at.archistar.bft.messages.PrepareCommand;
 import at.archistar.bft.messages.PreprepareCommand;
 import at.archistar.bft.messages.TransactionResult;
@@ -17,6 +19,8 @@ import at.archistar.bft.server.BftEngineCallbacks;
 
 public class PerfectRunTest {
 
+    private final DigestHelper digests = new DigestHelper();
+
     @Test
     public void testPrimaryWithThreeReplicas() {
 
@@ -40,7 +44,7 @@ public class PerfectRunTest {
         /* capture outgoing preprepare command */
         ArgumentCaptor<PreprepareCommand> ppCommand = ArgumentCaptor.forClass(PreprepareCommand.class);
         verify(callbacks, times(1)).sendToReplicas(ppCommand.capture());
-        String digest = ppCommand.getValue().getClientOperationId();
+        OperationId digest = ppCommand.getValue().getClientOperationId(digests);
         int sequence = ppCommand.getValue().getSequence();
 
         /* primary receives prepare commands */
@@ -59,6 +63,28 @@ public class PerfectRunTest {
         verify(callbacks, times(1)).answerClient(isA(TransactionResult.class));
     }
 
+    @Test
+    public void primaryUsesTheConfiguredDigests() throws InterruptedException {
+
+        BftEngineConfiguration config = new BftEngineConfiguration();
+        config.setDigestAlgorithm("SHA-1");
+        config.setOperationIdMode(DigestHelper.OperationIdMode.PACKED);
+        DigestHelper configured = new DigestHelper("SHA-1", DigestHelper.OperationIdMode.PACKED);
+
+        BftEngineCallbacks callbacks = mock(BftEngineCallbacks.class);
+        BftEngine primary = new BftEngine(0, 0, 1, callbacks, config);
+        assertThat(primary.isPrimary()).isEqualTo(true);
+
+        ClientCommand cmd = new FakeCommand(1, 1, "fragment-id-1", new byte[] {1, 2, 3});
+        primary.processClientCommand(cmd);
+
+        ArgumentCaptor<PreprepareCommand> ppCommand = ArgumentCaptor.forClass(PreprepareCommand.class);
+        verify(callbacks, times(1)).sendToReplicas(ppCommand.capture());
+        assertThat(ppCommand.getValue().getClientOperationIds()).containsExactly(configured.getClientOperationId(1, 1));
+        assertThat(configured.getClientOperationId(1, 1)).isNotEqualTo(digests.getClientOperationId(1, 1));
+        primary.shutdown();
+    }
+
     @Test
     public void primaryWithTwoReplicas() {
 
@@ -82,7 +108,7 @@ public class PerfectRunTest {
         /* capture outgoing preprepare command */
         ArgumentCaptor<PreprepareCommand> ppCommand = ArgumentCaptor.forClass(PreprepareCommand.class);
         verify(callbacks, times(1)).sendToReplicas(ppCommand.capture());
-        String digest = ppCommand.getValue().getClientOperationId();
+        OperationId digest = ppCommand.getValue().getClientOperationId(digests);
         int sequence = ppCommand.getValue().getSequence();
 
         /* primary receives prepare commands */
@@ -122,7 +148,7 @@ public class PerfectRunTest {
 
         int sequence = -1;
         int priorSequence = -2;
-        String digest = cmd.getClientOperationId();
+        OperationId digest = cmd.getClientOperationId(digests);
 
         replica.processIntraReplicaCommand(new PreprepareCommand(viewNr, sequence, 0, digest, priorSequence));
         verify(callbacks, times(1)).sendToReplicas(isA(PrepareCommand.class));
@@ -166,7 +192,7 @@ public class PerfectRunTest {
 
         int sequence = -1;
         int priorSequence = -2;
-        String digest = cmd.getClientOperationId();
+        OperationId digest = cmd.getClientOperationId(digests);
 
         replica.processIntraReplicaCommand(new PreprepareCommand(viewNr, sequence, 0, digest, priorSequence));
         verify(callbacks, times(1)).sendToReplicas(isA(PrepareCommand.class));
@@ -0,0 +1,113 @@
+package at.archistar.bft.server;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import static org.fest.assertions.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import at.archistar.bft.helper.DigestHelper;
+import at.archistar.bft.helper.FakeCommand;
+import at.archistar.bft.messages.ClientCommand;
+import at.archistar.bft.messages.CommitCommand;
+import at.archistar.bft.messages.IntraReplicaCommand;
+import at.archistar.bft.messages.OperationId;
+import at.archistar.bft.messages.PrepareCommand;
+import at.archistar.bft.messages.PreprepareCommand;
+import at.archistar.bft.messages.TransactionResult;
+
+public class ReadOnlyTest {
+
+    private final byte[] data = {1, 2, 3};
+
+    /**
+     * a server supporting unordered reads
+     */
+    private interface ReadingServer extends BftEngineCallbacks, ReadOnlyCallbacks {
+    }
+
+    /**
+     * a server supporting unordered reads and tentative execution
+     */
+    private interface TentativeReadingServer extends ReadingServer, TentativeExecutionCallbacks {
+    }
+
+    private ClientCommand read(int clientSequence) {
+        ClientCommand cmd = new FakeCommand(1, clientSequence, "fragment-1", data);
+        cmd.setReadOnly(true);
+        return cmd;
+    }
+
+    @Test
+    public void readOnlyCommandsAreNotOrdered() {
+        ReadingServer callbacks = mock(ReadingServer.class);
+        when(callbacks.executeReadOnly(any(ClientCommand.class))).thenReturn(data);
+        BftEngine primary = new BftEngine(0, 0, 1, callbacks);
+
+        primary.processClientCommand(read(1));
+
+        ArgumentCaptor<TransactionResult> answer = ArgumentCaptor.forClass(TransactionResult.class);
+        verify(callbacks).answerClient(answer.capture());
+        verify(callbacks, never()).sendToReplicas(any(IntraReplicaCommand.class));
+        verify(callbacks, never()).executeClientCommand(any(ClientCommand.class));
+
+        assertThat(answer.getValue().isReadOnly()).isTrue();
+        assertThat(answer.getValue().getLastExecuted()).isEqualTo(-1);
+        assertThat(answer.getValue().getPayload()).isEqualTo(data);
+    }
+
+    @Test
+    public void readOnlyCommandsAreOrderedWithoutReadOnlyCallbacks() {
+        BftEngineCallbacks callbacks = mock(BftEngineCallbacks.class);
+        BftEngine primary = new BftEngine(0, 0, 1, callbacks);
+
+        primary.processClientCommand(read(1));
+
+        verify(callbacks).sendToReplicas(isA(PreprepareCommand.class));
+        verify(callbacks, never()).answerClient(any(TransactionResult.class));
+    }
+
+    @Test
+    public void failedReadsAreOrdered() {
+        ReadingServer callbacks = mock(ReadingServer.class);
+        when(callbacks.executeReadOnly(any(ClientCommand.class))).thenThrow(new IllegalStateException("broken"));
+        BftEngine primary = new BftEngine(0, 0, 1, callbacks);
+
+        primary.processClientCommand(read(1));
+
+        verify(callbacks).sendToReplicas(isA(PreprepareCommand.class));
+        verify(callbacks, never()).answerClient(any(TransactionResult.class));
+    }
+
+    @Test
+    public void readsAreOrderedWhileTentativeExecutionsDidNotCommit() throws InterruptedException {
+        TentativeReadingServer callbacks = mock(TentativeReadingServer.class);
+        when(callbacks.executeClientCommand(any(ClientCommand.class))).thenReturn(data);
+        when(callbacks.executeReadOnly(any(ClientCommand.class))).thenReturn(data);
+        BftEngineConfiguration config = new BftEngineConfiguration();
+        config.setTentativeExecution(true);
+        BftEngine primary = new BftEngine(0, 0, 1, callbacks, config);
+
+        /* the write is prepared and executed tentatively */
+        primary.processClientCommand(new FakeCommand(1, 1, "fragment-1", data));
+        ArgumentCaptor<PreprepareCommand> ppCommand = ArgumentCaptor.forClass(PreprepareCommand.class);
+        verify(callbacks).sendToReplicas(ppCommand.capture());
+        OperationId digest = ppCommand.getValue().getClientOperationId(new DigestHelper());
+        int sequence = ppCommand.getValue().getSequence();
+        primary.processIntraReplicaCommand(new PrepareCommand(0, sequence, 1, digest));
+        primary.processIntraReplicaCommand(new PrepareCommand(0, sequence, 2, digest));
+        verify(callbacks).executeClientCommand(any(ClientCommand.class));
+
+        primary.processClientCommand(read(2));
+        verify(callbacks, never()).executeReadOnly(any(ClientCommand.class));
+        verify(callbacks, times(2)).sendToReplicas(isA(PreprepareCommand.class));
+
+        /* reads are unordered again once it commited */
+        primary.processIntraReplicaCommand(new CommitCommand(0, sequence, 1));
+        primary.processIntraReplicaCommand(new CommitCommand(0, sequence, 2));
+        primary.processClientCommand(read(3));
+        verify(callbacks).executeReadOnly(any(ClientCommand.class));
+        verify(callbacks, times(2)).sendToReplicas(isA(PreprepareCommand.class));
+        primary.shutdown();
+    }
+}
@@ -0,0 +1,166 @@
+package at.archistar.bft.server;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.fest.assertions.api.Assertions.*;
+
+import at.archistar.bft.helper.CountingCallbacks;
+import at.archistar.bft.helper.SequenceDriver;
+import at.archistar.bft.messages.CheckpointMessage;
+import at.archistar.bft.messages.ClientCommand;
+import at.archistar.bft.messages.IntraReplicaCommand;
+
+public class RecoveryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * pretends to keep a snapshot, remembers the sent checkpoints
+     */
+    private static class SnapshotCallbacks extends CountingCallbacks implements RecoveryCallbacks {
+
+        private final int restored;
+
+        private final List<Integer> taken = new ArrayList<>();
+
+        /**
+         * executed operations when each snapshot was taken
+         */
+        private final List<Integer> executedAt = new ArrayList<>();
+
+        private final List<CheckpointMessage> checkpoints = new ArrayList<>();
+
+        /**
+         * the operation of this sequence takes a while (-1 for none)
+         */
+        private int slowSequence = -1;
+
+        SnapshotCallbacks(int restored) {
+            this.restored = restored;
+        }
+
+        @Override
+        public byte[] executeClientCommand(ClientCommand cmd) {
+            if (cmd.getClientSequence() == slowSequence) {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.executeClientCommand(cmd);
+        }
+
+        @Override
+        public void sendToReplicas(IntraReplicaCommand cmd) {
+            super.sendToReplicas(cmd);
+            if (cmd instanceof CheckpointMessage) {
+                checkpoints.add((CheckpointMessage) cmd);
+            }
+        }
+
+        @Override
+        public int restoreSnapshot() {
+            return restored;
+        }
+
+        @Override
+        public void takeSnapshot(int checkpoint) {
+            taken.add(checkpoint);
+            executedAt.add(getExecuted());
+        }
+    }
+
+    private BftEngineConfiguration createConfiguration() throws Exception {
+        BftEngineConfiguration config = new BftEngineConfiguration();
+        config.setJournalDirectory(new File(folder.getRoot(), "journal"));
+        config.setJournalSegmentSize(1024 * 1024);
+        config.setJournalSync(false);
+        return config;
+    }
+
+    private static void drive(BftEngine replica, int viewNr, int from, int to) {
+        for (int i = from; i < to; i++) {
+            SequenceDriver.drive(replica, viewNr, i);
+        }
+    }
+
+    @Test
+    public void onlyTheTailAfterTheSnapshotIsReplayed() throws Exception {
+        BftEngineConfiguration config = createConfiguration();
+
+        BftEngine replica = new BftEngine(1, 0, 1, new SnapshotCallbacks(-1), config);
+        drive(replica, 0, 0, 200);
+        replica.shutdown();
+
+        SnapshotCallbacks callbacks = new SnapshotCallbacks(128);
+        replica = new BftEngine(1, 0, 1, callbacks, config);
+        assertThat(callbacks.getExecuted()).isEqualTo(200 - 129);
+        assertThat(callbacks.getAnswered()).isEqualTo(0);
+
+        /* the replica continues after the replayed sequences */
+        drive(replica, 0, 200, 257);
+        replica.shutdown();
+
+        assertThat(callbacks.getExecuted()).isEqualTo(257 - 129);
+        assertThat(callbacks.getAnswered()).isEqualTo(257 - 200);
+        assertThat(callbacks.getProblems()).isEqualTo(0);
+        assertThat(callbacks.checkpoints).hasSize(1);
+        assertThat(callbacks.checkpoints.get(0).getLastExecutedSequence()).isEqualTo(256);
+    }
+
+    @Test
+    public void restartContinuesInTheJournaledView() throws Exception {
+        BftEngineConfiguration config = createConfiguration();
+
+        BftEngine replica = new BftEngine(1, 1, 1, new CountingCallbacks(), config);
+        drive(replica, 1, 0, 10);
+        replica.shutdown();
+
+        /* without snapshots nothing is executed again */
+        CountingCallbacks callbacks = new CountingCallbacks();
+        replica = new BftEngine(1, 0, 1, callbacks, config);
+        assertThat(replica.isPrimary()).isTrue();
+        assertThat(callbacks.getExecuted()).isEqualTo(0);
+        replica.shutdown();
+    }
+
+    @Test
+    public void executedCheckpointsAreSnapshotted() throws Exception {
+        SnapshotCallbacks callbacks = new SnapshotCallbacks(-1);
+        BftEngine replica = new BftEngine(1, 0, 1, callbacks, createConfiguration());
+        drive(replica, 0, 0, 129);
+
+        assertThat(callbacks.checkpoints).hasSize(2);
+        CheckpointMessage own = callbacks.checkpoints.get(1);
+        for (int other : new int[] {0, 2}) {
+            replica.processIntraReplicaCommand(new CheckpointMessage(other, -10, own.getViewNr(), own.getLastExecutedSequence(), own.getStateDigest()));
+        }
+        replica.shutdown();
+
+        assertThat(callbacks.taken).containsExactly(0, 128);
+    }
+
+    @Test
+    public void snapshotsDoNotContainLaterOperations() throws Exception {
+        BftEngineConfiguration config = createConfiguration();
+        config.setExecutionThreads(4);
+
+        SnapshotCallbacks callbacks = new SnapshotCallbacks(-1);
+        callbacks.slowSequence = 128;
+        BftEngine replica = new BftEngine(1, 0, 1, callbacks, config);
+        drive(replica, 0, 0, 400);
+        replica.shutdown();
+
+        /* every operation uses its own fragment, later ones would overtake the slow one */
+        assertThat(callbacks.getExecuted()).isEqualTo(400);
+        assertThat(callbacks.taken).containsExactly(0, 128, 256, 384);
+        assertThat(callbacks.executedAt).containsExactly(1, 129, 257, 385);
+    }
+}
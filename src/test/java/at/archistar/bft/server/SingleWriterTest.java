@@ -0,0 +1,95 @@
+package at.archistar.bft.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.*;
+
+import at.archistar.bft.helper.CountingCallbacks;
+import at.archistar.bft.helper.SequenceDriver;
+import at.archistar.bft.messages.IntraReplicaCommand;
+
+public class SingleWriterTest {
+
+    private BftEngine createEngine(CountingCallbacks callbacks) {
+        BftEngineConfiguration config = new BftEngineConfiguration();
+        config.setProcessingMode(BftEngineConfiguration.ProcessingMode.SINGLE_WRITER);
+        config.setQueueSize(1024);
+        return new BftEngine(1, 0, 1, callbacks, config);
+    }
+
+    @Test
+    public void queuedMessagesAreProcessedBeforeShutdown() throws InterruptedException {
+
+        CountingCallbacks callbacks = new CountingCallbacks();
+        BftEngine replica = createEngine(callbacks);
+
+        for (int i = 0; i < 100; i++) {
+            SequenceDriver.drive(replica, 0, i);
+        }
+        replica.shutdown();
+
+        assertThat(callbacks.getExecuted()).isEqualTo(100);
+        assertThat(callbacks.getAnswered()).isEqualTo(100);
+        assertThat(callbacks.getProblems()).isEqualTo(0);
+    }
+
+    @Test
+    public void multipleProducers() throws InterruptedException {
+
+        final int threadCount = 4;
+        final int perThread = 250;
+
+        CountingCallbacks callbacks = new CountingCallbacks();
+        final BftEngine replica = createEngine(callbacks);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            final int offset = i;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < perThread; j++) {
+                        SequenceDriver.drive(replica, 0, j * threadCount + offset);
+                    }
+                }
+            });
+        }
+
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        replica.shutdown();
+
+        assertThat(callbacks.getExecuted()).isEqualTo(threadCount * perThread);
+        assertThat(callbacks.getAnswered()).isEqualTo(threadCount * perThread);
+        assertThat(callbacks.getProblems()).isEqualTo(0);
+    }
+
+    @Test
+    public void producersFailOnceTheLoopDied() throws InterruptedException {
+
+        CountingCallbacks callbacks = new CountingCallbacks() {
+            @Override
+            public void sendToReplicas(IntraReplicaCommand cmd) {
+                throw new NoClassDefFoundError("missing");
+            }
+        };
+        BftEngine replica = createEngine(callbacks);
+
+        /* more messages than fit into the queue */
+        try {
+            for (int i = 0; i < 1000; i++) {
+                SequenceDriver.drive(replica, 0, i);
+            }
+            fail("the dead loop was not reported");
+        } catch (IllegalStateException e) {
+            assertThat(e.getCause()).isInstanceOf(NoClassDefFoundError.class);
+        }
+        replica.shutdown();
+    }
+}
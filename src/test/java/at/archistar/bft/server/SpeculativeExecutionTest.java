@@ -0,0 +1,178 @@
+package at.archistar.bft.server;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.*;
+
+import at.archistar.bft.helper.DigestHelper;
+import at.archistar.bft.helper.FakeCommand;
+import at.archistar.bft.helper.NetworkCallbacks;
+import at.archistar.bft.helper.ReplicaNetwork;
+import at.archistar.bft.messages.ClientCommand;
+import at.archistar.bft.messages.CommitCertificate;
+import at.archistar.bft.messages.IntraReplicaCommand;
+import at.archistar.bft.messages.MessageType;
+import at.archistar.bft.messages.OperationId;
+import at.archistar.bft.messages.TransactionResult;
+
+public class SpeculativeExecutionTest {
+
+    private static final int REPLICAS = 4;
+
+    private static final int OPERATIONS = 10;
+
+    private final DigestHelper digests = new DigestHelper();
+
+    private final byte[] data = {1, 2, 3};
+
+    private final BftEngine[] engines = new BftEngine[REPLICAS];
+
+    private final RollbackCallbacks[] servers = new RollbackCallbacks[REPLICAS];
+
+    private ReplicaNetwork<RollbackCallbacks> network;
+
+    /**
+     * message types that are not delivered
+     */
+    private final Set<MessageType> dropped = new HashSet<>();
+
+    private static class RollbackCallbacks extends NetworkCallbacks implements TentativeExecutionCallbacks {
+
+        private final List<TransactionResult> answers = new ArrayList<>();
+
+        private final AtomicInteger rolledBack = new AtomicInteger(0);
+
+        RollbackCallbacks(int replicaId) {
+            super(replicaId);
+        }
+
+        @Override
+        public void answerClient(TransactionResult transactionResult) {
+            super.answerClient(transactionResult);
+            answers.add(transactionResult);
+        }
+
+        @Override
+        public void rollback(ClientCommand cmd) {
+            rolledBack.incrementAndGet();
+        }
+
+        TransactionResult getAnswer(int clientSequence) {
+            for (TransactionResult answer : answers) {
+                if (answer.getClientSequence() == clientSequence && !answer.isLocalCommit()) {
+                    return answer;
+                }
+            }
+            return null;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        BftEngineConfiguration config = new BftEngineConfiguration();
+        config.setAgreementMode(BftEngineConfiguration.AgreementMode.SPECULATIVE);
+        network = new ReplicaNetwork<>(1, config, new ReplicaNetwork.CallbacksFactory<RollbackCallbacks>() {
+            @Override
+            public RollbackCallbacks create(int replicaId) {
+                return new RollbackCallbacks(replicaId);
+            }
+        });
+        network.setDropPredicate(new ReplicaNetwork.DropPredicate() {
+            @Override
+            public boolean isDropped(int target, IntraReplicaCommand cmd) {
+                return dropped.contains(cmd.getType());
+            }
+        });
+        for (int i = 0; i < REPLICAS; i++) {
+            servers[i] = network.getCallbacks(i);
+            engines[i] = network.getEngine(i);
+        }
+    }
+
+    private void sendOperations(int from, int to) {
+        for (int i = from; i < to; i++) {
+            network.submit(new FakeCommand(1, i, "fragment-" + (i % 3), data));
+        }
+    }
+
+    @Test
+    public void operationsAnswerWithTheirHistoryUponThePreprepare() {
+        dropped.add(MessageType.PREPARE);
+        dropped.add(MessageType.COMMIT);
+        sendOperations(0, OPERATIONS);
+
+        for (int i = 0; i < REPLICAS; i++) {
+            assertThat(servers[i].getExecuted()).isEqualTo(OPERATIONS);
+        }
+        for (int op = 0; op < OPERATIONS; op++) {
+            TransactionResult first = servers[0].getAnswer(op);
+            assertThat(first.isSpeculative()).isTrue();
+            for (int i = 1; i < REPLICAS; i++) {
+                assertThat(servers[i].getAnswer(op).verifyContent(first, digests)).isTrue();
+            }
+            if (op > 0) {
+                assertThat(first.getHistory()).isNotEqualTo(servers[0].getAnswer(op - 1).getHistory());
+            }
+        }
+
+        /* replicas only commit the history they executed */
+        TransactionResult certified = servers[0].getAnswer(4);
+        OperationId other = servers[0].getAnswer(3).getHistory();
+        for (BftEngine engine : engines) {
+            engine.processClientCommand(new CommitCertificate(1, 4, 0, certified.getSequence(), certified.getHistory(), new int[] {0, 1, 2}));
+            engine.processClientCommand(new CommitCertificate(1, 4, 0, certified.getSequence(), other, new int[] {0, 1, 2}));
+            engine.processClientCommand(new CommitCertificate(1, 4, 0, certified.getSequence(), certified.getHistory(), new int[] {0, 1, 1}));
+        }
+        for (int i = 0; i < REPLICAS; i++) {
+            assertThat(servers[i].answers).hasSize(OPERATIONS + 1);
+            TransactionResult commit = servers[i].answers.get(OPERATIONS);
+            assertThat(commit.isLocalCommit()).isTrue();
+            assertThat(commit.sameSpeculation(certified)).isTrue();
+        }
+
+        /* nothing prepared, but the speculative executions survive the view change */
+        dropped.clear();
+        for (BftEngine engine : engines) {
+            engine.tryAdvanceEra();
+        }
+        network.deliverAll();
+
+        for (int i = 0; i < REPLICAS; i++) {
+            assertThat(engines[i].getViewNr()).isEqualTo(1);
+            assertThat(servers[i].getExecuted()).isEqualTo(OPERATIONS);
+            assertThat(servers[i].rolledBack.get()).isEqualTo(0);
+            assertThat(servers[i].getProblems()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void executionsUnknownToTheNewViewAreRolledBack() {
+        /* only the primary executes the operation */
+        dropped.add(MessageType.PREPREPARE);
+        sendOperations(0, 1);
+        assertThat(servers[0].getExecuted()).isEqualTo(1);
+        assertThat(servers[1].getExecuted()).isEqualTo(0);
+
+        dropped.clear();
+        for (int i = 1; i < REPLICAS; i++) {
+            engines[i].tryAdvanceEra();
+        }
+        network.deliverAll();
+
+        /* the operation is ordered (and executed speculatively) again within the new view */
+        for (int i = 0; i < REPLICAS; i++) {
+            assertThat(engines[i].getViewNr()).isEqualTo(1);
+            assertThat(servers[i].getProblems()).isEqualTo(0);
+            assertThat(servers[i].getAnswer(0).isSpeculative()).isTrue();
+        }
+        assertThat(servers[0].rolledBack.get()).isEqualTo(1);
+        assertThat(servers[0].getExecuted()).isEqualTo(2);
+        assertThat(servers[1].getExecuted()).isEqualTo(1);
+    }
+}
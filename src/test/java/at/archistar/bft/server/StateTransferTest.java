@@ -0,0 +1,137 @@
+package at.archistar.bft.server;
+
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.*;
+
+import at.archistar.bft.helper.NetworkCallbacks;
+import at.archistar.bft.helper.ReplicaNetwork;
+import at.archistar.bft.helper.SequenceDriver;
+import at.archistar.bft.messages.CheckpointMessage;
+import at.archistar.bft.messages.IntraReplicaCommand;
+import at.archistar.bft.messages.StateChunkMessage;
+
+public class StateTransferTest {
+
+    private static final int REPLICAS = 4;
+
+    private static final int CHECKPOINT = 256;
+
+    private final byte[] snapshot = new byte[10000];
+
+    private final BftEngine[] engines = new BftEngine[REPLICAS];
+
+    private final SnapshotCallbacks[] servers = new SnapshotCallbacks[REPLICAS];
+
+    private ReplicaNetwork<SnapshotCallbacks> network;
+
+    /**
+     * keeps the snapshot in memory
+     */
+    private static class SnapshotCallbacks extends NetworkCallbacks implements StateTransferCallbacks {
+
+        private byte[] data = null;
+
+        private int installed = -1;
+
+        private boolean corruptChunks = false;
+
+        SnapshotCallbacks(int replicaId) {
+            super(replicaId);
+        }
+
+        @Override
+        public void sendToReplica(int replica, IntraReplicaCommand cmd) {
+            if (corruptChunks && cmd instanceof StateChunkMessage) {
+                ((StateChunkMessage) cmd).getData()[0]++;
+            }
+            super.sendToReplica(replica, cmd);
+        }
+
+        @Override
+        public long getSnapshotSize(int checkpoint) {
+            return data == null ? -1 : data.length;
+        }
+
+        @Override
+        public void readSnapshot(int checkpoint, long offset, byte[] chunk) {
+            System.arraycopy(data, (int) offset, chunk, 0, chunk.length);
+        }
+
+        @Override
+        public void writeSnapshot(int checkpoint, long offset, byte[] chunk) {
+            if (data == null) {
+                data = new byte[0];
+            }
+            if (data.length < offset + chunk.length) {
+                data = Arrays.copyOf(data, (int) offset + chunk.length);
+            }
+            System.arraycopy(chunk, 0, data, (int) offset, chunk.length);
+        }
+
+        @Override
+        public void installSnapshot(int checkpoint) {
+            this.installed = checkpoint;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = (byte) (i * 31);
+        }
+
+        BftEngineConfiguration config = new BftEngineConfiguration();
+        config.setStateChunkSize(1024);
+        config.setStateTransferWindow(4);
+
+        network = new ReplicaNetwork<>(1, config, new ReplicaNetwork.CallbacksFactory<SnapshotCallbacks>() {
+            @Override
+            public SnapshotCallbacks create(int replicaId) {
+                SnapshotCallbacks server = new SnapshotCallbacks(replicaId);
+                if (replicaId != 1) {
+                    server.data = snapshot.clone();
+                }
+                return server;
+            }
+        });
+        for (int i = 0; i < REPLICAS; i++) {
+            servers[i] = network.getCallbacks(i);
+            engines[i] = network.getEngine(i);
+        }
+    }
+
+    @Test
+    public void laggingReplicaFetchesTheSnapshot() {
+        servers[0].corruptChunks = true;
+
+        /* the other replicas agree upon a checkpoint replica 1 never reached */
+        byte[] digest = new byte[32];
+        for (int i : new int[] {0, 2, 3}) {
+            engines[1].processIntraReplicaCommand(new CheckpointMessage(i, -10, 0, CHECKPOINT, digest));
+        }
+        network.deliverAll();
+
+        assertThat(servers[1].installed).isEqualTo(CHECKPOINT);
+        assertThat(servers[1].data).isEqualTo(snapshot);
+        assertThat(servers[1].getProblems()).isGreaterThan(0);
+
+        /* operations after the checkpoint are executed, older ones are dropped */
+        SequenceDriver.drive(engines[1], 0, CHECKPOINT + 1);
+        SequenceDriver.drive(engines[1], 0, CHECKPOINT - 1);
+        assertThat(servers[1].getExecuted()).isEqualTo(1);
+    }
+
+    @Test
+    public void upToDateReplicasDoNotFetch() {
+        byte[] digest = new byte[32];
+        for (int i : new int[] {0, 2, 3}) {
+            engines[1].processIntraReplicaCommand(new CheckpointMessage(i, -10, 0, 0, digest));
+        }
+
+        assertThat(network.isIdle()).isTrue();
+        assertThat(servers[1].installed).isEqualTo(-1);
+    }
+}
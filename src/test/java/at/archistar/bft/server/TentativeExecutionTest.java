@@ -0,0 +1,145 @@
+package at.archistar.bft.server;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.*;
+
+import at.archistar.bft.helper.FakeCommand;
+import at.archistar.bft.helper.NetworkCallbacks;
+import at.archistar.bft.helper.ReplicaNetwork;
+import at.archistar.bft.messages.ClientCommand;
+import at.archistar.bft.messages.IntraReplicaCommand;
+import at.archistar.bft.messages.MessageType;
+import at.archistar.bft.messages.TransactionResult;
+
+public class TentativeExecutionTest {
+
+    private static final int REPLICAS = 4;
+
+    private static final int OPERATIONS = 10;
+
+    private final byte[] data = {1, 2, 3};
+
+    private final BftEngine[] engines = new BftEngine[REPLICAS];
+
+    private final RollbackCallbacks[] servers = new RollbackCallbacks[REPLICAS];
+
+    private ReplicaNetwork<RollbackCallbacks> network;
+
+    /**
+     * message types that are not delivered
+     */
+    private final Set<MessageType> dropped = new HashSet<>();
+
+    /**
+     * replicas that receive prepares even if those are dropped
+     */
+    private final Set<Integer> preparedReplicas = new HashSet<>();
+
+    private static class RollbackCallbacks extends NetworkCallbacks implements TentativeExecutionCallbacks {
+
+        private final AtomicInteger tentative = new AtomicInteger(0);
+
+        private final AtomicInteger rolledBack = new AtomicInteger(0);
+
+        RollbackCallbacks(int replicaId) {
+            super(replicaId);
+        }
+
+        @Override
+        public void answerClient(TransactionResult transactionResult) {
+            super.answerClient(transactionResult);
+            if (transactionResult.isTentative()) {
+                tentative.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void rollback(ClientCommand cmd) {
+            rolledBack.incrementAndGet();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        BftEngineConfiguration config = new BftEngineConfiguration();
+        config.setTentativeExecution(true);
+        network = new ReplicaNetwork<>(1, config, new ReplicaNetwork.CallbacksFactory<RollbackCallbacks>() {
+            @Override
+            public RollbackCallbacks create(int replicaId) {
+                return new RollbackCallbacks(replicaId);
+            }
+        });
+        network.setDropPredicate(new ReplicaNetwork.DropPredicate() {
+            @Override
+            public boolean isDropped(int target, IntraReplicaCommand cmd) {
+                return dropped.contains(cmd.getType()) && !(cmd.getType() == MessageType.PREPARE && preparedReplicas.contains(target));
+            }
+        });
+        for (int i = 0; i < REPLICAS; i++) {
+            servers[i] = network.getCallbacks(i);
+            engines[i] = network.getEngine(i);
+        }
+    }
+
+    private void sendOperations(int from, int to) {
+        for (int i = from; i < to; i++) {
+            network.submit(new FakeCommand(1, i, "fragment-" + i, data));
+        }
+    }
+
+    @Test
+    public void preparedOperationsAnswerBeforeTheyCommit() {
+        dropped.add(MessageType.COMMIT);
+        sendOperations(0, OPERATIONS);
+
+        for (int i = 0; i < REPLICAS; i++) {
+            assertThat(servers[i].getExecuted()).isEqualTo(OPERATIONS);
+            assertThat(servers[i].tentative.get()).isEqualTo(OPERATIONS);
+        }
+
+        /* the new view re-proposes the same batches, nothing is executed twice */
+        dropped.clear();
+        for (BftEngine engine : engines) {
+            engine.tryAdvanceEra();
+        }
+        network.deliverAll();
+
+        for (int i = 0; i < REPLICAS; i++) {
+            assertThat(engines[i].getViewNr()).isEqualTo(1);
+            assertThat(servers[i].getExecuted()).isEqualTo(OPERATIONS);
+            assertThat(servers[i].rolledBack.get()).isEqualTo(0);
+            assertThat(servers[i].getProblems()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void abortedExecutionsAreRolledBack() {
+        /* only replica 3 prepares the operation, the others move to the next view without it */
+        dropped.add(MessageType.PREPARE);
+        dropped.add(MessageType.COMMIT);
+        preparedReplicas.add(3);
+        sendOperations(0, 1);
+        assertThat(servers[3].getExecuted()).isEqualTo(1);
+        assertThat(servers[1].getExecuted()).isEqualTo(0);
+
+        dropped.clear();
+        for (int i = 0; i < 3; i++) {
+            engines[i].tryAdvanceEra();
+        }
+        network.deliverAll();
+
+        /* the operation is ordered again within the new view */
+        for (int i = 0; i < REPLICAS; i++) {
+            assertThat(engines[i].getViewNr()).isEqualTo(1);
+            assertThat(servers[i].getProblems()).isEqualTo(0);
+        }
+        assertThat(servers[3].rolledBack.get()).isEqualTo(1);
+        assertThat(servers[3].getExecuted()).isEqualTo(2);
+        assertThat(servers[1].getExecuted()).isEqualTo(1);
+    }
+}
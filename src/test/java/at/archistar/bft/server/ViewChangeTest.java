@@ -0,0 +1,239 @@
+package at.archistar.bft.server;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.*;
+
+import at.archistar.bft.helper.FakeCommand;
+import at.archistar.bft.helper.NetworkCallbacks;
+import at.archistar.bft.helper.ReplicaNetwork;
+import at.archistar.bft.messages.IntraReplicaCommand;
+import at.archistar.bft.messages.MessageType;
+import at.archistar.bft.messages.OperationId;
+import at.archistar.bft.messages.PreparedCertificate;
+import at.archistar.bft.messages.ViewChangeMessage;
+
+public class ViewChangeTest {
+
+    private static final int REPLICAS = 4;
+
+    /**
+     * the first operation is ordered alone, all others in full batches
+     */
+    private static final int OPERATIONS = 21;
+
+    private final byte[] data = {1, 2, 3};
+
+    private final BftEngine[] engines = new BftEngine[REPLICAS];
+
+    private final NetworkCallbacks[] servers = new NetworkCallbacks[REPLICAS];
+
+    private ReplicaNetwork<NetworkCallbacks> network;
+
+    private final Set<Integer> crashed = new HashSet<>();
+
+    /**
+     * replicas that do not receive commits
+     */
+    private final Set<Integer> withoutCommits = new HashSet<>();
+
+    /**
+     * replicas that do not receive prepares
+     */
+    private final Set<Integer> withoutPrepares = new HashSet<>();
+
+    /**
+     * replicas whose view-change messages are replaced by forged ones
+     */
+    private final Set<Integer> lying = new HashSet<>();
+
+    @Before
+    public void setUp() {
+        BftEngineConfiguration config = new BftEngineConfiguration();
+        config.setMaxBatchSize(4);
+        network = new ReplicaNetwork<>(1, config, new ReplicaNetwork.CallbacksFactory<NetworkCallbacks>() {
+            @Override
+            public NetworkCallbacks create(int replicaId) {
+                return new NetworkCallbacks(replicaId);
+            }
+        });
+        network.setDropPredicate(new ReplicaNetwork.DropPredicate() {
+            @Override
+            public boolean isDropped(int target, IntraReplicaCommand cmd) {
+                return crashed.contains(target) || crashed.contains(cmd.getSourceReplicaId())
+                        || (cmd.getType() == MessageType.COMMIT && withoutCommits.contains(target))
+                        || (cmd.getType() == MessageType.PREPARE && withoutPrepares.contains(target))
+                        || (cmd.getType() == MessageType.VIEW_CHANGE && lying.contains(cmd.getSourceReplicaId()));
+            }
+        });
+        for (int i = 0; i < REPLICAS; i++) {
+            servers[i] = network.getCallbacks(i);
+            engines[i] = network.getEngine(i);
+        }
+    }
+
+    /**
+     * with shared fragments every fourth operation touches the same
+     * fragment, so some batches depend upon each other
+     */
+    private void sendOperations(int from, int to, boolean shared) {
+        for (int i = from; i < to; i++) {
+            String fragmentId = shared && i % 4 == 0 ? "shared" : "fragment-" + i;
+            for (int replica = 0; replica < REPLICAS; replica++) {
+                if (!crashed.contains(replica)) {
+                    engines[replica].processClientCommand(new FakeCommand(1, i, fragmentId, data));
+                }
+            }
+            network.deliverAll();
+        }
+    }
+
+    @Test
+    public void preparedOperationsSurviveACrashedPrimary() {
+        withoutCommits.addAll(Arrays.asList(0, 1, 2, 3));
+        sendOperations(0, OPERATIONS, true);
+        assertThat(servers[1].getExecuted()).isEqualTo(0);
+
+        crashed.add(0);
+        withoutCommits.clear();
+        for (int i = 1; i < REPLICAS; i++) {
+            engines[i].tryAdvanceEra();
+        }
+        network.deliverAll();
+
+        for (int i = 1; i < REPLICAS; i++) {
+            assertThat(engines[i].getViewNr()).isEqualTo(1);
+            assertThat(servers[i].getExecuted()).isEqualTo(OPERATIONS);
+            assertThat(servers[i].getProblems()).isEqualTo(0);
+        }
+        assertThat(engines[1].isPrimary()).isTrue();
+
+        /* the new primary orders new operations after the re-proposed ones */
+        sendOperations(OPERATIONS, OPERATIONS + 5, true);
+        for (int i = 1; i < REPLICAS; i++) {
+            assertThat(servers[i].getExecuted()).isEqualTo(OPERATIONS + 5);
+        }
+    }
+
+    @Test
+    public void executedBatchesAreNotExecutedAgain() {
+        /* only replica 2 commits (batches must not depend upon each other then) */
+        withoutCommits.addAll(Arrays.asList(0, 1, 3));
+        sendOperations(0, OPERATIONS, false);
+        assertThat(servers[2].getExecuted()).isEqualTo(OPERATIONS);
+        assertThat(servers[1].getExecuted()).isEqualTo(0);
+
+        withoutCommits.clear();
+        for (int i = 0; i < REPLICAS; i++) {
+            engines[i].tryAdvanceEra();
+        }
+        network.deliverAll();
+
+        for (int i = 0; i < REPLICAS; i++) {
+            assertThat(engines[i].getViewNr()).isEqualTo(1);
+            assertThat(servers[i].getExecuted()).isEqualTo(OPERATIONS);
+            assertThat(servers[i].getProblems()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void proposalsPreferNewerViewsAndFillGaps() {
+        List<OperationId> first = Collections.singletonList(new OperationId(1, 1, 1, 1));
+        List<OperationId> second = Collections.singletonList(new OperationId(1, 2, 2, 2));
+        List<String> fragments = Collections.singletonList("fragment");
+
+        PreparedCertificate old = new PreparedCertificate(0, 3, first, new int[] {-2}, fragments);
+        PreparedCertificate newer = new PreparedCertificate(1, 3, second, new int[] {-2}, fragments);
+        PreparedCertificate outOfWindow = new PreparedCertificate(1, 200, second, new int[] {-2}, fragments);
+        List<ViewChangeMessage> used = Arrays.asList(
+                new ViewChangeMessage(0, 0, 2, Arrays.asList(old, outOfWindow)),
+                new ViewChangeMessage(1, 0, 2, Arrays.asList(old, newer, outOfWindow)),
+                new ViewChangeMessage(2, -1, 2, Collections.singletonList(newer)));
+
+        int stable = ViewChangeManager.selectStableCheckpoint(used, 1);
+        assertThat(stable).isEqualTo(0);
+
+        List<PreparedCertificate> proposals = ViewChangeManager.selectProposals(used, stable, 100, 2);
+        assertThat(proposals).hasSize(3);
+        assertThat(proposals.get(0).isNullRequest()).isTrue();
+        assertThat(proposals.get(0).getSequence()).isEqualTo(1);
+        assertThat(proposals.get(1).isNullRequest()).isTrue();
+        assertThat(proposals.get(2).sameBatch(newer)).isTrue();
+    }
+
+    @Test
+    public void certificatesOfTheNewViewAreNotProposed() {
+        List<OperationId> prepared = Collections.singletonList(new OperationId(1, 1, 1, 1));
+        List<OperationId> forged = Collections.singletonList(new OperationId(1, 2, 2, 2));
+        List<String> fragments = Collections.singletonList("fragment");
+
+        /* replica 2 claims a prepared batch of a future view */
+        PreparedCertificate certificate = new PreparedCertificate(0, 1, prepared, new int[] {-2}, fragments);
+        List<ViewChangeMessage> used = Arrays.asList(
+                new ViewChangeMessage(0, -1, 1, Collections.singletonList(certificate)),
+                new ViewChangeMessage(1, -1, 1, Collections.<PreparedCertificate>emptyList()),
+                new ViewChangeMessage(2, -1, 1, Collections.singletonList(
+                        new PreparedCertificate(Integer.MAX_VALUE, 1, forged, new int[] {-2}, fragments))));
+
+        List<PreparedCertificate> proposals = ViewChangeManager.selectProposals(used, -1, 100, 1);
+        assertThat(proposals).hasSize(2);
+        assertThat(proposals.get(0).isNullRequest()).isTrue();
+        assertThat(proposals.get(1).sameBatch(certificate)).isTrue();
+    }
+
+    @Test
+    public void conflictingCertificatesAreNotSettled() {
+        List<OperationId> prepared = Collections.singletonList(new OperationId(1, 1, 1, 1));
+        List<OperationId> forged = Collections.singletonList(new OperationId(1, 2, 2, 2));
+        List<String> fragments = Collections.singletonList("fragment");
+
+        PreparedCertificate certificate = new PreparedCertificate(0, 1, prepared, new int[] {-2}, fragments);
+        PreparedCertificate conflicting = new PreparedCertificate(0, 1, forged, new int[] {-2}, fragments);
+        List<ViewChangeMessage> used = Arrays.asList(
+                new ViewChangeMessage(0, -1, 2, Collections.singletonList(certificate)),
+                new ViewChangeMessage(1, -1, 2, Collections.<PreparedCertificate>emptyList()),
+                new ViewChangeMessage(2, -1, 2, Collections.singletonList(conflicting)));
+        assertThat(ViewChangeManager.selectProposals(used, -1, 100, 2)).isNull();
+
+        /* a newer certificate supersedes the conflict */
+        PreparedCertificate newer = new PreparedCertificate(1, 1, prepared, new int[] {-2}, fragments);
+        used = Arrays.asList(used.get(0), new ViewChangeMessage(1, -1, 2, Collections.singletonList(newer)), used.get(2));
+        List<PreparedCertificate> proposals = ViewChangeManager.selectProposals(used, -1, 100, 2);
+        assertThat(proposals).hasSize(2);
+        assertThat(proposals.get(1).sameBatch(newer)).isTrue();
+    }
+
+    @Test
+    public void committedBatchesSurviveFReplicasLeavingThemOut() {
+        /* replica 1 does not prepare, only replica 2 commits */
+        withoutPrepares.add(1);
+        withoutCommits.addAll(Arrays.asList(0, 1, 3));
+        sendOperations(0, OPERATIONS, false);
+        assertThat(servers[2].getExecuted()).isEqualTo(OPERATIONS);
+        assertThat(servers[1].getExecuted()).isEqualTo(0);
+
+        /* faulty replica 0 leaves the committed batches out of its view-change message */
+        withoutPrepares.clear();
+        withoutCommits.clear();
+        lying.add(0);
+        for (int i = 1; i < REPLICAS; i++) {
+            engines[i].processIntraReplicaCommand(new ViewChangeMessage(0, -1, 1, Collections.<PreparedCertificate>emptyList()));
+        }
+        for (int i = 1; i < REPLICAS; i++) {
+            engines[i].tryAdvanceEra();
+        }
+        network.deliverAll();
+
+        for (int i = 1; i < REPLICAS; i++) {
+            assertThat(engines[i].getViewNr()).isEqualTo(1);
+            assertThat(servers[i].getExecuted()).isEqualTo(OPERATIONS);
+            assertThat(servers[i].getProblems()).isEqualTo(0);
+        }
+    }
+}
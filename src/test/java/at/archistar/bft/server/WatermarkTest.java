@@ -0,0 +1,73 @@
+package at.archistar.bft.server;
+
+import org.junit.Test;
+
+import static org.mockito.Mockito.*;
+
+import at.archistar.bft.helper.DigestHelper;
+import at.archistar.bft.helper.FakeCommand;
+import at.archistar.bft.messages.CheckpointMessage;
+import at.archistar.bft.messages.ClientCommand;
+import at.archistar.bft.messages.IntraReplicaCommand;
+import at.archistar.bft.messages.OperationId;
+import at.archistar.bft.messages.PrepareCommand;
+import at.archistar.bft.messages.PreprepareCommand;
+
+public class WatermarkTest {
+
+    private final DigestHelper digests = new DigestHelper();
+
+    private final byte[] data = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+
+    private BftEngineConfiguration smallWindow() {
+        BftEngineConfiguration config = new BftEngineConfiguration();
+        config.setWatermarkWindow(CheckpointManager.PERIOD_TIME);
+        return config;
+    }
+
+    @Test
+    public void primaryWaitsForStableCheckpoint() {
+
+        BftEngineCallbacks callbacks = mock(BftEngineCallbacks.class);
+        BftEngine primary = new BftEngine(0, 0, 1, callbacks, smallWindow());
+
+        int window = CheckpointManager.PERIOD_TIME;
+        for (int i = 0; i <= window; i++) {
+            primary.processClientCommand(new FakeCommand(1, i, "fragment-id-" + i, data));
+        }
+
+        /* only sequences 0 to 127 fit into the window */
+        verify(callbacks, times(window)).sendToReplicas(isA(PreprepareCommand.class));
+
+        /* sequence 0 becomes a stable checkpoint */
+        byte[] digest = new byte[32];
+        primary.processIntraReplicaCommand(new CheckpointMessage(1, -10, 0, 0, digest));
+        primary.processIntraReplicaCommand(new CheckpointMessage(2, -10, 0, 0, digest));
+        primary.processIntraReplicaCommand(new CheckpointMessage(3, -10, 0, 0, digest));
+
+        verify(callbacks, times(window + 1)).sendToReplicas(isA(PreprepareCommand.class));
+    }
+
+    @Test
+    public void replicaDropsOutOfWindowMessages() {
+
+        BftEngineCallbacks callbacks = mock(BftEngineCallbacks.class);
+        BftEngine replica = new BftEngine(1, 0, 1, callbacks, smallWindow());
+
+        ClientCommand cmd = new FakeCommand(1, 1, "fragment-id-1", data);
+        OperationId digest = cmd.getClientOperationId(digests);
+        int sequence = CheckpointManager.PERIOD_TIME + 5;
+
+        replica.processClientCommand(cmd);
+        replica.processIntraReplicaCommand(new PreprepareCommand(0, sequence, 0, digest, -2));
+        replica.processIntraReplicaCommand(new PrepareCommand(0, sequence, 0, digest));
+        replica.processIntraReplicaCommand(new PrepareCommand(0, sequence, 2, digest));
+
+        verify(callbacks, never()).sendToReplicas(any(IntraReplicaCommand.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void windowMustSpanACheckpointPeriod() {
+        new BftEngineConfiguration().setWatermarkWindow(CheckpointManager.PERIOD_TIME - 1);
+    }
+}